@@ -5,6 +5,8 @@ Created by Johann Westphall
 package main
 
 import (
+	"encoding/base64"
+	"encoding/binary"
 	"encoding/json"
 	"errors"
 	"fmt"
@@ -65,6 +67,11 @@ var acceptedClockDrift uint64 = 10
 //max uint64 str chars
 var maxUint64Chars int = len(strconv.FormatUint(^uint64(0), 10))
 
+//smartDataBatchReadingSize is the size of each SmartData reading given
+//to publishSensorDataBatch(): version (1), unit (4), timestamp (8),
+//value (8), error (1), confidence (1) and dev (4), big-endian
+const smartDataBatchReadingSize = 27
+
 //mask to identify only the unit exponent fields of a SmartData unit
 var smartDataUnitMask uint32 = 0x07FFFFFF
 
@@ -768,6 +775,94 @@ func (chaincode *EnergyChaincode) publishSensorData(stub shim.ChaincodeStubInter
 	return shim.Success(nil)
 }
 
+/*
+ @Param stub - to interact with the World State
+ @Param readingsB64 - base64 of the concatenated SmartData readings, 'smartDataBatchReadingSize' bytes each
+ - Publishes many SmartData of the calling sensor in a single transaction, see publishSensorData()
+ - The sensor certificate and activity are checked once for the whole batch
+ - A reading older than 'acceptedDelay' does not stop the others: the response is the number of readings stored
+ - Readings of the same second share a key, the last one of the batch is kept and counted once
+*/
+func (chaincode *EnergyChaincode) publishSensorDataBatch(stub shim.ChaincodeStubInterface, readingsB64 string) pb.Response {
+	println("---- publishSensorDataBatch function beggining ----")
+
+	//get sensor id from the certificate
+	sensorID, err := cid.GetID(stub)
+	if err != nil {
+		return shim.Error(err.Error())
+	}
+	return chaincode.putSmartDataBatch(stub, sensorID, readingsB64)
+}
+
+func (chaincode *EnergyChaincode) putSmartDataBatch(stub shim.ChaincodeStubInterface, sensorID string, readingsB64 string) pb.Response {
+	readings, err := base64.StdEncoding.DecodeString(readingsB64)
+	if err != nil {
+		return shim.Error("SmartData readings are not valid base64: " + err.Error())
+	}
+	if len(readings) == 0 || len(readings)%smartDataBatchReadingSize != 0 {
+		return shim.Error(fmt.Sprintf("SmartData readings must be %d bytes each", smartDataBatchReadingSize))
+	}
+
+	//check if caller is a sensor
+	err = cid.AssertAttributeValue(stub, "energy.sensor", "true")
+	if err != nil {
+		return shim.Error(err.Error())
+	}
+
+	var activityData st.ActiveSensor
+
+	mspID, err := cid.GetMSPID(stub)
+	if err != nil {
+		return shim.Error(err.Error())
+	}
+	assetID := mspID + sensorID
+
+	//verify if sensor is active
+	key, err := stub.CreateCompositeKey("ActiveSensor", []string{mspID, sensorID})
+	activityDataBytes, err := stub.GetState(key)
+	err = proto.Unmarshal(activityDataBytes, &activityData)
+	if err != nil || activityData.IsActive != true {
+		return shim.Error("SENSOR IS NOT ACTIVE!")
+	}
+
+	currentTime := uint64(time.Now().Unix())
+	//timestamps written by this batch, each key is counted once
+	stored := make(map[uint64]bool, len(readings)/smartDataBatchReadingSize)
+	for offset := 0; offset < len(readings); offset += smartDataBatchReadingSize {
+		reading := readings[offset : offset+smartDataBatchReadingSize]
+		timestamp := binary.BigEndian.Uint64(reading[5:13])
+
+		//verify if data is still valid based on timestamp
+		if currentTime > timestamp+acceptedDelay {
+			continue
+		}
+
+		asset := st.SmartData{
+			AssetID:    assetID,
+			Version:    int32(int8(reading[0])), //because of proto
+			Unit:       binary.BigEndian.Uint32(reading[1:5]),
+			Timestamp:  timestamp,
+			Value:      math.Float64frombits(binary.BigEndian.Uint64(reading[13:21])),
+			Error:      uint32(reading[21]), //because of proto
+			Confidence: uint32(reading[22]), //because of proto
+			Dev:        binary.BigEndian.Uint32(reading[23:27]),
+		}
+
+		assetBytes, err := proto.Marshal(&asset)
+		if err != nil {
+			return shim.Error(err.Error())
+		}
+		//we do not use CompositeKey, because CompositeKeys are not supported for the method shim.ChaincodeStubInterface.GetStateByRange()
+		err = stub.PutState("SmartData"+assetID+getMaxUint64CharsStrTimestamp(timestamp), assetBytes)
+		if err != nil {
+			return shim.Error(err.Error())
+		}
+		stored[timestamp] = true
+	}
+
+	return shim.Success([]byte(strconv.Itoa(len(stored))))
+}
+
 func getMaxUint64CharsStrTimestamp(timestamp uint64) string {
 	timestampStr := strconv.FormatUint(timestamp, 10)
 	for i := len(timestampStr); i < maxUint64Chars; i++ {
@@ -1533,6 +1628,48 @@ func (chaincode *EnergyChaincode) validateBuyBid(stub shim.ChaincodeStubInterfac
 	return shim.Success([]byte("BuyBid of token " + token + " validated!"))
 }
 
+/*
+ @Param stub - to interact with the World State
+ @Param tokensAndCovers - pairs of 'token' and 'maxBuyBidPaymentCover', as in validateBuyBid()
+
+ - Validates many BuyBids in a single transaction, see validateBuyBid()
+ - A BuyBid that cannot be validated does not stop the others: the response maps every token to "validated" or to its error
+*/
+func (chaincode *EnergyChaincode) validateBuyBids(stub shim.ChaincodeStubInterface, tokensAndCovers []string) pb.Response {
+	println("---- validateBuyBids function beggining ----")
+
+	if len(tokensAndCovers)%2 != 0 {
+		return shim.Error("Arguments must be pairs of token and max payment cover")
+	}
+
+	err := cid.AssertAttributeValue(stub, "energy.paymentcompany", "true")
+	if err != nil {
+		return shim.Error(err.Error())
+	}
+
+	results := make(map[string]string, len(tokensAndCovers)/2)
+	for i := 0; i < len(tokensAndCovers); i += 2 {
+		token := tokensAndCovers[i]
+		maxBuyBidPaymentCover, err := strconv.ParseFloat(tokensAndCovers[i+1], 64)
+		if err != nil {
+			results[token] = "Invalid max payment cover " + tokensAndCovers[i+1]
+			continue
+		}
+		response := chaincode.validateBuyBid(stub, token, maxBuyBidPaymentCover)
+		if response.Status == shim.ERROR {
+			results[token] = response.Message
+		} else {
+			results[token] = "validated"
+		}
+	}
+
+	resultsBytes, err := json.Marshal(results)
+	if err != nil {
+		return shim.Error(err.Error())
+	}
+	return shim.Success(resultsBytes)
+}
+
 func (chaincode *EnergyChaincode) auction(stub shim.ChaincodeStubInterface) pb.Response {
 	//println("---- auction function beggining ----")
 
@@ -1916,6 +2053,60 @@ func (chaincode *EnergyChaincode) getEnergyTransactionsFromPaymentToken(stub shi
 	return shim.Success([]byte(energyTransactionsJSON))
 }
 
+/*
+ @Param stub - to interact with the World State
+ @Param mspIDPaymentCompany - MSP of the Payment Company that issued the tokens
+ @Param tokens - payment tokens claimed together by a seller
+
+ - Returns a JSON object mapping each token to the array of EnergyTransactions formed with it
+ - Tokens without EnergyTransactions map to an empty array, so a single query answers a whole batch of claims
+*/
+func (chaincode *EnergyChaincode) getEnergyTransactionsFromPaymentTokens(stub shim.ChaincodeStubInterface, mspIDPaymentCompany string, tokens []string) pb.Response {
+	println("---- getEnergyTransactionsFromPaymentTokens function beggining ----")
+
+	err := cid.AssertAttributeValue(stub, "energy.utility", "true")
+	if err != nil {
+		return shim.Error(err.Error())
+	}
+
+	var energyTransactionsJSON strings.Builder
+	var energyTransactionAux st.EnergyTransaction
+	energyTransactionsJSON.WriteString("{")
+	for i, token := range tokens {
+		energyTransactionsIterator, err := stub.GetStateByPartialCompositeKey("EnergyTransaction", []string{mspIDPaymentCompany, token})
+		if err != nil {
+			return shim.Error(err.Error())
+		}
+
+		if i > 0 {
+			energyTransactionsJSON.WriteString(",")
+		}
+		tokenJSON, _ := json.Marshal(token)
+		energyTransactionsJSON.Write(tokenJSON)
+		energyTransactionsJSON.WriteString(":[")
+
+		first := true
+		for energyTransactionsIterator.HasNext() {
+			queryResult, err := energyTransactionsIterator.Next()
+			if err != nil {
+				energyTransactionsIterator.Close()
+				return shim.Error(err.Error())
+			}
+			proto.Unmarshal(queryResult.Value, &energyTransactionAux)
+			if !first {
+				energyTransactionsJSON.WriteString(",")
+			}
+			first = false
+			energyTransactionsJSON.WriteString(protojson.Format(proto.MessageReflect(&energyTransactionAux).Interface()))
+		}
+		energyTransactionsIterator.Close()
+		energyTransactionsJSON.WriteString("]")
+	}
+	energyTransactionsJSON.WriteString("}")
+
+	return shim.Success([]byte(energyTransactionsJSON.String()))
+}
+
 func (chaincode *EnergyChaincode) getEnergyTransactionsFromSellBidNumbers(stub shim.ChaincodeStubInterface, sellBidNumbers []string) pb.Response {
 	println("---- getEnergyTransactionsFromSellBidNumbers function beggining ----")
 
@@ -2475,6 +2666,12 @@ func initFuncMap(chaincode *EnergyChaincode) {
 			dev, _ := strconv.ParseUint(args[6], 10, 32)
 			return chaincode.publishSensorData(stub, version, unit, timestamp, value, e, confidence, uint32(dev))
 		},
+		"publishSensorDataBatch": func(stub shim.ChaincodeStubInterface, args []string) pb.Response {
+			if len(args) != 1 {
+				return shim.Error("Wrong number of arguments for function publishSensorDataBatch")
+			}
+			return chaincode.publishSensorDataBatch(stub, args[0])
+		},
 		"getSensorsPublishedData": func(stub shim.ChaincodeStubInterface, args []string) pb.Response {
 			return chaincode.getSensorsPublishedData(stub, args)
 		},
@@ -2509,6 +2706,9 @@ func initFuncMap(chaincode *EnergyChaincode) {
 			maxBuyBidPaymentCover, _ := strconv.ParseFloat(args[1], 64)
 			return chaincode.validateBuyBid(stub, args[0], maxBuyBidPaymentCover)
 		},
+		"validateBuyBids": func(stub shim.ChaincodeStubInterface, args []string) pb.Response {
+			return chaincode.validateBuyBids(stub, args)
+		},
 		"getCallerIDAndCallerMspID": func(stub shim.ChaincodeStubInterface, args []string) pb.Response {
 			return chaincode.getCallerIDAndCallerMspID(stub)
 		},
@@ -2519,6 +2719,9 @@ func initFuncMap(chaincode *EnergyChaincode) {
 		"getEnergyTransactionsFromPaymentToken": func(stub shim.ChaincodeStubInterface, args []string) pb.Response {
 			return chaincode.getEnergyTransactionsFromPaymentToken(stub, args[0], args[1])
 		},
+		"getEnergyTransactionsFromPaymentTokens": func(stub shim.ChaincodeStubInterface, args []string) pb.Response {
+			return chaincode.getEnergyTransactionsFromPaymentTokens(stub, args[0], args[1:])
+		},
 		"getEnergyTransactionsFromSellBidNumbers": func(stub shim.ChaincodeStubInterface, args []string) pb.Response {
 			return chaincode.getEnergyTransactionsFromSellBidNumbers(stub, args)
 		},
@@ -2604,6 +2807,12 @@ func initFuncMap(chaincode *EnergyChaincode) {
 			dev, _ := strconv.ParseUint(args[7], 10, 32)
 			return chaincode.publishSensorDataTestContext(stub, args[0], version, unit, timestamp, value, e, confidence, uint32(dev))
 		},
+		"publishSensorDataBatchTestContext": func(stub shim.ChaincodeStubInterface, args []string) pb.Response {
+			if len(args) != 2 {
+				return shim.Error("Wrong number of arguments for function publishSensorDataBatchTestContext")
+			}
+			return chaincode.publishSensorDataBatchTestContext(stub, args[0], args[1])
+		},
 		"registerSellerTestContext": func(stub shim.ChaincodeStubInterface, args []string) pb.Response {
 			windTurbinesNumber, _ := strconv.ParseUint(args[1], 10, 64)
 			solarPanelsNumber, _ := strconv.ParseUint(args[2], 10, 64)
@@ -3221,6 +3430,12 @@ func (chaincode *EnergyChaincode) publishSensorDataTestContext(stub shim.Chainco
 	return shim.Success(nil)
 }
 
+func (chaincode *EnergyChaincode) publishSensorDataBatchTestContext(stub shim.ChaincodeStubInterface, sensorID string, readingsB64 string) pb.Response {
+	println("---- publishSensorDataBatchTestContext function beggining ----")
+
+	return chaincode.putSmartDataBatch(stub, sensorID, readingsB64)
+}
+
 func (chaincode *EnergyChaincode) registerSellerTestContext(stub shim.ChaincodeStubInterface, sellerID string, windTurbinesNumber uint64, solarPanelsNumber uint64) pb.Response {
 	println("---- registerSellerTestContext function beggining ----")
 
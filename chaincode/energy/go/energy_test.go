@@ -10,9 +10,12 @@ import (
 	"crypto/rand"
 	"crypto/x509"
 	"crypto/x509/pkix"
+	"encoding/base64"
+	"encoding/binary"
 	"encoding/json"
 	"encoding/pem"
 	"fmt"
+	"math"
 	"math/big"
 	"os"
 	"strconv"
@@ -20,6 +23,8 @@ import (
 	"testing"
 	"time"
 
+	st "energy/proto_structs"
+
 	"github.com/hyperledger/fabric-chaincode-go/pkg/cid"
 
 	"github.com/hyperledger/fabric-chaincode-go/pkg/attrmgr"
@@ -359,3 +364,199 @@ func TestEnergyValidationAndSelling(test *testing.T) {
 	}
 
 }
+
+func TestValidateBuyBidsPartialFailure(test *testing.T) {
+	energyChaincode := &EnergyChaincode{}
+	fakeMain(energyChaincode)
+
+	stub := shimtest.NewMockStub("energy", energyChaincode)
+
+	buyerCreator, _ := proto.Marshal(&msp.SerializedIdentity{
+		Mspid:   "idemixorg",
+		IdBytes: createBuyerCertBytes(),
+	})
+	paymentCompanyCreator, _ := proto.Marshal(&msp.SerializedIdentity{
+		Mspid:   PAYMENTCOMPANY_MSP,
+		IdBytes: createPaymentCompanyCertBytes(),
+	})
+
+	test.Log("Registering two BuyBids of 10 KWH at 5 per KWH")
+	stub.Creator = buyerCreator
+	for _, token := range []string{"TOKEN-1", "TOKEN-2"} {
+		res := stub.MockInvoke(mockTxId(), [][]byte{
+			[]byte("registerBuyBid"),
+			[]byte(PAYMENTCOMPANY_MSP), []byte(token),
+			[]byte(UTILITY_MSP),
+			[]byte("10"), []byte("5"),
+			[]byte("solar")})
+		if res.GetStatus() != shim.OK {
+			test.Fatalf("BuyBid of token %s registering failed: %s", token, res.GetMessage())
+		}
+	}
+
+	test.Log("Validating a batch where only the first BuyBid can be validated")
+	stub.Creator = paymentCompanyCreator
+	res := stub.MockInvoke(mockTxId(), [][]byte{
+		[]byte("validateBuyBids"),
+		[]byte("TOKEN-1"), []byte("100"),
+		[]byte("TOKEN-2"), []byte("10"),
+		[]byte("TOKEN-3"), []byte("100"),
+		[]byte("TOKEN-4"), []byte("not-a-number")})
+
+	if res.GetStatus() != shim.OK {
+		test.Fatalf("A failing BuyBid should not fail the whole batch: %s", res.GetMessage())
+	}
+
+	var results map[string]string
+	json.Unmarshal(res.GetPayload(), &results)
+	if len(results) != 4 {
+		test.Errorf("Every token should have a result. Expected: %d. Got: %d.", 4, len(results))
+	}
+	if results["TOKEN-1"] != "validated" {
+		test.Errorf("BuyBid of TOKEN-1 should have been validated. Got: %s", results["TOKEN-1"])
+	}
+	for _, token := range []string{"TOKEN-2", "TOKEN-3", "TOKEN-4"} {
+		if results[token] == "validated" || results[token] == "" {
+			test.Errorf("BuyBid of %s should have been rejected with its error. Got: %q", token, results[token])
+		}
+	}
+
+	validatedKey, _ := stub.CreateCompositeKey("BuyBid", []string{"true", PAYMENTCOMPANY_MSP, "TOKEN-1"})
+	if buyBidBytes, _ := stub.GetState(validatedKey); buyBidBytes == nil {
+		test.Error("BuyBid of TOKEN-1 should be stored as validated")
+	}
+	unvalidatedKey, _ := stub.CreateCompositeKey("BuyBid", []string{"false", PAYMENTCOMPANY_MSP, "TOKEN-2"})
+	if buyBidBytes, _ := stub.GetState(unvalidatedKey); buyBidBytes == nil {
+		test.Error("BuyBid of TOKEN-2 should still wait for its validation")
+	}
+}
+
+func encodeSmartDataReading(version int8, unit uint32, timestamp uint64, value float64, e uint8, confidence uint8, dev uint32) []byte {
+	reading := make([]byte, smartDataBatchReadingSize)
+	reading[0] = byte(version)
+	binary.BigEndian.PutUint32(reading[1:5], unit)
+	binary.BigEndian.PutUint64(reading[5:13], timestamp)
+	binary.BigEndian.PutUint64(reading[13:21], math.Float64bits(value))
+	reading[21] = e
+	reading[22] = confidence
+	binary.BigEndian.PutUint32(reading[23:27], dev)
+	return reading
+}
+
+func TestPublishSensorDataBatch(test *testing.T) {
+	energyChaincode := &EnergyChaincode{}
+	fakeMain(energyChaincode)
+
+	stub := shimtest.NewMockStub("energy", energyChaincode)
+
+	sensorCreator, _ := proto.Marshal(&msp.SerializedIdentity{
+		Mspid:   SENSORS_MSP,
+		IdBytes: createSensorCertBytes("sensor1"),
+	})
+
+	test.Log("Declaring a sensor active")
+	stub.Creator = sensorCreator
+	stub.MockInvoke(mockTxId(), [][]byte{[]byte("sensorDeclareActive")})
+
+	sensorMspID, _ := cid.GetMSPID(stub)
+	sensorID, _ := cid.GetID(stub)
+	unit, _ := strconv.ParseUint(CANDELA_UNIT, 10, 32)
+	now := uint64(time.Now().Unix())
+	staleTimestamp := now - acceptedDelay - 10
+
+	test.Log("Publishing a batch of two fresh readings and a stale one")
+	var readings []byte
+	readings = append(readings, encodeSmartDataReading(1, uint32(unit), now, 50.5, 2, 3, 4)...)
+	readings = append(readings, encodeSmartDataReading(1, uint32(unit), staleTimestamp, 60, 0, 1, 0)...)
+	readings = append(readings, encodeSmartDataReading(-1, uint32(unit), now+1, -0.25, 255, 100, math.MaxUint32)...)
+
+	res := stub.MockInvoke(mockTxId(), [][]byte{
+		[]byte("publishSensorDataBatch"),
+		[]byte(base64.StdEncoding.EncodeToString(readings))})
+
+	if res.GetStatus() != shim.OK {
+		test.Fatalf("SmartData batch publication failed: %s", res.GetMessage())
+	}
+	if string(res.GetPayload()) != "2" {
+		test.Errorf("Only the fresh readings should be stored. Expected: %s. Got: %s.", "2", res.GetPayload())
+	}
+
+	expected := []st.SmartData{
+		{AssetID: sensorMspID + sensorID, Version: 1, Unit: uint32(unit), Timestamp: now, Value: 50.5, Error: 2, Confidence: 3, Dev: 4},
+		{AssetID: sensorMspID + sensorID, Version: -1, Unit: uint32(unit), Timestamp: now + 1, Value: -0.25, Error: 255, Confidence: 100, Dev: math.MaxUint32},
+	}
+	for _, want := range expected {
+		smartDataBytes, _ := stub.GetState("SmartData" + want.AssetID + getMaxUint64CharsStrTimestamp(want.Timestamp))
+		if smartDataBytes == nil {
+			test.Errorf("SmartData of timestamp %d was not stored", want.Timestamp)
+			continue
+		}
+		var got st.SmartData
+		proto.Unmarshal(smartDataBytes, &got)
+		if got.AssetID != want.AssetID || got.Version != want.Version || got.Unit != want.Unit ||
+			got.Timestamp != want.Timestamp || got.Value != want.Value || got.Error != want.Error ||
+			got.Confidence != want.Confidence || got.Dev != want.Dev {
+			test.Errorf("SmartData did not survive the batch encoding. Expected: %+v. Got: %+v.", want, got)
+		}
+	}
+
+	staleBytes, _ := stub.GetState("SmartData" + sensorMspID + sensorID + getMaxUint64CharsStrTimestamp(staleTimestamp))
+	if staleBytes != nil {
+		test.Error("The stale SmartData should have been skipped")
+	}
+
+	test.Log("Publishing batches whose length is not a multiple of the reading size")
+	for _, length := range []int{0, smartDataBatchReadingSize - 1, smartDataBatchReadingSize + 1} {
+		res = stub.MockInvoke(mockTxId(), [][]byte{
+			[]byte("publishSensorDataBatch"),
+			[]byte(base64.StdEncoding.EncodeToString(readings[:length]))})
+
+		if res.GetStatus() != shim.ERROR {
+			test.Errorf("A batch of %d bytes should have been REJECTED!", length)
+		}
+	}
+}
+
+func TestPublishSensorDataBatchSameSecond(test *testing.T) {
+	energyChaincode := &EnergyChaincode{}
+	fakeMain(energyChaincode)
+
+	stub := shimtest.NewMockStub("energy", energyChaincode)
+
+	sensorCreator, _ := proto.Marshal(&msp.SerializedIdentity{
+		Mspid:   SENSORS_MSP,
+		IdBytes: createSensorCertBytes("sensor1"),
+	})
+
+	stub.Creator = sensorCreator
+	stub.MockInvoke(mockTxId(), [][]byte{[]byte("sensorDeclareActive")})
+
+	sensorMspID, _ := cid.GetMSPID(stub)
+	sensorID, _ := cid.GetID(stub)
+	unit, _ := strconv.ParseUint(CANDELA_UNIT, 10, 32)
+	now := uint64(time.Now().Unix())
+
+	test.Log("Publishing a batch with two readings of the same second")
+	var readings []byte
+	readings = append(readings, encodeSmartDataReading(1, uint32(unit), now, 10, 0, 1, 0)...)
+	readings = append(readings, encodeSmartDataReading(1, uint32(unit), now, 20, 0, 1, 0)...)
+	readings = append(readings, encodeSmartDataReading(1, uint32(unit), now+1, 30, 0, 1, 0)...)
+
+	res := stub.MockInvoke(mockTxId(), [][]byte{
+		[]byte("publishSensorDataBatch"),
+		[]byte(base64.StdEncoding.EncodeToString(readings))})
+
+	if res.GetStatus() != shim.OK {
+		test.Fatalf("SmartData batch publication failed: %s", res.GetMessage())
+	}
+	if string(res.GetPayload()) != "2" {
+		test.Errorf("Readings of the same second should be counted once. Expected: %s. Got: %s.", "2", res.GetPayload())
+	}
+
+	smartDataBytes, _ := stub.GetState("SmartData" + sensorMspID + sensorID + getMaxUint64CharsStrTimestamp(now))
+	var kept st.SmartData
+	proto.Unmarshal(smartDataBytes, &kept)
+	if kept.Value != 20 {
+		test.Errorf("The last reading of the second should be kept. Expected: %v. Got: %v.", 20.0, kept.Value)
+	}
+}
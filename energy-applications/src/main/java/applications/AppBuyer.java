@@ -13,12 +13,14 @@ import java.util.List;
 import java.util.function.Consumer;
 
 import javax.json.Json;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 
 import com.google.protobuf.ByteString;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.milagro.amcl.FP256BN.BIG;
+import org.apache.milagro.amcl.FP256BN.ECP;
 import org.hyperledger.fabric.gateway.Contract;
 import org.hyperledger.fabric.gateway.ContractEvent;
 import org.hyperledger.fabric.gateway.ContractException;
@@ -27,6 +29,7 @@ import org.hyperledger.fabric.gateway.IdemixIdentity;
 import org.hyperledger.fabric.gateway.Network;
 import org.hyperledger.fabric.gateway.Transaction;
 import org.hyperledger.fabric.protos.idemix.Idemix.IssuerPublicKey;
+import org.hyperledger.fabric.protos.idemix.Idemix.NymSignature;
 import org.hyperledger.fabric.protos.msp.Identities.SerializedIdemixIdentity;
 import org.hyperledger.fabric.protos.msp.Identities.SerializedIdentity;
 import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
@@ -35,6 +38,7 @@ import org.hyperledger.fabric.sdk.transaction.TransactionContext;
 
 import applications.argparser.ArgParserBuyer;
 import applications.identity.ApplicationIdentityProvider;
+import applications.identity.NymSignatureCommitment;
 
 public class AppBuyer {
 
@@ -45,15 +49,19 @@ public class AppBuyer {
         public String paymentToken;
         public String transactionID;
         public IssuerPublicKey ipk;
+        public int utilityNonce;
         public byte[] ipkOwnershipSignatureProof;
+        public ECP nym;
 
         public PublishedBuyBid(String paymentCompanyId, String paymentToken, String transactionID, IssuerPublicKey ipk,
-                byte[] ipkOwnershipSignatureProof) {
+                int utilityNonce, byte[] ipkOwnershipSignatureProof, ECP nym) {
             this.paymentCompanyId = paymentCompanyId;
             this.paymentToken = paymentToken;
             this.transactionID = transactionID;
             this.ipk = ipk;
+            this.utilityNonce = utilityNonce;
             this.ipkOwnershipSignatureProof = ipkOwnershipSignatureProof;
+            this.nym = nym;
         }
     }
 
@@ -97,25 +105,37 @@ public class AppBuyer {
         return token;
     }
 
-    private static void requestBuyBidValidation(String token) throws Exception {
-
-        JsonObject post = Json.createObjectBuilder().add("clientname", "buyer1-idemixorg").add("token", token).build();
-        postJsonToUrl("http://localhost:81/validatebuybid", post);
-
-    }
-
-    private static void requestEnergyDiscount(String clientName, String registerBuyBidTxID, IssuerPublicKey ipk,
-            byte[] buyerProvingPseudonymSignature) throws Exception {
+    private static void requestEnergyDiscount(String clientName, String registerBuyBidTxID, int utilityNonce,
+            IssuerPublicKey ipk, byte[] buyerProvingPseudonymSignature) throws Exception {
 
         // String utilityHttpAddress = cmd.getOptionValue("utilityhttpaddress");
         String ipkB64 = Base64.getEncoder().encodeToString(ipk.toByteArray());
         String sigB64 = Base64.getEncoder().encodeToString(buyerProvingPseudonymSignature);
 
         JsonObject post = Json.createObjectBuilder().add("clientname", "buyer1-idemixorg")
-                .add("registerbuybidtxid", registerBuyBidTxID).add("ipkb64", ipkB64).add("sigb64", sigB64).build();
+                .add("registerbuybidtxid", registerBuyBidTxID).add("nonce", utilityNonce).add("ipkb64", ipkB64)
+                .add("sigb64", sigB64).build();
         postJsonToUrl("http://localhost/discountrequest", post);
     }
 
+    private static void requestEnergyDiscounts(String clientName, List<PublishedBuyBid> matchedBids) throws Exception {
+
+        // with the signature commitment the utility verifies all the signatures together
+        JsonArrayBuilder requests = Json.createArrayBuilder();
+        for (PublishedBuyBid publishedBid : matchedBids) {
+            byte[] commitment = NymSignatureCommitment.of(publishedBid.nym, publishedBid.ipk,
+                    NymSignature.parseFrom(publishedBid.ipkOwnershipSignatureProof));
+            requests.add(Json.createObjectBuilder().add("clientname", clientName)
+                    .add("registerbuybidtxid", publishedBid.transactionID).add("nonce", publishedBid.utilityNonce)
+                    .add("ipkb64", Base64.getEncoder().encodeToString(publishedBid.ipk.toByteArray()))
+                    .add("sigb64", Base64.getEncoder().encodeToString(publishedBid.ipkOwnershipSignatureProof))
+                    .add("tb64", Base64.getEncoder().encodeToString(commitment)));
+        }
+
+        JsonObject post = Json.createObjectBuilder().add("requests", requests).build();
+        postJsonToUrl("http://localhost/discountrequest/batch", post);
+    }
+
     private static int getUtilityCompanyNonce() throws Exception {
         JsonObject post = Json.createObjectBuilder().add("clientname", "buyer1-idemixorg").build();
         String response = postJsonToUrl("http://localhost/noncerequest", post);
@@ -132,17 +152,23 @@ public class AppBuyer {
 
                 if (t.getName().equals("auctionPerformed")) {
                     try {
-                        // prove to utility company
+                        // prove to utility company, every matched BuyBid in one request
+                        List<PublishedBuyBid> matchedBids = new LinkedList<PublishedBuyBid>();
                         for (PublishedBuyBid publishedBid : publishedBids) {
                             byte[] response = contract.createTransaction("energyTransactionsFromPaymentTokenExist")
                                     .evaluate(publishedBid.paymentCompanyId, publishedBid.paymentToken);
 
-                            if (new String(response).equals("true")) {
-                                requestEnergyDiscount("buyer1-idemixorg", publishedBid.transactionID, publishedBid.ipk,
-                                        publishedBid.ipkOwnershipSignatureProof);
-                                publishedBids.remove(publishedBid);
-                            }
+                            if (new String(response).equals("true"))
+                                matchedBids.add(publishedBid);
                         }
+                        if (matchedBids.size() == 1) {
+                            PublishedBuyBid publishedBid = matchedBids.get(0);
+                            requestEnergyDiscount("buyer1-idemixorg", publishedBid.transactionID,
+                                    publishedBid.utilityNonce, publishedBid.ipk, publishedBid.ipkOwnershipSignatureProof);
+                        } else if (matchedBids.size() > 1) {
+                            requestEnergyDiscounts("buyer1-idemixorg", matchedBids);
+                        }
+                        publishedBids.removeAll(matchedBids);
                     } catch (Exception e) {
                         System.out.println("HTTP FAILURE");
                     }
@@ -215,9 +241,6 @@ public class AppBuyer {
             byte[] transactionResult = transaction.submit(paymentCompanyId, token, utilityCompanyId, energyAmount,
                     pricePerKwh, energyType);
 
-            // Request BuyBid validation to the Payment Company
-            requestBuyBidValidation(token);
-
             TransactionContext transactionContext = transaction.getTransactionContext();
 
             int utilityNonce = getUtilityCompanyNonce();
@@ -226,6 +249,7 @@ public class AppBuyer {
             byte[] ipkOwnershipSignatureProof = transactionContext
                     .sign((transactionID + Integer.toString(utilityNonce)).getBytes());
 
+            // each BuyBid is proven with its own nonce, the utility accepts it once
             // GET TRANSACTION PSEUDONYM FROM CONTEXT TO MAYBE SAVE IT
             SerializedIdentity serializedIdentity = transactionContext.getIdentity();
             ByteString serializedIdBytes = serializedIdentity.getIdBytes();
@@ -243,7 +267,8 @@ public class AppBuyer {
             // signingId.getNym();
 
             publishedBids
-                    .add(new PublishedBuyBid(paymentCompanyId, token, transactionID, ipk, ipkOwnershipSignatureProof));
+                    .add(new PublishedBuyBid(paymentCompanyId, token, transactionID, ipk, utilityNonce,
+                            ipkOwnershipSignatureProof, new ECP(nymXbuyer, nymYbuyer)));
 
             System.out.println("TxID: " + transaction.getTransactionId());
             System.out.println("Ipk (Base64): " + Base64.getEncoder().encodeToString(ipk.toByteArray()));
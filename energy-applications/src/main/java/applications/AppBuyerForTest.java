@@ -10,13 +10,16 @@ import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import javax.json.Json;
@@ -40,6 +43,10 @@ import org.hyperledger.fabric.sdk.transaction.TransactionContext;
 
 import applications.argparser.ArgParserBuyer;
 import applications.identity.ApplicationIdentityProvider;
+import applications.ledger.AsyncSubmitter;
+import applications.load.LatencyRecorder;
+import applications.load.LoadEngine;
+import applications.payment.PaymentTokenPool;
 import applications.testargparser.ArgParserBuyerTest;
 import jdk.nashorn.internal.runtime.Property;
 
@@ -47,6 +54,9 @@ public class AppBuyerForTest {
 
     private static CommandLine cmd;
     private static String utilityUrl, paymentUrl;
+    private static Contract contract;
+    private static AsyncSubmitter submitter;
+    private static LatencyRecorder latencies;
 
     private static class PublishedBuyBid {
         public String paymentCompanyId;
@@ -113,22 +123,16 @@ public class AppBuyerForTest {
         return token;
     }
 
-    private static void requestBuyBidValidation(String token, String buyerFullName) throws Exception {
-
-        JsonObject post = Json.createObjectBuilder().add("clientname", buyerFullName).add("token", token).build();
-        postJsonToUrl(paymentUrl + "/validatebuybid", post);
-
-    }
-
-    private static void requestEnergyDiscount(String clientName, String registerBuyBidTxID, IssuerPublicKey ipk,
-            byte[] buyerProvingPseudonymSignature) throws Exception {
+    private static void requestEnergyDiscount(String clientName, String registerBuyBidTxID, int utilityNonce,
+            IssuerPublicKey ipk, byte[] buyerProvingPseudonymSignature) throws Exception {
 
         // String utilityHttpAddress = cmd.getOptionValue("utilityhttpaddress");
         String ipkB64 = Base64.getEncoder().encodeToString(ipk.toByteArray());
         String sigB64 = Base64.getEncoder().encodeToString(buyerProvingPseudonymSignature);
 
         JsonObject post = Json.createObjectBuilder().add("clientname", "buyer1-idemixorg")
-                .add("registerbuybidtxid", registerBuyBidTxID).add("ipkb64", ipkB64).add("sigb64", sigB64).build();
+                .add("registerbuybidtxid", registerBuyBidTxID).add("nonce", utilityNonce).add("ipkb64", ipkB64)
+                .add("sigb64", sigB64).build();
         postJsonToUrl(utilityUrl + "/discountrequest", post);
     }
 
@@ -151,8 +155,11 @@ public class AppBuyerForTest {
                         // prove to utility company
                         for (int i = 0; i < publishedBids.size(); i++) {
                             PublishedBuyBid publishedBid = publishedBids.get(i);
+                            long startEvaluation = System.nanoTime();
                             byte[] response = contract.createTransaction("transactionsEnergyQuantityFromPaymentToken")
                                     .evaluate(publishedBid.paymentCompanyId, publishedBid.paymentToken);
+                            latencies.evaluated("transactionsEnergyQuantityFromPaymentToken",
+                                    System.nanoTime() - startEvaluation);
 
                             double energyQuantitySettledByTransactions = Double.parseDouble(new String(response));
                             if (energyQuantitySettledByTransactions > publishedBid.energyQuantitySettled) {
@@ -161,7 +168,7 @@ public class AppBuyerForTest {
                                 byte[] ipkOwnershipSignatureProof = publishedBid.signingId
                                         .sign((publishedBid.transactionID + Integer.toString(utilityNonce)).getBytes());
                                 // requestEnergyDiscount(buyerFullName, publishedBid.transactionID,
-                                // publishedBid.ipk,
+                                // utilityNonce, publishedBid.ipk,
                                 // ipkOwnershipSignatureProof);
                                 publishedBid.energyQuantitySettled += energyQuantitySettledByTransactions;
                                 if (publishedBid.isFullySatisfied())
@@ -190,6 +197,159 @@ public class AppBuyerForTest {
         return token;
     }
 
+    /**
+     * A buyer publishes 'maxPublish' BuyBids, one every 'randomInterval'
+     * milliseconds. Without a token pool, each BuyBid is validated up to 30% of
+     * the interval later, as the Payment Company would.
+     */
+    private static class Buyer implements LoadEngine.Entity {
+
+        private final int threadNum;
+        private final String buyerFullName;
+        private final IdemixIdentity idemixId;
+        private final int maxPublish;
+        private final int tokenPoolSize;
+        private final Random rand = new Random();
+        private final int thirtyPercentInterval;
+        private final int randomInterval;
+        private final List<PublishedBuyBid> publishedBids = new LinkedList<PublishedBuyBid>();
+
+        private long startExecution = 0, transactionTimeWait = 0, startTransaction = 0;
+        private int publish = 0, failedBuyBids = 0;
+        private PaymentTokenPool tokenPool = null;
+        // the BuyBid of 'publish' is registered, its validation is next
+        private String tokenToValidate = null;
+
+        Buyer(int threadNum, String buyerFullName, IdemixIdentity idemixId, int interval, int maxPublish,
+                int tokenPoolSize) {
+            this.threadNum = threadNum;
+            this.buyerFullName = buyerFullName;
+            this.idemixId = idemixId;
+            this.maxPublish = maxPublish;
+            this.tokenPoolSize = tokenPoolSize;
+            this.thirtyPercentInterval = interval / 3;
+            this.randomInterval = (interval - thirtyPercentInterval) + rand.nextInt(2 * thirtyPercentInterval);
+        }
+
+        @Override
+        public CompletionStage<?> setUp() {
+            try {
+                registerAuctionEventListener(contract, publishedBids, buyerFullName);
+
+                // Putting funds on buyer accounts to request token
+                // putFundsOnPaymentAccount(1000000, buyerFullName);
+
+                // real tokens are bought in bulk ahead of the BuyBids, the Payment
+                // Company validates the BuyBids by itself
+                if (tokenPoolSize > 0) {
+                    putFundsOnPaymentAccount(1000000, buyerFullName);
+                    tokenPool = new PaymentTokenPool(paymentUrl, buyerFullName, 1000, tokenPoolSize,
+                            30 * 60 * 1000);
+                }
+            } catch (Exception e) {
+                throw new Error(String.format("Buyer %d exiting with exception: " + e.getMessage(), threadNum), e);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public long startDelay() {
+            startExecution = System.currentTimeMillis();
+            // adding a little randomness to start time to avoid 100% sync among buyers
+            return rand.nextInt(500) + 2000;
+        }
+
+        @Override
+        public CompletionStage<Long> step(long intendedMillis) {
+            if (publish >= maxPublish)
+                return CompletableFuture.completedFuture(LoadEngine.DONE);
+            return tokenToValidate != null ? validateBuyBid(intendedMillis) : publishBuyBid(intendedMillis);
+        }
+
+        private CompletionStage<Long> publishBuyBid(long intendedMillis) {
+            // Request token to Payment Company
+            // String token = requestPaymentToken(buyerFullName);
+            String token;
+            try {
+                token = tokenPool != null ? tokenPool.take() : simluateGetToken();
+            } catch (Exception e) {
+                throw new Error(String.format("Buyer %d exiting with exception: " + e.getMessage(), threadNum), e);
+            }
+
+            // Submit BuyBid
+            startTransaction = intendedMillis;
+            String paymentCompanyId = cmd.getOptionValue("paymentcompanyid");
+            String utilityCompanyId = "UFSC";
+            String energyQuantity = cmd.getOptionValue("energyquantitykwh");
+            String pricePerKwh = cmd.getOptionValue("priceperkwh");
+            String energyType = cmd.getOptionValue("energytype");
+            Transaction transaction = contract.createTransaction("registerBuyBid");
+            return submitter.submit(transaction, paymentCompanyId, token, utilityCompanyId, energyQuantity,
+                    pricePerKwh, energyType).handle((result, e) -> {
+                        if (e != null) {
+                            failedBuyBids++;
+                            publish++;
+                            return (long) randomInterval;
+                        }
+                        transactionTimeWait += System.currentTimeMillis() - startTransaction;
+                        latencies.record("registerBuyBid", "total",
+                                TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startTransaction));
+
+                        TransactionContext transactionContext = transaction.getTransactionContext();
+
+                        String transactionID = transaction.getTransactionId();
+
+                        // get Ipk and signing identity to send to utility company for verification
+                        IssuerPublicKey ipk = idemixId.getIpk().toProto();
+                        IdemixSigningIdentity signingId = (IdemixSigningIdentity) transactionContext
+                                .getSigningIdentity();
+
+                        publishedBids.add(new PublishedBuyBid(paymentCompanyId, token, transactionID, ipk,
+                                signingId, Double.parseDouble(energyQuantity)));
+
+                        // simulate BuyBid validation
+                        if (tokenPool == null) {
+                            tokenToValidate = token;
+                            return (long) rand.nextInt(thirtyPercentInterval);
+                        }
+                        publish++;
+                        return (long) randomInterval;
+                    });
+        }
+
+        private CompletionStage<Long> validateBuyBid(long intendedMillis) {
+            String token = tokenToValidate;
+            tokenToValidate = null;
+            return submitter.submit(contract, "validateBuyBidTestContext", cmd.getOptionValue("paymentcompanyid"),
+                    token).handle((result, e) -> {
+                        if (e != null)
+                            failedBuyBids++;
+                        else
+                            latencies.record("validateBuyBidTestContext", "total",
+                                    TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - intendedMillis));
+                        publish++;
+                        return (long) randomInterval;
+                    });
+        }
+
+        @Override
+        public void finish() {
+            long totalExecutionTime = System.currentTimeMillis() - startExecution, singleSignatureTime = 0;
+            if (tokenPool != null) {
+                System.out.println(String.format(
+                        "Thread %d took %d tokens from its pool in %d requests, waiting %d times", threadNum,
+                        tokenPool.getTaken(), tokenPool.getRequests(), tokenPool.getWaits()));
+                tokenPool.stop();
+            }
+
+            System.out.println(getClass().getName() + " Thread " + Integer.toString(threadNum) + " took "
+                    + Long.toString(transactionTimeWait) + "ms to submit " + Integer.toString(maxPublish)
+                    + " transactions of " + Long.toString(totalExecutionTime)
+                    + "ms total execution time. \nA single signature takes: " + Long.toString(singleSignatureTime)
+                    + "ms ");
+        }
+    }
+
     public static void main(String[] args) throws Exception {
 
         // enroll args
@@ -226,12 +386,17 @@ public class AppBuyerForTest {
         String msp = cmd.getOptionValue("msp");
         String baseDir = cmd.getOptionValue("basedir");
         int interval = Integer.parseInt(cmd.getOptionValue("publishinterval"));
-        int thirtyPercentInterval = interval / 3;
         int maxPublish = Integer.parseInt(cmd.getOptionValue("publishquantity"));
         paymentUrl = cmd.getOptionValue("paymentcompanyurl");
         utilityUrl = cmd.getOptionValue("utilityurl");
+        int tokenPoolSize = Integer.parseInt(cmd.getOptionValue("tokenpool", "0"));
         String dockerPrefix = cmd.hasOption("dockernetwork") ? "docker-" : "";
         String awsPrefix = cmd.hasOption("awsnetwork") ? "aws-" : "";
+        Long commitTimeout = cmd.hasOption("committimeout") ? Long.parseLong(cmd.getOptionValue("committimeout")) : 300;
+        int ledgerThreads = Integer.parseInt(cmd.getOptionValue("ledgerthreads", "16"));
+        LoadEngine engine = LoadEngine.create(cmd);
+        latencies = LatencyRecorder.create(cmd,
+                "AppBuyerForTest" + (cliApplicationStr != null ? cliApplicationStr : ""));
 
         /*
          * final Set<String> algorithms = Security.getAlgorithms("SecureRandom");
@@ -284,109 +449,25 @@ public class AppBuyerForTest {
             Network network = gateway.getNetwork("canal");
             Contract contract = network.getContract("energy");
 
-            CyclicBarrier threadsBarrier = new CyclicBarrier(THREAD_NUM);
-            Thread[] threads = new Thread[THREAD_NUM + 1];
+            AppBuyerForTest.contract = contract;
+            submitter = new AsyncSubmitter(network, ledgerThreads, Math.max(4096, 2 * THREAD_NUM),
+                    commitTimeout * 1000);
+            submitter.setLatencyListener(latencies);
 
+            List<Buyer> buyers = new ArrayList<Buyer>();
             for (int i = 1; i <= THREAD_NUM; i++) {
-
-                final int finalI = i;
-                Random rand = new Random();
-                int randomInterval = (interval - thirtyPercentInterval) + rand.nextInt(2 * thirtyPercentInterval);
-                threads[i] = new Thread() {
-
-                    int threadNum = finalI;
-                    // CommandLine cmd;
-
-                    public void run() {
-                        try {
-                            // Obtain a smart contract deployed on the network.
-
-                            List<PublishedBuyBid> publishedBids = new LinkedList<PublishedBuyBid>();
-                            String buyerFullName = String.format("buyer%d-%s",
-                                    threadNum + (cliApplicationId - 1) * THREAD_NUM,
-                                    cmd.getOptionValue("msp").toLowerCase());
-                            registerAuctionEventListener(contract, publishedBids, buyerFullName);
-
-                            long totalExecutionTime = 0, startExecution = 0, transactionTimeWait = 0,
-                                    startTransaction = 0, singleSignatureTime = 0, startSignature;
-
-                            // Putting funds on buyer accounts to request token
-                            // putFundsOnPaymentAccount(1000000, buyerFullName);
-
-                            threadsBarrier.await();
-                            startExecution = System.currentTimeMillis();
-
-                            int publish = 0, failedBuyBids = 0;
-                            // adding a little randomness to start time to avoid 100% sync among threads
-                            Thread.sleep(new Random().nextInt(500) + 2000);
-                            Transaction transaction;
-                            while (publish < maxPublish) {
-                                // Request token to Payment Company
-                                // String token = requestPaymentToken(buyerFullName);
-                                String token = simluateGetToken();
-
-                                // Submit BuyBid
-                                try {
-                                    startTransaction = System.currentTimeMillis();
-                                    String paymentCompanyId = cmd.getOptionValue("paymentcompanyid");
-                                    String utilityCompanyId = "UFSC";
-                                    String energyQuantity = cmd.getOptionValue("energyquantitykwh");
-                                    String pricePerKwh = cmd.getOptionValue("priceperkwh");
-                                    String energyType = cmd.getOptionValue("energytype");
-                                    transaction = contract.createTransaction("registerBuyBid");
-                                    transaction.submit(paymentCompanyId, token, utilityCompanyId, energyQuantity,
-                                            pricePerKwh, energyType);
-                                    transactionTimeWait += System.currentTimeMillis() - startTransaction;
-                                    // Request BuyBid validation to the Payment Company
-                                    // requestBuyBidValidation(token, buyerFullName);
-
-                                    TransactionContext transactionContext = transaction.getTransactionContext();
-
-                                    String transactionID = transaction.getTransactionId();
-
-                                    // get Ipk and signing identity to send to utility company for verification
-                                    IssuerPublicKey ipk = idemixId.getIpk().toProto();
-                                    IdemixSigningIdentity signingId = (IdemixSigningIdentity) transactionContext
-                                            .getSigningIdentity();
-
-                                    // signingId.getNym();
-
-                                    publishedBids.add(new PublishedBuyBid(paymentCompanyId, token, transactionID, ipk,
-                                            signingId, Double.parseDouble(energyQuantity)));
-
-                                    // simulate BuyBid validation
-                                    Thread.sleep(rand.nextInt(thirtyPercentInterval));
-                                    transaction = contract.createTransaction("validateBuyBidTestContext");
-                                    transaction.submit(paymentCompanyId, token);
-                                } catch (Exception e) {
-                                    failedBuyBids++;
-                                }
-
-                                publish++;
-                                Thread.sleep(randomInterval);
-                            }
-                            totalExecutionTime = System.currentTimeMillis() - startExecution;
-
-                            System.out.println(getClass().getName() + " Thread " + Integer.toString(threadNum)
-                                    + " took " + Long.toString(transactionTimeWait) + "ms to submit "
-                                    + Integer.toString(maxPublish) + " transactions of "
-                                    + Long.toString(totalExecutionTime)
-                                    + "ms total execution time. \nA single signature takes: "
-                                    + Long.toString(singleSignatureTime) + "ms ");
-
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            throw new Error(
-                                    String.format("Thread %d exiting with exception: " + e.getMessage(), threadNum));
-                        }
-                    }
-                };
-                threads[i].start();
+                String buyerFullName = String.format("buyer%d-%s", i + (cliApplicationId - 1) * THREAD_NUM,
+                        cmd.getOptionValue("msp").toLowerCase());
+                buyers.add(new Buyer(i, buyerFullName, idemixId, interval, maxPublish, tokenPoolSize));
             }
             // save SOMEHOW the idemix params for proving the buybid to the utility company
-
-            for (int i = 1; i <= THREAD_NUM; i++)
-                threads[i].join();
+            engine.run(buyers);
+            System.out.println(String.format("%d steps, %d failed, %d started behind schedule (arrivals: %s)",
+                    engine.getSteps(), engine.getFailures(), engine.getLateSteps(),
+                    engine.getArrivals().toString().toLowerCase()));
+            latencies.stop();
+            latencies.print(System.out);
+            submitter.stop();
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -1,351 +1,533 @@
 package applications;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.StringReader;
-import java.net.InetSocketAddress;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
 import java.security.SignatureException;
-import java.security.cert.CertificateEncodingException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.math3.util.Pair;
 import org.hyperledger.fabric.gateway.Contract;
 import org.hyperledger.fabric.gateway.DefaultCommitHandlers;
 import org.hyperledger.fabric.gateway.Gateway;
-import org.hyperledger.fabric.gateway.Identities;
 import org.hyperledger.fabric.gateway.Identity;
 import org.hyperledger.fabric.gateway.Network;
-import org.hyperledger.fabric.protos.common.Configtx.Config;
-import org.hyperledger.fabric.protos.common.Configtx.ConfigGroup;
-import org.hyperledger.fabric.protos.common.Configtx.ConfigValue;
-import org.hyperledger.fabric.protos.msp.MspConfigPackage.FabricMSPConfig;
-import org.hyperledger.fabric.protos.msp.MspConfigPackage.MSPConfig;
-import org.hyperledger.fabric.sdk.Channel;
 
 import applications.argparser.ArgParserPaymentCompany;
+import applications.http.AdmissionController;
+import applications.http.AsyncHttpHandler;
+import applications.http.HttpServerEngine;
+import applications.http.JsonFields;
+import applications.http.JsonRequest;
+import applications.http.JsonResponse;
 import applications.identity.ApplicationIdentityProvider;
+import applications.identity.MspTrustStore;
+import applications.identity.VerifiedCertificateCache;
+import applications.identity.VerifiedCertificateCache.VerifiedCertificate;
+import applications.ledger.AsyncSubmitter;
+import applications.payment.AccountLedger;
+import applications.payment.AccountLedger.Reservation;
+import applications.payment.BuyBidValidationBatcher;
+import applications.payment.TokenService;
+import applications.payment.state.PaymentState;
 
 public class AppPaymentCompany {
     private static CommandLine cmd;
     private static Network network;
-    private static Map<String, UserFunds> tokenUser;
-    private static Map<String, UserFunds> clientNameUser;
-    private static Map<String, PaidBids> sellersPaidBids;
+    private static PaymentState state;
+    private static AccountLedger ledger;
+    private static TokenService tokenService;
 
     private static String COMPANY_NAME = "UFSC";
-    private static Map<String, ConfigGroup> channelOrgsMap;
-
-    private static class UserFunds {
-        public String clientName;
-        public double funds;
-
-        public UserFunds(String clientName, double funds) {
-            this.clientName = clientName;
-            this.funds = funds;
-        }
-    }
-
-    private static class PaidBids extends ArrayList<Pair<String, Long>> {
-        public PaidBids() {
-            super();
-        }
-    }
+    private static final int MAX_TOKENS_PER_REQUEST = 1000;
+    private static MspTrustStore trustStore;
+    private static VerifiedCertificateCache certificateCache;
+    private static ForkJoinPool signatureVerificationPool;
+    private static BuyBidValidationBatcher buyBidValidationBatcher;
+    private static AsyncSubmitter submitter;
+    private static AdmissionController admission;
 
     private static class PutFundsHandler implements HttpHandler {
+        private static final JsonFields FIELDS = JsonFields.of("clientname", "funds");
+
         @Override
         public void handle(HttpExchange t) throws IOException {
-            InputStream in = t.getRequestBody();
-            String request = new String(in.readAllBytes());
-
-            JsonReader reader = Json.createReader(new StringReader(request));
-            JsonObject tokenRequest = reader.readObject();
+            JsonRequest tokenRequest = JsonRequest.read(t, FIELDS);
 
             String clientName = tokenRequest.getString("clientname");
-            double funds = tokenRequest.getJsonNumber("funds").doubleValue();
+            double funds = tokenRequest.getDouble("funds");
 
             String response;
+            int rCode;
 
             try {
                 putFunds(clientName, funds);
                 response = "Funds added to " + clientName;
-                t.sendResponseHeaders(200, response.length());
+                rCode = 200;
             } catch (Exception e) {
                 response = e.getMessage();
-                t.sendResponseHeaders(404, response.length());
+                rCode = 404;
             }
 
-            OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            JsonResponse.sendText(t, rCode, response);
         }
     }
 
     private static class GetTokenHandler implements HttpHandler {
+        private static final JsonFields FIELDS = JsonFields.of("clientname", "funds");
+
         @Override
         public void handle(HttpExchange t) throws IOException {
-            InputStream in = t.getRequestBody();
-            String request = new String(in.readAllBytes());
-
-            JsonReader reader = Json.createReader(new StringReader(request));
-            JsonObject tokenRequest = reader.readObject();
+            JsonRequest tokenRequest = JsonRequest.read(t, FIELDS);
 
             String clientName = tokenRequest.getString("clientname");
-            double funds = tokenRequest.getJsonNumber("funds").doubleValue();
+            double funds = tokenRequest.getDouble("funds");
 
-            String response, token = "";
+            String response;
+            int rCode;
 
             try {
-                token = getToken(clientName, funds);
-                response = token;
-                t.sendResponseHeaders(200, response.length());
+                response = getToken(clientName, funds);
+                rCode = 200;
             } catch (Exception e) {
                 response = e.getMessage();
-                t.sendResponseHeaders(404, response.length());
+                rCode = 404;
             }
 
-            OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            JsonResponse.sendText(t, rCode, response);
         }
     }
 
-    private static class ValidateBuyBidHandler implements HttpHandler {
+    private static class GetTokensHandler implements HttpHandler {
+        private static final JsonFields FIELDS = JsonFields.of("clientname", "funds", "count");
+
         @Override
         public void handle(HttpExchange t) throws IOException {
-            InputStream in = t.getRequestBody();
-            String request = new String(in.readAllBytes());
-
-            JsonReader reader = Json.createReader(new StringReader(request));
-            JsonObject tokenRequest = reader.readObject();
+            JsonRequest tokenRequest = JsonRequest.read(t, FIELDS);
 
             String clientName = tokenRequest.getString("clientname");
-            String token = tokenRequest.getString("token");
+            double funds = tokenRequest.getDouble("funds");
+            int count = Math.max(1, Math.min(tokenRequest.getInt("count"), MAX_TOKENS_PER_REQUEST));
 
-            String response;
+            JsonResponse response;
+            int rCode;
 
             try {
-                response = validateBuyBid(clientName, token);
-                t.sendResponseHeaders(200, response.length());
+                List<String> tokens = getTokens(clientName, funds, count);
+                response = JsonResponse.get().beginObject().name("tokens").beginArray();
+                for (String token : tokens) {
+                    response.value(token);
+                }
+                response.endArray().endObject();
+                rCode = 200;
             } catch (Exception e) {
-                response = "Exception in buybid validation";
-                t.sendResponseHeaders(404, response.length());
+                response = JsonResponse.get().text(e.getMessage());
+                rCode = 404;
             }
 
-            OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            response.send(t, rCode);
         }
     }
 
-    private static class RequestPaymentHandler implements HttpHandler {
+    private static class ValidateBuyBidHandler implements AsyncHttpHandler {
+        private static final JsonFields FIELDS = JsonFields.of("clientname", "token");
+
         @Override
-        public void handle(HttpExchange t) throws IOException {
-            InputStream in = t.getRequestBody();
-            String request = new String(in.readAllBytes());
+        public CompletionStage<?> handleAsync(HttpExchange t) throws IOException {
+            JsonRequest tokenRequest = JsonRequest.read(t, FIELDS);
+
+            String clientName = tokenRequest.getString("clientname");
+            String token = tokenRequest.getString("token");
 
-            JsonReader reader = Json.createReader(new StringReader(request));
-            JsonObject paymentRequest = reader.readObject();
+            // answered once the validation is committed, from the commit notification
+            return validateBuyBid(clientName, token).handle((response, failure) -> {
+                if (failure == null)
+                    AsyncHttpHandler.reply(t, 200, response);
+                else if (AsyncHttpHandler.cause(failure) instanceof RejectedExecutionException)
+                    AdmissionController.sendBusy(t);
+                else
+                    AsyncHttpHandler.reply(t, 404, "Exception in buybid validation");
+                return null;
+            });
+        }
+    }
+
+    private static class RequestPaymentHandler implements AsyncHttpHandler {
+        private static final JsonFields FIELDS = JsonFields.of("sellername", "mspseller", "token", "certificate",
+                "sigb64");
+
+        @Override
+        public CompletionStage<?> handleAsync(HttpExchange t) throws IOException {
+            JsonRequest paymentRequest = JsonRequest.read(t, FIELDS);
 
             String sellerName = paymentRequest.getString("sellername");
             String sellerMspID = paymentRequest.getString("mspseller");
             String token = paymentRequest.getString("token");
 
-            String response = "";
+            CompletableFuture<Long> payment;
+            try {
+                String sellerCertificatePem = paymentRequest.getString("certificate");
+                byte[] tokenSignature = paymentRequest.getBase64("sigb64");
+                payment = paySeller(sellerName, sellerMspID, token, sellerCertificatePem, tokenSignature);
+            } catch (Exception e) {
+                JsonResponse.sendText(t, 404, "");
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return payment.handle((paid, failure) -> {
+                if (failure == null)
+                    AsyncHttpHandler.reply(t, 200, "");
+                else if (AsyncHttpHandler.cause(failure) instanceof RejectedExecutionException)
+                    AdmissionController.sendBusy(t);
+                else
+                    AsyncHttpHandler.reply(t, 404, "");
+                return null;
+            });
+        }
+    }
+
+    private static class RequestPaymentBatchHandler implements AsyncHttpHandler {
+        private static final JsonFields FIELDS = JsonFields.of("sellername", "mspseller", "certificate", "claims");
+        private static final JsonFields CLAIM_FIELDS = JsonFields.of("token", "sigb64");
+
+        @Override
+        public CompletionStage<?> handleAsync(HttpExchange t) throws IOException {
+            JsonRequest paymentRequest = JsonRequest.read(t, FIELDS);
 
+            String sellerName = paymentRequest.getString("sellername");
+            String sellerMspID = paymentRequest.getString("mspseller");
+
+            List<String> tokens = new ArrayList<String>();
+            CompletableFuture<List<ClaimResult>> payments;
             try {
-                X509Certificate sellerCertificate = Identities
-                        .readX509Certificate(paymentRequest.getString("certificate"));
-                byte[] tokenSignature = Base64.getDecoder().decode(paymentRequest.getString("sigb64"));
-                paySeller(sellerName, sellerMspID, token, sellerCertificate, tokenSignature);
-                t.sendResponseHeaders(200, response.length());
+                String sellerCertificatePem = paymentRequest.getString("certificate");
+                List<byte[]> tokenSignatures = new ArrayList<byte[]>();
+                JsonRequest claims = paymentRequest.getObjects("claims", CLAIM_FIELDS);
+                while (claims.next()) {
+                    tokens.add(claims.getString("token"));
+                    tokenSignatures.add(claims.getBase64("sigb64"));
+                }
+
+                payments = paySellerBatch(sellerName, sellerMspID, sellerCertificatePem, tokens, tokenSignatures);
             } catch (Exception e) {
-                t.sendResponseHeaders(404, response.length());
+                JsonResponse.sendText(t, 404, "Batch payment failed: " + e.getMessage());
+                return CompletableFuture.completedFuture(null);
             }
 
-            OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            return payments.handle((results, failure) -> {
+                if (failure == null) {
+                    // built here, on the thread sending it
+                    JsonResponse response = JsonResponse.get().beginObject().name("results").beginArray();
+                    for (int i = 0; i < results.size(); i++) {
+                        ClaimResult result = results.get(i);
+                        response.beginObject().add("token", tokens.get(i)).add("status", result.status);
+                        if (result.paid >= 0)
+                            response.add("amount", AccountLedger.toAmount(result.paid));
+                        response.endObject();
+                    }
+                    response.endArray().endObject();
+                    AsyncHttpHandler.reply(t, 200, response);
+                } else if (AsyncHttpHandler.cause(failure) instanceof RejectedExecutionException)
+                    AdmissionController.sendBusy(t);
+                else
+                    AsyncHttpHandler.reply(t, 404,
+                            "Batch payment failed: " + AsyncHttpHandler.cause(failure).getMessage());
+                return null;
+            });
         }
     }
 
-    private static void putFunds(String clientName, double funds) {
-        UserFunds userFunds = clientNameUser.get(clientName);
-        if (userFunds != null) {
-            userFunds.funds += funds;
-        } else {
-            clientNameUser.put(clientName, new UserFunds(clientName, funds));
+    /**
+     * Outcome of one claim of a batch payment, 'paid' is negative when nothing
+     * was paid.
+     */
+    private static class ClaimResult {
+        private static final ClaimResult INVALID_SIGNATURE = new ClaimResult("invalid signature", -1);
+        private static final ClaimResult NO_ENERGY_TRANSACTIONS = new ClaimResult("no energy transactions", -1);
+
+        private final String status;
+        private final long paid;
+
+        private ClaimResult(String status, long paid) {
+            this.status = status;
+            this.paid = paid;
         }
     }
 
-    private static String getToken(String clientName, double funds) throws Exception {
+    private static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            JsonResponse metrics = JsonResponse.get().beginObject()
+                    .name("certificatecache").beginObject()
+                    .add("size", certificateCache.size())
+                    .add("hits", certificateCache.getHits())
+                    .add("misses", certificateCache.getMisses())
+                    .add("hitrate", certificateCache.getHitRate())
+                    .add("evictions", certificateCache.getEvictions())
+                    .add("expirations", certificateCache.getExpirations())
+                    .add("rejections", certificateCache.getRejections()).endObject()
+                    .name("state").beginObject()
+                    .add("durable", state.isDurable())
+                    .add("accounts", ledger.getAccountCount())
+                    .add("reservations", ledger.getReservationCount())
+                    .add("logappends", state.getLogAppends())
+                    .add("logflushes", state.getLogFlushes()).endObject()
+                    .name("tokens").beginObject()
+                    .add("live", tokenService.getLiveCount())
+                    .add("issued", tokenService.getIssued())
+                    .add("expired", tokenService.getExpired())
+                    .add("expiredpersecond", tokenService.getExpirationsPerSecond()).endObject()
+                    .name("buybidvalidation").beginObject()
+                    .add("pending", buyBidValidationBatcher.getPendingCount())
+                    .add("batches", buyBidValidationBatcher.getBatches())
+                    .add("validated", buyBidValidationBatcher.getValidated())
+                    .add("rejected", buyBidValidationBatcher.getRejected())
+                    .add("failedbatches", buyBidValidationBatcher.getFailedBatches())
+                    .add("retried", buyBidValidationBatcher.getRetried())
+                    .add("abandoned", buyBidValidationBatcher.getAbandoned()).endObject()
+                    .name("ledger").beginObject()
+                    .add("queued", submitter.getQueuedCount())
+                    .add("inflightcommits", submitter.getInFlightCommits())
+                    .add("submitted", submitter.getSubmitted())
+                    .add("committed", submitter.getCommitted())
+                    .add("invalid", submitter.getInvalid())
+                    .add("timedout", submitter.getTimedOut()).endObject();
+
+            if (admission != null) {
+                metrics.name("admission").beginObject();
+                for (AdmissionController.Limiter limiter : admission.getLimiters().values()) {
+                    metrics.name(limiter.getPath()).beginObject()
+                            .add("limit", limiter.getLimit())
+                            .add("inflight", limiter.getInFlight())
+                            .add("admitted", limiter.getAdmitted())
+                            .add("rejected", limiter.getRejected())
+                            .add("shortrttms", limiter.getShortRttMillis())
+                            .add("longrttms", limiter.getLongRttMillis()).endObject();
+                }
+                metrics.endObject();
+            }
+            metrics.endObject();
 
-        UserFunds userFunds = clientNameUser.get(clientName);
-        if (userFunds != null && userFunds.funds < funds)
-            throw new Exception("No funds");
+            metrics.send(t, 200);
+        }
+    }
 
-        // generate Random String
-        byte[] auxBytes = new byte[16];
-        new Random().nextBytes(auxBytes);
-        String token = new String(Base64.getEncoder().encode(auxBytes));
+    private static void putFunds(String clientName, double funds) throws Exception {
+        state.deposit(clientName, AccountLedger.toUnits(funds));
+    }
 
-        // concatenate with the timestamp
-        token += Long.toString(new Timestamp(System.currentTimeMillis()).getTime());
+    private static String getToken(String clientName, double funds) throws Exception {
 
-        // save in the relation token-user
-        if (true)// (!tokenUser.containsKey(token))
-            tokenUser.put(token, new UserFunds(clientName, funds));
+        // random token reserving the funds it covers
+        String token = tokenService.issue(clientName, AccountLedger.toUnits(funds));
+        if (token == null)
+            throw new Exception("No funds");
 
         return token;
     }
 
-    private static String validateBuyBid(String clientName, String token) throws Exception {
+    /**
+     * Issues up to 'count' tokens covering 'funds' each, fewer if the client
+     * funds run out.
+     */
+    private static List<String> getTokens(String clientName, double funds, int count) throws Exception {
+        List<String> tokens = tokenService.issue(clientName, AccountLedger.toUnits(funds), count);
+        if (tokens.isEmpty())
+            throw new Exception("No funds");
+
+        return tokens;
+    }
+
+    private static CompletableFuture<String> validateBuyBid(String clientName, String token) {
 
         // verify if token belongs to user
-        UserFunds userFunds = tokenUser.get(token);
+        Reservation reservation = ledger.getReservation(token);
 
-        if (clientName.equals(userFunds.clientName)) {
+        if (reservation != null && clientName.equals(reservation.getClientName())) {
             Contract contract = network.getContract("energy");
 
-            byte[] transactionResult = contract.createTransaction("validateBuyBid").submit(token,
-                    Double.toString(userFunds.funds));
-
-            return new String(transactionResult);
+            return submitter.submit(contract, "validateBuyBid", token,
+                    Double.toString(AccountLedger.toAmount(reservation.getAmount()))).thenApply(String::new);
 
         }
-        return "User " + clientName + " do not own the token " + token;
-
-    }
-
-    private static void setMspConfigValue() throws Exception {
-        Channel channel = network.getChannel();
-        Config config = Config.parseFrom(channel.getChannelConfigurationBytes());
-        ConfigGroup channelGroup = config.getChannelGroup();
-        channelOrgsMap = channelGroup.getGroupsMap().get("Application").getGroupsMap();
+        return CompletableFuture.completedFuture("User " + clientName + " do not own the token " + token);
 
     }
 
-    private static boolean verifySellerSignature(String sellerMspID, String token, X509Certificate sellerCertificate,
-            byte[] tokenSignature)
-            throws NoSuchAlgorithmException, CertificateEncodingException, InvalidKeyException, SignatureException {
+    private static boolean verifySellerSignature(String token, VerifiedCertificate sellerCertificate,
+            byte[] tokenSignature) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
         Signature signature = Signature.getInstance(sellerCertificate.getSigAlgName());
         signature.initVerify(sellerCertificate.getPublicKey());
         signature.update(token.getBytes());
         return signature.verify(tokenSignature);
     }
 
-    private static boolean verifyRootCaSignature(String sellerMspID, X509Certificate sellerCertificate)
-            throws InvalidProtocolBufferException, CertificateException {
-
-        ConfigValue configValue = channelOrgsMap.get(sellerMspID).getValuesMap().get("MSP");
-        MSPConfig mspConfig = MSPConfig.parseFrom(configValue.getValue());
-        FabricMSPConfig fabricMSPConfig = FabricMSPConfig.parseFrom(mspConfig.getConfig());
-        List<ByteString> rootCerts = fabricMSPConfig.getRootCertsList();
-
-        for (ByteString rootCert : rootCerts) {
-            X509Certificate x509RootCert = Identities.readX509Certificate(rootCert.toStringUtf8());
-            try {
-                sellerCertificate.verify(x509RootCert.getPublicKey());
-                return true;
-            } catch (Exception e) {
-            }
-        }
-        return false;
-    }
-
-    private static String calculateSellerId(X509Certificate sellerCertificate) {
+    private static String calculateSellerId(VerifiedCertificate sellerCertificate) {
         String idStr = String.format("x509::%s::%s", sellerCertificate.getSubjectDN(), sellerCertificate.getIssuerDN());
         idStr = idStr.replace(", ", ",");
         idStr = idStr.replace(" + ", "+");
         return Base64.getEncoder().encodeToString(idStr.getBytes());
     }
 
-    private static void paySeller(String sellerName, String sellerMspID, String token,
-            X509Certificate sellerCertificate, byte[] tokenSignature) throws Exception {
-
-        byte[] queryResponse = null;
+    /**
+     * Checks the claim on the calling thread, then queries the EnergyTransactions
+     * of 'token' and pays them on the ledger pool. The future holds the amount
+     * paid, in ledger units.
+     */
+    private static CompletableFuture<Long> paySeller(String sellerName, String sellerMspID, String token,
+            String sellerCertificatePem, byte[] tokenSignature) throws Exception {
+
+        // certificates already checked against the MSP root CAs come from the cache
+        VerifiedCertificate sellerCertificate = certificateCache.verify(sellerMspID, sellerCertificatePem);
+        if (sellerCertificate == null)
+            throw new Exception("Seller certificate was not signed by any Root CA");
 
-        if (!verifySellerSignature(sellerMspID, token, sellerCertificate, tokenSignature))
+        if (!verifySellerSignature(token, sellerCertificate, tokenSignature))
             throw new Exception("Seller verify signature failed");
 
-        if (!verifyRootCaSignature(sellerMspID, sellerCertificate))
-            throw new Exception("Seller certificate was not signed by any Root CA");
-
         Contract contract = network.getContract("energy");
 
-        // get EnergyTransactions with the claimed token
-        queryResponse = contract.evaluateTransaction("getEnergyTransactionsFromPaymentToken", COMPANY_NAME, token);
-        String responseStr = new String(queryResponse, "UTF-8");
-        JsonReader reader = Json.createReader(new StringReader(responseStr));
-        JsonArray energyTransactions = reader.readArray();
-
-        if (energyTransactions.size() > 0) {
-            double soldKWH, pricePerKWH, sellerPayment = 0;
-            // String calculatedSellerId = calculateSellerId(sellerCertificate); REACTIVATE
-            // THIS OUTSIDE TEST CONTEXT!!!!!
-            String calculatedSellerId = sellerName;
-
-            // get seller funds to increment with the payment
-            UserFunds sellerFunds = clientNameUser.get(sellerName);
-            if (sellerFunds == null) {
-                sellerFunds = new UserFunds(sellerName, 0);
-                clientNameUser.put(sellerName, sellerFunds);
+        // String calculatedSellerId = calculateSellerId(sellerCertificate); REACTIVATE
+        // THIS OUTSIDE TEST CONTEXT!!!!!
+        String calculatedSellerId = sellerName;
+
+        return submitter.supply(() -> {
+            // get EnergyTransactions with the claimed token
+            byte[] queryResponse = contract.evaluateTransaction("getEnergyTransactionsFromPaymentToken", COMPANY_NAME,
+                    token);
+            String responseStr = new String(queryResponse, "UTF-8");
+            JsonReader reader = Json.createReader(new StringReader(responseStr));
+            JsonArray energyTransactions = reader.readArray();
+
+            return payEnergyTransactions(sellerName, sellerMspID, calculatedSellerId, token, energyTransactions);
+        });
+    }
+
+    /**
+     * Pays the seller for the EnergyTransactions of 'token' that were not paid
+     * yet and returns the amount paid, in ledger units.
+     */
+    private static long payEnergyTransactions(String sellerName, String sellerMspID, String calculatedSellerId,
+            String token, JsonArray energyTransactions) throws Exception {
+        double soldKWH, pricePerKWH;
+        long paid = 0;
+
+        for (int i = 0; i < energyTransactions.size(); i++) {
+            JsonObject energyTransaction = energyTransactions.get(i).asJsonObject();
+            String sellerMspTransaction = energyTransaction.getString("mspseller");
+            String sellerIdTransaction = energyTransaction.getString("sellerid");
+
+            // verify if EnergyTransaction has the same seller msp as the seller requesting
+            // pay
+            if (sellerMspID.equals(sellerMspTransaction) && sellerIdTransaction.equals(calculatedSellerId)) {
+                long sellBidNumber = Long.parseLong(energyTransaction.getString("sellerbidnumber"));
+
+                soldKWH = energyTransaction.getJsonNumber("energyquantity").doubleValue();
+                pricePerKWH = energyTransaction.getJsonNumber("priceperkwh").doubleValue();
+                // the buyer's reservation for the token pays the seller, only the request
+                // that marks the bid as paid pays for it
+                paid += state.pay(sellerName, token, sellBidNumber, AccountLedger.toUnits(soldKWH * pricePerKWH));
             }
+        }
+        // the token lives on while its BuyBid may still be matched in later auctions
+        if (paid > 0)
+            tokenService.settled(token);
+        return paid;
+    }
 
-            for (int i = 0; i < energyTransactions.size(); i++) {
-                JsonObject energyTransaction = energyTransactions.get(i).asJsonObject();
-                String sellerMspTransaction = energyTransaction.getString("mspseller");
-                String sellerIdTransaction = energyTransaction.getString("sellerid");
-
-                // verify if EnergyTransaction has the same seller msp as the seller requesting
-                // pay
-                if (sellerMspID.equals(sellerMspTransaction) && sellerIdTransaction.equals(calculatedSellerId)) {
-                    long sellBidNumber = Long.parseLong(energyTransaction.getString("sellerbidnumber"));
-                    PaidBids paidBids = sellersPaidBids.get(sellerName);
-                    if (paidBids == null) {
-                        paidBids = new PaidBids();
-                        sellersPaidBids.put(sellerName, paidBids);
-                    }
+    /**
+     * Pays all the claims of one seller at once: the token signatures are
+     * verified in parallel on the verification pool, then the EnergyTransactions
+     * of every valid token come from a single chaincode query, run on the ledger
+     * pool. The calling thread waits for neither. The future holds one result
+     * per claim, in order.
+     */
+    private static CompletableFuture<List<ClaimResult>> paySellerBatch(String sellerName, String sellerMspID,
+            String sellerCertificatePem, List<String> claimTokens, List<byte[]> tokenSignatures) throws Exception {
+
+        VerifiedCertificate sellerCertificate = certificateCache.verify(sellerMspID, sellerCertificatePem);
+        if (sellerCertificate == null)
+            throw new Exception("Seller certificate was not signed by any Root CA");
 
-                    Pair<String, Long> tokenSellBidNumber = new Pair<String, Long>(token, sellBidNumber);
-                    if (!paidBids.contains(tokenSellBidNumber)) {
-                        soldKWH = energyTransaction.getJsonNumber("energyquantity").doubleValue();
-                        pricePerKWH = energyTransaction.getJsonNumber("priceperkwh").doubleValue();
-                        sellerPayment += soldKWH * pricePerKWH;
-                        paidBids.add(tokenSellBidNumber);
-                        sellerFunds.funds += sellerPayment;
-                    }
+        int claimsCount = claimTokens.size();
+        String[] tokens = claimTokens.toArray(new String[claimsCount]);
+        List<CompletableFuture<Boolean>> verifications = new ArrayList<CompletableFuture<Boolean>>(claimsCount);
+        for (int i = 0; i < claimsCount; i++) {
+            String token = tokens[i];
+            byte[] tokenSignature = tokenSignatures.get(i);
+            verifications.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return verifySellerSignature(token, sellerCertificate, tokenSignature);
+                } catch (GeneralSecurityException e) {
+                    return false;
                 }
+            }, signatureVerificationPool));
+        }
+
+        // String calculatedSellerId = calculateSellerId(sellerCertificate); REACTIVATE
+        // THIS OUTSIDE TEST CONTEXT!!!!!
+        String calculatedSellerId = sellerName;
+
+        return CompletableFuture.allOf(verifications.toArray(new CompletableFuture<?>[0])).thenCompose(verified -> {
+            boolean[] validSignatures = new boolean[claimsCount];
+            List<String> validTokens = new ArrayList<String>(claimsCount + 1);
+            validTokens.add(COMPANY_NAME);
+            for (int i = 0; i < claimsCount; i++) {
+                validSignatures[i] = verifications.get(i).join();
+                if (validSignatures[i])
+                    validTokens.add(tokens[i]);
             }
+            return submitter.supply(() -> payClaims(sellerName, sellerMspID, calculatedSellerId, tokens,
+                    validSignatures, validTokens));
+        });
+    }
+
+    // runs on the ledger pool
+    private static List<ClaimResult> payClaims(String sellerName, String sellerMspID, String calculatedSellerId,
+            String[] tokens, boolean[] validSignatures, List<String> validTokens) throws Exception {
+        int claimsCount = tokens.length;
+        JsonObject energyTransactionsByToken = Json.createObjectBuilder().build();
+        if (validTokens.size() > 1) {
+            Contract contract = network.getContract("energy");
+            byte[] queryResponse = contract.evaluateTransaction("getEnergyTransactionsFromPaymentTokens",
+                    validTokens.toArray(new String[0]));
+            JsonReader reader = Json.createReader(new StringReader(new String(queryResponse, "UTF-8")));
+            energyTransactionsByToken = reader.readObject();
         }
+
+        List<ClaimResult> results = new ArrayList<ClaimResult>(claimsCount);
+        for (int i = 0; i < claimsCount; i++) {
+            if (!validSignatures[i]) {
+                results.add(ClaimResult.INVALID_SIGNATURE);
+            } else if (!energyTransactionsByToken.containsKey(tokens[i])
+                    || energyTransactionsByToken.getJsonArray(tokens[i]).isEmpty()) {
+                results.add(ClaimResult.NO_ENERGY_TRANSACTIONS);
+            } else {
+                long paid = payEnergyTransactions(sellerName, sellerMspID, calculatedSellerId, tokens[i],
+                        energyTransactionsByToken.getJsonArray(tokens[i]));
+                results.add(new ClaimResult("paid", paid));
+            }
+        }
+        return results;
     }
 
     public static void main(String[] args) throws Exception {
@@ -390,15 +572,49 @@ public class AppPaymentCompany {
         // Create a gateway connection
         try {
             Gateway gateway = builder.connect();
-            tokenUser = new ConcurrentHashMap<String, UserFunds>();
-            clientNameUser = new ConcurrentHashMap<String, UserFunds>();
-            sellersPaidBids = new ConcurrentHashMap<String, PaidBids>();
+            // balances, tokens and paid bids survive restarts when a state directory is given
+            if (cmd.hasOption("statedir")) {
+                state = PaymentState.open(Paths.get(cmd.getOptionValue("statedir")),
+                        Integer.parseInt(cmd.getOptionValue("walsegmentsize", "64")) * 1024 * 1024,
+                        Long.parseLong(cmd.getOptionValue("snapshotinterval", "300")));
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        state.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }));
+            } else
+                state = PaymentState.inMemory();
+            ledger = state.getLedger();
+            tokenService = new TokenService(state, Long.parseLong(cmd.getOptionValue("tokenttl", "3600")) * 1000,
+                    Long.parseLong(cmd.getOptionValue("settledtokenttl", "600")) * 1000);
+            signatureVerificationPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
             // Obtain a smart contract deployed on the network.
             network = gateway.getNetwork("canal");
 
-            // loading map with root CAs certificate
-            setMspConfigValue();
+            // loading root CAs public keys, refreshed on every config block
+            trustStore = MspTrustStore.fromNetwork(network);
+            certificateCache = new VerifiedCertificateCache(trustStore,
+                    Integer.parseInt(cmd.getOptionValue("certcachesize", "10000")),
+                    Long.parseLong(cmd.getOptionValue("certcachettl", "3600")) * 1000);
+
+            // BuyBids registered with our tokens are validated in batches as their
+            // blocks are committed, buyers do not need to call '/validatebuybid'
+            buyBidValidationBatcher = new BuyBidValidationBatcher(network.getContract("energy"), ledger,
+                    COMPANY_NAME, Integer.parseInt(cmd.getOptionValue("validationbatchsize", "100")),
+                    Long.parseLong(cmd.getOptionValue("validationbatchdelay", "200")),
+                    Integer.parseInt(cmd.getOptionValue("validationretries", "3")));
+            network.addBlockListener(buyBidValidationBatcher.buyBidBlockListener());
+            // tokens are not released while their BuyBids can still be matched
+            network.addBlockListener(tokenService.buyBidBlockListener(COMPANY_NAME));
+
+            // validation and payment wait for the ledger on a few threads, the commit
+            // of a submit is awaited without holding any
+            submitter = new AsyncSubmitter(network, Integer.parseInt(cmd.getOptionValue("ledgerthreads", "8")),
+                    Integer.parseInt(cmd.getOptionValue("ledgerqueue", "4096")),
+                    Long.parseLong(cmd.getOptionValue("committimeout", "60")) * 1000);
 
             /*
              * X509Certificate sellerCert =
@@ -427,17 +643,18 @@ public class AppPaymentCompany {
              * paySeller("seller1", "UFSC", "tokentest1", sellerCert, tokenSignature);
              * paySeller("seller1", "UFSC", "tokentest1", sellerCert, tokenSignature);
              */
-            // listen on HTTPS SERVER
-            HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(cmd.getOptionValue("port"))),
-                    0);
-            server.createContext("/putfunds", new PutFundsHandler());
-            server.createContext("/gettoken", new GetTokenHandler());
-            server.createContext("/validatebuybid", new ValidateBuyBidHandler());
-            server.createContext("/requestpayment", new RequestPaymentHandler());
-            int numberOfProcessors = Runtime.getRuntime().availableProcessors();
-            // ExecutorService executor = Executors.newFixedThreadPool(numberOfProcessors);
-            ExecutorService executor = Executors.newCachedThreadPool();
-            server.setExecutor(executor);
+            // listen on HTTP SERVER: funds and tokens are in memory, validation and
+            // payment answer once the ledger does, after their signature checks ran on
+            // the worker pool. With a state directory funds and tokens wait for the disk
+            HttpServerEngine server = HttpServerEngine.create(cmd);
+            server.createContext("/putfunds", new PutFundsHandler(), state.isDurable());
+            server.createContext("/gettoken", new GetTokenHandler(), state.isDurable());
+            server.createContext("/gettokens", new GetTokensHandler(), state.isDurable());
+            server.createAsyncContext("/validatebuybid", new ValidateBuyBidHandler(), true);
+            server.createAsyncContext("/requestpayment", new RequestPaymentHandler(), true);
+            server.createAsyncContext("/requestpayment/batch", new RequestPaymentBatchHandler(), true);
+            server.createContext("/metrics", new MetricsHandler(), false);
+            admission = server.getAdmissionController();
             server.start();
 
             // Thread.currentThread().join();
@@ -10,11 +10,14 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.Signature;
-import java.security.cert.X509Certificate;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 
@@ -76,21 +79,24 @@ public class AppSeller {
         return response;
     }
 
-    private static void requestEnergyPaymentForToken(String sellerName, X509Identity identity, String token)
-            throws Exception {
-
-        // String utilityHttpAddress = cmd.getOptionValue("utilityhttpaddress");
-        X509Certificate sellerCertificate = identity.getCertificate();
-        Signature signature = Signature.getInstance(sellerCertificate.getSigAlgName());
+    private static String signToken(X509Identity identity, String token) throws Exception {
+        Signature signature = Signature.getInstance(identity.getCertificate().getSigAlgName());
         signature.initSign(identity.getPrivateKey());
         signature.update(token.getBytes());
-        byte[] tokenSignature = signature.sign();
-        String sigB64 = Base64.getEncoder().encodeToString(tokenSignature);
+        return Base64.getEncoder().encodeToString(signature.sign());
+    }
+
+    // claims the payment of all 'tokens' in a single request
+    private static void requestEnergyPaymentForTokens(String sellerName, X509Identity identity,
+            Collection<String> tokens) throws Exception {
+
+        JsonArrayBuilder claims = Json.createArrayBuilder();
+        for (String token : tokens)
+            claims.add(Json.createObjectBuilder().add("token", token).add("sigb64", signToken(identity, token)));
 
         JsonObject post = Json.createObjectBuilder().add("sellername", sellerName).add("mspseller", identity.getMspId())
-                .add("token", token).add("certificate", Identities.toPemString(sellerCertificate)).add("sigb64", sigB64)
-                .build();
-        postJsonToUrl("http://localhost:81/requestpayment", post);
+                .add("certificate", Identities.toPemString(identity.getCertificate())).add("claims", claims).build();
+        postJsonToUrl("http://localhost:81/requestpayment/batch", post);
 
     }
 
@@ -100,11 +106,14 @@ public class AppSeller {
         JsonReader reader = Json.createReader(new StringReader(energyTransactionJson));
         JsonArray energyTransactions = reader.readArray();
 
+        Set<String> tokens = new LinkedHashSet<String>();
         for (int i = 0; i < energyTransactions.size(); i++) {
             JsonObject energyTransaction = energyTransactions.get(i).asJsonObject();
-            String token = energyTransaction.getString("token");
-            requestEnergyPaymentForToken("seller1-ufsc", identity, token);
+            tokens.add(energyTransaction.getString("token"));
         }
+
+        if (!tokens.isEmpty())
+            requestEnergyPaymentForTokens("seller1-ufsc", identity, tokens);
     }
 
     /*private static void registerAuctionEventListener(Contract contract, X509Identity x509Id,
@@ -10,18 +10,24 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.Signature;
-import java.security.cert.X509Certificate;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.CyclicBarrier;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 
@@ -33,17 +39,22 @@ import org.hyperledger.fabric.gateway.Gateway;
 import org.hyperledger.fabric.gateway.Identities;
 import org.hyperledger.fabric.gateway.Identity;
 import org.hyperledger.fabric.gateway.Network;
-import org.hyperledger.fabric.gateway.Transaction;
 import org.hyperledger.fabric.gateway.X509Identity;
 
 import applications.argparser.ArgParserSeller;
 import applications.identity.ApplicationIdentityProvider;
+import applications.ledger.AsyncSubmitter;
+import applications.load.LatencyRecorder;
+import applications.load.LoadEngine;
 import applications.testargparser.ArgParserSellerTest;
 
 public class AppSellerForTest {
 
     private static CommandLine cmd;
     private static String paymentUrl;
+    private static Contract contract;
+    private static AsyncSubmitter submitter;
+    private static LatencyRecorder latencies;
 
     private static class PublishedSellBid {
         public int bidNumber;
@@ -85,21 +96,24 @@ public class AppSellerForTest {
         return response;
     }
 
-    private static void requestEnergyPaymentForToken(String sellerName, X509Identity identity, String token)
-            throws Exception {
-
-        // String utilityHttpAddress = cmd.getOptionValue("utilityhttpaddress");
-        X509Certificate sellerCertificate = identity.getCertificate();
-        Signature signature = Signature.getInstance(sellerCertificate.getSigAlgName());
+    private static String signToken(X509Identity identity, String token) throws Exception {
+        Signature signature = Signature.getInstance(identity.getCertificate().getSigAlgName());
         signature.initSign(identity.getPrivateKey());
         signature.update(token.getBytes());
-        byte[] tokenSignature = signature.sign();
-        String sigB64 = Base64.getEncoder().encodeToString(tokenSignature);
+        return Base64.getEncoder().encodeToString(signature.sign());
+    }
+
+    // claims the payment of all 'tokens' in a single request
+    private static void requestEnergyPaymentForTokens(String sellerName, X509Identity identity,
+            Collection<String> tokens) throws Exception {
+
+        JsonArrayBuilder claims = Json.createArrayBuilder();
+        for (String token : tokens)
+            claims.add(Json.createObjectBuilder().add("token", token).add("sigb64", signToken(identity, token)));
 
         JsonObject post = Json.createObjectBuilder().add("sellername", sellerName).add("mspseller", identity.getMspId())
-                .add("token", token).add("certificate", Identities.toPemString(sellerCertificate)).add("sigb64", sigB64)
-                .build();
-        postJsonToUrl(paymentUrl + "/requestpayment", post);
+                .add("certificate", Identities.toPemString(identity.getCertificate())).add("claims", claims).build();
+        postJsonToUrl(paymentUrl + "/requestpayment/batch", post);
 
     }
 
@@ -109,13 +123,13 @@ public class AppSellerForTest {
         JsonReader reader = Json.createReader(new StringReader(energyTransactionJson));
         JsonArray energyTransactions = reader.readArray();
 
+        Set<String> tokens = new LinkedHashSet<String>();
         for (int bidIndex = 0; bidIndex < publishedBids.size(); bidIndex++) {
             PublishedSellBid publishedBid = publishedBids.get(bidIndex);
             JsonArray sellBidEnergyTransactions = energyTransactions.get(bidIndex).asJsonArray();
             for (int i = 0; i < sellBidEnergyTransactions.size(); i++) {
                 JsonObject energyTransaction = sellBidEnergyTransactions.get(i).asJsonObject();
-                String token = energyTransaction.getString("token");
-                requestEnergyPaymentForToken(sellerFullName, identity, token);
+                tokens.add(energyTransaction.getString("token"));
                 publishedBid.energyQuantitySettled += energyTransaction.getJsonNumber("energyquantity").doubleValue();
             }
             if (publishedBid.isFullySatisfied()) {
@@ -123,6 +137,9 @@ public class AppSellerForTest {
                 bidIndex--;
             }
         }
+
+        if (!tokens.isEmpty())
+            requestEnergyPaymentForTokens(sellerFullName, identity, tokens);
     }
 
     private static void registerAuctionEventListener(Contract contract, X509Identity x509Id,
@@ -142,9 +159,12 @@ public class AppSellerForTest {
                         for (PublishedSellBid publishedBid : publishedBids)
                             sellBidNumbers[sellBidIndex++] = Integer.toString(publishedBid.bidNumber);
 
+                        long startEvaluation = System.nanoTime();
                         byte[] response = contract
                                 .createTransaction("getEnergyTransactionsFromSellBidNumbersTestContext")
                                 .evaluate(sellBidNumbers);
+                        latencies.evaluated("getEnergyTransactionsFromSellBidNumbersTestContext",
+                                System.nanoTime() - startEvaluation);
                         String energyTransactionsJson = new String(response, StandardCharsets.UTF_8);
                         // requestPaymentForEnergyTransactions(sellerFullName, x509Id,
                         // energyTransactionsJson,
@@ -158,6 +178,117 @@ public class AppSellerForTest {
         contract.addContractListener(auctionPerfomedListener, "auctionPerformed");
     }
 
+    /**
+     * A seller registers itself, then 'maxPublish' times publishes its energy
+     * generation and, up to 30% of the interval later, a SellBid; one every
+     * 'randomInterval' milliseconds.
+     */
+    private static class Seller implements LoadEngine.Entity {
+
+        private final int threadNum;
+        private final String sellerFullName;
+        private final X509Identity identity;
+        private final int maxPublish;
+        private final Random rand = new Random();
+        private final int thirtyPercentInterval;
+        private final int randomInterval;
+        private final List<PublishedSellBid> publishedBids = new LinkedList<PublishedSellBid>();
+
+        private long startExecution = 0, transactionTimeWait = 0, startTransaction = 0;
+        private String generationBeginningTime;
+        private int publish = 0;
+        private int invalidatedEnergyGenerations = 0, invalidatedSellbid = 0;
+        // the energy generation of 'publish' is published, its SellBid is next
+        private boolean generationPublished = false;
+
+        Seller(int threadNum, String sellerFullName, X509Identity identity, int interval, int maxPublish) {
+            this.threadNum = threadNum;
+            this.sellerFullName = sellerFullName;
+            this.identity = identity;
+            this.maxPublish = maxPublish;
+            this.thirtyPercentInterval = interval / 3;
+            this.randomInterval = (interval - thirtyPercentInterval) + rand.nextInt(2 * thirtyPercentInterval);
+        }
+
+        @Override
+        public CompletionStage<?> setUp() {
+            registerAuctionEventListener(contract, identity, publishedBids, sellerFullName);
+            return submitter.submit(contract, "registerSellerTestContext", sellerFullName, "2", "2")
+                    .handle((result, e) -> {
+                        // the seller is probably already registered
+                        generationBeginningTime = Long.toString(System.currentTimeMillis() / 1000L);
+                        return null;
+                    });
+        }
+
+        @Override
+        public long startDelay() {
+            // adding a little randomness to start time to avoid 100% sync among sellers
+            return rand.nextInt(500) + 10000;
+        }
+
+        @Override
+        public CompletionStage<Long> step(long intendedMillis) {
+            if (startExecution == 0)
+                startExecution = System.currentTimeMillis();
+            if (publish >= maxPublish)
+                return CompletableFuture.completedFuture(LoadEngine.DONE);
+            return generationPublished ? publishSellBid(intendedMillis) : publishEnergyGeneration(intendedMillis);
+        }
+
+        private CompletionStage<Long> publishEnergyGeneration(long intendedMillis) {
+            // calling register sellbid transaction publishEnergyGenerationTestContext
+            startTransaction = intendedMillis;
+            String generationEndTime = Long.toString(System.currentTimeMillis() / 1000L);
+            String randomGeneratedEnergy = Double.toString(rand.nextDouble() * 20 + 10);
+            return submitter.submit(contract, "publishEnergyGenerationTestContext", sellerFullName,
+                    generationBeginningTime, generationEndTime, "solar", randomGeneratedEnergy).handle((result, e) -> {
+                        if (e != null) {
+                            invalidatedEnergyGenerations++;
+                        } else {
+                            generationBeginningTime = Long.toString(System.currentTimeMillis() / 1000L);
+                            transactionTimeWait += System.currentTimeMillis() - startTransaction;
+                            latencies.record("publishEnergyGenerationTestContext", "total",
+                                    TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startTransaction));
+                        }
+                        generationPublished = true;
+                        return (long) rand.nextInt(thirtyPercentInterval);
+                    });
+        }
+
+        private CompletionStage<Long> publishSellBid(long intendedMillis) {
+            // calling register sellbid transaction
+            startTransaction = intendedMillis;
+            return submitter.submit(contract, "registerSellBidTestContext", sellerFullName,
+                    cmd.getOptionValue("energyquantitykwh"), cmd.getOptionValue("priceperkwh"),
+                    cmd.getOptionValue("energytype")).handle((result, e) -> {
+                        if (e != null) {
+                            invalidatedSellbid++;
+                        } else {
+                            transactionTimeWait += System.currentTimeMillis() - startTransaction;
+                            latencies.record("registerSellBidTestContext", "total",
+                                    TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startTransaction));
+                            publishedBids.add(new PublishedSellBid(publish + 1,
+                                    Double.parseDouble(cmd.getOptionValue("energyquantitykwh"))));
+                        }
+                        generationPublished = false;
+                        publish++;
+                        return (long) randomInterval;
+                    });
+        }
+
+        @Override
+        public void finish() {
+            long totalExecutionTime = System.currentTimeMillis() - startExecution, singleSignatureTime = 0;
+
+            System.out.println(getClass().getName() + " Thread " + Integer.toString(threadNum) + " took "
+                    + Long.toString(transactionTimeWait) + "ms to submit " + Integer.toString(maxPublish)
+                    + " transactions of " + Long.toString(totalExecutionTime)
+                    + "ms total execution time. \nA single signature takes: " + Long.toString(singleSignatureTime)
+                    + "ms ");
+        }
+    }
+
     public static void main(String[] args) throws Exception {
 
         // enroll args
@@ -197,11 +328,15 @@ public class AppSellerForTest {
         String msp = cmd.getOptionValue("msp");
         String baseDir = cmd.getOptionValue("basedir");
         int interval = Integer.parseInt(cmd.getOptionValue("publishinterval"));
-        int thirtyPercentInterval = interval / 3;
         int maxPublish = Integer.parseInt(cmd.getOptionValue("publishquantity"));
         paymentUrl = cmd.getOptionValue("paymentcompanyurl");
         String dockerPrefix = cmd.hasOption("dockernetwork") ? "docker-" : "";
         String awsPrefix = cmd.hasOption("awsnetwork") ? "aws-" : "";
+        Long commitTimeout = cmd.hasOption("committimeout") ? Long.parseLong(cmd.getOptionValue("committimeout")) : 300;
+        int ledgerThreads = Integer.parseInt(cmd.getOptionValue("ledgerthreads", "16"));
+        LoadEngine engine = LoadEngine.create(cmd);
+        latencies = LatencyRecorder.create(cmd,
+                "AppSellerForTest" + (cliApplicationStr != null ? cliApplicationStr : ""));
 
         // parsing seller params
         ArgParserSeller sellerParser = new ArgParserSeller();
@@ -238,112 +373,24 @@ public class AppSellerForTest {
             // Obtain a smart contract deployed on the network.
             Network network = gateway.getNetwork("canal");
             Contract contract = network.getContract("energy");
-            CyclicBarrier threadsBarrier = new CyclicBarrier(THREAD_NUM);
-            Thread[] threads = new Thread[THREAD_NUM + 1];
+            AppSellerForTest.contract = contract;
+            submitter = new AsyncSubmitter(network, ledgerThreads, Math.max(4096, 2 * THREAD_NUM),
+                    commitTimeout * 1000);
+            submitter.setLatencyListener(latencies);
 
+            List<Seller> sellers = new ArrayList<Seller>();
             for (int i = 1; i <= THREAD_NUM; i++) {
-
-                final int finalI = i;
-                Random rand = new Random();
-                int randomInterval = (interval - thirtyPercentInterval)
-                        + rand.nextInt(2 * thirtyPercentInterval);
-                threads[i] = new Thread() {
-
-                    int threadNum = finalI;
-                    // CommandLine cmd;
-
-                    public void run() {
-
-                        try {
-
-                            List<PublishedSellBid> publishedBids = new LinkedList<PublishedSellBid>();
-                            String sellerFullName = String.format("seller%d-%s",
-                                    threadNum + (cliApplicationId - 1) * THREAD_NUM,
-                                    cmd.getOptionValue("msp").toLowerCase());
-                            registerAuctionEventListener(contract, (X509Identity) identity, publishedBids,
-                                    sellerFullName);
-
-                            Transaction transaction = null;
-                            try {
-                                transaction = contract.createTransaction("registerSellerTestContext");
-                                transaction.submit(sellerFullName, "2", "2");
-                            } catch (Exception e) {
-                                //System.out.println(String
-                                        //.format("Seller %d probably already registered: " + e.getMessage(), threadNum));
-                            }
-
-                            long totalExecutionTime = 0, startExecution = 0, transactionTimeWait = 0,
-                                    startTransaction = 0, singleSignatureTime = 0, startSignature;
-                            String generationBeginningTime, generationEndTime, randomGeneratedEnergy;
-                            generationBeginningTime = Long.toString(System.currentTimeMillis() / 1000L);
-                            // generationBeginningTime = "0";
-
-                            // hold all testing threads here until all are ready to go
-                            threadsBarrier.await();
-                            // Submit SellBid
-                            int publish = 0;
-                            // adding a little randomness to start time to avoid 100% sync among threads
-                            Thread.sleep(new Random().nextInt(500) + 10000);
-                            startExecution = System.currentTimeMillis();
-                            int invalidatedEnergyGenerations = 0, invalidatedSellbid = 0;
-                            while (publish < maxPublish) {
-
-                                try {
-                                    // calling register sellbid transaction publishEnergyGenerationTestContext
-                                    startTransaction = System.currentTimeMillis();
-                                    transaction = contract.createTransaction("publishEnergyGenerationTestContext");
-                                    generationEndTime = Long.toString(System.currentTimeMillis() / 1000L);
-                                    randomGeneratedEnergy = Double.toString(new Random().nextDouble() * 20 + 10);
-                                    transaction.submit(sellerFullName, generationBeginningTime, generationEndTime,
-                                            "solar", randomGeneratedEnergy);
-                                    generationBeginningTime = Long.toString(System.currentTimeMillis() / 1000L);
-                                    transactionTimeWait += System.currentTimeMillis() - startTransaction;
-
-                                } catch (Exception e) {
-                                    //System.out.println("Failed energy generation submission: " + e.getMessage());
-                                    invalidatedEnergyGenerations++;
-                                }
-
-                                Thread.sleep(rand.nextInt(thirtyPercentInterval));
-
-                                try {
-
-                                    // calling register sellbid transaction
-                                    startTransaction = System.currentTimeMillis();
-                                    transaction = contract.createTransaction("registerSellBidTestContext");
-                                    transaction.submit(sellerFullName, cmd.getOptionValue("energyquantitykwh"),
-                                            cmd.getOptionValue("priceperkwh"), cmd.getOptionValue("energytype"));
-                                    transactionTimeWait += System.currentTimeMillis() - startTransaction;
-                                    publishedBids.add(new PublishedSellBid(publish + 1,
-                                            Double.parseDouble(cmd.getOptionValue("energyquantitykwh"))));
-                                } catch (Exception e) {
-                                    //System.out.println("Failed SellBid submission: " + e.getMessage());
-                                    invalidatedSellbid++;
-                                }
-
-                                publish++;
-                                Thread.sleep(randomInterval);
-                            }
-
-                            totalExecutionTime = System.currentTimeMillis() - startExecution;
-
-                            System.out.println(getClass().getName() + " Thread " + Integer.toString(threadNum)
-                                    + " took " + Long.toString(transactionTimeWait) + "ms to submit "
-                                    + Integer.toString(maxPublish) + " transactions of "
-                                    + Long.toString(totalExecutionTime)
-                                    + "ms total execution time. \nA single signature takes: "
-                                    + Long.toString(singleSignatureTime) + "ms ");
-
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-                };
-                threads[i].start();
+                String sellerFullName = String.format("seller%d-%s", i + (cliApplicationId - 1) * THREAD_NUM,
+                        cmd.getOptionValue("msp").toLowerCase());
+                sellers.add(new Seller(i, sellerFullName, (X509Identity) identity, interval, maxPublish));
             }
-
-            for (int i = 1; i <= THREAD_NUM; i++)
-                threads[i].join();
+            engine.run(sellers);
+            System.out.println(String.format("%d steps, %d failed, %d started behind schedule (arrivals: %s)",
+                    engine.getSteps(), engine.getFailures(), engine.getLateSteps(),
+                    engine.getArrivals().toString().toLowerCase()));
+            latencies.stop();
+            latencies.print(System.out);
+            submitter.stop();
         }
 
         System.out.println("ENDED in timestamp: " + Long.toString(System.currentTimeMillis() / 1000L));
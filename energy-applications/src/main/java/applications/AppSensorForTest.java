@@ -2,10 +2,16 @@ package applications;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.math3.util.Pair;
@@ -20,11 +26,21 @@ import org.hyperledger.fabric.sdk.transaction.TransactionContext;
 
 import applications.argparser.ArgParserSensor;
 import applications.identity.ApplicationIdentityProvider;
+import applications.ledger.AsyncSubmitter;
+import applications.ledger.SmartDataBatcher;
+import applications.load.CommitWindow;
+import applications.load.LatencyRecorder;
+import applications.load.LoadEngine;
 import applications.testargparser.ArgParserSensorTest;
 
 public class AppSensorForTest {
 
     private static CommandLine cmd;
+    private static Contract contract;
+    private static AsyncSubmitter submitter;
+    private static LatencyRecorder latencies;
+    // flushes the batches of SmartData that did not fill up in time
+    private static ScheduledExecutorService batchTimer;
 
     public static class SmartData {
         public byte version;
@@ -92,6 +108,167 @@ public class AppSensorForTest {
         return new SmartData((byte) 1, unit, timestamp, value, (byte) 0, (byte) 1, 0);
     }
 
+    /**
+     * A sensor declares itself active, then publishes 'maxPublish' SmartData,
+     * one every 'randomInterval' milliseconds. A failed publish is retried at
+     * once.
+     *
+     * With an in-flight window over 1, the interval runs from the moment a
+     * SmartData is ordered, not committed: the sensor keeps up to 'inFlight'
+     * commits pending, and waits for a free slot before the next publish. A
+     * SmartData invalidated at commit is then counted as published.
+     *
+     * With a batch size over 1, the SmartData are published 'batchSize' at a
+     * time, or once the oldest one waited 'batchAge' milliseconds, and the
+     * in-flight window counts batches. A SmartData is counted as published once
+     * added to its batch.
+     */
+    private static class Sensor implements LoadEngine.Entity {
+
+        private final int threadNum;
+        private final String sensorFullName;
+        private final Long unit;
+        private final int maxPublish;
+        private final Random rand = new Random();
+        private final int randomInterval;
+        // null when each SmartData waits for its commit
+        private final CommitWindow window;
+        // null when each SmartData is a transaction
+        private final SmartDataBatcher batcher;
+        private final String transactionName;
+
+        private long startExecution = 0, transactionTimeWait = 0;
+        private int publish = 0;
+        private Transaction transaction = null;
+
+        Sensor(int threadNum, String sensorFullName, Long unit, int interval, int maxPublish, int inFlight,
+                int batchSize, long batchAge) {
+            this.threadNum = threadNum;
+            this.sensorFullName = sensorFullName;
+            this.unit = unit;
+            this.maxPublish = maxPublish;
+            int thirtyPercentInterval = interval / 3;
+            this.randomInterval = (interval - thirtyPercentInterval) + rand.nextInt(2 * thirtyPercentInterval);
+            if (batchSize > 1) {
+                transactionName = "publishSensorDataBatchTestContext";
+                window = new CommitWindow(inFlight);
+                batcher = new SmartDataBatcher(submitter, contract, transactionName, new String[] { sensorFullName },
+                        batchSize, batchAge, batchTimer, batch -> window.track(batch.whenComplete((result, e) -> {
+                            if (e != null)
+                                System.out.println("Exception in thread " + Integer.toString(threadNum));
+                        })));
+            } else {
+                transactionName = "publishSensorDataTestContext";
+                window = inFlight > 1 ? new CommitWindow(inFlight) : null;
+                batcher = null;
+            }
+        }
+
+        @Override
+        public CompletionStage<?> setUp() {
+            transaction = contract.createTransaction("sensorDeclareActiveTestContext");
+            return submitter.submit(transaction, sensorFullName).handle((result, e) -> {
+                if (e != null)
+                    System.out.println(String.format("Sensor %d probably already active: " + e.getMessage(),
+                            threadNum));
+                return null;
+            });
+        }
+
+        @Override
+        public long startDelay() {
+            startExecution = System.currentTimeMillis();
+            // adding a little randomness to start time to avoid 100% sync among sensors
+            return rand.nextInt(500) + 2000;
+        }
+
+        @Override
+        public CompletionStage<Long> step(long intendedMillis) {
+            if (publish >= maxPublish) {
+                if (batcher != null)
+                    batcher.flush();
+                return window == null ? CompletableFuture.completedFuture(LoadEngine.DONE)
+                        : window.drain().thenApply(drained -> LoadEngine.DONE);
+            }
+
+            SmartData smartData = getRandomSmartData(unit, threadNum, publish);
+            long startTransaction = intendedMillis;
+            if (batcher != null) {
+                batcher.add(smartData.version, smartData.unit, smartData.timestamp, smartData.value, smartData.error,
+                        smartData.confidence, smartData.dev).whenComplete((result, e) -> {
+                            if (e == null)
+                                committed(startTransaction);
+                        });
+                publish++;
+                return window.slot().thenApply(free -> (long) randomInterval);
+            }
+
+            transaction = contract.createTransaction("publishSensorDataTestContext");
+            String[] args = new String[] { sensorFullName, Byte.toString(smartData.version),
+                    Long.toString(smartData.unit), Long.toString(smartData.timestamp),
+                    Double.toString(smartData.value), Byte.toString(smartData.error),
+                    Byte.toString(smartData.confidence), Integer.toString(smartData.dev) };
+            if (window != null)
+                return publishPipelined(startTransaction, args);
+
+            return submitter.submit(transaction, args).handle((result, e) -> {
+                if (e != null) {
+                    System.out.println("Exception in thread " + Integer.toString(threadNum));
+                    return 0L;
+                }
+                committed(startTransaction);
+                publish++;
+                return (long) randomInterval;
+            });
+        }
+
+        private CompletionStage<Long> publishPipelined(long startTransaction, String[] args) {
+            return submitter.order(transaction, args).<CompletionStage<Long>>handle((commit, e) -> {
+                if (e != null) {
+                    System.out.println("Exception in thread " + Integer.toString(threadNum));
+                    return CompletableFuture.completedFuture(0L);
+                }
+                window.track(commit.whenComplete((result, failure) -> {
+                    if (failure != null)
+                        System.out.println("Exception in thread " + Integer.toString(threadNum));
+                    else
+                        committed(startTransaction);
+                }));
+                publish++;
+                return window.slot().thenApply(free -> (long) randomInterval);
+            }).thenCompose(delay -> delay);
+        }
+
+        // commits of a window complete on the gateway event threads
+        private synchronized void committed(long startTransaction) {
+            transactionTimeWait += System.currentTimeMillis() - startTransaction;
+            latencies.record(transactionName, "total",
+                    TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startTransaction));
+        }
+
+        @Override
+        public synchronized void finish() {
+            long totalExecutionTime = System.currentTimeMillis() - startExecution;
+
+            // signature time testing
+            long singleSignatureTime = 0, startSignature;
+            TransactionContext txContext = transaction.getTransactionContext();
+            try {
+                startSignature = System.currentTimeMillis();
+                txContext.sign("EAGYEASDIUHWAUIHDIASDdsaUSAHDIUADHUIWH".getBytes());
+                singleSignatureTime = System.currentTimeMillis() - startSignature;
+            } catch (CryptoException | InvalidArgumentException e) {
+                e.printStackTrace();
+            }
+
+            System.out.println(getClass().getName() + " Thread " + Integer.toString(threadNum) + " took "
+                    + Long.toString(transactionTimeWait) + "ms to submit " + Integer.toString(maxPublish)
+                    + " transactions of " + Long.toString(totalExecutionTime)
+                    + "ms total execution time. \nA single signature takes: " + Long.toString(singleSignatureTime)
+                    + "ms ");
+        }
+    }
+
     public static void main(String[] args) throws Exception {
 
         // enroll args
@@ -132,11 +309,23 @@ public class AppSensorForTest {
         String baseDir = cmd.getOptionValue("basedir");
         Long unit = Long.parseLong(cmd.getOptionValue("unit"));
         int interval = Integer.parseInt(cmd.getOptionValue("publishinterval"));
-        int thirtyPercentInterval = interval / 3;
         int maxPublish = Integer.parseInt(cmd.getOptionValue("publishquantity"));
         String dockerPrefix = cmd.hasOption("dockernetwork") ? "docker-" : "";
         String awsPrefix = cmd.hasOption("awsnetwork") ? "aws-" : "";
-        Long commitTimeout = cmd.hasOption("committimeout") ? Long.parseLong(cmd.getOptionValue("committimeout")) : 2;
+        Long commitTimeout = cmd.hasOption("committimeout") ? Long.parseLong(cmd.getOptionValue("committimeout")) : 300;
+        int ledgerThreads = Integer.parseInt(cmd.getOptionValue("ledgerthreads", "16"));
+        int inFlight = Integer.parseInt(cmd.getOptionValue("inflight", "1"));
+        int batchSize = Integer.parseInt(cmd.getOptionValue("batchsize", "1"));
+        long batchAge = Long.parseLong(cmd.getOptionValue("batchage", "2000"));
+        if (batchSize > 1)
+            batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "smartdata-batch-age");
+                thread.setDaemon(true);
+                return thread;
+            });
+        LoadEngine engine = LoadEngine.create(cmd);
+        latencies = LatencyRecorder.create(cmd,
+                "AppSensorForTest" + (cliApplicationStr != null ? cliApplicationStr : ""));
 
         // parsing sensor params
         ArgParserSensor sensorParser = new ArgParserSensor();
@@ -172,105 +361,35 @@ public class AppSensorForTest {
             // Obtain a smart contract deployed on the network.
             Network network = gateway.getNetwork("canal");
             Contract contract = network.getContract("energy");
-            CyclicBarrier threadsBarrier = new CyclicBarrier(THREAD_NUM);
-            Thread[] threads = new Thread[THREAD_NUM + 1];
+            AppSensorForTest.contract = contract;
+            submitter = new AsyncSubmitter(network, ledgerThreads, Math.max(4096, 2 * THREAD_NUM),
+                    commitTimeout * 1000);
+            submitter.setLatencyListener(latencies);
 
+            List<Sensor> sensors = new ArrayList<Sensor>();
             for (int i = 1; i <= THREAD_NUM; i++) {
-
-                final int finalI = i;
-                threads[i] = new Thread() {
-
-                    int threadNum = finalI;
-                    // CommandLine cmd;
-                    Random rand = new Random();
-                    int randomInterval = (interval - thirtyPercentInterval)
-                            + rand.nextInt(2 * thirtyPercentInterval);
-
-                    public void run() {
-
-                        // Create a gateway connection
-                        try {
-
-                            String sensorFullName = String.format("sensor%d-%s",
-                                    threadNum + (cliApplicationId - 1) * THREAD_NUM,
-                                    cmd.getOptionValue("msp").toLowerCase());
-
-                            long totalExecutionTime = 0, startExecution = 0, transactionTimeWait = 0,
-                                    startTransaction = 0, singleSignatureTime = 0, startSignature;
-                            Transaction transaction = null;
-
-                            try {
-                                transaction = contract.createTransaction("sensorDeclareActiveTestContext");
-                                transaction.submit(sensorFullName);
-                            } catch (Exception e) {
-                                System.out.println(String.format("Sensor %d probably already active: " + e.getMessage(),
-                                        threadNum));
-                            }
-
-                            //Thread.sleep(commitTimeout*1000);
-
-                            // hold all testing threads here until all are ready to go
-                            threadsBarrier.await();
-                            startExecution = System.currentTimeMillis();
-
-                            // Publish SmartData
-                            int publish = 0;
-                            // adding a little randomness to start time to avoid 100% sync among threads
-                            Thread.sleep(new Random().nextInt(500) + 2000);
-                            while (publish < maxPublish) {
-                                try {
-                                    SmartData smartData = getRandomSmartData(unit, threadNum, publish);
-
-                                    startTransaction = System.currentTimeMillis();
-                                    transaction = contract.createTransaction("publishSensorDataTestContext");
-                                    transaction.submit(sensorFullName, Byte.toString(smartData.version),
-                                            Long.toString(smartData.unit), Long.toString(smartData.timestamp),
-                                            Double.toString(smartData.value), Byte.toString(smartData.error),
-                                            Byte.toString(smartData.confidence), Integer.toString(smartData.dev));
-                                    transactionTimeWait += System.currentTimeMillis() - startTransaction;
-
-                                    // System.out.println(new String(transactionResult, StandardCharsets.UTF_8));
-                                    publish++;
-                                    Thread.sleep(randomInterval);
-                                } catch (Exception e) {
-                                    System.out.println("Exception in thread " + Integer.toString(threadNum));
-                                    //e.printStackTrace();
-                                }
-                            }
-
-                            totalExecutionTime = System.currentTimeMillis() - startExecution;
-
-                            // signature time testing
-                            TransactionContext txContext = transaction.getTransactionContext();
-                            try {
-                                startSignature = System.currentTimeMillis();
-                                txContext.sign("EAGYEASDIUHWAUIHDIASDdsaUSAHDIUADHUIWH".getBytes());
-                                singleSignatureTime = System.currentTimeMillis() - startSignature;
-                            } catch (CryptoException | InvalidArgumentException e) {
-                                e.printStackTrace();
-                            }
-
-                            System.out.println(getClass().getName() + " Thread " + Integer.toString(threadNum)
-                                    + " took " + Long.toString(transactionTimeWait) + "ms to submit "
-                                    + Integer.toString(maxPublish) + " transactions of "
-                                    + Long.toString(totalExecutionTime)
-                                    + "ms total execution time. \nA single signature takes: "
-                                    + Long.toString(singleSignatureTime) + "ms ");
-
-                            // Evaluate transactions that query state from the ledger.
-                            // byte[] queryResponse = contract.evaluateTransaction("query", "A");
-                            // System.out.println(new String(queryResponse, StandardCharsets.UTF_8));
-
-                        } catch (Exception e) {// (ContractException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                };
-                threads[i].start();
+                String sensorFullName = String.format("sensor%d-%s", i + (cliApplicationId - 1) * THREAD_NUM,
+                        cmd.getOptionValue("msp").toLowerCase());
+                sensors.add(new Sensor(i, sensorFullName, unit, interval, maxPublish, inFlight, batchSize, batchAge));
             }
-
-            for (int i = 1; i <= THREAD_NUM; i++)
-                threads[i].join();
+            engine.run(sensors);
+            System.out.println(String.format("%d steps, %d failed, %d started behind schedule (arrivals: %s)",
+                    engine.getSteps(), engine.getFailures(), engine.getLateSteps(),
+                    engine.getArrivals().toString().toLowerCase()));
+            if (batchSize > 1) {
+                long batches = 0, published = 0, stored = 0;
+                for (Sensor sensor : sensors) {
+                    batches += sensor.batcher.getBatches();
+                    published += sensor.batcher.getPublished();
+                    stored += sensor.batcher.getStored();
+                }
+                System.out.println(String.format("%d SmartData published in %d batches, %d stored", published,
+                        batches, stored));
+                batchTimer.shutdownNow();
+            }
+            latencies.stop();
+            latencies.print(System.out);
+            submitter.stop();
         }
 
         System.out.println("ENDED in timestamp: " + Long.toString(System.currentTimeMillis() / 1000L));
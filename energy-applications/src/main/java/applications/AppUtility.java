@@ -1,215 +1,162 @@
 package applications;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.StringReader;
-import java.net.InetSocketAddress;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.SecureRandom;
-import java.util.Arrays;
-import java.util.Base64;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 
-import com.google.protobuf.ByteString;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.milagro.amcl.FP256BN.BIG;
-import org.apache.milagro.amcl.FP256BN.ECP;
 import org.hyperledger.fabric.gateway.Contract;
 import org.hyperledger.fabric.gateway.Gateway;
 import org.hyperledger.fabric.gateway.Identity;
 import org.hyperledger.fabric.gateway.Network;
-import org.hyperledger.fabric.protos.common.Common.ChannelHeader;
-import org.hyperledger.fabric.protos.common.Common.Envelope;
-import org.hyperledger.fabric.protos.common.Common.Header;
-import org.hyperledger.fabric.protos.common.Common.HeaderType;
-import org.hyperledger.fabric.protos.common.Common.Payload;
-import org.hyperledger.fabric.protos.common.Common.SignatureHeader;
-import org.hyperledger.fabric.protos.common.MspPrincipal.OrganizationUnit;
 import org.hyperledger.fabric.protos.idemix.Idemix.IssuerPublicKey;
-import org.hyperledger.fabric.protos.idemix.Idemix.NymSignature;
-import org.hyperledger.fabric.protos.ledger.rwset.Rwset.TxReadWriteSet;
-import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVRWSet;
 import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVWrite;
 import org.hyperledger.fabric.protos.msp.Identities.SerializedIdemixIdentity;
-import org.hyperledger.fabric.protos.msp.Identities.SerializedIdentity;
-import org.hyperledger.fabric.protos.peer.ProposalPackage.ChaincodeAction;
-import org.hyperledger.fabric.protos.peer.ProposalResponsePackage.ProposalResponsePayload;
-import org.hyperledger.fabric.protos.peer.TransactionPackage;
-import org.hyperledger.fabric.protos.peer.TransactionPackage.ChaincodeActionPayload;
-import org.hyperledger.fabric.protos.peer.TransactionPackage.ChaincodeEndorsedAction;
-import org.hyperledger.fabric.protos.peer.TransactionPackage.TransactionAction;
 import org.hyperledger.fabric.protos.peer.TransactionPackage.TxValidationCode;
 import org.hyperledger.fabric.sdk.Channel;
 import org.hyperledger.fabric.sdk.TransactionInfo;
-import org.hyperledger.fabric.sdk.idemix.IdemixIssuerPublicKey;
-import org.hyperledger.fabric.sdk.idemix.IdemixPseudonymSignature;
 
 import applications.argparser.ArgParserUtility;
+import applications.http.AdmissionController;
+import applications.http.AsyncHttpHandler;
+import applications.http.HttpServerEngine;
+import applications.http.JsonFields;
+import applications.http.JsonRequest;
+import applications.http.JsonResponse;
 import applications.identity.ApplicationIdentityProvider;
+import applications.identity.IdemixVerifier;
+import applications.identity.IdemixVerifier.NymProof;
+import applications.ledger.AsyncSubmitter;
+import applications.ledger.TransactionView;
+import applications.utility.BuyBidIndex;
+import applications.utility.BuyBidIndex.IndexedBuyBid;
+import applications.utility.NonceService;
+import applications.utility.TokenEnergyAggregate;
 
 public class AppUtility {
 
     private static CommandLine cmd;
     private static Network network;
     private static Map<String, Double> tokenEnergyDiscounted;
-    private static Map<String, Integer> clientLastNonces;
+    private static NonceService nonceService;
+    private static BuyBidIndex buyBidIndex;
+    private static TokenEnergyAggregate tokenEnergy;
+    private static IdemixVerifier idemixVerifier;
+    private static AsyncSubmitter submitter;
     private static String UTILITY_NAME = "UFSC";
+    // fields of each request of a '/discountrequest/batch'
+    private static final JsonFields DISCOUNT_REQUEST_FIELDS = JsonFields.of("clientname", "registerbuybidtxid",
+            "nonce", "ipkb64", "sigb64", "tb64");
 
-    private static class DiscountRequestHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange t) throws IOException {
-            InputStream in = t.getRequestBody();
-            String request = new String(in.readAllBytes());
+    private static class DiscountRequestHandler implements AsyncHttpHandler {
+        private static final JsonFields FIELDS = JsonFields.of("clientname", "registerbuybidtxid", "nonce", "ipkb64",
+                "sigb64");
 
-            JsonReader reader = Json.createReader(new StringReader(request));
-            JsonObject energyDiscountRequest = reader.readObject();
+        @Override
+        public CompletionStage<?> handleAsync(HttpExchange t) throws IOException {
+            JsonRequest energyDiscountRequest = JsonRequest.read(t, FIELDS);
 
             String clientName = energyDiscountRequest.getString("clientname");
             String registerBuyBidTxID = energyDiscountRequest.getString("registerbuybidtxid");
-            String ipkB64 = energyDiscountRequest.getString("ipkb64");
-            String buyerProofSignatureB64 = energyDiscountRequest.getString("sigb64");
-
-            IssuerPublicKey ipk = IssuerPublicKey.parseFrom(Base64.getDecoder().decode(ipkB64));
-            byte[] buyerProofSignature = Base64.getDecoder().decode(buyerProofSignatureB64);
+            int nonce = energyDiscountRequest.getInt("nonce");
+
+            IssuerPublicKey ipk = IssuerPublicKey.parseFrom(energyDiscountRequest.getBase64("ipkb64"));
+            byte[] buyerProofSignature = energyDiscountRequest.getBase64("sigb64");
+
+            return energyDiscountRequest(network, clientName, registerBuyBidTxID, nonce, ipk, buyerProofSignature)
+                    .handle((kwhDiscounted, failure) -> {
+                        if (failure != null && AsyncHttpHandler.cause(failure) instanceof RejectedExecutionException) {
+                            AdmissionController.sendBusy(t);
+                            return null;
+                        }
+                        double kwh = failure == null ? kwhDiscounted : 0;
+                        AsyncHttpHandler.reply(t, 200, JsonResponse.get().text("The discounted amount of energy was ")
+                                .text(Double.toString(kwh)).text(" KWH"));
+                        return null;
+                    });
+        }
+    }
 
-            double kwhDiscounted;
+    private static class DiscountBatchRequestHandler implements AsyncHttpHandler {
+        private static final JsonFields FIELDS = JsonFields.of("requests");
 
-            try {
-                kwhDiscounted = energyDiscountRequest(network, clientName, registerBuyBidTxID, ipk,
-                        buyerProofSignature);
-            } catch (Exception e) {
-                kwhDiscounted = 0;
+        @Override
+        public CompletionStage<?> handleAsync(HttpExchange t) throws IOException {
+            JsonRequest request = JsonRequest.read(t, FIELDS);
+
+            // read here: the parsed body belongs to this thread
+            List<DiscountRequest> requests = new ArrayList<DiscountRequest>();
+            JsonRequest requestObjects = request.getObjects("requests", DISCOUNT_REQUEST_FIELDS);
+            while (requestObjects.next()) {
+                requests.add(DiscountRequest.read(requestObjects));
             }
 
-            String response = "The discounted amount of energy was " + Double.toString(kwhDiscounted) + " KWH";
-            t.sendResponseHeaders(200, response.length());
-            OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            return submitter.supply(() -> energyDiscountRequests(network, requests))
+                    .handle((kwhDiscounted, failure) -> {
+                        if (failure == null) {
+                            JsonResponse response = JsonResponse.get().beginObject().name("discounts").beginArray();
+                            for (double kwh : kwhDiscounted) {
+                                response.value(kwh);
+                            }
+                            AsyncHttpHandler.reply(t, 200, response.endArray().endObject());
+                        } else if (AsyncHttpHandler.cause(failure) instanceof RejectedExecutionException)
+                            AdmissionController.sendBusy(t);
+                        else
+                            AsyncHttpHandler.reply(t, 404, "Failed to process the discount requests");
+                        return null;
+                    });
         }
     }
 
     private static class NonceRequestHandler implements HttpHandler {
+        private static final JsonFields FIELDS = JsonFields.of("clientname");
+
         @Override
         public void handle(HttpExchange t) throws IOException {
-            InputStream in = t.getRequestBody();
-            String request = new String(in.readAllBytes());
-
-            JsonReader reader = Json.createReader(new StringReader(request));
-            JsonObject energyDiscountRequest = reader.readObject();
+            JsonRequest nonceRequest = JsonRequest.read(t, FIELDS);
 
-            String clientName = energyDiscountRequest.getString("clientname");
+            String clientName = nonceRequest.getString("clientname");
 
             String response;
 
             try {
-                Integer nonce = (new SecureRandom()).nextInt();
-                clientLastNonces.put(clientName, nonce);
+                Integer nonce = nonceService.issue(clientName);
+                if (nonce == null) {
+                    // too many nonces waiting to expire
+                    AdmissionController.sendBusy(t);
+                    return;
+                }
                 response = Integer.toString(nonce);
             } catch (Exception e) {
                 response = "Failed to generate nonce for client " + clientName;
             }
 
-            t.sendResponseHeaders(200, response.length());
-            OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            JsonResponse.sendText(t, 200, response);
         }
     }
 
-    private static SerializedIdemixIdentity getTransactionSerializedIdemixIdentity(TransactionInfo transactionInfo)
-            throws Exception {
-
-        // Retrive Transaction SignatureHeader with the creator signature information
-        Envelope envelope = transactionInfo.getEnvelope();
-        ByteString envelopePayloadBytes = envelope.getPayload();
-        Payload envelopePayload = Payload.parseFrom(envelopePayloadBytes);
-        Header headerPayload = envelopePayload.getHeader();
-        ByteString signatureHeaderBytes = headerPayload.getSignatureHeader();
-        SignatureHeader sigHeader = SignatureHeader.parseFrom(signatureHeaderBytes);
-
-        // get Transaction Creator, to check if the buyer requesting the discount is the
-        // creator of the registered BuyBid.
-        ByteString transactionCreatorIdentityBytes = sigHeader.getCreator();
-        SerializedIdentity serializedIdentityTransaction = SerializedIdentity
-                .parseFrom(transactionCreatorIdentityBytes);
-        ByteString serializedIdentityIdBytes = serializedIdentityTransaction.getIdBytes();
-        SerializedIdemixIdentity serializedTransactionIdemixIdentity = SerializedIdemixIdentity
-                .parseFrom(serializedIdentityIdBytes);
-
-        return serializedTransactionIdemixIdentity;
-    }
-
-    private static boolean verifyBuyBidSignatureMatch(TransactionInfo transactionInfo, IssuerPublicKey ipk, byte[] msg,
-            byte[] sig) throws Exception {
-
-        // Retrieve transaction cretor's SerializedIdemixIdentity
-        SerializedIdemixIdentity serializedTransactionIdemixIdentity = getTransactionSerializedIdemixIdentity(
-                transactionInfo);
+    private static CompletableFuture<Boolean> verifyBuyBidSignatureMatch(
+            SerializedIdemixIdentity serializedTransactionIdemixIdentity, IssuerPublicKey ipk, byte[] msg, byte[] sig) {
 
-        // Mount BuyBid transaction creator's pseudonym
-        BIG nymX = BIG.fromBytes(serializedTransactionIdemixIdentity.getNymX().toByteArray());
-        BIG nymY = BIG.fromBytes(serializedTransactionIdemixIdentity.getNymY().toByteArray());
-        ECP nym = new ECP(nymX, nymY);
-
-        // getting ipkHash from transaction
-        OrganizationUnit ou = OrganizationUnit.parseFrom(serializedTransactionIdemixIdentity.getOu());
-        byte[] ipkHash = ou.getCertifiersIdentifier().toByteArray();
-
-        // starting Idemix Signature Verifier for Signature 'sig'
-        IdemixPseudonymSignature idemixSigVerifier = new IdemixPseudonymSignature(NymSignature.parseFrom(sig));
-
-        // check if received Ipk has the same hash of the transaction 'ipkHash'
-        if (Arrays.equals(ipkHash, ipk.getHash().toByteArray())) {
-            // verifiy Signature 'sig' in relation to Message 'msg' and IssuerPublicKey
-            // 'ipk'
-            return (idemixSigVerifier.verify(nym, new IdemixIssuerPublicKey(ipk), msg));
-        }
-
-        return false;
-    }
-
-    private static List<KVWrite> getTransactionKVWriteSet(TransactionInfo transactionInfo) throws Exception {
-        // Retrive Transaction KVWriteSet with the creator signature information
-        Envelope envelope = transactionInfo.getEnvelope();
-        ByteString envelopePayloadBytes = envelope.getPayload();
-        Payload envelopePayload = Payload.parseFrom(envelopePayloadBytes);
-        Header headerPayload = envelopePayload.getHeader();
-        ChannelHeader channelHeader = ChannelHeader.parseFrom(headerPayload.getChannelHeader());
-
-        int channelHeaderType = channelHeader.getType();
-
-        if (HeaderType.forNumber(channelHeaderType) == HeaderType.ENDORSER_TRANSACTION) {
-            TransactionPackage.Transaction transactionData = TransactionPackage.Transaction
-                    .parseFrom(envelopePayload.getData());
-            TransactionAction transactionAction = transactionData.getActions(0);
-            ChaincodeActionPayload chaincodeActionPayload = ChaincodeActionPayload
-                    .parseFrom(transactionAction.getPayload());
-            ChaincodeEndorsedAction endorsedAction = chaincodeActionPayload.getAction();
-            ProposalResponsePayload proposalResponsePayload = ProposalResponsePayload
-                    .parseFrom(endorsedAction.getProposalResponsePayload());
-            ChaincodeAction chaincodeAction = ChaincodeAction.parseFrom(proposalResponsePayload.getExtension());
-            TxReadWriteSet readWriteSet = TxReadWriteSet.parseFrom(chaincodeAction.getResults());
-            KVRWSet keyValueSet = KVRWSet.parseFrom(readWriteSet.getNsRwset(1).getRwset());
-            return keyValueSet.getWritesList();
-        }
-        return null;
+        // prepared issuer keys, pairing checks on the verification pool
+        return idemixVerifier.verifyAsync(serializedTransactionIdemixIdentity, ipk, msg, sig);
     }
 
     private static boolean transactionStoredABuyBid(List<KVWrite> kVWriteList) throws Exception {
@@ -223,87 +170,219 @@ public class AppUtility {
         return false;
     }
 
-    private static double verifyBuyBidWasMatchedInAuction(Contract contract, List<KVWrite> kVWriteList)
+    private static double verifyBuyBidWasMatchedInAuction(Contract contract, String paymentCompany, String token)
             throws Exception {
 
+        // kWh bought with the token, kept up to date by the block events
+        Double aggregated = tokenEnergy.getBoughtKwh(paymentCompany, token);
+        if (aggregated == null)
+            aggregated = loadBoughtKwh(contract, paymentCompany, token);
+        if (aggregated == null)
+            return 0.0;
+        double boughtKWH = aggregated;
+
+        // concurrent requests for the same token must not discount the same kWh twice
+        double[] discounted = new double[1];
+        tokenEnergyDiscounted.compute(paymentCompany + token, (key, alreadyDiscounted) -> {
+            double already = alreadyDiscounted == null ? 0 : alreadyDiscounted;
+            if (boughtKWH > already) {
+                discounted[0] = boughtKWH - already;
+                return boughtKWH;
+            }
+            return alreadyDiscounted;
+        });
+        return discounted[0];
+    }
+
+    // EnergyTransactions formed before the utility was listening are read from the peer once
+    private static Double loadBoughtKwh(Contract contract, String paymentCompany, String token) throws Exception {
+
         byte[] queryResponse = null;
 
-        if (kVWriteList != null && kVWriteList.size() == 1) {
-            KVWrite kv = kVWriteList.get(0);
-            JsonReader reader = Json.createReader(new StringReader(kv.getValue().toStringUtf8()));
-            JsonObject buyBid = reader.readObject();
+        try {
+            queryResponse = contract.evaluateTransaction("getEnergyTransactionsFromPaymentToken", paymentCompany,
+                    token);
+        } catch (Exception e) {
+            return null;
+        }
 
-            String paymentCompany = buyBid.getString("msppaymentcompany");
-            String token = buyBid.getString("token");
+        String responseStr = new String(queryResponse, "UTF-8");
+        JsonReader reader = Json.createReader(new StringReader(responseStr));
+        JsonArray energyTransactions = reader.readArray();
+
+        // fields holding their default value are left out of the JSON
+        Map<String, Double> kwhBySellBid = new HashMap<String, Double>();
+        for (int i = 0; i < energyTransactions.size(); i++) {
+            JsonObject energyTransaction = energyTransactions.get(i).asJsonObject();
+            if (!UTILITY_NAME.equals(energyTransaction.getString("utilityid", "")))
+                continue;
+            double energyQuantity = energyTransaction.containsKey("energyquantity")
+                    ? energyTransaction.getJsonNumber("energyquantity").doubleValue()
+                    : 0;
+            kwhBySellBid.put(TokenEnergyAggregate.sellBidKey(energyTransaction.getString("mspseller", ""),
+                    energyTransaction.getString("sellerid", ""), energyTransaction.getString("sellerbidnumber", "0")),
+                    energyQuantity);
+        }
+        if (kwhBySellBid.isEmpty())
+            return null;
 
+        tokenEnergy.load(paymentCompany, token, kwhBySellBid);
+        return tokenEnergy.getBoughtKwh(paymentCompany, token);
+    }
+
+    // one request of a '/discountrequest/batch', null fields if it could not be read
+    private static class DiscountRequest {
+        private String clientName;
+        private String registerBuyBidTxID;
+        private int nonce;
+        private byte[] ipk;
+        private byte[] sig;
+        private byte[] commitment;
+
+        private static DiscountRequest read(JsonRequest request) {
+            DiscountRequest discountRequest = new DiscountRequest();
             try {
-                queryResponse = contract.evaluateTransaction("getEnergyTransactionsFromPaymentToken", paymentCompany,
-                        token);
+                discountRequest.clientName = request.getString("clientname");
+                discountRequest.registerBuyBidTxID = request.getString("registerbuybidtxid");
+                discountRequest.nonce = request.getInt("nonce");
+                discountRequest.ipk = request.getBase64("ipkb64");
+                discountRequest.sig = request.getBase64("sigb64");
+                // the commitment lets the signature join the batch
+                discountRequest.commitment = request.has("tb64") ? request.getBase64("tb64") : null;
             } catch (Exception e) {
-                return 0.0;
+                discountRequest.clientName = null;
             }
+            return discountRequest;
+        }
+    }
 
-            String responseStr = new String(queryResponse, "UTF-8");
-            reader = Json.createReader(new StringReader(responseStr));
-            JsonArray energyTransactions = reader.readArray();
+    // the BuyBid a discount is asked for, and who registered it
+    private static class DiscountClaim {
+        private final SerializedIdemixIdentity creator;
+        private final String paymentCompany;
+        private final String token;
+        private final byte[] msg;
+
+        private DiscountClaim(SerializedIdemixIdentity creator, String paymentCompany, String token, byte[] msg) {
+            this.creator = creator;
+            this.paymentCompany = paymentCompany;
+            this.token = token;
+            this.msg = msg;
+        }
+    }
 
-            if (energyTransactions.size() > 0) {
+    // null if 'nonce' was not issued to 'clientName', or was already used, or if
+    // 'registerBuyBidTxID' is not a valid 'registerBuyBid' transaction
+    private static DiscountClaim resolveDiscountClaim(Network network, String clientName, String registerBuyBidTxID,
+            int nonce) throws Exception {
 
-                if (energyTransactions.get(0).asJsonObject().getString("utilityid").equals(UTILITY_NAME)) {
+        // the nonce is spent even if the claim fails, so a signature is never replayed
+        if (!nonceService.consume(clientName, nonce))
+            return null;
+        byte[] msg = (registerBuyBidTxID + Integer.toString(nonce)).getBytes();
 
-                    double boughtKWH = 0;
-                    for (int i = 0; i < energyTransactions.size(); i++) {
-                        JsonObject energyTransaction = energyTransactions.get(i).asJsonObject();
-                        boughtKWH += energyTransaction.getJsonNumber("energyquantity").doubleValue();
-                    }
+        // BuyBids committed while listening are checked without asking the peer
+        IndexedBuyBid indexedBuyBid = buyBidIndex.get(registerBuyBidTxID);
+        if (indexedBuyBid != null)
+            return new DiscountClaim(indexedBuyBid.getCreator(), indexedBuyBid.getPaymentCompany(),
+                    indexedBuyBid.getToken(), msg);
 
-                    if (!tokenEnergyDiscounted.containsKey(paymentCompany + token)) {
-                        tokenEnergyDiscounted.put(paymentCompany + token, 0.0);
-                    }
+        Channel channel = network.getChannel();
+        // Retrive 'registerBuyBidTxID' information
+        TransactionInfo transactionInfo = channel.queryTransactionByID(registerBuyBidTxID);
 
-                    double alreadyDiscounted = tokenEnergyDiscounted.get(paymentCompany + token);
+        TxValidationCode transactionIsValid = transactionInfo.getValidationCode();
 
-                    if (boughtKWH > alreadyDiscounted) {
-                        tokenEnergyDiscounted.put(paymentCompany + token, boughtKWH - alreadyDiscounted);
-                        return boughtKWH - alreadyDiscounted;
-                    }
-                }
+        if (transactionIsValid == TxValidationCode.VALID) {
 
+            // creator and write set come from a single walk over the envelope
+            TransactionView transactionView = TransactionView.fromEnvelope(transactionInfo.getEnvelope());
+            List<KVWrite> kVWriteList = transactionView.getNamespaceWrites("energy");
+            // verify if transaction is ACTUALLY a 'registerBuyBid' transaction
+            if (transactionStoredABuyBid(kVWriteList)) {
+                String[] buyBidAttributes = BuyBidIndex.splitBuyBidKey(kVWriteList.get(0).getKey());
+                return new DiscountClaim(transactionView.getCreatorIdemixIdentity(), buyBidAttributes[0],
+                        buyBidAttributes[1], msg);
             }
-
         }
-        return 0.0;
-    }
 
-    private static double energyDiscountRequest(Network network, String clientName, String registerBuyBidTxID,
-            IssuerPublicKey ipk, byte[] txIDSig) throws Exception {
+        return null;
+    }
 
-        double kwhDiscounted = 0;
+    /**
+     * The discount is computed in stages, none holding the HTTP thread: the
+     * claim is resolved and the auction checked on the ledger pool, the
+     * signature on the verification pool.
+     */
+    private static CompletableFuture<Double> energyDiscountRequest(Network network, String clientName,
+            String registerBuyBidTxID, int nonce, IssuerPublicKey ipk, byte[] txIDSig) {
 
         Contract contract = network.getContract("energy");
-        Channel channel = network.getChannel();
-        // Retrive 'registerBuyBidTxID' information
-        TransactionInfo transactionInfo = channel.queryTransactionByID(registerBuyBidTxID);
 
-        TxValidationCode transactionIsValid = transactionInfo.getValidationCode();
+        return submitter.supply(() -> resolveDiscountClaim(network, clientName, registerBuyBidTxID, nonce))
+                .thenCompose(claim -> {
+                    if (claim == null)
+                        return CompletableFuture.completedFuture(0.0);
+                    // verify if client requesting discount is the creator of the transaction
+                    return verifyBuyBidSignatureMatch(claim.creator, ipk, claim.msg, txIDSig).thenCompose(valid -> {
+                        if (!valid)
+                            return CompletableFuture.completedFuture(0.0);
+                        // verify if there is a EnergyTransaction registered for bid
+                        return submitter.supply(
+                                () -> verifyBuyBidWasMatchedInAuction(contract, claim.paymentCompany, claim.token));
+                    });
+                });
 
-        Integer clientLastNonce = clientLastNonces.get(clientName);
+    }
 
-        if (transactionIsValid == TxValidationCode.VALID) {
+    /**
+     * Discount requests arriving together, e.g. after an auction: the
+     * signatures are verified in a batch, then each discount is computed as by
+     * {@link #energyDiscountRequest}. Returns the discount of each request, 0
+     * for the ones that failed.
+     */
+    private static double[] energyDiscountRequests(Network network, List<DiscountRequest> requests)
+            throws Exception {
 
-            List<KVWrite> kVWriteList = getTransactionKVWriteSet(transactionInfo);
-            // verify if transaction is ACTUALLY a 'registerBuyBid' transaction
-            // verify if client requesting discount is the creator of the transaction
-            if (transactionStoredABuyBid(kVWriteList) && verifyBuyBidSignatureMatch(transactionInfo, ipk,
-                    (registerBuyBidTxID + clientLastNonce.toString()).getBytes(), txIDSig)) {
-                // verify if there is a EnergyTransaction registered for bid
-                kwhDiscounted = verifyBuyBidWasMatchedInAuction(contract, kVWriteList);
+        Contract contract = network.getContract("energy");
+        List<DiscountClaim> claims = new ArrayList<DiscountClaim>();
+        List<NymProof> proofs = new ArrayList<NymProof>();
+        List<Integer> proofRequest = new ArrayList<Integer>();
+
+        for (int i = 0; i < requests.size(); i++) {
+            DiscountRequest request = requests.get(i);
+            // a request that cannot be read gets no discount, as a single one would
+            if (request.clientName == null)
+                continue;
+            try {
+                DiscountClaim claim = resolveDiscountClaim(network, request.clientName, request.registerBuyBidTxID,
+                        request.nonce);
+                if (claim == null)
+                    continue;
+                IssuerPublicKey ipk = IssuerPublicKey.parseFrom(request.ipk);
+                claims.add(claim);
+                proofRequest.add(i);
+                proofs.add(new NymProof(claim.creator, ipk, claim.msg, request.sig, request.commitment));
+            } catch (Exception e) {
+                continue;
             }
+        }
 
+        double[] kwhDiscounted = new double[requests.size()];
+        boolean[] valid = idemixVerifier.verifyBatch(proofs);
+        for (int p = 0; p < valid.length; p++) {
+            if (!valid[p])
+                continue;
+            DiscountClaim claim = claims.get(p);
+            try {
+                kwhDiscounted[proofRequest.get(p)] = verifyBuyBidWasMatchedInAuction(contract, claim.paymentCompany,
+                        claim.token);
+            } catch (Exception e) {
+                System.out.println("Could not compute the discount of BuyBid token " + claim.token);
+            }
         }
 
         return kwhDiscounted;
-
     }
 
     public static void main(String[] args) throws Exception {
@@ -351,21 +430,43 @@ public class AppUtility {
         try {
             Gateway gateway = builder.connect();
             tokenEnergyDiscounted = new ConcurrentHashMap<String, Double>();
-            clientLastNonces = new ConcurrentHashMap<String, Integer>();
 
             // Obtain a smart contract deployed on the network.
             network = gateway.getNetwork("canal");
+
+            // index the BuyBids naming this utility as their blocks are committed
+            int buyBidIndexSize = Integer.parseInt(cmd.getOptionValue("buybidindexsize", "1000000"));
+            buyBidIndex = new BuyBidIndex(UTILITY_NAME, buyBidIndexSize);
+            network.addBlockListener(buyBidIndex.blockListener());
+
+            // kWh bought with each token from this utility, from the auctions' EnergyTransactions
+            int tokenEnergySize = Integer.parseInt(cmd.getOptionValue("tokenenergysize", "1000000"));
+            tokenEnergy = new TokenEnergyAggregate(UTILITY_NAME, tokenEnergySize);
+            network.addBlockListener(tokenEnergy.blockListener());
+
+            // idemix signature checks are CPU bound: one thread per processor, bounded queue
+            int verifyThreads = Integer.parseInt(cmd.getOptionValue("verifythreads",
+                    Integer.toString(Runtime.getRuntime().availableProcessors())));
+            int verifyQueue = Integer.parseInt(cmd.getOptionValue("verifyqueue", Integer.toString(256 * verifyThreads)));
+            idemixVerifier = new IdemixVerifier(verifyThreads, verifyQueue);
+
+            // outstanding nonces expire unused, and are capped to bound memory
+            long nonceTtlMillis = Long.parseLong(cmd.getOptionValue("noncettl", "300")) * 1000;
+            int maxNonces = Integer.parseInt(cmd.getOptionValue("maxnonces", "4000000"));
+            nonceService = new NonceService(nonceTtlMillis, maxNonces);
+
+            // peer queries of the discount requests run on a few threads of their own
+            submitter = new AsyncSubmitter(network, Integer.parseInt(cmd.getOptionValue("ledgerthreads", "8")),
+                    Integer.parseInt(cmd.getOptionValue("ledgerqueue", "4096")),
+                    Long.parseLong(cmd.getOptionValue("committimeout", "60")) * 1000);
             // Contract contract = network.getContract("energy");
 
-            // listen on HTTP SERVER
-            HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(cmd.getOptionValue("port"))),
-                    0);
-            server.createContext("/noncerequest", new NonceRequestHandler());
-            server.createContext("/discountrequest", new DiscountRequestHandler());
-            int numberOfProcessors = Runtime.getRuntime().availableProcessors();
-            //ExecutorService executor = Executors.newFixedThreadPool(numberOfProcessors);
-            ExecutorService executor = Executors.newCachedThreadPool();
-            server.setExecutor(executor);
+            // listen on HTTP SERVER: discounts are read on the worker pool and answered
+            // once the ledger and the signature checks are done
+            HttpServerEngine server = HttpServerEngine.create(cmd);
+            server.createContext("/noncerequest", new NonceRequestHandler(), false);
+            server.createAsyncContext("/discountrequest", new DiscountRequestHandler(), true);
+            server.createAsyncContext("/discountrequest/batch", new DiscountBatchRequestHandler(), true);
             server.start();
 
             // Thread.currentThread().join();
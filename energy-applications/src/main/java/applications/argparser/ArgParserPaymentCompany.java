@@ -18,6 +18,74 @@ public class ArgParserPaymentCompany extends ArgParser {
         Option httpPort = new Option("port", "port", true, "port for the HTTP server to listen");
         httpPort.setRequired(true);
         options.addOption(httpPort);
+
+        Option httpEngine = new Option("httpengine", "httpengine", true,
+                "HTTP server engine: 'nio' (event loop with keep-alive and pipelining, default) or 'jdk' (com.sun HttpServer)");
+        options.addOption(httpEngine);
+
+        Option httpWorkers = new Option("httpworkers", "httpworkers", true,
+                "size of the bounded pool running the handlers that touch the ledger (default: 4 x number of processors)");
+        options.addOption(httpWorkers);
+
+        Option maxConcurrency = new Option("maxconcurrency", "maxconcurrency", true,
+                "max number of requests each endpoint admits at once, the limit adapts to the latency below it and requests beyond get 503 with Retry-After; 0 disables admission control (default: 4096)");
+        options.addOption(maxConcurrency);
+
+        Option latencySlo = new Option("latencyslo", "latencyslo", true,
+                "milliseconds of latency the admission limits aim to keep admitted requests under (default: none, only the latency increase is limited)");
+        options.addOption(latencySlo);
+
+        Option ledgerThreads = new Option("ledgerthreads", "ledgerthreads", true,
+                "number of threads endorsing and querying for the HTTP handlers, commits are awaited without a thread (default: 8)");
+        options.addOption(ledgerThreads);
+
+        Option ledgerQueue = new Option("ledgerqueue", "ledgerqueue", true,
+                "max number of ledger calls waiting for a ledger thread before answering 503 (default: 4096)");
+        options.addOption(ledgerQueue);
+
+        Option commitTimeout = new Option("committimeout", "committimeout", true,
+                "seconds to wait for the commit of a submitted transaction before failing the request (default: 60)");
+        options.addOption(commitTimeout);
+
+        Option certCacheSize = new Option("certcachesize", "certcachesize", true,
+                "max number of verified seller certificates kept in memory (default: 10000)");
+        options.addOption(certCacheSize);
+
+        Option certCacheTtl = new Option("certcachettl", "certcachettl", true,
+                "seconds a verified seller certificate is trusted before being checked again (default: 3600)");
+        options.addOption(certCacheTtl);
+
+        Option validationBatchSize = new Option("validationbatchsize", "validationbatchsize", true,
+                "max number of BuyBids validated by a single transaction (default: 100)");
+        options.addOption(validationBatchSize);
+
+        Option validationBatchDelay = new Option("validationbatchdelay", "validationbatchdelay", true,
+                "max milliseconds a committed BuyBid waits for its validation batch to fill (default: 200)");
+        options.addOption(validationBatchDelay);
+
+        Option validationRetries = new Option("validationretries", "validationretries", true,
+                "times the BuyBids of a failed validation batch are put in a later batch (default: 3)");
+        options.addOption(validationRetries);
+
+        Option tokenTtl = new Option("tokenttl", "tokenttl", true,
+                "seconds an unused payment token without an open BuyBid keeps its funds reserved (default: 3600)");
+        options.addOption(tokenTtl);
+
+        Option settledTokenTtl = new Option("settledtokenttl", "settledtokenttl", true,
+                "seconds a payment token is kept after its last payment, or after its BuyBid is closed, before the rest of its funds is released (default: 600)");
+        options.addOption(settledTokenTtl);
+
+        Option stateDir = new Option("statedir", "statedir", true,
+                "directory of the write-ahead log and snapshots of funds, tokens and paid bids (default: state kept only in memory)");
+        options.addOption(stateDir);
+
+        Option walSegmentSize = new Option("walsegmentsize", "walsegmentsize", true,
+                "size in MB of each write-ahead log file (default: 64)");
+        options.addOption(walSegmentSize);
+
+        Option snapshotInterval = new Option("snapshotinterval", "snapshotinterval", true,
+                "seconds between snapshots of the payment state, which truncate the write-ahead log (default: 300)");
+        options.addOption(snapshotInterval);
     }
 
     @Override
@@ -43,5 +111,9 @@ public class ArgParserPaymentCompany extends ArgParser {
         if (cmd.hasOption("walletpath"))
             if (!cmd.hasOption("user"))
                 throw new Error("flag '--user' must be passed with '--wallet'");
+
+        if (cmd.hasOption("httpengine") && !cmd.getOptionValue("httpengine").equals("nio")
+                && !cmd.getOptionValue("httpengine").equals("jdk"))
+            throw new Error("Flag '--httpengine' must be 'nio' or 'jdk'");
     }
 }
\ No newline at end of file
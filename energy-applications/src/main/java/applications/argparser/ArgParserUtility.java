@@ -18,6 +18,58 @@ public class ArgParserUtility extends ArgParser {
         Option httpPort = new Option("port", "port", true, "port for the HTTP server to listen");
         httpPort.setRequired(true);
         options.addOption(httpPort);
+
+        Option httpEngine = new Option("httpengine", "httpengine", true,
+                "HTTP server engine: 'nio' (event loop with keep-alive and pipelining, default) or 'jdk' (com.sun HttpServer)");
+        options.addOption(httpEngine);
+
+        Option httpWorkers = new Option("httpworkers", "httpworkers", true,
+                "size of the bounded pool running the handlers that touch the ledger (default: 4 x number of processors)");
+        options.addOption(httpWorkers);
+
+        Option maxConcurrency = new Option("maxconcurrency", "maxconcurrency", true,
+                "max number of requests each endpoint admits at once, the limit adapts to the latency below it and requests beyond get 503 with Retry-After; 0 disables admission control (default: 4096)");
+        options.addOption(maxConcurrency);
+
+        Option latencySlo = new Option("latencyslo", "latencyslo", true,
+                "milliseconds of latency the admission limits aim to keep admitted requests under (default: none, only the latency increase is limited)");
+        options.addOption(latencySlo);
+
+        Option ledgerThreads = new Option("ledgerthreads", "ledgerthreads", true,
+                "number of threads endorsing and querying for the HTTP handlers, commits are awaited without a thread (default: 8)");
+        options.addOption(ledgerThreads);
+
+        Option ledgerQueue = new Option("ledgerqueue", "ledgerqueue", true,
+                "max number of ledger calls waiting for a ledger thread before answering 503 (default: 4096)");
+        options.addOption(ledgerQueue);
+
+        Option commitTimeout = new Option("committimeout", "committimeout", true,
+                "seconds to wait for the commit of a submitted transaction before failing the request (default: 60)");
+        options.addOption(commitTimeout);
+
+        Option buyBidIndexSize = new Option("buybidindexsize", "buybidindexsize", true,
+                "max number of BuyBids kept in the index fed by the block events (default: 1000000)");
+        options.addOption(buyBidIndexSize);
+
+        Option tokenEnergySize = new Option("tokenenergysize", "tokenenergysize", true,
+                "max number of payment tokens whose bought energy is aggregated from the block events (default: 1000000)");
+        options.addOption(tokenEnergySize);
+
+        Option verifyThreads = new Option("verifythreads", "verifythreads", true,
+                "number of threads verifying the idemix signatures of discount requests (default: number of processors)");
+        options.addOption(verifyThreads);
+
+        Option verifyQueue = new Option("verifyqueue", "verifyqueue", true,
+                "max number of discount requests waiting for signature verification before answering 503 (default: 256 x verifythreads)");
+        options.addOption(verifyQueue);
+
+        Option nonceTtl = new Option("noncettl", "noncettl", true,
+                "seconds a discount request nonce stays valid if not used (default: 300)");
+        options.addOption(nonceTtl);
+
+        Option maxNonces = new Option("maxnonces", "maxnonces", true,
+                "max number of nonces waiting to expire before answering 503 (default: 4000000)");
+        options.addOption(maxNonces);
     }
 
     @Override
@@ -43,5 +95,9 @@ public class ArgParserUtility extends ArgParser {
         if (cmd.hasOption("walletpath"))
             if (!cmd.hasOption("user"))
                 throw new Error("flag '--user' must be passed with '--wallet'");
+
+        if (cmd.hasOption("httpengine") && !cmd.getOptionValue("httpengine").equals("nio")
+                && !cmd.getOptionValue("httpengine").equals("jdk"))
+            throw new Error("Flag '--httpengine' must be 'nio' or 'jdk'");
     }
 }
\ No newline at end of file
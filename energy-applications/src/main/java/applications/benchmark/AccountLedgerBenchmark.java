@@ -0,0 +1,102 @@
+package applications.benchmark;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import applications.payment.AccountLedger;
+
+/**
+ * Throughput of the payment cycle (deposit, token reservation, seller
+ * payment and release) on {@link AccountLedger} from 1 thread up to the
+ * number of processors.
+ *
+ * Usage: AccountLedgerBenchmark [secondsPerStep] [--sharedseller]
+ *
+ * By default every thread works on its own buyers and sellers, which should
+ * scale linearly. '--sharedseller' makes every thread pay the same seller to
+ * show the cost of a hot account.
+ */
+public class AccountLedgerBenchmark {
+
+    private static final int ACCOUNTS_PER_THREAD = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        boolean sharedSeller = args.length > 1 && args[1].equals("--sharedseller");
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        System.out.println(String.format("%8s %16s %12s", "threads", "cycles/s", "speedup"));
+        double singleThread = 0;
+        for (int threads = 1; threads <= maxThreads; threads = nextStep(threads, maxThreads)) {
+            // warm up, then measure
+            run(threads, 1, sharedSeller);
+            double throughput = run(threads, seconds, sharedSeller);
+            if (threads == 1)
+                singleThread = throughput;
+            System.out.println(String.format("%8d %16.0f %12.2f", threads, throughput, throughput / singleThread));
+        }
+    }
+
+    private static int nextStep(int threads, int maxThreads) {
+        if (threads == maxThreads)
+            return maxThreads + 1;
+        return Math.min(threads * 2, maxThreads);
+    }
+
+    private static double run(int threads, int seconds, boolean sharedSeller) throws Exception {
+        AccountLedger ledger = new AccountLedger();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        long[] cycles = new long[threads * 16];
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            String[] buyers = new String[ACCOUNTS_PER_THREAD];
+            String[] sellers = new String[ACCOUNTS_PER_THREAD];
+            String[] tokens = new String[ACCOUNTS_PER_THREAD];
+            for (int i = 0; i < ACCOUNTS_PER_THREAD; i++) {
+                buyers[i] = "buyer" + id + "-" + i;
+                sellers[i] = sharedSeller ? "seller" : "seller" + id + "-" + i;
+                tokens[i] = "token" + id + "-" + i;
+                ledger.deposit(buyers[i], 0);
+            }
+
+            workers[t] = new Thread(() -> {
+                long done = 0;
+                try {
+                    barrier.await();
+                } catch (Exception e) {
+                    return;
+                }
+                while (running.get()) {
+                    int i = (int) (done & (ACCOUNTS_PER_THREAD - 1));
+                    ledger.deposit(buyers[i], 10 * AccountLedger.SCALE);
+                    if (ledger.reserve(buyers[i], tokens[i], 10 * AccountLedger.SCALE) == null)
+                        throw new IllegalStateException("reservation failed for " + buyers[i]);
+                    ledger.settle(tokens[i], sellers[i], 7 * AccountLedger.SCALE);
+                    ledger.release(tokens[i]);
+                    done++;
+                }
+                // padded slots, no false sharing between the counters
+                cycles[id * 16] = done;
+            });
+            workers[t].start();
+        }
+
+        barrier.await();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            total += cycles[t * 16];
+        }
+        return total / (elapsed / 1e9);
+    }
+}
@@ -0,0 +1,177 @@
+package applications.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+
+import org.apache.milagro.amcl.RAND;
+import org.apache.milagro.amcl.FP256BN.BIG;
+import org.apache.milagro.amcl.FP256BN.ECP;
+import org.apache.milagro.amcl.FP256BN.ECP2;
+import org.hyperledger.fabric.protos.idemix.Idemix;
+import org.hyperledger.fabric.protos.common.MspPrincipal.OrganizationUnit;
+import org.hyperledger.fabric.protos.idemix.Idemix.IssuerPublicKey;
+import org.hyperledger.fabric.protos.idemix.Idemix.NymSignature;
+import org.hyperledger.fabric.protos.msp.Identities.SerializedIdemixIdentity;
+import org.hyperledger.fabric.sdk.idemix.IdemixIssuerPublicKey;
+import org.hyperledger.fabric.sdk.idemix.IdemixPseudonym;
+import org.hyperledger.fabric.sdk.idemix.IdemixPseudonymSignature;
+import org.hyperledger.fabric.sdk.idemix.IdemixUtils;
+
+import applications.identity.FixedBaseTable;
+import applications.identity.IdemixPoints;
+import applications.identity.IdemixVerifier;
+import applications.identity.IdemixVerifier.NymProof;
+import applications.identity.NymSignatureCommitment;
+
+/**
+ * Idemix pseudonym signature verifications per second on one core, as the
+ * utility checks discount requests:
+ *
+ * - 'sdk': IdemixPseudonymSignature.verify with the issuer key rebuilt for
+ * every request, as AppUtility used to do;
+ * - 'sdk cached key': the same with the issuer key built once;
+ * - 'fixed-base': {@link IdemixVerifier}, with one verification thread, which
+ * multiplies the issuer bases from {@link FixedBaseTable}s;
+ * - 'fixed-base batch': {@link IdemixVerifier#verifyBatch} of all the
+ * signatures at once, with their commitments.
+ *
+ * It also times a product by a fixed base alone, with ECP.mul and with the
+ * table.
+ *
+ * Usage: IdemixVerifyBenchmark [secondsPerRun]
+ */
+public class IdemixVerifyBenchmark {
+
+    private static final int SIGNATURES = 64;
+
+    // returns the number of verifications done, 0 if one failed
+    private interface Operation {
+        int run(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        RAND rng = IdemixUtils.getRand();
+
+        IssuerPublicKey ipkProto = issuerKey(rng, new String[] { "OU", "Role", "EnrollmentID", "RevocationHandle" });
+        IdemixIssuerPublicKey ipk = new IdemixIssuerPublicKey(ipkProto);
+        ECP hsk = IdemixPoints.fromProto(ipkProto.getHSk());
+
+        // one buyer signing distinct messages, as repeated discount requests
+        BIG sk = IdemixUtils.randModOrder(rng);
+        IdemixPseudonym pseudonym = new IdemixPseudonym(sk, ipk);
+        ECP nym = pseudonym.getNym();
+        SerializedIdemixIdentity creator = serializedIdentity(nym, ipk);
+        byte[][] messages = new byte[SIGNATURES][];
+        byte[][] signatures = new byte[SIGNATURES][];
+        for (int i = 0; i < SIGNATURES; i++) {
+            messages[i] = ("registerbuybidtxid" + i).getBytes(StandardCharsets.UTF_8);
+            signatures[i] = new IdemixPseudonymSignature(sk, pseudonym, ipk, messages[i]).toProto().toByteArray();
+        }
+
+        IdemixVerifier verifier = new IdemixVerifier(1, SIGNATURES);
+        FixedBaseTable hskTable = new FixedBaseTable(hsk, 6);
+        BIG[] scalars = new BIG[SIGNATURES];
+        for (int i = 0; i < SIGNATURES; i++) {
+            scalars[i] = IdemixUtils.randModOrder(rng);
+        }
+
+        System.out.println(String.format("%24s %14s %12s", "", "ops/s", "speedup"));
+        double base = measure("ECP.mul", seconds, 0,
+                i -> hsk.mul(scalars[i]).is_infinity() ? 0 : 1);
+        measure("FixedBaseTable.mul", seconds, base, i -> hskTable.mul(scalars[i]).is_infinity() ? 0 : 1);
+
+        base = measure("sdk", seconds, 0,
+                i -> new IdemixPseudonymSignature(NymSignature.parseFrom(signatures[i])).verify(nym,
+                        new IdemixIssuerPublicKey(ipkProto), messages[i]) ? 1 : 0);
+        measure("sdk cached key", seconds, base,
+                i -> new IdemixPseudonymSignature(NymSignature.parseFrom(signatures[i])).verify(nym, ipk,
+                        messages[i]) ? 1 : 0);
+        measure("fixed-base", seconds, base,
+                i -> verifier.verify(creator, ipkProto, messages[i], signatures[i]) ? 1 : 0);
+
+        // all the signatures in one batch, with the commitments sent by the signer
+        List<NymProof> proofs = new ArrayList<NymProof>(SIGNATURES);
+        for (int i = 0; i < SIGNATURES; i++) {
+            byte[] commitment = NymSignatureCommitment.of(nym, ipkProto, NymSignature.parseFrom(signatures[i]));
+            proofs.add(new NymProof(creator, ipkProto, messages[i], signatures[i], commitment));
+        }
+        measure("fixed-base batch", seconds, base, i -> {
+            for (boolean valid : verifier.verifyBatch(proofs)) {
+                if (!valid)
+                    return 0;
+            }
+            return SIGNATURES;
+        });
+
+        verifier.stop();
+    }
+
+    /*
+     * An issuer key with random bases, as an issuer would generate it. Its
+     * proof of knowledge of the secret key is random too: neither the SDK
+     * nor the utility check it when verifying signatures.
+     */
+    private static IssuerPublicKey issuerKey(RAND rng, String[] attributeNames) {
+        IssuerPublicKey.Builder builder = IssuerPublicKey.newBuilder()
+                .setHSk(IdemixPoints.toProto(randomPoint(rng)))
+                .setHRand(IdemixPoints.toProto(randomPoint(rng)))
+                .setBarG1(IdemixPoints.toProto(randomPoint(rng)))
+                .setBarG2(IdemixPoints.toProto(randomPoint(rng)))
+                .setProofC(ByteString.copyFrom(IdemixUtils.bigToBytes(IdemixUtils.randModOrder(rng))))
+                .setProofS(ByteString.copyFrom(IdemixUtils.bigToBytes(IdemixUtils.randModOrder(rng))));
+        for (String attributeName : attributeNames) {
+            builder.addAttributeNames(attributeName).addHAttrs(IdemixPoints.toProto(randomPoint(rng)));
+        }
+        ECP2 w = ECP2.generator().mul(IdemixUtils.randModOrder(rng));
+        builder.setW(Idemix.ECP2.newBuilder()
+                .setXa(ByteString.copyFrom(IdemixUtils.bigToBytes(w.getX().getA())))
+                .setXb(ByteString.copyFrom(IdemixUtils.bigToBytes(w.getX().getB())))
+                .setYa(ByteString.copyFrom(IdemixUtils.bigToBytes(w.getY().getA())))
+                .setYb(ByteString.copyFrom(IdemixUtils.bigToBytes(w.getY().getB()))));
+
+        // the SDK key adds the hash of the proto
+        return new IdemixIssuerPublicKey(builder.build()).toProto();
+    }
+
+    private static ECP randomPoint(RAND rng) {
+        return ECP.generator().mul(IdemixUtils.randModOrder(rng));
+    }
+
+    private static SerializedIdemixIdentity serializedIdentity(ECP nym, IdemixIssuerPublicKey ipk) {
+        byte[] x = new byte[BIG.MODBYTES];
+        byte[] y = new byte[BIG.MODBYTES];
+        nym.getX().toBytes(x);
+        nym.getY().toBytes(y);
+        OrganizationUnit ou = OrganizationUnit.newBuilder().setMspIdentifier("IDEMIXORG")
+                .setOrganizationalUnitIdentifier("idemixorg").setCertifiersIdentifier(ByteString.copyFrom(ipk.getHash()))
+                .build();
+        return SerializedIdemixIdentity.newBuilder().setNymX(ByteString.copyFrom(x)).setNymY(ByteString.copyFrom(y))
+                .setOu(ou.toByteString()).build();
+    }
+
+    // warms up for a second, then measures; speedup is relative to 'base' ops/s
+    private static double measure(String name, int seconds, double base, Operation operation) throws Exception {
+        run(name, 1, operation);
+        double throughput = run(name, seconds, operation);
+        System.out.println(String.format("%24s %14.0f %12s", name, throughput,
+                base > 0 ? String.format("%.2f", throughput / base) : ""));
+        return throughput;
+    }
+
+    private static double run(String name, int seconds, Operation operation) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            int done = operation.run((int) (ops % SIGNATURES));
+            if (done == 0)
+                throw new IllegalStateException(name + " failed to verify");
+            ops += done;
+        }
+        return ops * 1e9 / (System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,206 @@
+package applications.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import applications.http.JsonFields;
+import applications.http.JsonRequest;
+import applications.http.JsonResponse;
+
+/**
+ * Time and memory allocated per request by the JSON handling of the HTTP
+ * handlers, without the network: the request body is decoded into the fields
+ * a handler reads, and a response is encoded to bytes.
+ *
+ * - 'javax.json': the former handlers, a String of the body, a JsonObject tree
+ * and a String response turned into bytes;
+ * - 'codec': {@link JsonRequest} over the body bytes and {@link JsonResponse}.
+ *
+ * Three requests are measured: a '/requestpayment' with a PEM certificate, a
+ * '/discountrequest' and a '/gettokens' with its array of 100 tokens in the
+ * response.
+ *
+ * Usage: JsonCodecBenchmark [secondsPerRun]
+ *
+ * Each variant is warmed up for one run before being measured. Allocation
+ * is read from the HotSpot per-thread counter.
+ */
+public class JsonCodecBenchmark {
+
+    private static final JsonFields PAYMENT_FIELDS = JsonFields.of("sellername", "mspseller", "token",
+            "certificate", "sigb64");
+    private static final JsonFields DISCOUNT_FIELDS = JsonFields.of("clientname", "registerbuybidtxid", "nonce",
+            "ipkb64", "sigb64");
+    private static final JsonFields TOKENS_FIELDS = JsonFields.of("clientname", "funds", "count");
+
+    private interface Handler {
+        int handle(byte[] body, OutputStream out) throws Exception;
+    }
+
+    // discards the response, as a socket would take it
+    private static final OutputStream SINK = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        Random random = new Random(42);
+
+        byte[] paymentBody = Json.createObjectBuilder().add("sellername", "seller1-ufsc").add("mspseller", "UFSC")
+                .add("token", token(random)).add("certificate", certificate(random))
+                .add("sigb64", base64(random, 71)).build().toString().getBytes(StandardCharsets.UTF_8);
+        byte[] discountBody = Json.createObjectBuilder().add("clientname", "buyer1-idemixorg")
+                .add("registerbuybidtxid", String.format("%064x", random.nextLong())).add("nonce", random.nextInt())
+                .add("ipkb64", base64(random, 1200)).add("sigb64", base64(random, 400)).build().toString()
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] tokensBody = Json.createObjectBuilder().add("clientname", "buyer1-idemixorg").add("funds", 12.5)
+                .add("count", 100).build().toString().getBytes(StandardCharsets.UTF_8);
+        String[] tokens = new String[100];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = token(random);
+        }
+
+        System.out.println(String.format("%18s %12s %14s %14s", "request", "codec", "ns/op", "bytes/op"));
+        measure("/requestpayment", "javax.json", seconds, paymentBody, JsonCodecBenchmark::paymentJavax);
+        measure("/requestpayment", "codec", seconds, paymentBody, JsonCodecBenchmark::paymentCodec);
+        measure("/discountrequest", "javax.json", seconds, discountBody, JsonCodecBenchmark::discountJavax);
+        measure("/discountrequest", "codec", seconds, discountBody, JsonCodecBenchmark::discountCodec);
+        measure("/gettokens", "javax.json", seconds, tokensBody, (body, out) -> tokensJavax(body, out, tokens));
+        measure("/gettokens", "codec", seconds, tokensBody, (body, out) -> tokensCodec(body, out, tokens));
+    }
+
+    private static int paymentJavax(byte[] body, OutputStream out) throws Exception {
+        JsonReader reader = Json.createReader(new StringReader(new String(body)));
+        JsonObject request = reader.readObject();
+        int read = request.getString("sellername").length() + request.getString("mspseller").length()
+                + request.getString("token").length() + request.getString("certificate").length()
+                + Base64.getDecoder().decode(request.getString("sigb64")).length;
+        out.write("".getBytes());
+        return read;
+    }
+
+    private static int paymentCodec(byte[] body, OutputStream out) throws Exception {
+        JsonRequest request = JsonRequest.parse(body, 0, body.length, PAYMENT_FIELDS);
+        int read = request.getString("sellername").length() + request.getString("mspseller").length()
+                + request.getString("token").length() + request.getString("certificate").length()
+                + request.getBase64("sigb64").length;
+        JsonResponse.get().text("").writeTo(out);
+        return read;
+    }
+
+    private static int discountJavax(byte[] body, OutputStream out) throws Exception {
+        JsonReader reader = Json.createReader(new StringReader(new String(body)));
+        JsonObject request = reader.readObject();
+        int read = request.getString("clientname").length() + request.getString("registerbuybidtxid").length()
+                + request.getInt("nonce") + Base64.getDecoder().decode(request.getString("ipkb64")).length
+                + Base64.getDecoder().decode(request.getString("sigb64")).length;
+        String response = "The discounted amount of energy was " + Double.toString(12.5) + " KWH";
+        out.write(response.getBytes());
+        return read;
+    }
+
+    private static int discountCodec(byte[] body, OutputStream out) throws Exception {
+        JsonRequest request = JsonRequest.parse(body, 0, body.length, DISCOUNT_FIELDS);
+        int read = request.getString("clientname").length() + request.getString("registerbuybidtxid").length()
+                + request.getInt("nonce") + request.getBase64("ipkb64").length + request.getBase64("sigb64").length;
+        JsonResponse.get().text("The discounted amount of energy was ").text(Double.toString(12.5)).text(" KWH")
+                .writeTo(out);
+        return read;
+    }
+
+    private static int tokensJavax(byte[] body, OutputStream out, String[] tokens) throws Exception {
+        JsonReader reader = Json.createReader(new StringReader(new String(body)));
+        JsonObject request = reader.readObject();
+        int read = request.getString("clientname").length() + (int) request.getJsonNumber("funds").doubleValue()
+                + request.getInt("count");
+        JsonArrayBuilder tokensJson = Json.createArrayBuilder();
+        for (String token : tokens) {
+            tokensJson.add(token);
+        }
+        out.write(Json.createObjectBuilder().add("tokens", tokensJson).build().toString().getBytes());
+        return read;
+    }
+
+    private static int tokensCodec(byte[] body, OutputStream out, String[] tokens) throws Exception {
+        JsonRequest request = JsonRequest.parse(body, 0, body.length, TOKENS_FIELDS);
+        int read = request.getString("clientname").length() + (int) request.getDouble("funds")
+                + request.getInt("count");
+        JsonResponse response = JsonResponse.get().beginObject().name("tokens").beginArray();
+        for (String token : tokens) {
+            response.value(token);
+        }
+        response.endArray().endObject().writeTo(out);
+        return read;
+    }
+
+    private static void measure(String request, String codec, int seconds, byte[] body, Handler handler)
+            throws Exception {
+        run(handler, body, 1);
+        double[] result = run(handler, body, seconds);
+        System.out.println(String.format("%18s %12s %14.1f %14.1f", request, codec, result[0], result[1]));
+    }
+
+    // [ns/op, bytes/op]
+    private static double[] run(Handler handler, byte[] body, int seconds) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long ops = 0;
+        long sink = 0;
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 1000; i++) {
+                sink += handler.handle(body, SINK);
+            }
+            ops += 1000;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - startBytes;
+        if (sink == 0)
+            throw new IllegalStateException("nothing was decoded");
+        return new double[] { (double) elapsed / ops, (double) allocated / ops };
+    }
+
+    private static String token(Random random) {
+        return base64(random, 16).substring(0, 22).replace('+', '-').replace('/', '_');
+    }
+
+    private static String base64(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    // a PEM shaped like a Fabric CA client certificate
+    private static String certificate(Random random) throws IOException {
+        ByteArrayOutputStream pem = new ByteArrayOutputStream();
+        pem.write("-----BEGIN CERTIFICATE-----\n".getBytes());
+        String der = base64(random, 720);
+        for (int i = 0; i < der.length(); i += 64) {
+            pem.write(der.substring(i, Math.min(der.length(), i + 64)).getBytes());
+            pem.write('\n');
+        }
+        pem.write("-----END CERTIFICATE-----\n".getBytes());
+        return pem.toString("UTF-8");
+    }
+}
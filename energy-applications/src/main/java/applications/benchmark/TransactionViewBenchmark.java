@@ -0,0 +1,179 @@
+package applications.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import com.google.protobuf.ByteString;
+
+import org.hyperledger.fabric.protos.common.Common.ChannelHeader;
+import org.hyperledger.fabric.protos.common.Common.Envelope;
+import org.hyperledger.fabric.protos.common.Common.Header;
+import org.hyperledger.fabric.protos.common.Common.HeaderType;
+import org.hyperledger.fabric.protos.common.Common.Payload;
+import org.hyperledger.fabric.protos.common.Common.SignatureHeader;
+import org.hyperledger.fabric.protos.common.MspPrincipal.OrganizationUnit;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset.NsReadWriteSet;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset.TxReadWriteSet;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVRWSet;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVWrite;
+import org.hyperledger.fabric.protos.msp.Identities.SerializedIdemixIdentity;
+import org.hyperledger.fabric.protos.msp.Identities.SerializedIdentity;
+import org.hyperledger.fabric.protos.peer.ProposalPackage.ChaincodeAction;
+import org.hyperledger.fabric.protos.peer.ProposalResponsePackage.ProposalResponsePayload;
+import org.hyperledger.fabric.protos.peer.TransactionPackage.ChaincodeActionPayload;
+import org.hyperledger.fabric.protos.peer.TransactionPackage.ChaincodeEndorsedAction;
+import org.hyperledger.fabric.protos.peer.TransactionPackage.Transaction;
+import org.hyperledger.fabric.protos.peer.TransactionPackage.TransactionAction;
+
+import applications.ledger.TransactionView;
+
+/**
+ * Time and memory allocated to get the creator idemix identity and the
+ * 'energy' write set of a 'registerBuyBid' envelope, as a discount request
+ * does: with the generated protobuf classes, walking the envelope once for
+ * each (the former AppUtility code), and with {@link TransactionView}.
+ *
+ * Usage: TransactionViewBenchmark [secondsPerRun]
+ *
+ * Each variant is warmed up for one run before being measured. Allocation
+ * is read from the HotSpot per-thread counter.
+ */
+public class TransactionViewBenchmark {
+
+    private static final String NAMESPACE = "energy";
+
+    private interface Decoder {
+        int decode(ByteString envelopeBytes) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        ByteString envelopeBytes = buyBidEnvelope();
+        System.out.println("envelope of " + envelopeBytes.size() + " bytes");
+
+        System.out.println(String.format("%16s %14s %14s", "decoder", "ns/op", "bytes/op"));
+        run("protobuf", TransactionViewBenchmark::generatedClasses, envelopeBytes, 1);
+        report("protobuf", run("protobuf", TransactionViewBenchmark::generatedClasses, envelopeBytes, seconds));
+        run("view", TransactionViewBenchmark::transactionView, envelopeBytes, 1);
+        report("view", run("view", TransactionViewBenchmark::transactionView, envelopeBytes, seconds));
+    }
+
+    private static int generatedClasses(ByteString envelopeBytes) throws Exception {
+        Envelope envelope = Envelope.parseFrom(envelopeBytes);
+
+        // creator, as getTransactionSerializedIdemixIdentity did
+        Payload envelopePayload = Payload.parseFrom(envelope.getPayload());
+        SignatureHeader sigHeader = SignatureHeader.parseFrom(envelopePayload.getHeader().getSignatureHeader());
+        SerializedIdentity serializedIdentity = SerializedIdentity.parseFrom(sigHeader.getCreator());
+        SerializedIdemixIdentity creator = SerializedIdemixIdentity.parseFrom(serializedIdentity.getIdBytes());
+
+        // write set, as getTransactionKVWriteSet did
+        envelopePayload = Payload.parseFrom(envelope.getPayload());
+        Header headerPayload = envelopePayload.getHeader();
+        ChannelHeader channelHeader = ChannelHeader.parseFrom(headerPayload.getChannelHeader());
+        if (HeaderType.forNumber(channelHeader.getType()) != HeaderType.ENDORSER_TRANSACTION)
+            return 0;
+        Transaction transaction = Transaction.parseFrom(envelopePayload.getData());
+        ChaincodeActionPayload chaincodeActionPayload = ChaincodeActionPayload
+                .parseFrom(transaction.getActions(0).getPayload());
+        ProposalResponsePayload proposalResponsePayload = ProposalResponsePayload
+                .parseFrom(chaincodeActionPayload.getAction().getProposalResponsePayload());
+        ChaincodeAction chaincodeAction = ChaincodeAction.parseFrom(proposalResponsePayload.getExtension());
+        TxReadWriteSet readWriteSet = TxReadWriteSet.parseFrom(chaincodeAction.getResults());
+        List<KVWrite> writes = KVRWSet.parseFrom(readWriteSet.getNsRwset(1).getRwset()).getWritesList();
+
+        return creator.getNymX().size() + writes.size();
+    }
+
+    private static int transactionView(ByteString envelopeBytes) throws Exception {
+        TransactionView view = TransactionView.fromEnvelopeBytes(envelopeBytes);
+        SerializedIdemixIdentity creator = view.getCreatorIdemixIdentity();
+        List<KVWrite> writes = view.getNamespaceWrites(NAMESPACE);
+        return creator.getNymX().size() + writes.size();
+    }
+
+    // [ns/op, bytes/op]
+    private static double[] run(String name, Decoder decoder, ByteString envelopeBytes, int seconds)
+            throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long ops = 0;
+        long sink = 0;
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 1000; i++) {
+                sink += decoder.decode(envelopeBytes);
+            }
+            ops += 1000;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - startBytes;
+        if (sink == 0)
+            throw new IllegalStateException(name + " decoded nothing");
+        return new double[] { (double) elapsed / ops, (double) allocated / ops };
+    }
+
+    private static void report(String name, double[] result) {
+        System.out.println(String.format("%16s %14.1f %14.1f", name, result[0], result[1]));
+    }
+
+    // an envelope shaped like a committed 'registerBuyBid', with random crypto material
+    private static ByteString buyBidEnvelope() {
+        Random random = new Random(42);
+
+        SerializedIdemixIdentity idemixIdentity = SerializedIdemixIdentity.newBuilder()
+                .setNymX(randomBytes(random, 32)).setNymY(randomBytes(random, 32))
+                .setOu(OrganizationUnit.newBuilder().setMspIdentifier("IDEMIXORG")
+                        .setOrganizationalUnitIdentifier("idemixorg")
+                        .setCertifiersIdentifier(randomBytes(random, 32)).build().toByteString())
+                .setRole(randomBytes(random, 16)).build();
+        SerializedIdentity creator = SerializedIdentity.newBuilder().setMspid("IDEMIXORG")
+                .setIdBytes(idemixIdentity.toByteString()).build();
+
+        ChannelHeader channelHeader = ChannelHeader.newBuilder()
+                .setType(HeaderType.ENDORSER_TRANSACTION.getNumber()).setChannelId("canal")
+                .setTxId(String.format("%064x", random.nextLong())).build();
+        SignatureHeader signatureHeader = SignatureHeader.newBuilder().setCreator(creator.toByteString())
+                .setNonce(randomBytes(random, 24)).build();
+        Header header = Header.newBuilder().setChannelHeader(channelHeader.toByteString())
+                .setSignatureHeader(signatureHeader.toByteString()).build();
+
+        KVRWSet kvRwset = KVRWSet.newBuilder().addWrites(KVWrite.newBuilder()
+                .setKey("\u0000BuyBid\u0000false\u0000PAYMENTCOMPANY\u0000" + String.format("%022x", random.nextLong())
+                        + "\u0000")
+                .setValue(randomBytes(random, 96)).build()).build();
+        TxReadWriteSet txRwset = TxReadWriteSet.newBuilder()
+                .addNsRwset(NsReadWriteSet.newBuilder().setNamespace("_lifecycle")
+                        .setRwset(randomBytes(random, 64)).build())
+                .addNsRwset(NsReadWriteSet.newBuilder().setNamespace(NAMESPACE).setRwset(kvRwset.toByteString())
+                        .build())
+                .build();
+        ChaincodeAction chaincodeAction = ChaincodeAction.newBuilder().setResults(txRwset.toByteString()).build();
+        ProposalResponsePayload proposalResponsePayload = ProposalResponsePayload.newBuilder()
+                .setProposalHash(randomBytes(random, 32)).setExtension(chaincodeAction.toByteString()).build();
+        ChaincodeActionPayload chaincodeActionPayload = ChaincodeActionPayload.newBuilder()
+                .setChaincodeProposalPayload(ByteString.copyFrom("registerBuyBid".getBytes(StandardCharsets.UTF_8)))
+                .setAction(ChaincodeEndorsedAction.newBuilder()
+                        .setProposalResponsePayload(proposalResponsePayload.toByteString()).build())
+                .build();
+        Transaction transaction = Transaction.newBuilder().addActions(TransactionAction.newBuilder()
+                .setHeader(signatureHeader.toByteString()).setPayload(chaincodeActionPayload.toByteString()).build())
+                .build();
+
+        Payload payload = Payload.newBuilder().setHeader(header).setData(transaction.toByteString()).build();
+        return Envelope.newBuilder().setPayload(payload.toByteString()).setSignature(randomBytes(random, 72))
+                .build().toByteString();
+    }
+
+    private static ByteString randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+}
@@ -0,0 +1,202 @@
+package applications.http;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Admission control of the HTTP servers. Each endpoint admits at most its
+ * limit of requests at a time, queued or running, and answers the others at
+ * once with 503 and a Retry-After header: when an auction makes every buyer
+ * and seller call at the same moment, the burst is shed instead of queued
+ * until every request misses its deadline.
+ *
+ * The limit of each endpoint follows its latency, as gradient limiters do: a
+ * short average of the latency is compared with a long one, the latency of
+ * the endpoint when nothing queues. While the short one stays within
+ * {@value #RTT_TOLERANCE} times the long one (and within the latency SLO, if
+ * any) the limit grows with each request, by a fraction of its square root;
+ * beyond, it shrinks in proportion to the excess latency.
+ */
+public class AdmissionController {
+
+    public static final int RETRY_AFTER_SECONDS = 1;
+
+    private static final int MIN_LIMIT = 4;
+    private static final double RTT_TOLERANCE = 1.5;
+    // exponential averages over about 10 and 600 requests
+    private static final double SHORT_SMOOTHING = 2.0 / 11;
+    private static final double LONG_SMOOTHING = 2.0 / 601;
+    private static final double LIMIT_SMOOTHING = 0.2;
+
+    private final int initialLimit;
+    private final int maxLimit;
+    private final long sloNanos;
+    private final Map<String, Limiter> limiters = new ConcurrentSkipListMap<String, Limiter>();
+
+    /**
+     * 'sloMillis' caps the latency the limits aim at, 0 for none.
+     */
+    public AdmissionController(int initialLimit, int maxLimit, long sloMillis) {
+        this.initialLimit = Math.max(MIN_LIMIT, Math.min(maxLimit, initialLimit));
+        this.maxLimit = maxLimit;
+        this.sloNanos = sloMillis * 1000000;
+    }
+
+    /**
+     * The controller configured by '--maxconcurrency' and '--latencyslo', or
+     * null if admission control is disabled. Limits start at the number of
+     * workers.
+     */
+    static AdmissionController create(CommandLine cmd, int workers) {
+        int maxLimit = Integer.parseInt(cmd.getOptionValue("maxconcurrency", "4096"));
+        if (maxLimit <= 0)
+            return null;
+        return new AdmissionController(workers, maxLimit, Long.parseLong(cmd.getOptionValue("latencyslo", "0")));
+    }
+
+    /**
+     * The limiter of the endpoint 'path', created on first use.
+     */
+    public Limiter limiter(String path) {
+        return limiters.computeIfAbsent(path, p -> new Limiter(p, initialLimit, maxLimit, sloNanos));
+    }
+
+    /**
+     * The limiters by endpoint, for the metrics.
+     */
+    public Map<String, Limiter> getLimiters() {
+        return Collections.unmodifiableMap(limiters);
+    }
+
+    /**
+     * Answers 503 with Retry-After, from any thread: a failure to send closes
+     * the exchange.
+     */
+    public static void sendBusy(HttpExchange t) {
+        t.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        try {
+            JsonResponse.sendText(t, 503, "Server busy");
+        } catch (IOException e) {
+            t.close();
+        }
+    }
+
+    public static final class Limiter {
+        private final String path;
+        private final int maxLimit;
+        private final long sloNanos;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile int limit;
+        // guarded by this
+        private double estimatedLimit;
+        private double shortRtt;
+        private double longRtt;
+
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private Limiter(String path, int initialLimit, int maxLimit, long sloNanos) {
+            this.path = path;
+            this.maxLimit = maxLimit;
+            this.sloNanos = sloNanos;
+            this.limit = initialLimit;
+            this.estimatedLimit = initialLimit;
+        }
+
+        /**
+         * Admits a request if the endpoint is under its limit. Returns the
+         * admission time, to be given back to {@link #release}, or -1 if the
+         * request must be rejected.
+         */
+        public long tryAcquire() {
+            for (;;) {
+                int current = inFlight.get();
+                if (current >= limit) {
+                    rejected.increment();
+                    return -1;
+                }
+                if (inFlight.compareAndSet(current, current + 1)) {
+                    admitted.increment();
+                    return System.nanoTime();
+                }
+            }
+        }
+
+        /**
+         * Ends a request admitted at 'admittedAt'. Its latency updates the limit
+         * if 'sample', requests rejected further on say nothing of it.
+         */
+        public void release(long admittedAt, boolean sample) {
+            int inFlightBefore = inFlight.getAndDecrement();
+            if (sample)
+                update(System.nanoTime() - admittedAt, inFlightBefore);
+        }
+
+        private synchronized void update(long rtt, int inFlightBefore) {
+            if (longRtt == 0) {
+                shortRtt = rtt;
+                longRtt = rtt;
+                return;
+            }
+            shortRtt += (rtt - shortRtt) * SHORT_SMOOTHING;
+            // queueing latency must not become the reference: the long average
+            // only learns while the endpoint is within tolerance, or at the
+            // minimum limit, where a lasting slowdown of the ledger shows
+            if (shortRtt <= RTT_TOLERANCE * longRtt || limit <= MIN_LIMIT)
+                longRtt += (rtt - longRtt) * LONG_SMOOTHING;
+            // and it comes down quickly once the endpoint is faster again
+            if (longRtt > 2 * shortRtt)
+                longRtt *= 0.95;
+
+            // an endpoint used well under its limit says nothing of a higher one
+            if (inFlightBefore < estimatedLimit / 2)
+                return;
+
+            double target = RTT_TOLERANCE * longRtt;
+            if (sloNanos > 0)
+                target = Math.min(target, sloNanos);
+            double gradient = Math.max(0.5, Math.min(1.0, target / shortRtt));
+            double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            estimatedLimit = estimatedLimit * (1 - LIMIT_SMOOTHING) + newLimit * LIMIT_SMOOTHING;
+            estimatedLimit = Math.max(MIN_LIMIT, Math.min(maxLimit, estimatedLimit));
+            limit = (int) estimatedLimit;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getAdmitted() {
+            return admitted.sum();
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        public synchronized double getShortRttMillis() {
+            return shortRtt / 1000000;
+        }
+
+        public synchronized double getLongRttMillis() {
+            return longRtt / 1000000;
+        }
+    }
+}
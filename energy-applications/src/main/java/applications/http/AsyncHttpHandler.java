@@ -0,0 +1,68 @@
+package applications.http;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * A handler that starts its work and returns without waiting for it: the
+ * exchange is answered later, from the thread that completes the work, such
+ * as a ledger commit notification. The server thread is free as soon as the
+ * request was read, whatever the ledger latency.
+ *
+ * Both engines accept exchanges answered after their handler returned.
+ */
+public interface AsyncHttpHandler {
+
+    /**
+     * Reads the request and starts the work. The returned stage completes once
+     * the response was sent; if it fails first, 500 is answered.
+     */
+    CompletionStage<?> handleAsync(HttpExchange t) throws IOException;
+
+    /**
+     * The plain handler registered with the engine for 'handler'.
+     */
+    static HttpHandler adapt(AsyncHttpHandler handler) {
+        return t -> handler.handleAsync(t).whenComplete((result, failure) -> {
+            if (failure == null || t.getResponseCode() != -1)
+                return;
+            failure.printStackTrace();
+            reply(t, 500, "Internal server error");
+        });
+    }
+
+    /**
+     * Sends 'text' from a completion callback, which cannot throw IOException:
+     * the exchange is closed instead.
+     */
+    static void reply(HttpExchange t, int rCode, String text) {
+        reply(t, rCode, JsonResponse.get().text(text));
+    }
+
+    /**
+     * Sends 'response', built on the calling thread, from a completion callback.
+     */
+    static void reply(HttpExchange t, int rCode, JsonResponse response) {
+        try {
+            response.send(t, rCode);
+        } catch (IOException e) {
+            t.close();
+        }
+    }
+
+    /**
+     * The failure behind the wrappers added by the completion stages.
+     */
+    static Throwable cause(Throwable failure) {
+        while ((failure instanceof CompletionException || failure instanceof ExecutionException)
+                && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure;
+    }
+}
@@ -0,0 +1,60 @@
+package applications.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Common contract of the HTTP servers used by the payment company and the
+ * utility. Handlers keep the plain {@link HttpHandler} contract, so the same
+ * handler classes run on either engine.
+ */
+public interface HttpServerEngine {
+
+    /**
+     * Registers a handler. Handlers flagged as 'blocking' (the ones touching the
+     * ledger) run on the bounded worker pool, the others may run directly on the
+     * I/O threads.
+     */
+    void createContext(String path, HttpHandler handler, boolean blocking);
+
+    /**
+     * Registers a handler answering after it returned. 'blocking' applies to
+     * the part run before it returns, such as signature checks. Not an
+     * overload of {@link #createContext}: a lambda would fit both.
+     */
+    default void createAsyncContext(String path, AsyncHttpHandler handler, boolean blocking) {
+        createContext(path, AsyncHttpHandler.adapt(handler), blocking);
+    }
+
+    void start() throws IOException;
+
+    void stop(int delaySeconds);
+
+    /**
+     * The per endpoint limits, null if admission control is disabled.
+     */
+    AdmissionController getAdmissionController();
+
+    /**
+     * Builds the engine chosen with '--httpengine' listening on '--port', with a
+     * worker pool sized by '--httpworkers' and the admission control set by
+     * '--maxconcurrency' and '--latencyslo'.
+     */
+    static HttpServerEngine create(CommandLine cmd) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(Integer.parseInt(cmd.getOptionValue("port")));
+        int numberOfProcessors = Runtime.getRuntime().availableProcessors();
+        int workers = cmd.hasOption("httpworkers") ? Integer.parseInt(cmd.getOptionValue("httpworkers"))
+                : 4 * numberOfProcessors;
+
+        AdmissionController admission = AdmissionController.create(cmd, workers);
+
+        String engine = cmd.getOptionValue("httpengine", "nio");
+        if (engine.equals("jdk"))
+            return new JdkHttpServerEngine(address, workers, admission);
+        return new NioHttpServerEngine(address, workers, Math.max(1, numberOfProcessors / 2), admission);
+    }
+}
@@ -0,0 +1,101 @@
+package applications.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The original com.sun HttpServer, but served by a bounded pool instead of a
+ * cached one. When the queue is full the dispatcher thread runs the handler
+ * itself, which stops it from accepting until the pool catches up.
+ *
+ * With an {@link AdmissionController} a request is admitted when its handler
+ * starts and holds its place until the handler returns or, for an
+ * {@link AsyncHttpHandler}, until its work completes.
+ */
+public class JdkHttpServerEngine implements HttpServerEngine {
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    private final AdmissionController admission;
+
+    public JdkHttpServerEngine(InetSocketAddress address, int workers, AdmissionController admission)
+            throws IOException {
+        this.admission = admission;
+        server = HttpServer.create(address, 0);
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(workers * 256), new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        server.setExecutor(executor);
+    }
+
+    @Override
+    public void createContext(String path, HttpHandler handler, boolean blocking) {
+        // every exchange is dispatched to the executor anyway
+        if (admission == null) {
+            server.createContext(path, handler);
+            return;
+        }
+        AdmissionController.Limiter limiter = admission.limiter(path);
+        server.createContext(path, t -> {
+            long admittedAt = limiter.tryAcquire();
+            if (admittedAt < 0) {
+                AdmissionController.sendBusy(t);
+                return;
+            }
+            try {
+                handler.handle(t);
+            } finally {
+                limiter.release(admittedAt, t.getResponseCode() != 503);
+            }
+        });
+    }
+
+    @Override
+    public void createAsyncContext(String path, AsyncHttpHandler handler, boolean blocking) {
+        if (admission == null) {
+            server.createContext(path, AsyncHttpHandler.adapt(handler));
+            return;
+        }
+        AdmissionController.Limiter limiter = admission.limiter(path);
+        server.createContext(path, AsyncHttpHandler.adapt(t -> {
+            long admittedAt = limiter.tryAcquire();
+            if (admittedAt < 0) {
+                AdmissionController.sendBusy(t);
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletionStage<?> work;
+            try {
+                work = handler.handleAsync(t);
+            } catch (IOException | RuntimeException e) {
+                limiter.release(admittedAt, false);
+                throw e;
+            }
+            return work.whenComplete((result, failure) -> limiter.release(admittedAt,
+                    t.getResponseCode() != 503));
+        }));
+    }
+
+    @Override
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    @Override
+    public void start() {
+        server.start();
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,68 @@
+package applications.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The fields a handler reads from its JSON requests, declared once per
+ * handler. {@link JsonRequest} only keeps where these fields are in the
+ * request body, every other field is skipped without being decoded.
+ */
+public final class JsonFields {
+
+    private final String[] names;
+    private final byte[][] nameBytes;
+
+    private JsonFields(String[] names) {
+        this.names = names;
+        this.nameBytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            nameBytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public static JsonFields of(String... names) {
+        return new JsonFields(names.clone());
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String name(int index) {
+        return names[index];
+    }
+
+    /**
+     * Index of 'name', -1 if it was not declared.
+     */
+    int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == name)
+                return i;
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Index of the field named by the raw bytes of a JSON key, -1 if it was not
+     * declared. Keys holding escapes never match: field names are plain ASCII.
+     */
+    int indexOf(byte[] buffer, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < nameBytes.length; i++) {
+            byte[] name = nameBytes[i];
+            if (name.length != length)
+                continue;
+            int j = 0;
+            while (j < length && name[j] == buffer[start + j])
+                j++;
+            if (j == length)
+                return i;
+        }
+        return -1;
+    }
+}
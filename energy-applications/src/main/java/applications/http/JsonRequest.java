@@ -0,0 +1,458 @@
+package applications.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The fields of a JSON request object, pull-parsed from the request body
+ * without building a tree. Parsing only records where each declared field's
+ * value is in the body; values are decoded when the handler asks for them,
+ * straight from the bytes. The NIO engine body array is used as it is, the
+ * other bodies are read into a per-thread buffer.
+ *
+ * The instance returned by {@link #read} belongs to the calling thread and is
+ * valid until its next call: handlers read every field they need before
+ * handing the work to another thread.
+ */
+public final class JsonRequest {
+
+    private static final int INITIAL_BUFFER = 4096;
+    // bigger buffers are dropped after use, not kept for every thread
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private static final ThreadLocal<JsonRequest> REQUEST = ThreadLocal.withInitial(JsonRequest::new);
+
+    private byte[] pooled;
+    private byte[] buffer;
+    private int limit;
+
+    private JsonFields fields;
+    // offsets of the value of each declared field in 'buffer', -1 if absent
+    private int[] valueStart = new int[8];
+    private int[] valueEnd = new int[8];
+
+    // position of the next element when iterating an array of objects
+    private int arrayPosition = -1;
+    private int arrayEnd;
+    private boolean firstElement;
+
+    private JsonRequest() {
+    }
+
+    /**
+     * Parses the body of 't', keeping the fields in 'fields'.
+     */
+    public static JsonRequest read(HttpExchange t, JsonFields fields) throws IOException {
+        JsonRequest request = REQUEST.get();
+        byte[] body = t instanceof NioHttpExchange ? ((NioHttpExchange) t).getBodyArray() : null;
+        if (body != null) {
+            request.buffer = body;
+            request.limit = body.length;
+        } else
+            request.readFully(t.getRequestBody());
+        request.parseDocument(fields);
+        return request;
+    }
+
+    /**
+     * Parses 'length' bytes of 'body' from 'offset', which must not change
+     * while the request is used.
+     */
+    public static JsonRequest parse(byte[] body, int offset, int length, JsonFields fields) throws IOException {
+        JsonRequest request = REQUEST.get();
+        if (offset == 0) {
+            request.buffer = body;
+            request.limit = length;
+        } else {
+            request.ensurePooled(length);
+            System.arraycopy(body, offset, request.pooled, 0, length);
+            request.buffer = request.pooled;
+            request.limit = length;
+        }
+        request.parseDocument(fields);
+        return request;
+    }
+
+    private void ensurePooled(int capacity) {
+        if (pooled == null || pooled.length > MAX_RETAINED_BUFFER)
+            pooled = new byte[INITIAL_BUFFER];
+        if (pooled.length < capacity)
+            pooled = new byte[Integer.highestOneBit(capacity - 1) << 1];
+    }
+
+    private void readFully(InputStream in) throws IOException {
+        ensurePooled(INITIAL_BUFFER);
+        int length = 0;
+        int read;
+        while ((read = in.read(pooled, length, pooled.length - length)) != -1) {
+            length += read;
+            if (length == pooled.length)
+                pooled = Arrays.copyOf(pooled, pooled.length * 2);
+        }
+        buffer = pooled;
+        limit = length;
+    }
+
+    private void parseDocument(JsonFields fields) throws IOException {
+        arrayPosition = -1;
+        int position = parseObject(skipWhitespace(0), fields);
+        if (skipWhitespace(position) != limit)
+            throw malformed(position);
+    }
+
+    // records the declared fields of the object at 'position', returns the position after it
+    private int parseObject(int position, JsonFields fields) throws IOException {
+        this.fields = fields;
+        if (valueStart.length < fields.size()) {
+            valueStart = new int[fields.size()];
+            valueEnd = new int[fields.size()];
+        }
+        Arrays.fill(valueStart, 0, fields.size(), -1);
+
+        if (position >= limit || buffer[position] != '{')
+            throw malformed(position);
+        position = skipWhitespace(position + 1);
+        if (position < limit && buffer[position] == '}')
+            return position + 1;
+
+        while (true) {
+            if (position >= limit || buffer[position] != '"')
+                throw malformed(position);
+            int keyEnd = skipString(position);
+            int field = fields.indexOf(buffer, position + 1, keyEnd - 1);
+
+            position = skipWhitespace(keyEnd);
+            if (position >= limit || buffer[position] != ':')
+                throw malformed(position);
+            position = skipWhitespace(position + 1);
+            int valueEndPosition = skipValue(position);
+            if (field >= 0) {
+                valueStart[field] = position;
+                valueEnd[field] = valueEndPosition;
+            }
+
+            position = skipWhitespace(valueEndPosition);
+            if (position >= limit)
+                throw malformed(position);
+            if (buffer[position] == '}')
+                return position + 1;
+            if (buffer[position] != ',')
+                throw malformed(position);
+            position = skipWhitespace(position + 1);
+        }
+    }
+
+    private int skipWhitespace(int position) {
+        while (position < limit) {
+            byte b = buffer[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t')
+                break;
+            position++;
+        }
+        return position;
+    }
+
+    // 'position' is on the opening quote, returns the position after the closing one
+    private int skipString(int position) throws IOException {
+        for (int i = position + 1; i < limit; i++) {
+            byte b = buffer[i];
+            if (b == '\\')
+                i++;
+            else if (b == '"')
+                return i + 1;
+        }
+        throw malformed(position);
+    }
+
+    private int skipValue(int position) throws IOException {
+        if (position >= limit)
+            throw malformed(position);
+        byte b = buffer[position];
+        if (b == '"')
+            return skipString(position);
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            for (int i = position; i < limit; i++) {
+                byte c = buffer[i];
+                if (c == '"')
+                    i = skipString(i) - 1;
+                else if (c == '{' || c == '[')
+                    depth++;
+                else if ((c == '}' || c == ']') && --depth == 0)
+                    return i + 1;
+            }
+            throw malformed(position);
+        }
+        // number, true, false or null
+        int i = position;
+        while (i < limit) {
+            byte c = buffer[i];
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t')
+                break;
+            i++;
+        }
+        if (i == position)
+            throw malformed(position);
+        return i;
+    }
+
+    private IOException malformed(int position) {
+        return new IOException("Malformed JSON request at offset " + position);
+    }
+
+    private int field(String name) {
+        int index = fields.indexOf(name);
+        if (index < 0)
+            throw new IllegalArgumentException("Field '" + name + "' was not declared");
+        return index;
+    }
+
+    private int required(String name) throws IOException {
+        int index = field(name);
+        if (valueStart[index] < 0)
+            throw new IOException("Missing field '" + name + "'");
+        return index;
+    }
+
+    public boolean has(String name) {
+        int index = field(name);
+        return valueStart[index] >= 0 && !isNull(index);
+    }
+
+    private boolean isNull(int index) {
+        return valueEnd[index] - valueStart[index] == 4 && buffer[valueStart[index]] == 'n';
+    }
+
+    public String getString(String name) throws IOException {
+        int index = required(name);
+        int start = valueStart[index];
+        if (buffer[start] != '"')
+            throw new IOException("Field '" + name + "' is not a string");
+        return decodeString(start + 1, valueEnd[index] - 1);
+    }
+
+    public String getString(String name, String defaultValue) throws IOException {
+        return has(name) ? getString(name) : defaultValue;
+    }
+
+    /**
+     * Decodes a Base64 string field without building the string.
+     */
+    public byte[] getBase64(String name) throws IOException {
+        int index = required(name);
+        int start = valueStart[index];
+        int end = valueEnd[index] - 1;
+        if (buffer[start] != '"')
+            throw new IOException("Field '" + name + "' is not a string");
+        for (int i = start + 1; i < end; i++) {
+            // escaped slashes, as some writers emit them
+            if (buffer[i] == '\\')
+                return Base64.getDecoder().decode(decodeString(start + 1, end));
+        }
+        ByteBuffer decoded = Base64.getDecoder().decode(ByteBuffer.wrap(buffer, start + 1, end - start - 1));
+        byte[] bytes = decoded.array();
+        return decoded.remaining() == bytes.length ? bytes : Arrays.copyOf(bytes, decoded.remaining());
+    }
+
+    public double getDouble(String name) throws IOException {
+        int index = required(name);
+        return parseDouble(valueStart[index], valueEnd[index]);
+    }
+
+    public long getLong(String name) throws IOException {
+        int index = required(name);
+        int start = valueStart[index];
+        int end = valueEnd[index];
+        int i = start;
+        boolean negative = buffer[i] == '-';
+        if (negative)
+            i++;
+        // up to 18 digits cannot overflow
+        if (end - i > 0 && end - i <= 18) {
+            long value = 0;
+            for (; i < end; i++) {
+                int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9)
+                    break;
+                value = value * 10 + digit;
+            }
+            if (i == end)
+                return negative ? -value : value;
+        }
+        // fractions are truncated, as JsonNumber.longValue() does
+        return (long) parseDouble(start, end);
+    }
+
+    public int getInt(String name) throws IOException {
+        return (int) getLong(name);
+    }
+
+    public boolean getBoolean(String name) throws IOException {
+        int index = required(name);
+        byte b = buffer[valueStart[index]];
+        if (b == 't')
+            return true;
+        if (b == 'f')
+            return false;
+        throw new IOException("Field '" + name + "' is not a boolean");
+    }
+
+    /**
+     * Iterates the objects of an array field, each one parsed with
+     * 'elementFields': call {@link #next()} before reading each element.
+     */
+    public JsonRequest getObjects(String name, JsonFields elementFields) throws IOException {
+        int index = required(name);
+        int start = valueStart[index];
+        if (buffer[start] != '[')
+            throw new IOException("Field '" + name + "' is not an array");
+        JsonRequest elements = new JsonRequest();
+        elements.buffer = buffer;
+        elements.limit = limit;
+        elements.fields = elementFields;
+        elements.arrayPosition = start + 1;
+        elements.arrayEnd = valueEnd[index] - 1;
+        elements.firstElement = true;
+        return elements;
+    }
+
+    /**
+     * Moves to the next object of the array, false after the last one.
+     */
+    public boolean next() throws IOException {
+        if (arrayPosition < 0)
+            throw new IllegalStateException("Not iterating an array");
+        int position = skipWhitespace(arrayPosition);
+        if (position == arrayEnd)
+            return false;
+        if (!firstElement) {
+            if (buffer[position] != ',')
+                throw malformed(position);
+            position = skipWhitespace(position + 1);
+        }
+        firstElement = false;
+        arrayPosition = parseObject(position, fields);
+        return true;
+    }
+
+    private double parseDouble(int start, int end) throws IOException {
+        int i = start;
+        boolean negative = buffer[i] == '-';
+        if (negative)
+            i++;
+
+        // exact when the digits fit a double mantissa and the power of ten is exact
+        long mantissa = 0;
+        boolean hasDigits = false;
+        int digits = 0;
+        int exponent = 0;
+        boolean exact = true;
+        for (; i < end && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+            hasDigits = true;
+            if (mantissa == 0 && buffer[i] == '0')
+                continue;
+            if (++digits > 15)
+                exact = false;
+            else
+                mantissa = mantissa * 10 + (buffer[i] - '0');
+        }
+        if (i < end && buffer[i] == '.') {
+            for (i++; i < end && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+                if (mantissa == 0 && buffer[i] == '0') {
+                    exponent--;
+                    continue;
+                }
+                if (++digits > 15)
+                    exact = false;
+                else {
+                    mantissa = mantissa * 10 + (buffer[i] - '0');
+                    exponent--;
+                }
+            }
+        }
+        if (exact && hasDigits && i == end && exponent >= -22) {
+            double value = exponent == 0 ? mantissa : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+
+        // exponents, long mantissas and malformed numbers
+        try {
+            return Double.parseDouble(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed JSON number at offset " + start);
+        }
+    }
+
+    // bytes between the quotes of a string value
+    private String decodeString(int start, int end) throws IOException {
+        int escape = start;
+        while (escape < end && buffer[escape] != '\\')
+            escape++;
+        if (escape == end)
+            return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+
+        StringBuilder builder = new StringBuilder(end - start);
+        int segment = start;
+        int i = escape;
+        while (i < end) {
+            if (buffer[i] != '\\') {
+                i++;
+                continue;
+            }
+            builder.append(new String(buffer, segment, i - segment, StandardCharsets.UTF_8));
+            if (i + 1 >= end)
+                throw malformed(i);
+            byte escaped = buffer[i + 1];
+            i += 2;
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append((char) escaped);
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > end)
+                        throw malformed(i);
+                    int code = 0;
+                    for (int j = 0; j < 4; j++) {
+                        int digit = Character.digit(buffer[i + j], 16);
+                        if (digit < 0)
+                            throw malformed(i + j);
+                        code = (code << 4) | digit;
+                    }
+                    builder.append((char) code);
+                    i += 4;
+                    break;
+                default:
+                    throw malformed(i - 1);
+            }
+            segment = i;
+        }
+        builder.append(new String(buffer, segment, end - segment, StandardCharsets.UTF_8));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,266 @@
+package applications.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A response body written as UTF-8 into a per-thread buffer, either JSON,
+ * member by member, or plain text. Nothing is allocated per response once the
+ * buffer has grown to the usual response size.
+ *
+ * The instance returned by {@link #get()} belongs to the calling thread and is
+ * reset by its next call, so it is sent before the thread builds another one.
+ */
+public final class JsonResponse {
+
+    private static final int INITIAL_BUFFER = 1024;
+    // bigger buffers are dropped after use, not kept for every thread
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final ThreadLocal<JsonResponse> RESPONSE = ThreadLocal.withInitial(JsonResponse::new);
+
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    private int length;
+
+    // one per open object or array, true until its first member is written
+    private boolean[] empty = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    private JsonResponse() {
+    }
+
+    /**
+     * Returns the empty response of the calling thread.
+     */
+    public static JsonResponse get() {
+        JsonResponse response = RESPONSE.get();
+        if (response.buffer.length > MAX_RETAINED_BUFFER)
+            response.buffer = new byte[INITIAL_BUFFER];
+        response.length = 0;
+        response.depth = 0;
+        response.afterName = false;
+        return response;
+    }
+
+    /**
+     * Sends 'text' as the whole body of the response of 't'.
+     */
+    public static void sendText(HttpExchange t, int rCode, String text) throws IOException {
+        get().text(text).send(t, rCode);
+    }
+
+    public JsonResponse beginObject() {
+        separator();
+        open();
+        write('{');
+        return this;
+    }
+
+    public JsonResponse endObject() {
+        depth--;
+        write('}');
+        return this;
+    }
+
+    public JsonResponse beginArray() {
+        separator();
+        open();
+        write('[');
+        return this;
+    }
+
+    public JsonResponse endArray() {
+        depth--;
+        write(']');
+        return this;
+    }
+
+    /**
+     * Starts the member 'name' of the current object, its value is written
+     * next.
+     */
+    public JsonResponse name(String name) {
+        separator();
+        writeString(name);
+        write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonResponse value(String value) {
+        separator();
+        if (value == null)
+            writeAscii("null");
+        else
+            writeString(value);
+        return this;
+    }
+
+    public JsonResponse value(long value) {
+        separator();
+        writeLong(value);
+        return this;
+    }
+
+    public JsonResponse value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            throw new NumberFormatException("JSON cannot hold " + value);
+        separator();
+        writeAscii(Double.toString(value));
+        return this;
+    }
+
+    public JsonResponse value(boolean value) {
+        separator();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonResponse add(String name, String value) {
+        return name(name).value(value);
+    }
+
+    public JsonResponse add(String name, long value) {
+        return name(name).value(value);
+    }
+
+    public JsonResponse add(String name, double value) {
+        return name(name).value(value);
+    }
+
+    public JsonResponse add(String name, boolean value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Appends 'text' as it is, for plain text bodies.
+     */
+    public JsonResponse text(String text) {
+        writeUtf8(text, false);
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Sends the response headers with the exact body length, then the body.
+     */
+    public void send(HttpExchange t, int rCode) throws IOException {
+        t.sendResponseHeaders(rCode, length);
+        OutputStream os = t.getResponseBody();
+        os.write(buffer, 0, length);
+        os.close();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    private void open() {
+        if (depth == empty.length)
+            empty = Arrays.copyOf(empty, depth * 2);
+        empty[depth++] = true;
+    }
+
+    private void separator() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (!empty[depth - 1])
+                write(',');
+            empty[depth - 1] = false;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+    }
+
+    private void write(char c) {
+        ensure(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void writeAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void writeString(String s) {
+        write('"');
+        writeUtf8(s, true);
+        write('"');
+    }
+
+    private void writeUtf8(String s, boolean escape) {
+        // at most 6 bytes per char, for \\u escapes
+        ensure(s.length() * 6);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (escape && (c == '"' || c == '\\')) {
+                    buffer[length++] = '\\';
+                    buffer[length++] = (byte) c;
+                } else if (escape && c < 0x20) {
+                    buffer[length++] = '\\';
+                    buffer[length++] = 'u';
+                    buffer[length++] = '0';
+                    buffer[length++] = '0';
+                    buffer[length++] = HEX[c >> 4];
+                    buffer[length++] = HEX[c & 15];
+                } else
+                    buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xC0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, s.charAt(++i));
+                buffer[length++] = (byte) (0xF0 | (code >> 18));
+                buffer[length++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+                buffer[length++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (code & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, as String.getBytes(UTF_8) does
+                buffer[length++] = '?';
+            } else {
+                buffer[length++] = (byte) (0xE0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+}
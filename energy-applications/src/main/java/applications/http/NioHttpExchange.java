@@ -0,0 +1,318 @@
+package applications.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * HttpExchange of the NIO engine. The request was fully read by the event loop
+ * before the handler is called, and the response is buffered until the
+ * response body (or the exchange) is closed, when it is handed back to the
+ * connection to be written in request order.
+ */
+class NioHttpExchange extends HttpExchange {
+
+    // lets the body be copied once, straight into the encoded response
+    private static final class ResponseBuffer extends ByteArrayOutputStream {
+        private void putInto(ByteBuffer target) {
+            target.put(buf, 0, count);
+        }
+    }
+
+    private final NioHttpServerEngine.Connection connection;
+    private final HttpContext context;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    private final boolean keepAlive;
+
+    private final byte[] body;
+    private final ByteArrayInputStream bodyStream;
+    private InputStream requestBody;
+    private OutputStream responseBody;
+    private final ResponseBuffer responseBuffer = new ResponseBuffer();
+
+    private int responseCode = -1;
+    private boolean responseHasBody = true;
+    private boolean completed = false;
+    private boolean failed = false;
+    private volatile ByteBuffer encodedResponse;
+    // set by the event loop before the handler runs
+    private Runnable onComplete;
+
+    NioHttpExchange(NioHttpServerEngine.Connection connection, HttpContext context, String method, URI uri,
+            String protocol, Headers requestHeaders, byte[] body, boolean keepAlive) {
+        this.connection = connection;
+        this.context = context;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.keepAlive = keepAlive;
+        this.body = body;
+        this.bodyStream = new ByteArrayInputStream(body);
+        this.requestBody = bodyStream;
+        this.responseBody = new OutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                checkWritable();
+                responseBuffer.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkWritable();
+                responseBuffer.write(b, off, len);
+            }
+
+            private void checkWritable() throws IOException {
+                if (closed)
+                    throw new IOException("response body already closed");
+                if (responseCode == -1)
+                    throw new IOException("sendResponseHeaders() must be called before writing the body");
+                if (!responseHasBody)
+                    throw new IOException("response declared without body");
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    complete();
+                }
+            }
+        };
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        complete();
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1)
+            throw new IOException("headers already sent");
+        responseCode = rCode;
+        // -1 means no body, every other length is taken from what the handler writes
+        responseHasBody = responseLength != -1 && rCode != 204 && rCode != 304;
+        if (!responseHasBody)
+            complete();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remoteAddress;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        synchronized (attributes) {
+            return attributes.get(name);
+        }
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        synchronized (attributes) {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null)
+            requestBody = i;
+        if (o != null)
+            responseBody = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * Answers with 'rCode' and a text body, used by the engine for the requests
+     * that never reach a handler.
+     */
+    void sendError(int rCode, String message) {
+        if (responseCode != -1) {
+            complete();
+            return;
+        }
+        try {
+            byte[] body = message.getBytes(StandardCharsets.UTF_8);
+            sendResponseHeaders(rCode, body.length);
+            responseBody.write(body);
+            responseBody.close();
+        } catch (IOException e) {
+            complete();
+        }
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive && !failed;
+    }
+
+    /**
+     * The request body as read by the event loop, for {@link JsonRequest} to
+     * parse in place. Null once the body stream was read or replaced.
+     */
+    byte[] getBodyArray() {
+        return requestBody == bodyStream && bodyStream.available() == body.length ? body : null;
+    }
+
+    /**
+     * Runs 'callback' once the response is complete, on the completing thread.
+     */
+    void onComplete(Runnable callback) {
+        onComplete = callback;
+    }
+
+    ByteBuffer getEncodedResponse() {
+        return encodedResponse;
+    }
+
+    private void complete() {
+        synchronized (this) {
+            if (completed)
+                return;
+            completed = true;
+        }
+
+        // closed without a status line: the handler failed
+        if (responseCode == -1) {
+            failed = true;
+            responseCode = 500;
+            responseHasBody = false;
+        }
+
+        int bodyLength = responseHasBody ? responseBuffer.size() : 0;
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(responseCode).append(' ').append(reasonPhrase(responseCode)).append("\r\n");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Content-Length") || header.getKey().equalsIgnoreCase("Connection")
+                    || header.getKey().equalsIgnoreCase("Transfer-Encoding"))
+                continue;
+            for (String value : header.getValue())
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+        }
+        if (responseCode != 204 && responseCode != 304)
+            head.append("Content-Length: ").append(bodyLength).append("\r\n");
+        head.append(isKeepAlive() ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer encoded = ByteBuffer.allocate(headBytes.length + bodyLength);
+        encoded.put(headBytes);
+        if (bodyLength > 0)
+            responseBuffer.putInto(encoded);
+        encoded.flip();
+        encodedResponse = encoded;
+
+        connection.exchangeCompleted();
+        if (onComplete != null)
+            onComplete.run();
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 201:
+                return "Created";
+            case 202:
+                return "Accepted";
+            case 204:
+                return "No Content";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 429:
+                return "Too Many Requests";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "";
+        }
+    }
+}
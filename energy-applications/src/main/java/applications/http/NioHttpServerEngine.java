@@ -0,0 +1,569 @@
+package applications.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Event loop HTTP/1.1 server. A few selector threads own all the connections
+ * (keep-alive by default), requests are parsed without blocking and may be
+ * pipelined: each connection keeps its exchanges in arrival order and only
+ * writes a response once every response before it is written.
+ *
+ * Non-blocking handlers run on the selector thread that read the request;
+ * blocking ones (ledger queries and submits) go to a bounded worker pool and
+ * are answered with 503 when the pool is saturated.
+ *
+ * With an {@link AdmissionController} a request is admitted as it is read,
+ * before it queues for a worker, and holds its place until its response is
+ * complete, whichever thread completes it.
+ */
+public class NioHttpServerEngine implements HttpServerEngine {
+
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PIPELINED_REQUESTS = 64;
+    private static final long IDLE_TIMEOUT_MS = 120000;
+
+    private final InetSocketAddress address;
+    private final List<Context> contexts = new CopyOnWriteArrayList<Context>();
+    private final ThreadPoolExecutor workers;
+    private final AdmissionController admission;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    public NioHttpServerEngine(InetSocketAddress address, int workers, int eventLoops, AdmissionController admission) {
+        this.address = address;
+        this.admission = admission;
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(workers * 256), r -> {
+                    Thread thread = new Thread(r, "http-worker-" + workerCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.workers.allowCoreThreadTimeOut(true);
+        this.loops = new EventLoop[eventLoops];
+    }
+
+    @Override
+    public void createContext(String path, HttpHandler handler, boolean blocking) {
+        contexts.add(new Context(path, handler, blocking, admission == null ? null : admission.limiter(path)));
+    }
+
+    @Override
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null)
+                loop.shutdown();
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    // longest registered path that prefixes the request path, as HttpServer does
+    private Context findContext(String path) {
+        Context found = null;
+        for (Context context : contexts) {
+            if (path.startsWith(context.path) && (found == null || context.path.length() > found.path.length()))
+                found = context;
+        }
+        return found;
+    }
+
+    private void dispatch(Context context, NioHttpExchange exchange) {
+        AdmissionController.Limiter limiter = context.limiter;
+        if (limiter != null) {
+            long admittedAt = limiter.tryAcquire();
+            if (admittedAt < 0) {
+                rejectBusy(exchange);
+                return;
+            }
+            exchange.onComplete(() -> limiter.release(admittedAt, exchange.getResponseCode() != 503));
+        }
+
+        if (!context.blocking) {
+            runHandler(context, exchange);
+            return;
+        }
+        try {
+            workers.execute(() -> runHandler(context, exchange));
+        } catch (RejectedExecutionException e) {
+            rejectBusy(exchange);
+        }
+    }
+
+    private static void rejectBusy(NioHttpExchange exchange) {
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(AdmissionController.RETRY_AFTER_SECONDS));
+        exchange.sendError(503, "Server busy");
+    }
+
+    private static void runHandler(Context context, NioHttpExchange exchange) {
+        try {
+            if (context.filters.isEmpty())
+                context.handler.handle(exchange);
+            else
+                new Filter.Chain(context.filters, context.handler).doFilter(exchange);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            exchange.sendError(500, "Internal server error");
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final List<Connection> connections = new ArrayList<Connection>();
+        private volatile boolean running = true;
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "http-loop-" + index);
+            thread.setDaemon(false);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    if (tasks.isEmpty())
+                        selector.select(1000);
+                    else
+                        selector.selectNow();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isWritable())
+                            connection.onWritable();
+                        if (key.isValid() && key.isReadable())
+                            connection.onReadable();
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck > 1000) {
+                        lastIdleCheck = now;
+                        closeIdleConnections(now);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = channel;
+                loop.execute(() -> loop.register(accepted));
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void closeIdleConnections(long now) {
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                if (connection.inFlight.isEmpty() && connection.output.isEmpty()
+                        && now - connection.lastActivity > IDLE_TIMEOUT_MS)
+                    connection.close();
+            }
+        }
+    }
+
+    final class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        final InetSocketAddress remoteAddress;
+        final InetSocketAddress localAddress;
+        private SelectionKey key;
+
+        // bytes read and not parsed yet, kept in write mode
+        private ByteBuffer input = ByteBuffer.allocate(8192);
+        // exchanges in request order, the head is the next response to be written
+        private final ArrayDeque<NioHttpExchange> inFlight = new ArrayDeque<NioHttpExchange>();
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+        private boolean inputClosed = false;
+        private boolean closeAfterWrite = false;
+        private boolean closed = false;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+            this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+        }
+
+        /**
+         * Called by the exchange, from any thread, once its response is encoded.
+         */
+        void exchangeCompleted() {
+            loop.execute(this::writeCompleted);
+        }
+
+        private void onReadable() {
+            lastActivity = System.currentTimeMillis();
+            try {
+                if (!input.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(input.capacity() * 2);
+                    input.flip();
+                    bigger.put(input);
+                    input = bigger;
+                }
+                int read = channel.read(input);
+                if (read < 0) {
+                    inputClosed = true;
+                    if (inFlight.isEmpty() && output.isEmpty()) {
+                        close();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            parseRequests();
+        }
+
+        private void onWritable() {
+            lastActivity = System.currentTimeMillis();
+            flush();
+        }
+
+        private void parseRequests() {
+            input.flip();
+            try {
+                while (!closeAfterWrite && inFlight.size() < MAX_PIPELINED_REQUESTS && input.hasRemaining()) {
+                    int start = input.position();
+                    int headerEnd = indexOfHeaderEnd(input, start);
+                    if (headerEnd < 0) {
+                        if (input.remaining() > MAX_HEADER_BYTES)
+                            reject(431, "Request header too large");
+                        break;
+                    }
+
+                    String head = new String(input.array(), start, headerEnd - start, StandardCharsets.ISO_8859_1);
+                    String[] lines = head.split("\r\n");
+                    String[] requestLine = lines[0].split(" ");
+                    if (requestLine.length != 3) {
+                        reject(400, "Malformed request line");
+                        break;
+                    }
+
+                    Headers headers = new Headers();
+                    for (int i = 1; i < lines.length; i++) {
+                        int colon = lines[i].indexOf(':');
+                        if (colon > 0)
+                            headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+                    }
+
+                    if (headers.containsKey("Transfer-Encoding")) {
+                        reject(411, "Chunked request bodies are not supported");
+                        break;
+                    }
+                    long contentLength = 0;
+                    String contentLengthValue = headers.getFirst("Content-Length");
+                    if (contentLengthValue != null) {
+                        try {
+                            contentLength = Long.parseLong(contentLengthValue);
+                        } catch (NumberFormatException e) {
+                            reject(400, "Invalid Content-Length");
+                            break;
+                        }
+                    }
+                    if (contentLength < 0 || contentLength > MAX_BODY_BYTES) {
+                        reject(413, "Request body too large");
+                        break;
+                    }
+
+                    int bodyStart = headerEnd + 4;
+                    if (input.limit() - bodyStart < contentLength)
+                        break;
+
+                    byte[] body = new byte[(int) contentLength];
+                    System.arraycopy(input.array(), bodyStart, body, 0, body.length);
+                    input.position(bodyStart + body.length);
+
+                    String protocol = requestLine[2];
+                    String connectionHeader = headers.getFirst("Connection");
+                    boolean keepAlive = protocol.equals("HTTP/1.1")
+                            ? !"close".equalsIgnoreCase(connectionHeader)
+                            : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+                    URI uri;
+                    try {
+                        uri = new URI(requestLine[1]);
+                    } catch (URISyntaxException e) {
+                        reject(400, "Malformed request URI");
+                        break;
+                    }
+
+                    Context context = findContext(uri.getPath() == null ? "/" : uri.getPath());
+                    NioHttpExchange exchange = new NioHttpExchange(this, context, requestLine[0], uri, protocol,
+                            headers, body, keepAlive);
+                    inFlight.add(exchange);
+                    if (!keepAlive)
+                        closeAfterWrite = true;
+
+                    if (context == null)
+                        exchange.sendError(404, "No context found for request");
+                    else
+                        dispatch(context, exchange);
+                }
+            } finally {
+                input.compact();
+            }
+            updateInterest();
+        }
+
+        private void reject(int rCode, String message) {
+            NioHttpExchange exchange = new NioHttpExchange(this, null, "", null, "HTTP/1.1", new Headers(),
+                    new byte[0], false);
+            inFlight.add(exchange);
+            closeAfterWrite = true;
+            exchange.sendError(rCode, message);
+        }
+
+        // moves the responses that are ready, in request order, to the output queue
+        private void writeCompleted() {
+            if (closed)
+                return;
+            NioHttpExchange head;
+            while ((head = inFlight.peek()) != null && head.getEncodedResponse() != null) {
+                inFlight.poll();
+                output.add(head.getEncodedResponse());
+                if (!head.isKeepAlive()) {
+                    closeAfterWrite = true;
+                    inFlight.clear();
+                    break;
+                }
+            }
+            flush();
+        }
+
+        private void flush() {
+            try {
+                while (!output.isEmpty()) {
+                    ByteBuffer buffer = output.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining())
+                        break;
+                    output.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            if (output.isEmpty() && inFlight.isEmpty() && (closeAfterWrite || inputClosed)) {
+                close();
+                return;
+            }
+            // requests left in the buffer because the pipeline was full
+            if (!closeAfterWrite && input.position() > 0 && inFlight.size() < MAX_PIPELINED_REQUESTS)
+                parseRequests();
+            else
+                updateInterest();
+        }
+
+        private void updateInterest() {
+            if (closed || !key.isValid())
+                return;
+            int ops = 0;
+            if (!inputClosed && !closeAfterWrite && inFlight.size() < MAX_PIPELINED_REQUESTS)
+                ops |= SelectionKey.OP_READ;
+            if (!output.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            loop.connections.remove(this);
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static int indexOfHeaderEnd(ByteBuffer buffer, int from) {
+        byte[] array = buffer.array();
+        for (int i = from; i + 3 < buffer.limit(); i++) {
+            if (array[i] == '\r' && array[i + 1] == '\n' && array[i + 2] == '\r' && array[i + 3] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private final class Context extends HttpContext {
+        private final String path;
+        private final List<Filter> filters = new CopyOnWriteArrayList<Filter>();
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+        private final boolean blocking;
+        private final AdmissionController.Limiter limiter;
+        private HttpHandler handler;
+        private Authenticator authenticator;
+
+        Context(String path, HttpHandler handler, boolean blocking, AdmissionController.Limiter limiter) {
+            this.path = path;
+            this.handler = handler;
+            this.blocking = blocking;
+            this.limiter = limiter;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        // there is no com.sun HttpServer behind this engine
+        @Override
+        public HttpServer getServer() {
+            return null;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator previous = authenticator;
+            authenticator = auth;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
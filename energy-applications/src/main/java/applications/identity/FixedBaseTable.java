@@ -0,0 +1,73 @@
+package applications.identity;
+
+import org.apache.milagro.amcl.FP256BN.BIG;
+import org.apache.milagro.amcl.FP256BN.ECP;
+import org.apache.milagro.amcl.FP256BN.ROM;
+
+/**
+ * Multiples of a fixed FP256BN point, precomputed so that multiplying it by a
+ * scalar takes only additions. The scalar is cut in windows of 'windowBits'
+ * bits; window i holds d * 2^(windowBits * i) * base for every digit d, so a
+ * product is one addition per non-zero window, against one doubling per bit
+ * plus additions for {@link ECP#mul(BIG)}.
+ *
+ * The table is read-only once built and can be shared between threads. The
+ * running time depends on the scalar: use it only with public scalars, as
+ * in signature verification.
+ */
+public final class FixedBaseTable {
+
+    private static final BIG ORDER = new BIG(ROM.CURVE_Order);
+    private static final int SCALAR_BITS = BIG.MODBYTES * 8;
+
+    private final int windowBits;
+    // [window][digit - 1]
+    private final ECP[][] multiples;
+
+    public FixedBaseTable(ECP base, int windowBits) {
+        this.windowBits = windowBits;
+        int windows = (SCALAR_BITS + windowBits - 1) / windowBits;
+        int digits = (1 << windowBits) - 1;
+        multiples = new ECP[windows][digits];
+
+        ECP windowBase = new ECP(base);
+        for (int window = 0; window < windows; window++) {
+            ECP multiple = new ECP(windowBase);
+            multiple.affine();
+            multiples[window][0] = multiple;
+            for (int digit = 1; digit < digits; digit++) {
+                multiple = new ECP(multiple);
+                multiple.add(windowBase);
+                multiple.affine();
+                multiples[window][digit] = multiple;
+            }
+            for (int i = 0; i < windowBits; i++) {
+                windowBase.dbl();
+            }
+        }
+    }
+
+    /**
+     * Returns e * base, as a new point.
+     */
+    public ECP mul(BIG e) {
+        BIG scalar = new BIG(e);
+        scalar.mod(ORDER);
+
+        ECP result = new ECP();
+        for (int window = 0; window < multiples.length; window++) {
+            int digit = 0;
+            int low = window * windowBits;
+            for (int bit = Math.min(low + windowBits, SCALAR_BITS) - 1; bit >= low; bit--) {
+                digit = (digit << 1) | scalar.bit(bit);
+            }
+            if (digit != 0)
+                result.add(multiples[window][digit - 1]);
+        }
+        return result;
+    }
+
+    public int getPointCount() {
+        return multiples.length * multiples[0].length;
+    }
+}
@@ -0,0 +1,50 @@
+package applications.identity;
+
+import java.io.ByteArrayOutputStream;
+
+import com.google.protobuf.ByteString;
+
+import org.apache.milagro.amcl.FP256BN.BIG;
+import org.apache.milagro.amcl.FP256BN.ECP;
+import org.hyperledger.fabric.protos.idemix.Idemix;
+import org.hyperledger.fabric.sdk.idemix.IdemixUtils;
+
+/**
+ * The FP256BN point encodings of idemix, as the SDK does them in helpers it
+ * keeps package-private: points of issuer keys as their protos carry them,
+ * and points as the pseudonym signature proofs hash them.
+ */
+public final class IdemixPoints {
+
+    private IdemixPoints() {
+    }
+
+    /**
+     * The point of an issuer key proto, e.g. IssuerPublicKey.getHSk().
+     */
+    public static ECP fromProto(Idemix.ECP point) {
+        return new ECP(BIG.fromBytes(point.getX().toByteArray()), BIG.fromBytes(point.getY().toByteArray()));
+    }
+
+    public static Idemix.ECP toProto(ECP point) {
+        return Idemix.ECP.newBuilder().setX(ByteString.copyFrom(IdemixUtils.bigToBytes(point.getX())))
+                .setY(ByteString.copyFrom(IdemixUtils.bigToBytes(point.getY()))).build();
+    }
+
+    /**
+     * The uncompressed encoding of 'point' hashed in the proofs.
+     */
+    public static byte[] toBytes(ECP point) {
+        byte[] bytes = new byte[2 * BIG.MODBYTES + 1];
+        point.toBytes(bytes, false);
+        return bytes;
+    }
+
+    public static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,405 @@
+package applications.identity;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.apache.milagro.amcl.FP256BN.BIG;
+import org.apache.milagro.amcl.FP256BN.ECP;
+import org.apache.milagro.amcl.FP256BN.ROM;
+import org.hyperledger.fabric.protos.common.MspPrincipal.OrganizationUnit;
+import org.hyperledger.fabric.protos.idemix.Idemix.IssuerPublicKey;
+import org.hyperledger.fabric.protos.idemix.Idemix.NymSignature;
+import org.hyperledger.fabric.protos.msp.Identities.SerializedIdemixIdentity;
+import org.hyperledger.fabric.sdk.idemix.IdemixIssuerPublicKey;
+import org.hyperledger.fabric.sdk.idemix.IdemixPseudonymSignature;
+import org.hyperledger.fabric.sdk.idemix.IdemixUtils;
+
+/**
+ * Verifies pseudonym signatures of idemix clients against the identity that
+ * created a transaction. The curve arithmetic runs on a pool sized to the
+ * processors, with a bounded queue: when it is full the request is refused
+ * with a {@link java.util.concurrent.RejectedExecutionException} instead of
+ * piling up.
+ *
+ * Issuer public keys are prepared once per issuer, keyed by their hash, with
+ * {@link FixedBaseTable}s for their HSk and HRand bases. Only keys whose hash
+ * matched a transaction creator are cached, and a cached key is reused only
+ * for the exact same serialized key, so a client cannot swap the key of an
+ * issuer. Other keys are verified the plain way.
+ */
+public class IdemixVerifier {
+
+    private static final int MAX_CACHED_KEYS = 16;
+    // 43 windows of 63 points for each of the two bases of a key
+    private static final int WINDOW_BITS = 6;
+    private static final byte[] NYM_SIGN_LABEL = "sign".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_BATCH = 256;
+    private static final BIG ORDER = new BIG(ROM.CURVE_Order);
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    private static final class PreparedKey {
+        private final ByteString serialized;
+        private final IdemixIssuerPublicKey key;
+        private final FixedBaseTable hsk;
+        private final FixedBaseTable hRand;
+
+        // the SDK key does not expose its bases, they are read from the proto
+        private PreparedKey(ByteString serialized, IssuerPublicKey proto) {
+            this.serialized = serialized;
+            this.key = new IdemixIssuerPublicKey(proto);
+            this.hsk = new FixedBaseTable(IdemixPoints.fromProto(proto.getHSk()), WINDOW_BITS);
+            this.hRand = new FixedBaseTable(IdemixPoints.fromProto(proto.getHRand()), WINDOW_BITS);
+        }
+    }
+
+    /**
+     * A signature to verify: 'sig' over 'msg' by the pseudonym of 'creator',
+     * issued by 'ipk'. 'commitment' is the optional
+     * {@link NymSignatureCommitment} of the signature; without it the
+     * signature cannot join a batch.
+     */
+    public static final class NymProof {
+        private final SerializedIdemixIdentity creator;
+        private final IssuerPublicKey ipk;
+        private final byte[] msg;
+        private final byte[] sig;
+        private final byte[] commitment;
+
+        public NymProof(SerializedIdemixIdentity creator, IssuerPublicKey ipk, byte[] msg, byte[] sig,
+                byte[] commitment) {
+            this.creator = creator;
+            this.ipk = ipk;
+            this.msg = msg;
+            this.sig = sig;
+            this.commitment = commitment;
+        }
+    }
+
+    // IPK hash -> prepared key
+    private final Map<ByteString, PreparedKey> issuerKeys = new ConcurrentHashMap<ByteString, PreparedKey>();
+    private final ThreadPoolExecutor pool;
+
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder keyMisses = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchFailures = new LongAdder();
+
+    public IdemixVerifier(int threads, int queueCapacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "idemix-verifier-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Checks that 'sig' is a signature of 'msg' by the pseudonym of 'creator',
+     * whose issuer must be 'ipk'. Blocks the caller until the pool verified it.
+     */
+    public boolean verify(SerializedIdemixIdentity creator, IssuerPublicKey ipk, byte[] msg, byte[] sig)
+            throws Exception {
+        try {
+            return verifyAsync(creator, ipk, msg, sig).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Same as {@link #verify}, without blocking the caller: the future completes
+     * on the pool thread that verified the signature, and fails with
+     * RejectedExecutionException when the queue is full.
+     */
+    public CompletableFuture<Boolean> verifyAsync(SerializedIdemixIdentity creator, IssuerPublicKey ipk, byte[] msg,
+            byte[] sig) {
+        CompletableFuture<Boolean> verification = new CompletableFuture<Boolean>();
+
+        ByteString ipkHash;
+        try {
+            // check if received Ipk has the same hash of the transaction creator issuer
+            OrganizationUnit ou = OrganizationUnit.parseFrom(creator.getOu());
+            ipkHash = ou.getCertifiersIdentifier();
+        } catch (Exception e) {
+            verification.completeExceptionally(e);
+            return verification;
+        }
+        if (!Arrays.equals(ipkHash.toByteArray(), ipk.getHash().toByteArray())) {
+            invalid.increment();
+            verification.complete(false);
+            return verification;
+        }
+
+        NymProof proof = new NymProof(creator, ipk, msg, sig, null);
+        try {
+            pool.execute(() -> {
+                try {
+                    boolean valid = verifyOne(ipkHash, proof);
+                    verifications.increment();
+                    if (!valid)
+                        invalid.increment();
+                    verification.complete(valid);
+                } catch (Throwable e) {
+                    verification.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            verification.completeExceptionally(e);
+        }
+        return verification;
+    }
+
+    /**
+     * Verifies many signatures at once, see {@link NymProof}. The proofs of a
+     * same issuer that carry their commitment are checked together, in
+     * chunks of up to {@value #MAX_BATCH} spread over the pool; the others one
+     * by one. Returns the validity of each proof, in order.
+     */
+    public boolean[] verifyBatch(List<NymProof> proofs) throws Exception {
+        boolean[] valid = new boolean[proofs.size()];
+
+        // issuer hash -> indexes of its proofs
+        Map<ByteString, List<Integer>> byIssuer = new LinkedHashMap<ByteString, List<Integer>>();
+        for (int i = 0; i < proofs.size(); i++) {
+            NymProof proof = proofs.get(i);
+            ByteString ipkHash;
+            try {
+                ipkHash = OrganizationUnit.parseFrom(proof.creator.getOu()).getCertifiersIdentifier();
+            } catch (InvalidProtocolBufferException e) {
+                // a malformed identity only fails its own proof
+                continue;
+            }
+            // proofs left out stay invalid and are counted with the others below
+            if (!ipkHash.equals(proof.ipk.getHash()))
+                continue;
+            byIssuer.computeIfAbsent(ipkHash, hash -> new ArrayList<Integer>()).add(i);
+        }
+
+        List<Future<?>> chunks = new ArrayList<Future<?>>();
+        for (Map.Entry<ByteString, List<Integer>> issuer : byIssuer.entrySet()) {
+            List<Integer> indexes = issuer.getValue();
+            for (int from = 0; from < indexes.size(); from += MAX_BATCH) {
+                List<Integer> chunk = indexes.subList(from, Math.min(from + MAX_BATCH, indexes.size()));
+                chunks.add(pool.submit(() -> {
+                    verifyChunk(issuer.getKey(), proofs, chunk, valid);
+                    return null;
+                }));
+            }
+        }
+        try {
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        for (boolean proofValid : valid) {
+            verifications.increment();
+            if (!proofValid)
+                invalid.increment();
+        }
+        return valid;
+    }
+
+    /*
+     * Each proof i claims t_i = HSk^sSk_i * HRand^sRNym_i * nym_i^-c_i. With
+     * random 64-bit r_i the claims are checked together as
+     *
+     * HSk^(sum r_i sSk_i) * HRand^(sum r_i sRNym_i) = sum (r_i c_i) nym_i + r_i t_i
+     *
+     * which holds for a wrong t_i with probability 2^-64. The issuer bases come
+     * from the tables and the right side is a single multi-scalar product.
+     */
+    private void verifyChunk(ByteString ipkHash, List<NymProof> proofs, List<Integer> chunk, boolean[] valid)
+            throws Exception {
+        int size = chunk.size();
+        int[] batched = new int[size];
+        ECP[] points = new ECP[2 * size];
+        BIG[] scalars = new BIG[2 * size];
+        BIG sumSSk = new BIG(0);
+        BIG sumSRNym = new BIG(0);
+        PreparedKey prepared = null;
+        SecureRandom random = RANDOM.get();
+        byte[] weightBytes = new byte[BIG.MODBYTES];
+
+        int count = 0;
+        for (int index : chunk) {
+            NymProof proof = proofs.get(index);
+            PreparedKey key = preparedKey(ipkHash, proof.ipk);
+            if (proof.commitment == null || key == null || (prepared != null && key != prepared)) {
+                valid[index] = verifyOne(ipkHash, proof);
+                continue;
+            }
+            prepared = key;
+
+            NymSignature signature = NymSignature.parseFrom(proof.sig);
+            ECP nym = nym(proof.creator);
+            ECP t = ECP.fromBytes(proof.commitment);
+            BIG proofC = BIG.fromBytes(signature.getProofC().toByteArray());
+            // a point off the curve decodes to infinity; a bad hash fails on its own
+            if (nym.is_infinity() || t.is_infinity() || !proofHashMatches(t, nym, prepared.key.getHash(), proof.msg,
+                    proofC, BIG.fromBytes(signature.getNonce().toByteArray())))
+                continue;
+
+            random.nextBytes(weightBytes);
+            Arrays.fill(weightBytes, 0, BIG.MODBYTES - 8, (byte) 0);
+            weightBytes[BIG.MODBYTES - 8] |= 1;
+            BIG weight = BIG.fromBytes(weightBytes);
+
+            sumSSk.add(BIG.modmul(weight, BIG.fromBytes(signature.getProofSSk().toByteArray()), ORDER));
+            sumSSk.norm();
+            sumSSk.mod(ORDER);
+            sumSRNym.add(BIG.modmul(weight, BIG.fromBytes(signature.getProofSRNym().toByteArray()), ORDER));
+            sumSRNym.norm();
+            sumSRNym.mod(ORDER);
+            points[2 * count] = nym;
+            scalars[2 * count] = BIG.modmul(weight, proofC, ORDER);
+            points[2 * count + 1] = t;
+            scalars[2 * count + 1] = weight;
+            batched[count++] = index;
+        }
+        if (count == 0)
+            return;
+
+        ECP check = prepared.hsk.mul(sumSSk);
+        check.add(prepared.hRand.mul(sumSRNym));
+        check.sub(MultiScalarMul.sum(points, scalars, 2 * count));
+        batches.increment();
+        if (check.is_infinity()) {
+            for (int i = 0; i < count; i++) {
+                valid[batched[i]] = true;
+            }
+            return;
+        }
+
+        // at least one proof is wrong, find which
+        batchFailures.increment();
+        for (int i = 0; i < count; i++) {
+            valid[batched[i]] = verifyOne(ipkHash, proofs.get(batched[i]));
+        }
+    }
+
+    // one proof, on the calling thread
+    private boolean verifyOne(ByteString ipkHash, NymProof proof) throws Exception {
+        ECP nym = nym(proof.creator);
+        NymSignature nymSignature = NymSignature.parseFrom(proof.sig);
+        PreparedKey prepared = preparedKey(ipkHash, proof.ipk);
+        if (prepared != null)
+            return verify(prepared, nym, nymSignature, proof.msg);
+
+        keyMisses.increment();
+        IdemixPseudonymSignature idemixSigVerifier = new IdemixPseudonymSignature(nymSignature);
+        return idemixSigVerifier.verify(nym, new IdemixIssuerPublicKey(proof.ipk), proof.msg);
+    }
+
+    // Mount transaction creator's pseudonym
+    private static ECP nym(SerializedIdemixIdentity creator) {
+        BIG nymX = BIG.fromBytes(creator.getNymX().toByteArray());
+        BIG nymY = BIG.fromBytes(creator.getNymY().toByteArray());
+        return new ECP(nymX, nymY);
+    }
+
+    // null when 'ipk' is not the key cached for its hash and the cache is full
+    private PreparedKey preparedKey(ByteString ipkHash, IssuerPublicKey ipk) {
+        ByteString serialized = ipk.toByteString();
+        PreparedKey prepared = issuerKeys.get(ipkHash);
+        if (prepared != null)
+            return prepared.serialized.equals(serialized) ? prepared : null;
+        if (issuerKeys.size() >= MAX_CACHED_KEYS)
+            return null;
+
+        // two threads may build the tables of a new issuer, only one is kept
+        keyMisses.increment();
+        prepared = new PreparedKey(serialized, ipk);
+        PreparedKey raced = issuerKeys.putIfAbsent(ipkHash, prepared);
+        if (raced == null)
+            return prepared;
+        return raced.serialized.equals(serialized) ? raced : null;
+    }
+
+    /**
+     * Same check as {@link IdemixPseudonymSignature#verify}, with the products
+     * by the issuer bases HSk and HRand read from the precomputed tables:
+     * t = HSk^sSk * HRand^sRNym * nym^-c must hash back to the proof.
+     */
+    private static boolean verify(PreparedKey prepared, ECP nym, NymSignature signature, byte[] msg) {
+        BIG proofC = BIG.fromBytes(signature.getProofC().toByteArray());
+        BIG proofSSk = BIG.fromBytes(signature.getProofSSk().toByteArray());
+        BIG proofSRNym = BIG.fromBytes(signature.getProofSRNym().toByteArray());
+        BIG nonce = BIG.fromBytes(signature.getNonce().toByteArray());
+
+        ECP t = prepared.hsk.mul(proofSSk);
+        t.add(prepared.hRand.mul(proofSRNym));
+        t.sub(nym.mul(proofC));
+
+        return proofHashMatches(t, nym, prepared.key.getHash(), msg, proofC, nonce);
+    }
+
+    private static boolean proofHashMatches(ECP t, ECP nym, byte[] ipkHash, byte[] msg, BIG proofC, BIG nonce) {
+        byte[] proofData = IdemixPoints.concat(NYM_SIGN_LABEL, IdemixPoints.toBytes(t), IdemixPoints.toBytes(nym),
+                ipkHash, msg);
+        BIG cvalue = IdemixUtils.hashModOrder(proofData);
+
+        byte[] finalProofData = IdemixPoints.concat(IdemixUtils.bigToBytes(cvalue), IdemixUtils.bigToBytes(nonce));
+        byte[] hashedProofData = IdemixUtils.bigToBytes(IdemixUtils.hashModOrder(finalProofData));
+        return Arrays.equals(IdemixUtils.bigToBytes(proofC), hashedProofData);
+    }
+
+    public int getCachedKeyCount() {
+        return issuerKeys.size();
+    }
+
+    public int getQueuedCount() {
+        return pool.getQueue().size();
+    }
+
+    public long getVerifications() {
+        return verifications.sum();
+    }
+
+    public long getInvalid() {
+        return invalid.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Batches with at least one wrong proof, whose proofs were checked again
+     * one by one.
+     */
+    public long getBatchFailures() {
+        return batchFailures.sum();
+    }
+
+    public long getKeyMisses() {
+        return keyMisses.sum();
+    }
+
+    public void stop() {
+        pool.shutdownNow();
+    }
+}
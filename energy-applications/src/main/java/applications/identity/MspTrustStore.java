@@ -0,0 +1,131 @@
+package applications.identity;
+
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.google.protobuf.ByteString;
+
+import org.hyperledger.fabric.gateway.Identities;
+import org.hyperledger.fabric.gateway.Network;
+import org.hyperledger.fabric.protos.common.Common.Block;
+import org.hyperledger.fabric.protos.common.Common.ChannelHeader;
+import org.hyperledger.fabric.protos.common.Common.Envelope;
+import org.hyperledger.fabric.protos.common.Common.HeaderType;
+import org.hyperledger.fabric.protos.common.Common.Payload;
+import org.hyperledger.fabric.protos.common.Configtx.Config;
+import org.hyperledger.fabric.protos.common.Configtx.ConfigEnvelope;
+import org.hyperledger.fabric.protos.common.Configtx.ConfigGroup;
+import org.hyperledger.fabric.protos.common.Configtx.ConfigValue;
+import org.hyperledger.fabric.protos.msp.MspConfigPackage.FabricMSPConfig;
+import org.hyperledger.fabric.protos.msp.MspConfigPackage.MSPConfig;
+import org.hyperledger.fabric.sdk.BlockEvent;
+
+/**
+ * Root CA public keys of every application MSP of the channel, decoded once
+ * from the channel configuration. Readers get an immutable snapshot, which is
+ * swapped as a whole when a config block is committed, so a verification
+ * never sees a half updated organization list.
+ */
+public class MspTrustStore {
+
+    private static final class Snapshot {
+        private final long generation;
+        private final Map<String, PublicKey[]> rootKeys;
+
+        private Snapshot(long generation, Map<String, PublicKey[]> rootKeys) {
+            this.generation = generation;
+            this.rootKeys = rootKeys;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.<String, PublicKey[]>emptyMap());
+
+    /**
+     * Loads the current channel configuration and keeps the store updated with
+     * the config blocks committed afterwards.
+     */
+    public static MspTrustStore fromNetwork(Network network) throws Exception {
+        MspTrustStore trustStore = new MspTrustStore();
+        trustStore.update(Config.parseFrom(network.getChannel().getChannelConfigurationBytes()));
+        network.addBlockListener(trustStore.configBlockListener());
+        return trustStore;
+    }
+
+    public Consumer<BlockEvent> configBlockListener() {
+        return blockEvent -> {
+            try {
+                Block block = blockEvent.getBlock();
+                // a config block carries a single config transaction
+                if (block.getData().getDataCount() != 1)
+                    return;
+                Envelope envelope = Envelope.parseFrom(block.getData().getData(0));
+                Payload payload = Payload.parseFrom(envelope.getPayload());
+                ChannelHeader channelHeader = ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+                if (HeaderType.forNumber(channelHeader.getType()) == HeaderType.CONFIG)
+                    update(ConfigEnvelope.parseFrom(payload.getData()).getConfig());
+            } catch (Exception e) {
+                System.out.println("Could not update MSP trust store from block " + blockEvent.getBlockNumber());
+                e.printStackTrace();
+            }
+        };
+    }
+
+    public void update(Config config) throws Exception {
+        Map<String, ConfigGroup> channelOrgsMap = config.getChannelGroup().getGroupsMap().get("Application")
+                .getGroupsMap();
+        Map<String, PublicKey[]> rootKeys = new HashMap<String, PublicKey[]>();
+
+        for (Map.Entry<String, ConfigGroup> org : channelOrgsMap.entrySet()) {
+            ConfigValue configValue = org.getValue().getValuesMap().get("MSP");
+            if (configValue == null)
+                continue;
+            MSPConfig mspConfig = MSPConfig.parseFrom(configValue.getValue());
+            FabricMSPConfig fabricMSPConfig = FabricMSPConfig.parseFrom(mspConfig.getConfig());
+
+            List<PublicKey> keys = new ArrayList<PublicKey>();
+            for (ByteString rootCert : fabricMSPConfig.getRootCertsList()) {
+                X509Certificate x509RootCert = Identities.readX509Certificate(rootCert.toStringUtf8());
+                keys.add(x509RootCert.getPublicKey());
+            }
+            // idemix MSPs have no root certificates
+            if (!keys.isEmpty())
+                rootKeys.put(fabricMSPConfig.getName(), keys.toArray(new PublicKey[0]));
+        }
+
+        synchronized (this) {
+            snapshot = new Snapshot(snapshot.generation + 1, Collections.unmodifiableMap(rootKeys));
+        }
+    }
+
+    public PublicKey[] getRootKeys(String mspID) {
+        return snapshot.rootKeys.get(mspID);
+    }
+
+    /**
+     * Incremented on every configuration update, so caches of verification
+     * results can tell they are stale.
+     */
+    public long getGeneration() {
+        return snapshot.generation;
+    }
+
+    public boolean verifyIssuedByRoot(String mspID, X509Certificate certificate) {
+        PublicKey[] keys = getRootKeys(mspID);
+        if (keys == null)
+            return false;
+        for (PublicKey key : keys) {
+            try {
+                certificate.verify(key);
+                return true;
+            } catch (Exception e) {
+            }
+        }
+        return false;
+    }
+}
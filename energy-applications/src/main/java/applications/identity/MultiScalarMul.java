@@ -0,0 +1,84 @@
+package applications.identity;
+
+import org.apache.milagro.amcl.FP256BN.BIG;
+import org.apache.milagro.amcl.FP256BN.ECP;
+import org.apache.milagro.amcl.FP256BN.ROM;
+
+/**
+ * Sum of many FP256BN products e_i * P_i at once, with Pippenger's bucket
+ * method. Each window of the scalars costs one addition per point plus two
+ * per bucket, and the doublings are shared by all the points: for a few
+ * hundred points a product costs about a fifth of {@link ECP#mul(BIG)}.
+ *
+ * Not constant time, for public scalars only.
+ */
+public final class MultiScalarMul {
+
+    private static final BIG ORDER = new BIG(ROM.CURVE_Order);
+    private static final int SCALAR_BITS = BIG.MODBYTES * 8;
+
+    private MultiScalarMul() {
+    }
+
+    /**
+     * Returns the sum of scalars[i] * points[i] for i below 'count', as a new
+     * point.
+     */
+    public static ECP sum(ECP[] points, BIG[] scalars, int count) {
+        int windowBits = windowBits(count);
+        int windows = (SCALAR_BITS + windowBits - 1) / windowBits;
+
+        // digits[i * windows + w] is window w of scalar i
+        int[] digits = new int[count * windows];
+        for (int i = 0; i < count; i++) {
+            BIG scalar = new BIG(scalars[i]);
+            scalar.mod(ORDER);
+            for (int w = 0; w < windows; w++) {
+                int digit = 0;
+                int low = w * windowBits;
+                for (int bit = Math.min(low + windowBits, SCALAR_BITS) - 1; bit >= low; bit--) {
+                    digit = (digit << 1) | scalar.bit(bit);
+                }
+                digits[i * windows + w] = digit;
+            }
+        }
+
+        ECP result = new ECP();
+        ECP[] buckets = new ECP[(1 << windowBits) - 1];
+        for (int w = windows - 1; w >= 0; w--) {
+            for (int i = 0; i < windowBits; i++) {
+                result.dbl();
+            }
+
+            for (int i = 0; i < count; i++) {
+                int digit = digits[i * windows + w];
+                if (digit == 0)
+                    continue;
+                if (buckets[digit - 1] == null)
+                    buckets[digit - 1] = new ECP(points[i]);
+                else
+                    buckets[digit - 1].add(points[i]);
+            }
+
+            // sum of d * bucket[d], as a running sum from the highest bucket down
+            ECP running = new ECP();
+            ECP windowSum = new ECP();
+            for (int digit = buckets.length; digit >= 1; digit--) {
+                if (buckets[digit - 1] != null) {
+                    running.add(buckets[digit - 1]);
+                    buckets[digit - 1] = null;
+                }
+                if (!running.is_infinity())
+                    windowSum.add(running);
+            }
+            result.add(windowSum);
+        }
+        return result;
+    }
+
+    // about log2(count) - 2 bits, so buckets cost less than the points
+    private static int windowBits(int count) {
+        int log = 31 - Integer.numberOfLeadingZeros(Math.max(count, 1));
+        return Math.max(2, Math.min(12, log - 2));
+    }
+}
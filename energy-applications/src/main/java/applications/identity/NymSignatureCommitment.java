@@ -0,0 +1,25 @@
+package applications.identity;
+
+import org.apache.milagro.amcl.FP256BN.BIG;
+import org.apache.milagro.amcl.FP256BN.ECP;
+import org.hyperledger.fabric.protos.idemix.Idemix.IssuerPublicKey;
+import org.hyperledger.fabric.protos.idemix.Idemix.NymSignature;
+
+/**
+ * The commitment t = HSk^sSk * HRand^sRNym * nym^-c of a pseudonym signature,
+ * computed by the buyer that signed it and sent along with it ("tb64"), so the
+ * utility can check many signatures together. The utility never computes it:
+ * it checks that t hashes back to the proof, see {@link IdemixVerifier}.
+ */
+public final class NymSignatureCommitment {
+
+    private NymSignatureCommitment() {
+    }
+
+    public static byte[] of(ECP nym, IssuerPublicKey ipk, NymSignature signature) {
+        ECP t = IdemixPoints.fromProto(ipk.getHSk()).mul2(BIG.fromBytes(signature.getProofSSk().toByteArray()),
+                IdemixPoints.fromProto(ipk.getHRand()), BIG.fromBytes(signature.getProofSRNym().toByteArray()));
+        t.sub(nym.mul(BIG.fromBytes(signature.getProofC().toByteArray())));
+        return IdemixPoints.toBytes(t);
+    }
+}
@@ -0,0 +1,195 @@
+package applications.identity;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hyperledger.fabric.gateway.Identities;
+
+/**
+ * Certificates presented by clients that were already checked against the MSP
+ * root CAs, keyed by the SHA-256 of their PEM and the claimed MSP. A hit skips
+ * both the X.509 parsing and the root CA signature check, and hands back the
+ * decoded public key.
+ *
+ * The cache is split in segments, each one an access-ordered LinkedHashMap
+ * evicting its least recently used entry. Entries also expire after a TTL,
+ * at the certificate 'notAfter', or when the trust store is reloaded.
+ */
+public class VerifiedCertificateCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final MspTrustStore trustStore;
+    private final long ttlMillis;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public static final class VerifiedCertificate {
+        private final PublicKey publicKey;
+        private final String sigAlgName;
+        private final String subjectDN;
+        private final String issuerDN;
+        private final long notAfter;
+        private final long expiresAt;
+        private final long generation;
+
+        private VerifiedCertificate(X509Certificate certificate, long expiresAt, long generation) {
+            this.publicKey = certificate.getPublicKey();
+            this.sigAlgName = certificate.getSigAlgName();
+            this.subjectDN = certificate.getSubjectX500Principal().getName();
+            this.issuerDN = certificate.getIssuerX500Principal().getName();
+            this.notAfter = certificate.getNotAfter().getTime();
+            this.expiresAt = Math.min(expiresAt, notAfter);
+            this.generation = generation;
+        }
+
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        public String getSigAlgName() {
+            return sigAlgName;
+        }
+
+        public String getSubjectDN() {
+            return subjectDN;
+        }
+
+        public String getIssuerDN() {
+            return issuerDN;
+        }
+
+        public long getNotAfter() {
+            return notAfter;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<String, VerifiedCertificate> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VerifiedCertificate> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public VerifiedCertificateCache(MspTrustStore trustStore, int maxEntries, long ttlMillis) {
+        this.trustStore = trustStore;
+        this.ttlMillis = ttlMillis;
+        int segmentCapacity = Math.max(1, maxEntries / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    private static String fingerprint(String mspID, String certificatePem) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(mspID.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(certificatePem.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Returns the verified certificate, or null if 'certificatePem' is not
+     * valid, expired or was not issued by a root CA of 'mspID'.
+     */
+    public VerifiedCertificate verify(String mspID, String certificatePem) throws Exception {
+        String key = fingerprint(mspID, certificatePem);
+        Segment segment = segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+        long now = System.currentTimeMillis();
+        long generation = trustStore.getGeneration();
+
+        VerifiedCertificate cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+            if (cached != null && (cached.expiresAt <= now || cached.generation != generation)) {
+                segment.remove(key);
+                expirations.increment();
+                cached = null;
+            }
+        }
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        X509Certificate certificate = Identities.readX509Certificate(certificatePem);
+        try {
+            certificate.checkValidity();
+        } catch (Exception e) {
+            rejections.increment();
+            return null;
+        }
+        if (!trustStore.verifyIssuedByRoot(mspID, certificate)) {
+            rejections.increment();
+            return null;
+        }
+
+        VerifiedCertificate verified = new VerifiedCertificate(certificate, now + ttlMillis, generation);
+        synchronized (segment) {
+            segment.put(key, verified);
+        }
+        return verified;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+}
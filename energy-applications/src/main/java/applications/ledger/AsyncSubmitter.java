@@ -0,0 +1,292 @@
+package applications.ledger;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hyperledger.fabric.gateway.Contract;
+import org.hyperledger.fabric.gateway.ContractException;
+import org.hyperledger.fabric.gateway.Network;
+import org.hyperledger.fabric.gateway.Transaction;
+import org.hyperledger.fabric.gateway.spi.CommitHandler;
+import org.hyperledger.fabric.gateway.spi.CommitListener;
+import org.hyperledger.fabric.gateway.spi.PeerDisconnectEvent;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.Peer;
+
+/**
+ * Ledger calls that do not hold the caller's thread while they wait.
+ *
+ * A submit is endorsed and sent to the orderer on a small fixed pool, without
+ * the gateway commit handler; a commit listener on the channel event peers
+ * then completes the returned future when the transaction is committed, so a
+ * thread is held for the endorsement only, not for the seconds until the
+ * block is committed. Evaluations, and other blocking ledger queries given to
+ * {@link #supply}, run on the same pool.
+ *
+ * When the pool queue is full the returned futures fail with
+ * RejectedExecutionException, which the handlers answer with 503.
+ *
+ * The gateway starts the commit handler of a transaction once it is endorsed,
+ * and waits on it once the orderer took it: the no-op handler set here times
+ * both, for the {@link LatencyListener}.
+ */
+public class AsyncSubmitter {
+
+    /**
+     * Receives the latency of the ledger calls, from the threads completing
+     * them.
+     */
+    public interface LatencyListener {
+        /**
+         * Transaction 'transaction' was committed as valid, after the given
+         * times to be endorsed, to be taken by the orderer and to be seen
+         * committed.
+         */
+        void submitted(String transaction, long endorseNanos, long orderNanos, long commitNanos);
+
+        void evaluated(String transaction, long nanos);
+    }
+
+    private final Network network;
+    private final long commitTimeoutMillis;
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService timer;
+
+    private volatile LatencyListener latencyListener;
+
+    private final AtomicInteger inFlightCommits = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public AsyncSubmitter(Network network, int threads, int queueCapacity, long commitTimeoutMillis) {
+        this.network = network;
+        this.commitTimeoutMillis = commitTimeoutMillis;
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "ledger-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ledger-commit-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits transaction 'name' of 'contract'. The future completes with the
+     * transaction result once it is committed as valid, or fails if the
+     * endorsement fails, the transaction is invalidated or no commit is seen
+     * within the commit timeout.
+     */
+    public CompletableFuture<byte[]> submit(Contract contract, String name, String... args) {
+        CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+        Transaction transaction;
+        try {
+            transaction = contract.createTransaction(name);
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        return submit(transaction, args);
+    }
+
+    /**
+     * Same as {@link #submit(Contract, String, String...)} for a transaction
+     * created by the caller, who may read its id and signing identity.
+     */
+    public CompletableFuture<byte[]> submit(Transaction transaction, String... args) {
+        CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+        try {
+            pool.execute(() -> endorseAndOrder(transaction, args, result));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Sends 'transaction' to the orderer without waiting for its commit: the
+     * future completes once the orderer took the transaction, with the future
+     * of its commit, as {@link #submit(Transaction, String...)} returns. It
+     * fails if the endorsement or the ordering fails.
+     */
+    public CompletableFuture<CompletableFuture<byte[]>> order(Transaction transaction, String... args) {
+        CompletableFuture<CompletableFuture<byte[]>> ordered = new CompletableFuture<CompletableFuture<byte[]>>();
+        CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+        try {
+            pool.execute(() -> {
+                if (endorseAndOrder(transaction, args, result))
+                    ordered.complete(result);
+                else
+                    result.whenComplete((payload, failure) -> ordered.completeExceptionally(failure));
+            });
+        } catch (RejectedExecutionException e) {
+            ordered.completeExceptionally(e);
+        }
+        return ordered;
+    }
+
+    /**
+     * Evaluates transaction 'name' of 'contract' on the pool.
+     */
+    public CompletableFuture<byte[]> evaluate(Contract contract, String name, String... args) {
+        return supply(() -> {
+            long start = System.nanoTime();
+            byte[] result = contract.evaluateTransaction(name, args);
+            LatencyListener latencies = latencyListener;
+            if (latencies != null)
+                latencies.evaluated(name, System.nanoTime() - start);
+            return result;
+        });
+    }
+
+    /**
+     * Runs a blocking ledger query on the pool.
+     */
+    public <T> CompletableFuture<T> supply(Callable<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        try {
+            pool.execute(() -> {
+                try {
+                    result.complete(call.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // returns whether the orderer took the transaction, 'result' failed if not
+    private boolean endorseAndOrder(Transaction transaction, String[] args, CompletableFuture<byte[]> result) {
+        // submit() returns once the orderer took the transaction
+        long[] phaseEnds = new long[2];
+        transaction.setCommitHandler((transactionId, unused) -> new CommitHandler() {
+            @Override
+            public void startListening() {
+                phaseEnds[0] = System.nanoTime();
+            }
+
+            @Override
+            public void waitForEvents(long timeout, TimeUnit timeUnit) {
+                phaseEnds[1] = System.nanoTime();
+            }
+
+            @Override
+            public void cancelListening() {
+            }
+        });
+        String txID = transaction.getTransactionId();
+
+        // listening before submitting, the commit cannot be missed
+        CompletableFuture<BlockEvent.TransactionEvent> commit = new CompletableFuture<BlockEvent.TransactionEvent>();
+        CommitListener listener = new CommitListener() {
+            @Override
+            public void acceptCommit(BlockEvent.TransactionEvent transactionEvent) {
+                commit.complete(transactionEvent);
+            }
+
+            @Override
+            public void acceptDisconnect(PeerDisconnectEvent disconnectEvent) {
+                // the other event peers still report the commit, or it times out
+            }
+        };
+        Collection<Peer> peers = network.getChannel().getPeers(EnumSet.of(Peer.PeerRole.EVENT_SOURCE));
+        network.addCommitListener(listener, peers, txID);
+        inFlightCommits.incrementAndGet();
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (commit.completeExceptionally(new TimeoutException("No commit of transaction " + txID + " within "
+                    + commitTimeoutMillis + " ms")))
+                timedOut.increment();
+        }, commitTimeoutMillis, TimeUnit.MILLISECONDS);
+        commit.whenComplete((transactionEvent, failure) -> {
+            network.removeCommitListener(listener);
+            timeout.cancel(false);
+            inFlightCommits.decrementAndGet();
+        });
+
+        byte[] payload;
+        long start = System.nanoTime();
+        try {
+            payload = transaction.submit(args);
+            submitted.increment();
+        } catch (Throwable e) {
+            commit.completeExceptionally(e);
+            result.completeExceptionally(e);
+            return false;
+        }
+        long endorseNanos = phaseEnds[0] - start, orderNanos = phaseEnds[1] - phaseEnds[0], ordered = phaseEnds[1];
+
+        commit.whenComplete((transactionEvent, failure) -> {
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else if (!transactionEvent.isValid()) {
+                invalid.increment();
+                result.completeExceptionally(new ContractException(
+                        "Transaction " + txID + " was invalidated with code " + transactionEvent.getValidationCode()));
+            } else {
+                committed.increment();
+                LatencyListener latencies = latencyListener;
+                if (latencies != null)
+                    latencies.submitted(transaction.getName(), endorseNanos, orderNanos, System.nanoTime() - ordered);
+                result.complete(payload);
+            }
+        });
+        return true;
+    }
+
+    public void setLatencyListener(LatencyListener listener) {
+        this.latencyListener = listener;
+    }
+
+    /**
+     * Transactions sent to the orderer whose commit is not seen yet.
+     */
+    public int getInFlightCommits() {
+        return inFlightCommits.get();
+    }
+
+    public int getQueuedCount() {
+        return pool.getQueue().size();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getCommitted() {
+        return committed.sum();
+    }
+
+    public long getInvalid() {
+        return invalid.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    public void stop() {
+        pool.shutdown();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,153 @@
+package applications.ledger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.hyperledger.fabric.gateway.Contract;
+
+/**
+ * Publishes the SmartData readings of a sensor in batches, one transaction of
+ * the chaincode 'publishSensorDataBatch' function per batch instead of one
+ * 'publishSensorData' per reading: one signature, endorsement and validation
+ * for up to 'maxReadings' readings.
+ *
+ * A batch is submitted when it holds 'maxReadings' readings or when its oldest
+ * reading has waited 'maxAgeMillis', on the shared 'timer'. Each reading is
+ * encoded in {@value #READING_SIZE} bytes, big-endian: version (1), unit (4),
+ * timestamp (8), value (8), error (1), confidence (1) and dev (4). The batch is
+ * given to the chaincode in base64, after the 'leadingArgs'.
+ *
+ * The chaincode skips the readings that are too old when the batch is
+ * endorsed and answers with the number it stored. Readings share their key
+ * when they share a second, so only the last one of a second is stored.
+ */
+public class SmartDataBatcher {
+
+    public static final int READING_SIZE = 27;
+
+    private final AsyncSubmitter submitter;
+    private final Contract contract;
+    private final String transaction;
+    private final String[] leadingArgs;
+    private final long maxAgeMillis;
+    private final ScheduledExecutorService timer;
+    private final Consumer<CompletableFuture<byte[]>> onFlush;
+
+    // guarded by this
+    private final ByteBuffer readings;
+    private CompletableFuture<byte[]> batch;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder stored = new LongAdder();
+
+    /**
+     * 'onFlush', if not null, is given the future of each submitted batch,
+     * e.g. to wait for its commit in a {@link applications.load.CommitWindow}.
+     */
+    public SmartDataBatcher(AsyncSubmitter submitter, Contract contract, String transaction, String[] leadingArgs,
+            int maxReadings, long maxAgeMillis, ScheduledExecutorService timer,
+            Consumer<CompletableFuture<byte[]>> onFlush) {
+        this.submitter = submitter;
+        this.contract = contract;
+        this.transaction = transaction;
+        this.leadingArgs = leadingArgs;
+        this.maxAgeMillis = maxAgeMillis;
+        this.timer = timer;
+        this.onFlush = onFlush;
+        this.readings = ByteBuffer.allocate(maxReadings * READING_SIZE);
+    }
+
+    /**
+     * Adds a reading to the current batch. Returns the future of that batch,
+     * which completes with the chaincode response once it is committed.
+     */
+    public CompletableFuture<byte[]> add(byte version, long unit, long timestamp, double value, byte error,
+            byte confidence, int dev) {
+        CompletableFuture<byte[]> added;
+        boolean full;
+        synchronized (this) {
+            if (batch == null) {
+                batch = new CompletableFuture<byte[]>();
+                CompletableFuture<byte[]> aged = batch;
+                timer.schedule(() -> flush(aged), maxAgeMillis, TimeUnit.MILLISECONDS);
+            }
+            readings.put(version).putInt((int) unit).putLong(timestamp).putDouble(value).put(error)
+                    .put(confidence).putInt(dev);
+            added = batch;
+            full = !readings.hasRemaining();
+        }
+        if (full)
+            flush(added);
+        return added;
+    }
+
+    /**
+     * Submits the current batch now, if any. Returns its future, or a
+     * completed one if there was none.
+     */
+    public CompletableFuture<byte[]> flush() {
+        CompletableFuture<byte[]> current;
+        synchronized (this) {
+            current = batch;
+        }
+        if (current == null)
+            return CompletableFuture.completedFuture(null);
+        flush(current);
+        return current;
+    }
+
+    // submits 'expected' unless it was already submitted
+    private void flush(CompletableFuture<byte[]> expected) {
+        String encoded;
+        int count;
+        synchronized (this) {
+            if (batch != expected)
+                return;
+            count = readings.position() / READING_SIZE;
+            encoded = Base64.getEncoder().encodeToString(Arrays.copyOf(readings.array(), readings.position()));
+            readings.clear();
+            batch = null;
+        }
+
+        String[] args = Arrays.copyOf(leadingArgs, leadingArgs.length + 1);
+        args[leadingArgs.length] = encoded;
+        batches.increment();
+        published.add(count);
+        submitter.submit(contract, transaction, args).whenComplete((response, failure) -> {
+            if (failure != null) {
+                expected.completeExceptionally(failure);
+                return;
+            }
+            stored.add(Long.parseLong(new String(response, StandardCharsets.UTF_8).trim()));
+            expected.complete(response);
+        });
+        if (onFlush != null)
+            onFlush.accept(expected);
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Readings submitted, stored or not.
+     */
+    public long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * Distinct readings the chaincode stored, in committed batches.
+     */
+    public long getStored() {
+        return stored.sum();
+    }
+}
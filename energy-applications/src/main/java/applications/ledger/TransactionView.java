@@ -0,0 +1,275 @@
+package applications.ledger;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import org.hyperledger.fabric.protos.common.Common.Envelope;
+import org.hyperledger.fabric.protos.common.Common.HeaderType;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVRWSet;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVWrite;
+import org.hyperledger.fabric.protos.msp.Identities.SerializedIdemixIdentity;
+
+/**
+ * Read-only view of a transaction envelope that decodes only what is asked
+ * for, once. The envelope is walked field by field over slices of the
+ * original bytes: nested messages are not copied, and the messages on the
+ * way to the write set (Transaction, ChaincodeActionPayload,
+ * ProposalResponsePayload, ChaincodeAction, TxReadWriteSet) are never built.
+ *
+ * Not thread safe.
+ */
+public class TransactionView {
+
+    private static final int ENDORSER_TRANSACTION = HeaderType.ENDORSER_TRANSACTION.getNumber();
+
+    // field numbers of the messages walked, from the fabric protos
+    private static final int ENVELOPE_PAYLOAD = 1;
+    private static final int PAYLOAD_HEADER = 1;
+    private static final int PAYLOAD_DATA = 2;
+    private static final int HEADER_CHANNEL_HEADER = 1;
+    private static final int HEADER_SIGNATURE_HEADER = 2;
+    private static final int CHANNEL_HEADER_TYPE = 1;
+    private static final int CHANNEL_HEADER_TX_ID = 5;
+    private static final int SIGNATURE_HEADER_CREATOR = 1;
+    private static final int SERIALIZED_IDENTITY_MSPID = 1;
+    private static final int SERIALIZED_IDENTITY_ID_BYTES = 2;
+    private static final int TRANSACTION_ACTIONS = 1;
+    private static final int TRANSACTION_ACTION_PAYLOAD = 2;
+    private static final int CHAINCODE_ACTION_PAYLOAD_ACTION = 2;
+    private static final int ENDORSED_ACTION_PROPOSAL_RESPONSE_PAYLOAD = 1;
+    private static final int PROPOSAL_RESPONSE_PAYLOAD_EXTENSION = 2;
+    private static final int CHAINCODE_ACTION_RESULTS = 1;
+    private static final int TX_RWSET_NS_RWSET = 2;
+    private static final int NS_RWSET_NAMESPACE = 1;
+    private static final int NS_RWSET_RWSET = 2;
+
+    private final ByteString payload;
+
+    private ByteString data;
+    private ByteString channelHeader;
+    private ByteString signatureHeader;
+    private boolean payloadRead;
+
+    private int headerType = -1;
+    private String txID;
+    private String creatorMspID;
+    private ByteString creatorIdBytes;
+    private boolean creatorRead;
+
+    private ByteString firstActionResults;
+    private boolean resultsRead;
+
+    private TransactionView(ByteString payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * View over a serialized envelope, as found in the block data.
+     */
+    public static TransactionView fromEnvelopeBytes(ByteString envelopeBytes) throws IOException {
+        return new TransactionView(field(envelopeBytes, ENVELOPE_PAYLOAD));
+    }
+
+    /**
+     * View over an envelope already parsed, e.g. by
+     * {@link org.hyperledger.fabric.sdk.TransactionInfo#getEnvelope()}.
+     */
+    public static TransactionView fromEnvelope(Envelope envelope) {
+        return new TransactionView(envelope.getPayload());
+    }
+
+    public int getHeaderType() throws IOException {
+        readChannelHeader();
+        return headerType;
+    }
+
+    public boolean isEndorserTransaction() throws IOException {
+        return getHeaderType() == ENDORSER_TRANSACTION;
+    }
+
+    public String getTxID() throws IOException {
+        readChannelHeader();
+        return txID;
+    }
+
+    public String getCreatorMspID() throws IOException {
+        readCreator();
+        return creatorMspID;
+    }
+
+    /**
+     * The 'id_bytes' of the creator SerializedIdentity: a PEM certificate for
+     * x509 members, a SerializedIdemixIdentity for idemix ones.
+     */
+    public ByteString getCreatorIdBytes() throws IOException {
+        readCreator();
+        return creatorIdBytes;
+    }
+
+    public SerializedIdemixIdentity getCreatorIdemixIdentity() throws IOException {
+        return SerializedIdemixIdentity.parseFrom(getCreatorIdBytes());
+    }
+
+    /**
+     * Writes of the first action of the transaction in 'namespace', or null if
+     * it is not an endorser transaction or did not touch the namespace.
+     */
+    public List<KVWrite> getNamespaceWrites(String namespace) throws IOException {
+        ByteString rwset = getNamespaceRwset(namespace);
+        return rwset == null ? null : KVRWSet.parseFrom(rwset).getWritesList();
+    }
+
+    /**
+     * The serialized KVRWSet of the first action of the transaction in
+     * 'namespace', or null.
+     */
+    public ByteString getNamespaceRwset(String namespace) throws IOException {
+        ByteString results = getFirstActionResults();
+        if (results == null)
+            return null;
+
+        CodedInputStream input = aliasing(results);
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) != TX_RWSET_NS_RWSET) {
+                input.skipField(tag);
+                continue;
+            }
+            // namespace precedes the rwset on the wire, but do not rely on it
+            CodedInputStream nsInput = aliasing(input.readBytes());
+            String nsName = null;
+            ByteString rwset = null;
+            int nsTag;
+            while ((nsTag = nsInput.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(nsTag);
+                if (field == NS_RWSET_NAMESPACE)
+                    nsName = nsInput.readStringRequireUtf8();
+                else if (field == NS_RWSET_RWSET)
+                    rwset = nsInput.readBytes();
+                else
+                    nsInput.skipField(nsTag);
+            }
+            if (namespace.equals(nsName))
+                return rwset;
+        }
+        return null;
+    }
+
+    // Transaction -> actions[0].payload -> action -> proposal_response_payload
+    // -> extension -> results
+    private ByteString getFirstActionResults() throws IOException {
+        if (resultsRead)
+            return firstActionResults;
+        resultsRead = true;
+        if (!isEndorserTransaction())
+            return null;
+
+        ByteString action = field(data, TRANSACTION_ACTIONS);
+        if (action == null)
+            return null;
+        ByteString chaincodeActionPayload = field(action, TRANSACTION_ACTION_PAYLOAD);
+        ByteString endorsedAction = field(chaincodeActionPayload, CHAINCODE_ACTION_PAYLOAD_ACTION);
+        ByteString proposalResponsePayload = field(endorsedAction, ENDORSED_ACTION_PROPOSAL_RESPONSE_PAYLOAD);
+        ByteString chaincodeAction = field(proposalResponsePayload, PROPOSAL_RESPONSE_PAYLOAD_EXTENSION);
+        firstActionResults = field(chaincodeAction, CHAINCODE_ACTION_RESULTS);
+        return firstActionResults;
+    }
+
+    private void readPayload() throws IOException {
+        if (payloadRead)
+            return;
+        payloadRead = true;
+
+        CodedInputStream input = aliasing(payload);
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == PAYLOAD_HEADER) {
+                CodedInputStream header = aliasing(input.readBytes());
+                int headerTag;
+                while ((headerTag = header.readTag()) != 0) {
+                    int headerField = WireFormat.getTagFieldNumber(headerTag);
+                    if (headerField == HEADER_CHANNEL_HEADER)
+                        channelHeader = header.readBytes();
+                    else if (headerField == HEADER_SIGNATURE_HEADER)
+                        signatureHeader = header.readBytes();
+                    else
+                        header.skipField(headerTag);
+                }
+            } else if (field == PAYLOAD_DATA) {
+                data = input.readBytes();
+            } else {
+                input.skipField(tag);
+            }
+        }
+    }
+
+    private void readChannelHeader() throws IOException {
+        if (headerType >= 0)
+            return;
+        readPayload();
+        headerType = 0;
+        if (channelHeader == null)
+            return;
+
+        CodedInputStream input = aliasing(channelHeader);
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == CHANNEL_HEADER_TYPE)
+                headerType = input.readInt32();
+            else if (field == CHANNEL_HEADER_TX_ID)
+                txID = input.readStringRequireUtf8();
+            else
+                input.skipField(tag);
+        }
+    }
+
+    private void readCreator() throws IOException {
+        if (creatorRead)
+            return;
+        creatorRead = true;
+        readPayload();
+
+        ByteString creator = field(signatureHeader, SIGNATURE_HEADER_CREATOR);
+        if (creator == null)
+            return;
+        CodedInputStream input = aliasing(creator);
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == SERIALIZED_IDENTITY_MSPID)
+                creatorMspID = input.readStringRequireUtf8();
+            else if (field == SERIALIZED_IDENTITY_ID_BYTES)
+                creatorIdBytes = input.readBytes();
+            else
+                input.skipField(tag);
+        }
+    }
+
+    // first occurrence of the length delimited field 'number' in 'message'
+    private static ByteString field(ByteString message, int number) throws IOException {
+        if (message == null)
+            return null;
+        CodedInputStream input = aliasing(message);
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == number
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED)
+                return input.readBytes();
+            input.skipField(tag);
+        }
+        return null;
+    }
+
+    // readBytes() then returns slices of 'bytes' instead of copies
+    private static CodedInputStream aliasing(ByteString bytes) {
+        CodedInputStream input = bytes.newCodedInput();
+        input.enableAliasing(true);
+        return input;
+    }
+}
@@ -0,0 +1,84 @@
+package applications.load;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The commits an entity waits for while it keeps sending transactions: up to
+ * 'size' of them may be pending at once. A transaction is tracked once the
+ * orderer took it, and the entity asks for a free slot before sending the
+ * next one, so it keeps the orderer busy instead of waiting a block for each
+ * transaction.
+ *
+ * Thread-safe: commits complete on the event threads of the gateway.
+ */
+public class CommitWindow {
+
+    private final int size;
+    // guarded by this
+    private int pending;
+    private CompletableFuture<Void> slotFreed;
+    private CompletableFuture<Void> drained;
+
+    public CommitWindow(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("A commit window holds at least 1 transaction");
+        this.size = size;
+    }
+
+    /**
+     * Waits for 'commit', whatever its outcome.
+     */
+    public void track(CompletionStage<?> commit) {
+        synchronized (this) {
+            pending++;
+        }
+        commit.whenComplete((result, failure) -> release());
+    }
+
+    private void release() {
+        CompletableFuture<Void> freed = null, empty = null;
+        synchronized (this) {
+            pending--;
+            if (slotFreed != null && pending < size) {
+                freed = slotFreed;
+                slotFreed = null;
+            }
+            if (drained != null && pending == 0) {
+                empty = drained;
+                drained = null;
+            }
+        }
+        // completed outside the lock, the callbacks send the next transaction
+        if (freed != null)
+            freed.complete(null);
+        if (empty != null)
+            empty.complete(null);
+    }
+
+    /**
+     * Completes once fewer than 'size' commits are pending. One caller at a
+     * time, as an entity runs one step at a time.
+     */
+    public synchronized CompletionStage<Void> slot() {
+        if (pending < size)
+            return CompletableFuture.completedFuture(null);
+        slotFreed = new CompletableFuture<Void>();
+        return slotFreed;
+    }
+
+    /**
+     * Completes once no commit is pending.
+     */
+    public synchronized CompletionStage<Void> drain() {
+        if (pending == 0)
+            return CompletableFuture.completedFuture(null);
+        if (drained == null)
+            drained = new CompletableFuture<Void>();
+        return drained;
+    }
+
+    public synchronized int getPending() {
+        return pending;
+    }
+}
@@ -0,0 +1,166 @@
+package applications.load;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.cli.CommandLine;
+
+import applications.ledger.AsyncSubmitter;
+
+/**
+ * HDR histograms of the latencies seen by the test applications, by
+ * transaction and phase:
+ * - 'endorse', 'order' and 'commit' of each submit, as timed by
+ * {@link AsyncSubmitter};
+ * - 'evaluate' of each evaluation;
+ * - 'total' of each step, from its planned start, so the time spent behind
+ * schedule is part of it.
+ *
+ * Values are recorded from any thread in microseconds, up to an hour. Every
+ * '--reportinterval' seconds the histograms of the interval are appended,
+ * tagged 'transaction/phase', to an HdrHistogram interval log in
+ * '--reportdir'. Once stopped, the histograms merged over the run are printed
+ * as percentiles, and written next to the log.
+ */
+public class LatencyRecorder implements AsyncSubmitter.LatencyListener {
+
+    private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final Map<String, Recorder> recorders = new ConcurrentSkipListMap<String, Recorder>();
+    // guarded by this
+    private final Map<String, Histogram> totals = new TreeMap<String, Histogram>();
+    private final HistogramLogWriter log;
+    private final File summary;
+    private final Thread logger;
+    private boolean stopped;
+
+    /**
+     * Writes '<name>-latency.hlog' and '<name>-latency.txt' to 'reportDir',
+     * or nothing if it is null.
+     */
+    public LatencyRecorder(File reportDir, String name, long intervalMillis) throws FileNotFoundException {
+        long startMillis = System.currentTimeMillis();
+        if (reportDir == null) {
+            log = null;
+            summary = null;
+            logger = null;
+            return;
+        }
+        reportDir.mkdirs();
+        summary = new File(reportDir, name + "-latency.txt");
+        log = new HistogramLogWriter(new File(reportDir, name + "-latency.hlog"));
+        log.outputComment("Latencies in microseconds of " + name + ", tagged transaction/phase");
+        log.outputLogFormatVersion();
+        log.outputStartTime(startMillis);
+        log.setBaseTime(startMillis);
+        log.outputLegend();
+
+        logger = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                collect();
+            }
+        }, "latency-log");
+        logger.setDaemon(true);
+        logger.start();
+    }
+
+    /**
+     * The recorder configured by '--reportdir' and '--reportinterval', whose
+     * files are named after 'name'.
+     */
+    public static LatencyRecorder create(CommandLine cmd, String name) throws FileNotFoundException {
+        File reportDir = cmd.hasOption("reportdir") ? new File(cmd.getOptionValue("reportdir")) : null;
+        long intervalMillis = Long.parseLong(cmd.getOptionValue("reportinterval", "10")) * 1000;
+        return new LatencyRecorder(reportDir, name, intervalMillis);
+    }
+
+    public void record(String transaction, String phase, long nanos) {
+        Recorder recorder = recorders.computeIfAbsent(transaction + "/" + phase,
+                key -> new Recorder(HIGHEST_MICROS, SIGNIFICANT_DIGITS));
+        recorder.recordValue(Math.max(0, Math.min(HIGHEST_MICROS, nanos / 1000)));
+    }
+
+    @Override
+    public void submitted(String transaction, long endorseNanos, long orderNanos, long commitNanos) {
+        record(transaction, "endorse", endorseNanos);
+        record(transaction, "order", orderNanos);
+        record(transaction, "commit", commitNanos);
+    }
+
+    @Override
+    public void evaluated(String transaction, long nanos) {
+        record(transaction, "evaluate", nanos);
+    }
+
+    // moves the histograms of the interval to the log and the totals
+    private synchronized void collect() {
+        if (stopped)
+            return;
+        for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+            Histogram interval = entry.getValue().getIntervalHistogram();
+            if (interval.getTotalCount() == 0)
+                continue;
+            interval.setTag(entry.getKey());
+            if (log != null)
+                log.outputIntervalHistogram(interval);
+            totals.computeIfAbsent(entry.getKey(), key -> new Histogram(HIGHEST_MICROS, SIGNIFICANT_DIGITS))
+                    .add(interval);
+        }
+    }
+
+    /**
+     * Logs the last interval and writes the summary. Values recorded later
+     * are ignored.
+     */
+    public void stop() throws FileNotFoundException {
+        if (logger != null)
+            logger.interrupt();
+        collect();
+        synchronized (this) {
+            stopped = true;
+            if (log == null)
+                return;
+            log.close();
+            try (PrintStream out = new PrintStream(summary)) {
+                print(out);
+            }
+        }
+    }
+
+    /**
+     * Prints the count, mean, percentiles and max in milliseconds of each
+     * transaction and phase, over the run.
+     */
+    public synchronized void print(PrintStream out) {
+        StringBuilder header = new StringBuilder(String.format("%-56s %10s %10s", "transaction/phase", "count",
+                "mean"));
+        for (double percentile : PERCENTILES)
+            header.append(String.format(" %10s", "p" + (percentile == Math.rint(percentile)
+                    ? Long.toString((long) percentile) : Double.toString(percentile))));
+        out.println(header.append(String.format(" %10s", "max")));
+
+        for (Map.Entry<String, Histogram> entry : totals.entrySet()) {
+            Histogram histogram = entry.getValue();
+            StringBuilder line = new StringBuilder(String.format("%-56s %10d %10.3f", entry.getKey(),
+                    histogram.getTotalCount(), histogram.getMean() / 1000));
+            for (double percentile : PERCENTILES)
+                line.append(String.format(" %10.3f", histogram.getValueAtPercentile(percentile) / 1000.0));
+            out.println(line.append(String.format(" %10.3f", histogram.getMaxValue() / 1000.0)));
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package applications.load;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.apache.commons.cli.CommandLine;
+
+import applications.util.HierarchicalTimingWheel;
+
+/**
+ * Runs the simulated sensors, sellers and buyers of the test applications,
+ * hundreds of thousands per JVM, instead of one platform thread each.
+ *
+ * An entity is written as a sequence of steps: each step starts its ledger or
+ * HTTP call and completes with the time to wait before the next one, as the
+ * former threads slept. Every entity is set up before any of them starts, as
+ * the former threads waited on a barrier.
+ *
+ * Two modes:
+ * - 'wheel' (default): the waits are timers of a {@link HierarchicalTimingWheel}
+ * moved by a single ticker thread, and the steps run on a small pool. A step
+ * waiting for a commit holds no thread;
+ * - 'virtual': one virtual thread per entity, sleeping between its steps.
+ * Needs JDK 21 or newer, looked up at runtime.
+ *
+ * Three arrival schedules:
+ * - 'closed' (default): a step starts its wait once the previous one
+ * completed, as the former loops did. When the network slows down the
+ * entities slow down with it, and so does the load they offer;
+ * - 'constant' and 'poisson': the wait is the interval between the planned
+ * starts of two steps, fixed or drawn from an exponential distribution of
+ * that mean, whatever the latency of the steps. A step planned while the
+ * previous one is still running starts as soon as it completes, and is given
+ * its planned start to measure its latency from: the time spent behind
+ * schedule is part of the latency, as it would be for a client that does not
+ * wait for the network.
+ */
+public class LoadEngine {
+
+    /**
+     * Returned by {@link Entity#step()} once the entity is done.
+     */
+    public static final long DONE = -1;
+
+    private static final long TICK_MILLIS = 5;
+    private static final int WHEEL_LEVELS = 4;
+
+    public enum Arrivals {
+        CLOSED, CONSTANT, POISSON
+    }
+
+    public interface Entity {
+        /**
+         * Runs once, before any entity starts. An entity whose set up fails
+         * does not start.
+         */
+        CompletionStage<?> setUp();
+
+        /**
+         * Milliseconds between the moment every entity is set up and the first
+         * step.
+         */
+        long startDelay();
+
+        /**
+         * Runs the next step, planned to start at 'intendedMillis': latencies
+         * are measured from it. Completes with the milliseconds to wait before
+         * the following one, or {@link #DONE}.
+         */
+        CompletionStage<Long> step(long intendedMillis);
+
+        /**
+         * Runs once the entity is done or failed, e.g. to print its times.
+         */
+        void finish();
+    }
+
+    private final int workers;
+    private final boolean virtualThreads;
+    private final Arrivals arrivals;
+
+    private final LongAdder steps = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder lateSteps = new LongAdder();
+
+    public LoadEngine(int workers, boolean virtualThreads, Arrivals arrivals) {
+        this.workers = workers;
+        this.virtualThreads = virtualThreads;
+        this.arrivals = arrivals;
+    }
+
+    /**
+     * The engine chosen with '--loadengine' ('wheel' or 'virtual'), with a pool
+     * of '--loadworkers' threads and the '--arrivals' schedule ('closed',
+     * 'constant' or 'poisson').
+     */
+    public static LoadEngine create(CommandLine cmd) {
+        String mode = cmd.getOptionValue("loadengine", "wheel");
+        if (!mode.equals("wheel") && !mode.equals("virtual"))
+            throw new Error("Flag '--loadengine' must be 'wheel' or 'virtual'");
+        int workers = cmd.hasOption("loadworkers") ? Integer.parseInt(cmd.getOptionValue("loadworkers"))
+                : 2 * Runtime.getRuntime().availableProcessors();
+        Arrivals arrivals;
+        try {
+            arrivals = Arrivals.valueOf(cmd.getOptionValue("arrivals", "closed").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new Error("Flag '--arrivals' must be 'closed', 'constant' or 'poisson'");
+        }
+        return new LoadEngine(workers, mode.equals("virtual"), arrivals);
+    }
+
+    /**
+     * Runs every entity to its end.
+     */
+    public void run(List<? extends Entity> entities) throws InterruptedException {
+        if (virtualThreads)
+            runOnVirtualThreads(entities);
+        else
+            runOnWheel(entities);
+    }
+
+    private void runOnWheel(List<? extends Entity> entities) throws InterruptedException {
+        int count = entities.size();
+        AtomicInteger workerCount = new AtomicInteger();
+        // steps are never refused: the number of entities bounds the queue
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "load-worker-" + workerCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(TICK_MILLIS, WHEEL_LEVELS,
+                System.currentTimeMillis());
+        CountDownLatch setUp = new CountDownLatch(count);
+        CountDownLatch done = new CountDownLatch(count);
+        boolean[] started = new boolean[count];
+        // planned start of the next step of each entity
+        long[] intended = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            int id = i;
+            pool.execute(() -> stage(entities.get(id)::setUp).whenComplete((result, failure) -> {
+                if (failure != null) {
+                    failures.increment();
+                    failure.printStackTrace();
+                } else {
+                    started[id] = true;
+                }
+                setUp.countDown();
+            }));
+        }
+        setUp.await();
+
+        Thread ticker = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (wheel) {
+                    wheel.advance(System.currentTimeMillis(),
+                            (id, unused) -> pool.execute(() -> runStep(entities, (int) id, intended, wheel, pool,
+                                    done)));
+                }
+            }
+        }, "load-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+
+        for (int i = 0; i < count; i++) {
+            if (started[i]) {
+                intended[i] = System.currentTimeMillis() + entities.get(i).startDelay();
+                schedule(wheel, i, intended[i]);
+            } else
+                finish(entities.get(i), done);
+        }
+        done.await();
+
+        ticker.interrupt();
+        pool.shutdown();
+    }
+
+    private void runStep(List<? extends Entity> entities, int id, long[] intended, HierarchicalTimingWheel wheel,
+            ThreadPoolExecutor pool, CountDownLatch done) {
+        Entity entity = entities.get(id);
+        long intendedMillis = start(intended[id]);
+        stage(() -> entity.step(intendedMillis)).whenComplete((delay, failure) -> {
+            if (failure != null) {
+                failures.increment();
+                failure.printStackTrace();
+                finish(entity, done);
+            } else if (delay < 0) {
+                finish(entity, done);
+            } else {
+                intended[id] = next(intendedMillis, delay);
+                if (intended[id] <= System.currentTimeMillis())
+                    pool.execute(() -> runStep(entities, id, intended, wheel, pool, done));
+                else
+                    schedule(wheel, id, intended[id]);
+            }
+        });
+    }
+
+    private static void schedule(HierarchicalTimingWheel wheel, int id, long deadlineMillis) {
+        synchronized (wheel) {
+            wheel.schedule(id, 0, deadlineMillis);
+        }
+    }
+
+    /**
+     * Counts a step planned at 'intendedMillis' that starts now. Returns the
+     * time its latency is measured from.
+     */
+    private long start(long intendedMillis) {
+        steps.increment();
+        long now = System.currentTimeMillis();
+        // the wheel fires up to a tick late
+        if (now - intendedMillis > 2 * TICK_MILLIS)
+            lateSteps.increment();
+        return arrivals == Arrivals.CLOSED ? now : intendedMillis;
+    }
+
+    /**
+     * The planned start of the step following the one planned at
+     * 'intendedMillis', which asked to wait 'delayMillis'.
+     */
+    private long next(long intendedMillis, long delayMillis) {
+        switch (arrivals) {
+        case CONSTANT:
+            return intendedMillis + delayMillis;
+        case POISSON:
+            return intendedMillis + Math.round(-delayMillis * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+        default:
+            return System.currentTimeMillis() + delayMillis;
+        }
+    }
+
+    private void runOnVirtualThreads(List<? extends Entity> entities) throws InterruptedException {
+        ThreadFactory factory = virtualThreadFactory();
+        int count = entities.size();
+        CountDownLatch setUp = new CountDownLatch(count);
+        Thread[] threads = new Thread[count];
+
+        for (int i = 0; i < count; i++) {
+            Entity entity = entities.get(i);
+            threads[i] = factory.newThread(() -> {
+                try {
+                    try {
+                        stage(entity::setUp).join();
+                    } finally {
+                        setUp.countDown();
+                    }
+                    setUp.await();
+                    long intended = System.currentTimeMillis() + entity.startDelay();
+                    for (;;) {
+                        long wait = intended - System.currentTimeMillis();
+                        if (wait > 0)
+                            Thread.sleep(wait);
+                        long intendedMillis = start(intended);
+                        long delay = stage(() -> entity.step(intendedMillis)).join();
+                        if (delay < 0)
+                            break;
+                        intended = next(intendedMillis, delay);
+                    }
+                } catch (Throwable e) {
+                    failures.increment();
+                    e.printStackTrace();
+                } finally {
+                    entity.finish();
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    private static void finish(Entity entity, CountDownLatch done) {
+        try {
+            entity.finish();
+        } catch (Throwable e) {
+            e.printStackTrace();
+        } finally {
+            done.countDown();
+        }
+    }
+
+    // an entity method throwing is a failed stage
+    private static <T> CompletableFuture<T> stage(Supplier<? extends CompletionStage<T>> call) {
+        try {
+            return call.get().toCompletableFuture();
+        } catch (Throwable e) {
+            CompletableFuture<T> failed = new CompletableFuture<T>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    // Thread.ofVirtual().name("entity-", 0).factory(), from JDK 21
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "entity-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new Error("Flag '--loadengine virtual' needs JDK 21 or newer");
+        }
+    }
+
+    public long getSteps() {
+        return steps.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Steps started after their planned time, because the previous step of
+     * their entity or the workers were late. In 'closed' mode, only the
+     * workers can be.
+     */
+    public long getLateSteps() {
+        return lateSteps.sum();
+    }
+
+    public Arrivals getArrivals() {
+        return arrivals;
+    }
+}
@@ -0,0 +1,229 @@
+package applications.payment;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Funds of the payment company clients. Balances are fixed-point longs (see
+ * {@link #SCALE}) changed only by compare-and-set, so concurrent deposits,
+ * token reservations and seller payments never lose updates and never take a
+ * lock.
+ *
+ * Issuing a token moves the covered amount from the buyer's balance to a
+ * reservation. Paying a seller consumes the reservation of the token and
+ * credits the seller. Whatever is left when the token is retired goes back to
+ * the buyer with {@link #release(String)}.
+ */
+public class AccountLedger {
+
+    // money is kept in millionths
+    public static final long SCALE = 1000000L;
+
+    private final Map<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+    private final Map<String, Reservation> reservations = new ConcurrentHashMap<String, Reservation>();
+
+    public static long toUnits(double amount) {
+        return Math.round(amount * SCALE);
+    }
+
+    public static double toAmount(long units) {
+        return (double) units / SCALE;
+    }
+
+    public static final class Account {
+        private final String clientName;
+        private final AtomicLong balance = new AtomicLong();
+
+        private Account(String clientName) {
+            this.clientName = clientName;
+        }
+
+        public String getClientName() {
+            return clientName;
+        }
+
+        public long getBalance() {
+            return balance.get();
+        }
+
+        void credit(long units) {
+            balance.addAndGet(units);
+        }
+
+        boolean tryDebit(long units) {
+            long current;
+            do {
+                current = balance.get();
+                if (current < units)
+                    return false;
+            } while (!balance.compareAndSet(current, current - units));
+            return true;
+        }
+    }
+
+    public static final class Reservation {
+        private final Account owner;
+        private final long amount;
+        private final AtomicLong remaining;
+        // the BuyBid of the token is on the ledger and can still be matched
+        private volatile boolean buyBidOpen;
+
+        private Reservation(Account owner, long amount, long remaining) {
+            this.owner = owner;
+            this.amount = amount;
+            this.remaining = new AtomicLong(remaining);
+        }
+
+        public String getClientName() {
+            return owner.clientName;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+
+        public long getRemaining() {
+            return remaining.get();
+        }
+
+        public boolean isBuyBidOpen() {
+            return buyBidOpen;
+        }
+
+        // takes up to 'units' from the reservation, returns what was taken
+        long consume(long units) {
+            long current, taken;
+            do {
+                current = remaining.get();
+                taken = Math.min(current, units);
+                if (taken <= 0)
+                    return 0;
+            } while (!remaining.compareAndSet(current, current - taken));
+            return taken;
+        }
+    }
+
+    public Account getAccount(String clientName) {
+        return accounts.get(clientName);
+    }
+
+    private Account getOrCreateAccount(String clientName) {
+        return accounts.computeIfAbsent(clientName, Account::new);
+    }
+
+    public void deposit(String clientName, long units) {
+        if (units < 0)
+            throw new IllegalArgumentException("Negative deposit for " + clientName);
+        getOrCreateAccount(clientName).credit(units);
+    }
+
+    /**
+     * Reserves 'units' of 'clientName' funds for 'token'. Returns null when the
+     * client is unknown, has not enough funds or the token is already in use.
+     */
+    public Reservation reserve(String clientName, String token, long units) {
+        Account account = accounts.get(clientName);
+        if (account == null || units < 0 || !account.tryDebit(units))
+            return null;
+
+        Reservation reservation = new Reservation(account, units, units);
+        if (reservations.putIfAbsent(token, reservation) != null) {
+            account.credit(units);
+            return null;
+        }
+        return reservation;
+    }
+
+    public Reservation getReservation(String token) {
+        return reservations.get(token);
+    }
+
+    /**
+     * Records whether the BuyBid of 'token' is open on the ledger. Returns
+     * false when there is no such reservation or nothing changed.
+     */
+    public boolean setBuyBidOpen(String token, boolean open) {
+        Reservation reservation = reservations.get(token);
+        if (reservation == null || reservation.buyBidOpen == open)
+            return false;
+        reservation.buyBidOpen = open;
+        return true;
+    }
+
+    /**
+     * Pays 'sellerName' with up to 'units' of the funds reserved for 'token'.
+     * Returns the amount actually transferred, which is less than 'units' only
+     * when the reservation is exhausted.
+     */
+    public long settle(String token, String sellerName, long units) {
+        Reservation reservation = reservations.get(token);
+        if (reservation == null)
+            return 0;
+        long paid = reservation.consume(units);
+        if (paid > 0)
+            getOrCreateAccount(sellerName).credit(paid);
+        return paid;
+    }
+
+    /**
+     * Retires 'token' and gives back to the buyer what was not spent. Returns
+     * the released amount.
+     */
+    public long release(String token) {
+        Reservation reservation = reservations.remove(token);
+        if (reservation == null)
+            return 0;
+        long left = reservation.consume(Long.MAX_VALUE);
+        if (left > 0)
+            reservation.owner.credit(left);
+        return left;
+    }
+
+    public void forEachAccount(Consumer<Account> consumer) {
+        accounts.values().forEach(consumer);
+    }
+
+    public void forEachReservation(BiConsumer<String, Reservation> consumer) {
+        reservations.forEach(consumer);
+    }
+
+    // Recovery from a snapshot and the write-ahead log. The log holds the effects
+    // of operations that already succeeded, and operations on different accounts
+    // may be logged in another order than they ran, so these skip the funds
+    // checks: a balance can be negative until the whole log is replayed.
+
+    public void restoreAccount(String clientName, long balance) {
+        getOrCreateAccount(clientName).credit(balance);
+    }
+
+    public void restoreReservation(String clientName, String token, long amount, long remaining,
+            boolean buyBidOpen) {
+        Reservation reservation = new Reservation(getOrCreateAccount(clientName), amount, remaining);
+        reservation.buyBidOpen = buyBidOpen;
+        reservations.put(token, reservation);
+    }
+
+    public void replayReserve(String clientName, String token, long units) {
+        Account account = getOrCreateAccount(clientName);
+        account.credit(-units);
+        reservations.put(token, new Reservation(account, units, units));
+    }
+
+    public void replaySettle(String token, String sellerName, long units) {
+        Reservation reservation = reservations.get(token);
+        if (reservation != null)
+            reservation.remaining.addAndGet(-units);
+        getOrCreateAccount(sellerName).credit(units);
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    public int getReservationCount() {
+        return reservations.size();
+    }
+}
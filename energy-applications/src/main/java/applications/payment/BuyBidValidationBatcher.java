@@ -0,0 +1,242 @@
+package applications.payment;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.hyperledger.fabric.gateway.Contract;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVWrite;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo.NsRwsetInfo;
+
+import applications.payment.AccountLedger.Reservation;
+
+/**
+ * Validates the BuyBids registered with tokens of this payment company as soon
+ * as their 'registerBuyBid' transaction is committed, without waiting for the
+ * buyer to ask for it. Committed BuyBid writes are picked up from the block
+ * events and validated in groups by the chaincode 'validateBuyBids' function:
+ * a batch is submitted when it reaches 'maxBatchSize' tokens or when its
+ * oldest token has waited 'maxDelayMillis'.
+ *
+ * Batches are submitted one at a time by a single thread. While one batch
+ * waits for its commit the next one keeps growing, so under load the batches
+ * get bigger instead of piling up transactions in the orderer.
+ *
+ * A batch that fails as a whole, e.g. on an MVCC conflict or a commit timeout,
+ * puts its tokens back in the queue. A token is given up after 'maxRetries'
+ * failed batches; its buyer can still ask for the validation through
+ * '/validatebuybid'.
+ */
+public class BuyBidValidationBatcher {
+
+    private static final String CHAINCODE_NAME = "energy";
+
+    private final Contract contract;
+    private final AccountLedger ledger;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final int maxRetries;
+    // composite key "BuyBid[false, mspPaymentCompany, token]" prefix
+    private final String unvalidatedBuyBidPrefix;
+
+    private final BlockingQueue<String> pendingTokens = new LinkedBlockingQueue<String>();
+    // token -> failed batches it was in, only used by the flusher thread
+    private final Map<String, Integer> failedAttempts = new HashMap<String, Integer>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder validated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    public BuyBidValidationBatcher(Contract contract, AccountLedger ledger, String mspIDPaymentCompany,
+            int maxBatchSize, long maxDelayMillis, int maxRetries) {
+        this.contract = contract;
+        this.ledger = ledger;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxRetries = maxRetries;
+        this.unvalidatedBuyBidPrefix = "\u0000BuyBid\u0000false\u0000" + mspIDPaymentCompany + "\u0000";
+
+        flusher = new Thread(this::run, "buybid-validation-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues the BuyBid of 'token' for validation.
+     */
+    public void submit(String token) {
+        pendingTokens.add(token);
+    }
+
+    /**
+     * Finds the BuyBids registered with tokens of this payment company in the
+     * valid transactions of every committed block.
+     */
+    public Consumer<BlockEvent> buyBidBlockListener() {
+        return blockEvent -> {
+            try {
+                for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+                    if (!transactionEvent.isValid())
+                        continue;
+                    for (TransactionActionInfo actionInfo : transactionEvent.getTransactionActionInfos()) {
+                        TxReadWriteSetInfo readWriteSet = actionInfo.getTxReadWriteSet();
+                        if (readWriteSet == null)
+                            continue;
+                        for (NsRwsetInfo nsRwsetInfo : readWriteSet.getNsRwsetInfos()) {
+                            if (!CHAINCODE_NAME.equals(nsRwsetInfo.getNamespace()))
+                                continue;
+                            for (KVWrite kv : nsRwsetInfo.getRwset().getWritesList()) {
+                                String key = kv.getKey();
+                                if (!kv.getIsDelete() && key.startsWith(unvalidatedBuyBidPrefix))
+                                    submit(key.substring(unvalidatedBuyBidPrefix.length(), key.length() - 1));
+                            }
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("Could not read the BuyBids of block " + blockEvent.getBlockNumber());
+                e.printStackTrace();
+            }
+        };
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<String>(maxBatchSize);
+        while (running) {
+            try {
+                String first = pendingTokens.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+
+                // the batch closes when full or when the first token waited too long
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    pendingTokens.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0)
+                        break;
+                    String next = pendingTokens.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<String> batch) {
+        // each token goes with the funds its reservation covers
+        List<String> tokensAndCovers = new ArrayList<String>(batch.size() * 2);
+        for (String token : batch) {
+            Reservation reservation = ledger.getReservation(token);
+            if (reservation == null) {
+                rejected.increment();
+                continue;
+            }
+            tokensAndCovers.add(token);
+            tokensAndCovers.add(Double.toString(AccountLedger.toAmount(reservation.getAmount())));
+        }
+        if (tokensAndCovers.isEmpty())
+            return;
+
+        try {
+            byte[] transactionResult = contract.createTransaction("validateBuyBids")
+                    .submit(tokensAndCovers.toArray(new String[0]));
+            batches.increment();
+
+            JsonReader reader = Json.createReader(
+                    new StringReader(new String(transactionResult, StandardCharsets.UTF_8)));
+            JsonObject results = reader.readObject();
+            for (String token : results.keySet()) {
+                failedAttempts.remove(token);
+                if (results.getString(token).equals("validated"))
+                    validated.increment();
+                else
+                    rejected.increment();
+            }
+        } catch (Exception e) {
+            failedBatches.increment();
+            System.out.println("Could not validate a batch of " + tokensAndCovers.size() / 2 + " BuyBids");
+            e.printStackTrace();
+            requeue(tokensAndCovers);
+        }
+    }
+
+    // the tokens of a failed batch go to the next batches, up to 'maxRetries' times
+    private void requeue(List<String> tokensAndCovers) {
+        for (int i = 0; i < tokensAndCovers.size(); i += 2) {
+            String token = tokensAndCovers.get(i);
+            int attempts = failedAttempts.merge(token, 1, Integer::sum);
+            if (attempts > maxRetries) {
+                failedAttempts.remove(token);
+                abandoned.increment();
+                continue;
+            }
+            retried.increment();
+            pendingTokens.add(token);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        flusher.interrupt();
+    }
+
+    public int getPendingCount() {
+        return pendingTokens.size();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getValidated() {
+        return validated.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getFailedBatches() {
+        return failedBatches.sum();
+    }
+
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    /**
+     * Tokens given up after 'maxRetries' failed batches.
+     */
+    public long getAbandoned() {
+        return abandoned.sum();
+    }
+}
@@ -0,0 +1,96 @@
+package applications.payment;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import applications.util.LongPairHashSet;
+
+/**
+ * Sell bids already paid by the payment company, one open-addressing set per
+ * seller keyed by (64-bit token hash, sellBidNumber). Checking and marking a
+ * bid is O(1) and atomic per seller, so two concurrent payment requests for
+ * the same token cannot pay the same bid twice.
+ */
+public class PaidBidIndex {
+
+    private final Map<String, LongPairHashSet> sellersPaidBids = new ConcurrentHashMap<String, LongPairHashSet>();
+
+    /**
+     * 64-bit FNV-1a of the token bytes. Tokens carry 128 random bits, so
+     * collisions between the bids of one seller are negligible.
+     */
+    public static long tokenHash(String token) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : token.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Marks the bid as paid. Returns false if it had already been paid.
+     */
+    public boolean markPaid(String sellerName, String token, long sellBidNumber) {
+        LongPairHashSet paidBids = sellersPaidBids.computeIfAbsent(sellerName, k -> new LongPairHashSet());
+        synchronized (paidBids) {
+            return paidBids.add(tokenHash(token), sellBidNumber);
+        }
+    }
+
+    /**
+     * Takes back the mark of a bid whose payment did not go through, so the
+     * seller can claim it again.
+     */
+    public void unmarkPaid(String sellerName, String token, long sellBidNumber) {
+        LongPairHashSet paidBids = sellersPaidBids.get(sellerName);
+        if (paidBids == null)
+            return;
+        synchronized (paidBids) {
+            paidBids.remove(tokenHash(token), sellBidNumber);
+        }
+    }
+
+    /**
+     * Marks a bid read from a snapshot, where only the token hash is kept.
+     */
+    public void restorePaidBid(String sellerName, long tokenHash, long sellBidNumber) {
+        LongPairHashSet paidBids = sellersPaidBids.computeIfAbsent(sellerName, k -> new LongPairHashSet());
+        synchronized (paidBids) {
+            paidBids.add(tokenHash, sellBidNumber);
+        }
+    }
+
+    public boolean isPaid(String sellerName, String token, long sellBidNumber) {
+        LongPairHashSet paidBids = sellersPaidBids.get(sellerName);
+        if (paidBids == null)
+            return false;
+        synchronized (paidBids) {
+            return paidBids.contains(tokenHash(token), sellBidNumber);
+        }
+    }
+
+    public interface PaidBidConsumer {
+        void accept(String sellerName, long tokenHash, long sellBidNumber);
+    }
+
+    public void forEachPaidBid(PaidBidConsumer consumer) {
+        for (Map.Entry<String, LongPairHashSet> seller : sellersPaidBids.entrySet()) {
+            LongPairHashSet paidBids = seller.getValue();
+            synchronized (paidBids) {
+                paidBids.forEach((tokenHash, sellBidNumber) -> consumer.accept(seller.getKey(), tokenHash,
+                        sellBidNumber));
+            }
+        }
+    }
+
+    public int getPaidBidsCount(String sellerName) {
+        LongPairHashSet paidBids = sellersPaidBids.get(sellerName);
+        if (paidBids == null)
+            return 0;
+        synchronized (paidBids) {
+            return paidBids.size();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package applications.payment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * Buyer side stock of payment tokens. Tokens are bought in bulk from the
+ * payment company '/gettokens' endpoint by a background thread, which tops the
+ * pool up whenever it falls to half its capacity. Taking a token is then a
+ * queue poll and a BuyBid can be submitted without waiting for the payment
+ * company.
+ *
+ * Tokens older than 'maxTokenAgeMillis' are dropped, so a token is never used
+ * after the payment company released its funds.
+ */
+public class PaymentTokenPool {
+
+    private static final long TAKE_TIMEOUT_SECONDS = 30;
+
+    private static final class PooledToken {
+        private final String token;
+        private final long fetchedAt;
+
+        private PooledToken(String token, long fetchedAt) {
+            this.token = token;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final String getTokensUrl;
+    private final String clientName;
+    private final double fundsPerToken;
+    private final int capacity;
+    private final long maxTokenAgeMillis;
+
+    private final BlockingQueue<PooledToken> tokens = new LinkedBlockingQueue<PooledToken>();
+    private final Semaphore refillRequests = new Semaphore(0);
+    private final Thread refiller;
+    private volatile boolean running = true;
+
+    private final LongAdder taken = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+
+    public PaymentTokenPool(String paymentUrl, String clientName, double fundsPerToken, int capacity,
+            long maxTokenAgeMillis) {
+        this.getTokensUrl = paymentUrl + "/gettokens";
+        this.clientName = clientName;
+        this.fundsPerToken = fundsPerToken;
+        this.capacity = capacity;
+        this.maxTokenAgeMillis = maxTokenAgeMillis;
+
+        refiller = new Thread(this::refillLoop, "token-pool-" + clientName);
+        refiller.setDaemon(true);
+        refiller.start();
+        refillRequests.release();
+    }
+
+    /**
+     * Returns a token, waiting only if the pool ran dry.
+     */
+    public String take() throws IOException, InterruptedException {
+        PooledToken pooled = fresh(tokens.poll());
+        if (pooled == null) {
+            waits.increment();
+            refillRequests.release();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TAKE_TIMEOUT_SECONDS);
+            while (pooled == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    throw new IOException("No payment token available for " + clientName);
+                pooled = fresh(tokens.poll(remaining, TimeUnit.NANOSECONDS));
+            }
+        }
+        taken.increment();
+        if (tokens.size() <= capacity / 2)
+            refillRequests.release();
+        return pooled.token;
+    }
+
+    // drops the stale tokens in front of the queue
+    private PooledToken fresh(PooledToken pooled) {
+        long oldest = System.currentTimeMillis() - maxTokenAgeMillis;
+        while (pooled != null && pooled.fetchedAt < oldest) {
+            discarded.increment();
+            pooled = tokens.poll();
+        }
+        return pooled;
+    }
+
+    private void refillLoop() {
+        while (running) {
+            try {
+                refillRequests.tryAcquire(1, TimeUnit.SECONDS);
+                refillRequests.drainPermits();
+
+                int missing = capacity - tokens.size();
+                if (missing <= capacity / 2 && !tokens.isEmpty())
+                    continue;
+                try {
+                    fetch(missing);
+                } catch (IOException e) {
+                    System.out.println("Could not fetch payment tokens for " + clientName + ": " + e.getMessage());
+                    Thread.sleep(1000);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void fetch(int count) throws IOException {
+        byte[] out = Json.createObjectBuilder().add("clientname", clientName).add("funds", fundsPerToken)
+                .add("count", count).build().toString().getBytes(StandardCharsets.UTF_8);
+
+        HttpURLConnection http = (HttpURLConnection) new URL(getTokensUrl).openConnection();
+        http.setRequestMethod("POST");
+        http.setDoOutput(true);
+        http.setFixedLengthStreamingMode(out.length);
+        http.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        try (OutputStream os = http.getOutputStream()) {
+            os.write(out);
+        }
+        requests.increment();
+        if (http.getResponseCode() != 200)
+            throw new IOException("HTTP " + http.getResponseCode());
+
+        String response;
+        try (InputStream in = http.getInputStream()) {
+            response = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        JsonReader reader = Json.createReader(new StringReader(response));
+        JsonObject tokensResponse = reader.readObject();
+        JsonArray fetched = tokensResponse.getJsonArray("tokens");
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < fetched.size(); i++) {
+            tokens.add(new PooledToken(fetched.getString(i), now));
+        }
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    public long getTaken() {
+        return taken.sum();
+    }
+
+    /**
+     * Number of {@link #take()} calls that found the pool empty and waited.
+     */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public void stop() {
+        running = false;
+        refiller.interrupt();
+    }
+}
@@ -0,0 +1,425 @@
+package applications.payment;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVWrite;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo.NsRwsetInfo;
+
+import applications.payment.AccountLedger.Reservation;
+import applications.payment.state.PaymentState;
+import applications.util.HierarchicalTimingWheel;
+import applications.util.LongPairHashSet;
+import applications.util.LongPairLongHashMap;
+
+/**
+ * Issues the payment tokens and retires them. A token is 128 random bits from
+ * a per-thread CSPRNG, written as 22 URL-safe characters (11 per 64-bit half),
+ * so it is as good in a chaincode key as in a JSON field.
+ *
+ * Live tokens are kept by their two 64-bit halves in striped primitive maps,
+ * with their expiry time. A token not used for 'unusedTtlMillis' after being
+ * issued, or 'settledTtlMillis' after its last payment, is released: the funds
+ * left in its reservation go back to the buyer. Expiry times are tracked by a
+ * {@link HierarchicalTimingWheel} advanced by a single thread.
+ *
+ * A token whose BuyBid is still open on the ledger is not released, since a
+ * later auction can match it: its expiry is postponed until the BuyBid is
+ * fully matched or deleted, and the sellers then have 'settledTtlMillis' to
+ * claim their EnergyTransactions. The BuyBids are followed in the committed
+ * blocks, see {@link #buyBidBlockListener(String)}, and whether a token's
+ * BuyBid is open is kept in the {@link PaymentState}, so it survives
+ * restarts.
+ */
+public class TokenService {
+
+    public static final int TOKEN_LENGTH = 22;
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .toCharArray();
+    private static final byte[] DECODING = new byte[128];
+    static {
+        Arrays.fill(DECODING, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODING[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private static final String CHAINCODE_NAME = "energy";
+    private static final int STRIPES = 64;
+    private static final long TICK_MILLIS = 100;
+
+    private static final class RandomSource {
+        private final SecureRandom random;
+        private final byte[] bytes = new byte[16];
+
+        private RandomSource() {
+            SecureRandom instance;
+            try {
+                // one unshared generator per thread, seeded from the system on first use;
+                // the default NativePRNG serializes every thread on a global lock
+                instance = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                instance = new SecureRandom();
+            }
+            random = instance;
+        }
+    }
+
+    private static final ThreadLocal<RandomSource> RANDOM = ThreadLocal.withInitial(RandomSource::new);
+
+    private final PaymentState state;
+    private final long unusedTtlMillis;
+    private final long settledTtlMillis;
+
+    // token halves -> expiry time in millis, and the live tokens whose BuyBid is
+    // open on the ledger; both guarded by the map
+    private final LongPairLongHashMap[] liveTokens = new LongPairLongHashMap[STRIPES];
+    private final LongPairHashSet[] openBuyBids = new LongPairHashSet[STRIPES];
+    private final HierarchicalTimingWheel expiryWheel;
+    private final ScheduledExecutorService ticker;
+
+    private final AtomicInteger liveCount = new AtomicInteger();
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private long lastExpiredSample;
+    private long lastSampleMillis;
+    private volatile double expirationsPerSecond;
+
+    public TokenService(PaymentState state, long unusedTtlMillis, long settledTtlMillis) {
+        this.state = state;
+        this.unusedTtlMillis = unusedTtlMillis;
+        this.settledTtlMillis = settledTtlMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            liveTokens[i] = new LongPairLongHashMap();
+            openBuyBids[i] = new LongPairHashSet();
+        }
+        long now = System.currentTimeMillis();
+        expiryWheel = new HierarchicalTimingWheel(TICK_MILLIS, 4, now);
+        lastSampleMillis = now;
+
+        // reservations recovered from the payment state expire like new ones,
+        // unless their BuyBid is still open
+        state.getLedger().forEachReservation((token, reservation) -> {
+            if (!isWellFormed(token))
+                return;
+            long high = decodeHigh(token);
+            long low = decodeLow(token);
+            if (reservation.isBuyBidOpen())
+                openBuyBids[stripeIndex(high, low)].add(high, low);
+            track(high, low, now + unusedTtlMillis);
+        });
+
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "token-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::expire, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Issues a token covering 'units' of 'clientName' funds. Returns null when
+     * the client has not enough funds.
+     */
+    public String issue(String clientName, long units) throws IOException {
+        String token = issueUnsynced(clientName, units);
+        if (token != null)
+            state.sync();
+        return token;
+    }
+
+    /**
+     * Issues up to 'count' tokens covering 'units' each, as many as the funds
+     * of 'clientName' allow. The reservations are written to disk together.
+     */
+    public List<String> issue(String clientName, long units, int count) throws IOException {
+        List<String> tokens = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            String token = issueUnsynced(clientName, units);
+            if (token == null)
+                break;
+            tokens.add(token);
+        }
+        if (!tokens.isEmpty())
+            state.sync();
+        return tokens;
+    }
+
+    private String issueUnsynced(String clientName, long units) throws IOException {
+        RandomSource source = RANDOM.get();
+        source.random.nextBytes(source.bytes);
+        long high = toLong(source.bytes, 0);
+        long low = toLong(source.bytes, 8);
+        String token = encode(high, low);
+
+        Reservation reservation = state.reserveUnsynced(clientName, token, units);
+        if (reservation == null)
+            return null;
+        issued.increment();
+        track(high, low, System.currentTimeMillis() + unusedTtlMillis);
+        return token;
+    }
+
+    /**
+     * Called after a payment with 'token': the token now expires
+     * 'settledTtlMillis' after its last payment, waiting for the rest of its
+     * BuyBid to be sold in later auctions.
+     */
+    public void settled(String token) {
+        if (!isWellFormed(token))
+            return;
+        long high = decodeHigh(token);
+        long low = decodeLow(token);
+        long deadline = System.currentTimeMillis() + settledTtlMillis;
+        LongPairLongHashMap stripe = stripe(high, low);
+        synchronized (stripe) {
+            if (!stripe.containsKey(high, low))
+                return;
+            stripe.put(high, low, deadline);
+        }
+        synchronized (expiryWheel) {
+            expiryWheel.schedule(high, low, deadline);
+        }
+    }
+
+    /**
+     * Called when a BuyBid registered with 'token' is written to the ledger:
+     * the token is not released while its BuyBid can be matched.
+     */
+    public void buyBidOpened(String token) throws IOException {
+        if (!isWellFormed(token))
+            return;
+        long high = decodeHigh(token);
+        long low = decodeLow(token);
+        int stripe = stripeIndex(high, low);
+        synchronized (liveTokens[stripe]) {
+            if (!liveTokens[stripe].containsKey(high, low) || !openBuyBids[stripe].add(high, low))
+                return;
+        }
+        state.setBuyBidOpen(token, true);
+    }
+
+    /**
+     * Called when the BuyBid of 'token' is deleted from the ledger, fully
+     * matched or not: the token expires 'settledTtlMillis' later, once the
+     * sellers had time to claim the last EnergyTransactions.
+     */
+    public void buyBidClosed(String token) throws IOException {
+        if (!isWellFormed(token))
+            return;
+        long high = decodeHigh(token);
+        long low = decodeLow(token);
+        long deadline = System.currentTimeMillis() + settledTtlMillis;
+        int stripe = stripeIndex(high, low);
+        synchronized (liveTokens[stripe]) {
+            if (!openBuyBids[stripe].remove(high, low))
+                return;
+            liveTokens[stripe].put(high, low, deadline);
+        }
+        state.setBuyBidOpen(token, false);
+        synchronized (expiryWheel) {
+            expiryWheel.schedule(high, low, deadline);
+        }
+    }
+
+    /**
+     * Finds the writes and deletes of the BuyBids registered with tokens of
+     * 'mspIDPaymentCompany' in the valid transactions of every committed block.
+     */
+    public Consumer<BlockEvent> buyBidBlockListener(String mspIDPaymentCompany) {
+        // composite keys "BuyBid[validated, mspPaymentCompany, token]"
+        String buyBidPrefix = "\u0000BuyBid\u0000";
+        String companySeparator = "\u0000" + mspIDPaymentCompany + "\u0000";
+        return blockEvent -> {
+            try {
+                for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+                    if (!transactionEvent.isValid())
+                        continue;
+                    for (TransactionActionInfo actionInfo : transactionEvent.getTransactionActionInfos()) {
+                        TxReadWriteSetInfo readWriteSet = actionInfo.getTxReadWriteSet();
+                        if (readWriteSet == null)
+                            continue;
+                        for (NsRwsetInfo nsRwsetInfo : readWriteSet.getNsRwsetInfos()) {
+                            if (!CHAINCODE_NAME.equals(nsRwsetInfo.getNamespace()))
+                                continue;
+                            Set<String> opened = new HashSet<String>();
+                            List<String> closed = new ArrayList<String>();
+                            for (KVWrite kv : nsRwsetInfo.getRwset().getWritesList()) {
+                                String key = kv.getKey();
+                                if (!key.startsWith(buyBidPrefix))
+                                    continue;
+                                int company = key.indexOf(companySeparator, buyBidPrefix.length());
+                                if (company < 0)
+                                    continue;
+                                String token = key.substring(company + companySeparator.length(),
+                                        key.length() - 1);
+                                if (kv.getIsDelete())
+                                    closed.add(token);
+                                else
+                                    opened.add(token);
+                            }
+                            for (String token : opened) {
+                                buyBidOpened(token);
+                            }
+                            // a validation deletes the unvalidated key and writes the
+                            // validated one in the same transaction
+                            for (String token : closed) {
+                                if (!opened.contains(token))
+                                    buyBidClosed(token);
+                            }
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("Could not read the BuyBids of block " + blockEvent.getBlockNumber());
+                e.printStackTrace();
+            }
+        };
+    }
+
+    private void track(long high, long low, long deadline) {
+        LongPairLongHashMap stripe = stripe(high, low);
+        synchronized (stripe) {
+            if (stripe.put(high, low, deadline))
+                liveCount.incrementAndGet();
+        }
+        synchronized (expiryWheel) {
+            expiryWheel.schedule(high, low, deadline);
+        }
+    }
+
+    private static int stripeIndex(long high, long low) {
+        return (int) LongPairHashSet.mix(high, low) & (STRIPES - 1);
+    }
+
+    private LongPairLongHashMap stripe(long high, long low) {
+        return liveTokens[stripeIndex(high, low)];
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        List<String> expiredTokens = new ArrayList<String>();
+
+        // fired timers are checked against the live map: a token settled after it
+        // was scheduled has a later deadline, and a newer timer
+        synchronized (expiryWheel) {
+            expiryWheel.advance(now, (high, low) -> {
+                int stripe = stripeIndex(high, low);
+                synchronized (liveTokens[stripe]) {
+                    if (liveTokens[stripe].get(high, low, Long.MAX_VALUE) > now)
+                        return;
+                    // its BuyBid can still be matched, the token waits for it to close
+                    if (openBuyBids[stripe].contains(high, low)) {
+                        liveTokens[stripe].put(high, low, now + settledTtlMillis);
+                        expiryWheel.schedule(high, low, now + settledTtlMillis);
+                        return;
+                    }
+                    liveTokens[stripe].remove(high, low);
+                }
+                expiredTokens.add(encode(high, low));
+            });
+        }
+
+        // releasing may wait for the write-ahead log, not with the wheel locked
+        for (String token : expiredTokens) {
+            liveCount.decrementAndGet();
+            expired.increment();
+            try {
+                state.release(token);
+            } catch (Exception e) {
+                System.out.println("Could not release the expired token " + token);
+                e.printStackTrace();
+            }
+        }
+
+        if (now - lastSampleMillis >= 1000) {
+            long expiredNow = expired.sum();
+            expirationsPerSecond = (expiredNow - lastExpiredSample) * 1000.0 / (now - lastSampleMillis);
+            lastExpiredSample = expiredNow;
+            lastSampleMillis = now;
+        }
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    public static String encode(long high, long low) {
+        char[] chars = new char[TOKEN_LENGTH];
+        for (int i = 10; i >= 0; i--) {
+            chars[i] = ALPHABET[(int) (high & 63)];
+            high >>>= 6;
+            chars[11 + i] = ALPHABET[(int) (low & 63)];
+            low >>>= 6;
+        }
+        return new String(chars);
+    }
+
+    public static boolean isWellFormed(String token) {
+        if (token.length() != TOKEN_LENGTH)
+            return false;
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            char c = token.charAt(i);
+            if (c >= 128 || DECODING[c] < 0)
+                return false;
+        }
+        // the first character of each half only carries 4 bits
+        return DECODING[token.charAt(0)] < 16 && DECODING[token.charAt(11)] < 16;
+    }
+
+    private static long decode(String token, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 11; i++) {
+            value = (value << 6) | DECODING[token.charAt(i)];
+        }
+        return value;
+    }
+
+    public static long decodeHigh(String token) {
+        return decode(token, 0);
+    }
+
+    public static long decodeLow(String token) {
+        return decode(token, 11);
+    }
+
+    public int getLiveCount() {
+        return liveCount.get();
+    }
+
+    public long getIssued() {
+        return issued.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public double getExpirationsPerSecond() {
+        return expirationsPerSecond;
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+    }
+}
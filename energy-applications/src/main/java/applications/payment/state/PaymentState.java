@@ -0,0 +1,381 @@
+package applications.payment.state;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import applications.payment.AccountLedger;
+import applications.payment.AccountLedger.Reservation;
+import applications.payment.PaidBidIndex;
+
+/**
+ * The payment company state ({@link AccountLedger} and {@link PaidBidIndex})
+ * made durable. Every successful deposit, token reservation, seller payment,
+ * release and change of the BuyBid of a token is appended to the
+ * {@link WriteAheadLog} and synced before the call returns. A {@link StateSnapshot} is written periodically so the log
+ * can be truncated.
+ *
+ * Mutations hold the read side of a lock while they change the memory and
+ * append their record, not while they wait for the disk. A snapshot takes
+ * the write side just long enough to roll the log and copy the state, so the
+ * copy matches exactly the log segments it replaces.
+ *
+ * Without a state directory nothing is logged and the state lives only in
+ * memory, as before.
+ */
+public class PaymentState implements Closeable {
+
+    private static final byte DEPOSIT = 1;
+    private static final byte RESERVE = 2;
+    private static final byte PAY = 3;
+    private static final byte RELEASE = 4;
+    private static final byte BUYBID_OPEN = 5;
+    private static final byte BUYBID_CLOSED = 6;
+
+    private static final ThreadLocal<ByteBuffer> RECORD = ThreadLocal.withInitial(() -> ByteBuffer.allocate(512));
+
+    private final AccountLedger ledger = new AccountLedger();
+    private final PaidBidIndex paidBidIndex = new PaidBidIndex();
+    private final Path directory;
+    private final WriteAheadLog wal;
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService snapshotter;
+    private volatile long lastSnapshotAppends;
+
+    private PaymentState(Path directory, int segmentSize, long snapshotIntervalSeconds) throws IOException {
+        this.directory = directory;
+        if (directory == null) {
+            wal = null;
+            snapshotter = null;
+            return;
+        }
+
+        Files.createDirectories(directory);
+        long start = System.currentTimeMillis();
+
+        long fromSegment = StateSnapshot.latest(directory);
+        if (fromSegment >= 0)
+            StateSnapshot.load(directory, fromSegment, ledger, paidBidIndex);
+        else
+            fromSegment = 0;
+
+        long[] replayed = new long[1];
+        long lastSegment = WriteAheadLog.replay(directory, fromSegment, payload -> {
+            apply(payload);
+            replayed[0]++;
+        });
+        wal = new WriteAheadLog(directory, segmentSize, Math.max(fromSegment, lastSegment + 1));
+
+        System.out.println(String.format(
+                "Payment state recovered in %d ms: %d accounts, %d reservations, %d log records replayed",
+                System.currentTimeMillis() - start, ledger.getAccountCount(), ledger.getReservationCount(),
+                replayed[0]));
+
+        // compact right away, the next restart will not replay the same records
+        if (replayed[0] > 0)
+            snapshot();
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "payment-state-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                if (wal.getAppends() != lastSnapshotAppends)
+                    snapshot();
+            } catch (Exception e) {
+                System.out.println("Could not write the payment state snapshot");
+                e.printStackTrace();
+            }
+        }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static PaymentState inMemory() throws IOException {
+        return new PaymentState(null, 0, 0);
+    }
+
+    /**
+     * Recovers the state kept in 'directory', if any, and logs every mutation
+     * made from now on there.
+     */
+    public static PaymentState open(Path directory, int segmentSize, long snapshotIntervalSeconds)
+            throws IOException {
+        return new PaymentState(directory, segmentSize, snapshotIntervalSeconds);
+    }
+
+    public boolean isDurable() {
+        return wal != null;
+    }
+
+    public AccountLedger getLedger() {
+        return ledger;
+    }
+
+    public PaidBidIndex getPaidBidIndex() {
+        return paidBidIndex;
+    }
+
+    public void deposit(String clientName, long units) throws IOException {
+        if (wal == null) {
+            ledger.deposit(clientName, units);
+            return;
+        }
+        byte[] client = WriteAheadLog.stringBytes(clientName);
+        long position;
+        snapshotLock.readLock().lock();
+        try {
+            ledger.deposit(clientName, units);
+            ByteBuffer record = record(client.length + 8);
+            record.put(DEPOSIT);
+            WriteAheadLog.putString(record, client);
+            record.putLong(units);
+            position = append(record);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        wal.sync(position);
+    }
+
+    /**
+     * See {@link AccountLedger#reserve(String, String, long)}.
+     */
+    public Reservation reserve(String clientName, String token, long units) throws IOException {
+        Reservation reservation = reserveUnsynced(clientName, token, units);
+        if (reservation != null)
+            sync();
+        return reservation;
+    }
+
+    /**
+     * Like {@link #reserve(String, String, long)}, without waiting for the
+     * disk: the caller must {@link #sync()} before handing the token out. Many
+     * tokens issued at once then share one flush.
+     */
+    public Reservation reserveUnsynced(String clientName, String token, long units) throws IOException {
+        if (wal == null)
+            return ledger.reserve(clientName, token, units);
+
+        byte[] client = WriteAheadLog.stringBytes(clientName);
+        byte[] tokenBytes = WriteAheadLog.stringBytes(token);
+        Reservation reservation;
+        snapshotLock.readLock().lock();
+        try {
+            reservation = ledger.reserve(clientName, token, units);
+            if (reservation == null)
+                return null;
+            ByteBuffer record = record(client.length + tokenBytes.length + 8);
+            record.put(RESERVE);
+            WriteAheadLog.putString(record, client);
+            WriteAheadLog.putString(record, tokenBytes);
+            record.putLong(units);
+            append(record);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        return reservation;
+    }
+
+    /**
+     * Waits until every mutation made so far is on disk.
+     */
+    public void sync() throws IOException {
+        if (wal != null)
+            wal.sync(wal.getAppendedPosition());
+    }
+
+    /**
+     * Marks the sell bid as paid and pays the seller up to 'units' from the
+     * reservation of 'token'. Returns the amount paid, 0 if the bid had already
+     * been paid or nothing could be settled.
+     *
+     * The mark comes first, so two concurrent claims cannot settle the same
+     * bid, and is taken back when nothing was settled: a reservation released
+     * or exhausted does not turn the bid into an "already paid" one. Only
+     * effective payments are logged.
+     */
+    public long pay(String sellerName, String token, long sellBidNumber, long units) throws IOException {
+        if (wal == null)
+            return markAndSettle(sellerName, token, sellBidNumber, units);
+
+        byte[] seller = WriteAheadLog.stringBytes(sellerName);
+        byte[] tokenBytes = WriteAheadLog.stringBytes(token);
+        long paid, position;
+        snapshotLock.readLock().lock();
+        try {
+            paid = markAndSettle(sellerName, token, sellBidNumber, units);
+            if (paid == 0)
+                return 0;
+            ByteBuffer record = record(seller.length + tokenBytes.length + 16);
+            record.put(PAY);
+            WriteAheadLog.putString(record, seller);
+            WriteAheadLog.putString(record, tokenBytes);
+            record.putLong(sellBidNumber);
+            record.putLong(paid);
+            position = append(record);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        wal.sync(position);
+        return paid;
+    }
+
+    private long markAndSettle(String sellerName, String token, long sellBidNumber, long units) {
+        if (!paidBidIndex.markPaid(sellerName, token, sellBidNumber))
+            return 0;
+        long paid = 0;
+        try {
+            paid = ledger.settle(token, sellerName, units);
+        } finally {
+            if (paid == 0)
+                paidBidIndex.unmarkPaid(sellerName, token, sellBidNumber);
+        }
+        return paid;
+    }
+
+    /**
+     * See {@link AccountLedger#release(String)}.
+     */
+    public long release(String token) throws IOException {
+        if (wal == null)
+            return ledger.release(token);
+
+        byte[] tokenBytes = WriteAheadLog.stringBytes(token);
+        long released, position;
+        snapshotLock.readLock().lock();
+        try {
+            if (ledger.getReservation(token) == null)
+                return 0;
+            released = ledger.release(token);
+            ByteBuffer record = record(tokenBytes.length);
+            record.put(RELEASE);
+            WriteAheadLog.putString(record, tokenBytes);
+            position = append(record);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        wal.sync(position);
+        return released;
+    }
+
+    /**
+     * Records whether the BuyBid of 'token' is open on the ledger, so the
+     * reservation is not released after a restart while the BuyBid can still
+     * be matched. See {@link AccountLedger#setBuyBidOpen(String, boolean)}.
+     */
+    public boolean setBuyBidOpen(String token, boolean open) throws IOException {
+        if (wal == null)
+            return ledger.setBuyBidOpen(token, open);
+
+        byte[] tokenBytes = WriteAheadLog.stringBytes(token);
+        long position;
+        snapshotLock.readLock().lock();
+        try {
+            if (!ledger.setBuyBidOpen(token, open))
+                return false;
+            ByteBuffer record = record(tokenBytes.length);
+            record.put(open ? BUYBID_OPEN : BUYBID_CLOSED);
+            WriteAheadLog.putString(record, tokenBytes);
+            position = append(record);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        wal.sync(position);
+        return true;
+    }
+
+    // type byte and string lengths come on top of 'size'
+    private static ByteBuffer record(int size) {
+        ByteBuffer record = RECORD.get();
+        if (record.capacity() < size + 8) {
+            record = ByteBuffer.allocate(Math.max(size + 8, record.capacity() * 2));
+            RECORD.set(record);
+        }
+        record.clear();
+        return record;
+    }
+
+    private long append(ByteBuffer record) throws IOException {
+        record.flip();
+        return wal.append(record);
+    }
+
+    private void apply(ByteBuffer record) {
+        switch (record.get()) {
+            case DEPOSIT:
+                ledger.deposit(WriteAheadLog.getString(record), record.getLong());
+                break;
+            case RESERVE: {
+                String clientName = WriteAheadLog.getString(record);
+                ledger.replayReserve(clientName, WriteAheadLog.getString(record), record.getLong());
+                break;
+            }
+            case PAY: {
+                String sellerName = WriteAheadLog.getString(record);
+                String token = WriteAheadLog.getString(record);
+                long sellBidNumber = record.getLong();
+                long paid = record.getLong();
+                // logs written before failed payments were left out may hold some
+                if (paid == 0)
+                    break;
+                paidBidIndex.markPaid(sellerName, token, sellBidNumber);
+                ledger.replaySettle(token, sellerName, paid);
+                break;
+            }
+            case RELEASE:
+                ledger.release(WriteAheadLog.getString(record));
+                break;
+            case BUYBID_OPEN:
+                ledger.setBuyBidOpen(WriteAheadLog.getString(record), true);
+                break;
+            case BUYBID_CLOSED:
+                ledger.setBuyBidOpen(WriteAheadLog.getString(record), false);
+                break;
+            default:
+                throw new IllegalStateException("Unknown payment state record");
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current state and drops the log segments and
+     * snapshots it replaces.
+     */
+    public synchronized void snapshot() throws IOException {
+        StateSnapshot snapshot;
+        long appends;
+        snapshotLock.writeLock().lock();
+        try {
+            appends = wal.getAppends();
+            snapshot = StateSnapshot.capture(ledger, paidBidIndex, wal.roll());
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+
+        snapshot.writeTo(directory);
+        lastSnapshotAppends = appends;
+        StateSnapshot.deleteOlderThan(directory, snapshot.getNextSegment());
+        wal.deleteSegmentsBefore(snapshot.getNextSegment());
+    }
+
+    public long getLogAppends() {
+        return wal == null ? 0 : wal.getAppends();
+    }
+
+    public long getLogFlushes() {
+        return wal == null ? 0 : wal.getFlushes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (wal == null)
+            return;
+        snapshotter.shutdownNow();
+        wal.close();
+    }
+}
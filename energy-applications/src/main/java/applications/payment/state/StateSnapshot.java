@@ -0,0 +1,255 @@
+package applications.payment.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import applications.payment.AccountLedger;
+import applications.payment.PaidBidIndex;
+
+/**
+ * Compact image of the payment company state: balances, open reservations,
+ * whether their BuyBids are open, and paid bids. A snapshot named 'snapshot-<n>.bin' holds every mutation logged
+ * before the write-ahead log segment 'n', so recovery loads it and replays the
+ * segments from 'n' on.
+ *
+ * {@link #capture} only copies references and numbers into arrays, it is the
+ * part that runs with the mutations stopped. Encoding and writing the file
+ * happen afterwards.
+ */
+public class StateSnapshot {
+
+    // snapshots written before the BuyBid flag of the reservations have MAGIC_V1
+    private static final int MAGIC_V1 = 0x45505331;
+    private static final int MAGIC = 0x45505332;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+
+    private final long nextSegment;
+
+    private int accountCount;
+    private String[] accountNames = new String[16];
+    private long[] balances = new long[16];
+
+    private int reservationCount;
+    private String[] reservationTokens = new String[16];
+    private String[] reservationOwners = new String[16];
+    private long[] reservationAmounts = new long[16];
+    private long[] reservationRemaining = new long[16];
+    private boolean[] reservationBuyBidOpen = new boolean[16];
+
+    private int paidBidCount;
+    private String[] paidBidSellers = new String[16];
+    private long[] paidBidKeys = new long[32];
+
+    private StateSnapshot(long nextSegment) {
+        this.nextSegment = nextSegment;
+    }
+
+    public static StateSnapshot capture(AccountLedger ledger, PaidBidIndex paidBidIndex, long nextSegment) {
+        StateSnapshot snapshot = new StateSnapshot(nextSegment);
+        ledger.forEachAccount(account -> snapshot.addAccount(account.getClientName(), account.getBalance()));
+        ledger.forEachReservation((token, reservation) -> snapshot.addReservation(token,
+                reservation.getClientName(), reservation.getAmount(), reservation.getRemaining(),
+                reservation.isBuyBidOpen()));
+        paidBidIndex.forEachPaidBid(snapshot::addPaidBid);
+        return snapshot;
+    }
+
+    private void addAccount(String clientName, long balance) {
+        if (accountCount == accountNames.length) {
+            accountNames = Arrays.copyOf(accountNames, accountCount * 2);
+            balances = Arrays.copyOf(balances, accountCount * 2);
+        }
+        accountNames[accountCount] = clientName;
+        balances[accountCount++] = balance;
+    }
+
+    private void addReservation(String token, String clientName, long amount, long remaining,
+            boolean buyBidOpen) {
+        if (reservationCount == reservationTokens.length) {
+            int capacity = reservationCount * 2;
+            reservationTokens = Arrays.copyOf(reservationTokens, capacity);
+            reservationOwners = Arrays.copyOf(reservationOwners, capacity);
+            reservationAmounts = Arrays.copyOf(reservationAmounts, capacity);
+            reservationRemaining = Arrays.copyOf(reservationRemaining, capacity);
+            reservationBuyBidOpen = Arrays.copyOf(reservationBuyBidOpen, capacity);
+        }
+        reservationTokens[reservationCount] = token;
+        reservationOwners[reservationCount] = clientName;
+        reservationAmounts[reservationCount] = amount;
+        reservationRemaining[reservationCount] = remaining;
+        reservationBuyBidOpen[reservationCount++] = buyBidOpen;
+    }
+
+    private void addPaidBid(String sellerName, long tokenHash, long sellBidNumber) {
+        if (paidBidCount == paidBidSellers.length) {
+            paidBidSellers = Arrays.copyOf(paidBidSellers, paidBidCount * 2);
+            paidBidKeys = Arrays.copyOf(paidBidKeys, paidBidCount * 4);
+        }
+        paidBidSellers[paidBidCount] = sellerName;
+        paidBidKeys[2 * paidBidCount] = tokenHash;
+        paidBidKeys[2 * paidBidCount++ + 1] = sellBidNumber;
+    }
+
+    public long getNextSegment() {
+        return nextSegment;
+    }
+
+    private static Path path(Path directory, long nextSegment) {
+        return directory.resolve(String.format("%s%016d%s", PREFIX, nextSegment, SUFFIX));
+    }
+
+    /**
+     * Writes the snapshot next to the log. The file only gets its final name
+     * once it is complete and on disk.
+     */
+    public void writeTo(Path directory) throws IOException {
+        Path target = path(directory, nextSegment);
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+
+        CRC32 crc = new CRC32();
+        try (OutputStream file = Files.newOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), crc));
+            out.writeInt(MAGIC);
+            out.writeLong(nextSegment);
+
+            out.writeInt(accountCount);
+            for (int i = 0; i < accountCount; i++) {
+                out.writeUTF(accountNames[i]);
+                out.writeLong(balances[i]);
+            }
+
+            out.writeInt(reservationCount);
+            for (int i = 0; i < reservationCount; i++) {
+                out.writeUTF(reservationTokens[i]);
+                out.writeUTF(reservationOwners[i]);
+                out.writeLong(reservationAmounts[i]);
+                out.writeLong(reservationRemaining[i]);
+                out.writeBoolean(reservationBuyBidOpen[i]);
+            }
+
+            // paid bids of the same seller are consecutive, the name is written once
+            // per run
+            out.writeInt(paidBidCount);
+            int i = 0;
+            while (i < paidBidCount) {
+                int run = i;
+                while (run < paidBidCount && paidBidSellers[run] == paidBidSellers[i])
+                    run++;
+                out.writeUTF(paidBidSellers[i]);
+                out.writeInt(run - i);
+                for (; i < run; i++) {
+                    out.writeLong(paidBidKeys[2 * i]);
+                    out.writeLong(paidBidKeys[2 * i + 1]);
+                }
+            }
+
+            // the checksum covers everything written before it
+            out.flush();
+            new DataOutputStream(file).writeLong(crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the number in the name of the newest snapshot, or -1 when there
+     * is none.
+     */
+    public static long latest(Path directory) throws IOException {
+        long latest = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                latest = Math.max(latest,
+                        Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Loads the snapshot 'nextSegment' into empty 'ledger' and 'paidBidIndex'.
+     */
+    public static void load(Path directory, long nextSegment, AccountLedger ledger, PaidBidIndex paidBidIndex)
+            throws IOException {
+        Path file = path(directory, nextSegment);
+        CRC32 crc = new CRC32();
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(stream, crc));
+            int magic = in.readInt();
+            if ((magic != MAGIC && magic != MAGIC_V1) || in.readLong() != nextSegment)
+                throw new IOException("Not a payment state snapshot: " + file);
+
+            int accounts = in.readInt();
+            for (int i = 0; i < accounts; i++) {
+                ledger.restoreAccount(in.readUTF(), in.readLong());
+            }
+
+            int reservations = in.readInt();
+            for (int i = 0; i < reservations; i++) {
+                String token = in.readUTF();
+                String clientName = in.readUTF();
+                long amount = in.readLong();
+                long remaining = in.readLong();
+                ledger.restoreReservation(clientName, token, amount, remaining,
+                        magic != MAGIC_V1 && in.readBoolean());
+            }
+
+            int paidBids = in.readInt();
+            int read = 0;
+            while (read < paidBids) {
+                String sellerName = in.readUTF();
+                int run = in.readInt();
+                for (int i = 0; i < run; i++) {
+                    paidBidIndex.restorePaidBid(sellerName, in.readLong(), in.readLong());
+                }
+                read += run;
+            }
+
+            long expected = crc.getValue();
+            if (new DataInputStream(stream).readLong() != expected)
+                throw new IOException("Corrupted payment state snapshot: " + file);
+        }
+    }
+
+    public static void deleteOlderThan(Path directory, long nextSegment) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())) < nextSegment)
+                    Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public int getAccountCount() {
+        return accountCount;
+    }
+
+    public int getReservationCount() {
+        return reservationCount;
+    }
+
+    public int getPaidBidCount() {
+        return paidBidCount;
+    }
+}
@@ -0,0 +1,281 @@
+package applications.payment.state;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the payment company mutations, written to memory-mapped
+ * segment files of a fixed size ('wal-<number>.log').
+ *
+ * Appending only copies the record to the mapped segment. Durability is
+ * obtained with {@link #sync(long)}: a single flusher thread forces the
+ * segment to disk for every caller waiting at that moment, so concurrent
+ * mutations share one disk flush (group commit).
+ *
+ * A record is [payload length][CRC32 of the payload][payload]. Reading stops
+ * at the first zero length or bad checksum, which is where a crash cut the
+ * last write. A recovered segment is never appended to again: the log goes on
+ * in a new segment.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+
+    private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new);
+
+    private final Path directory;
+    private final int segmentSize;
+
+    // guarded by 'this'
+    private long segmentNumber;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long appended;
+
+    // guarded by 'syncLock'
+    private final Object syncLock = new Object();
+    private long syncRequested;
+    private volatile long durable;
+    private volatile boolean open = true;
+
+    private final Thread flusher;
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    public interface RecordConsumer {
+        void accept(ByteBuffer payload) throws IOException;
+    }
+
+    public WriteAheadLog(Path directory, int segmentSize, long firstSegmentNumber) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        openSegment(firstSegmentNumber);
+
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private static Path segmentPath(Path directory, long segmentNumber) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+    }
+
+    private void openSegment(long number) throws IOException {
+        segmentNumber = number;
+        channel = FileChannel.open(segmentPath(directory, number), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    /**
+     * Appends a record with the bytes of 'payload' between its position and
+     * limit. Returns the log position to pass to {@link #sync(long)}.
+     */
+    public synchronized long append(ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        if (HEADER_SIZE + length > segmentSize)
+            throw new IOException("Record of " + length + " bytes does not fit a log segment");
+        if (segment.remaining() < HEADER_SIZE + length)
+            roll();
+
+        CRC32 crc = CRC.get();
+        crc.reset();
+        crc.update(payload.duplicate());
+
+        segment.putInt(length);
+        segment.putInt((int) crc.getValue());
+        segment.put(payload);
+        appended += HEADER_SIZE + length;
+        appends.increment();
+        return appended;
+    }
+
+    /**
+     * Closes the current segment and continues in a new one. Returns the new
+     * segment number: a snapshot taken now only needs the segments from it on.
+     */
+    public synchronized long roll() throws IOException {
+        segment.force();
+        channel.close();
+        openSegment(segmentNumber + 1);
+        return segmentNumber;
+    }
+
+    /**
+     * Waits until every record up to 'position' is on disk.
+     */
+    public void sync(long position) throws IOException {
+        if (durable >= position)
+            return;
+        synchronized (syncLock) {
+            if (position > syncRequested) {
+                syncRequested = position;
+                syncLock.notifyAll();
+            }
+            while (durable < position) {
+                if (!open)
+                    throw new IOException("Write-ahead log closed");
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the write-ahead log");
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (open) {
+            try {
+                synchronized (syncLock) {
+                    while (open && syncRequested <= durable)
+                        syncLock.wait();
+                }
+                long target;
+                MappedByteBuffer toForce;
+                synchronized (this) {
+                    target = appended;
+                    toForce = segment;
+                }
+                // a roll forces the previous segment itself
+                toForce.force();
+                flushes.increment();
+                synchronized (syncLock) {
+                    durable = target;
+                    syncLock.notifyAll();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    public void deleteSegmentsBefore(long segmentNumber) {
+        for (long number : listSegments(directory)) {
+            if (number >= segmentNumber)
+                break;
+            try {
+                Files.deleteIfExists(segmentPath(directory, number));
+            } catch (IOException e) {
+                // still mapped on some platforms, replay skips it anyway
+            }
+        }
+    }
+
+    public static List<Long> listSegments(Path directory) {
+        List<Long> numbers = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        } catch (IOException e) {
+            return numbers;
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Reads every record of the segments numbered 'fromSegment' or more, in
+     * order. Returns the last segment number read, or 'fromSegment - 1' if
+     * there was none.
+     */
+    public static long replay(Path directory, long fromSegment, RecordConsumer consumer) throws IOException {
+        long last = fromSegment - 1;
+        for (long number : listSegments(directory)) {
+            if (number < fromSegment)
+                continue;
+            last = number;
+            try (FileChannel segmentChannel = FileChannel.open(segmentPath(directory, number),
+                    StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+                CRC32 crc = CRC.get();
+                while (buffer.remaining() >= HEADER_SIZE) {
+                    int length = buffer.getInt();
+                    int checksum = buffer.getInt();
+                    if (length <= 0 || length > buffer.remaining())
+                        break;
+                    ByteBuffer payload = buffer.slice();
+                    payload.limit(length);
+                    crc.reset();
+                    crc.update(payload.duplicate());
+                    if ((int) crc.getValue() != checksum)
+                        break;
+                    consumer.accept(payload);
+                    buffer.position(buffer.position() + length);
+                }
+            }
+        }
+        return last;
+    }
+
+    public long getAppends() {
+        return appends.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public synchronized long getAppendedPosition() {
+        return appended;
+    }
+
+    public synchronized long getSegmentNumber() {
+        return segmentNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            segment.force();
+            channel.close();
+        }
+        synchronized (syncLock) {
+            durable = Math.max(durable, syncRequested);
+            open = false;
+            syncLock.notifyAll();
+        }
+        flusher.interrupt();
+    }
+
+    // record encoding helpers
+
+    static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    static byte[] stringBytes(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff)
+            throw new IllegalArgumentException("String too long for the write-ahead log");
+        return bytes;
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -60,6 +60,33 @@ public class ArgParserSellerTest {
         inAwsNetwork.setArgs(0);
         options.addOption(inAwsNetwork);
 
+        Option loadEngine = new Option("loadengine", "loadengine", true,
+                "How the sellers are run: 'wheel' (timers over a small thread pool, default) or 'virtual' (one virtual thread each, needs JDK 21)");
+        options.addOption(loadEngine);
+
+        Option loadWorkers = new Option("loadworkers", "loadworkers", true,
+                "Threads running the steps of the sellers in 'wheel' mode (default: 2 x number of processors)");
+        options.addOption(loadWorkers);
+
+        Option arrivals = new Option("arrivals", "arrivals", true,
+                "When each seller sends: 'closed' (an interval after its previous transaction completed, default), 'constant' or 'poisson' (on a fixed or exponential schedule of that mean interval, whatever the latency, which is measured from the scheduled time)");
+        options.addOption(arrivals);
+
+        Option ledgerThreads = new Option("ledgerthreads", "ledgerthreads", true,
+                "Threads endorsing and ordering the transactions, commits are awaited without holding one (default: 16)");
+        options.addOption(ledgerThreads);
+
+        Option commitTimeout = new Option("committimeout", "committimeout", true, "Timeout in SECONDS to wait for commit transaction (default: 300)");
+        options.addOption(commitTimeout);
+
+        Option reportDir = new Option("reportdir", "reportdir", true,
+                "Test report dir where the latency histograms are written, as an HdrHistogram interval log and a summary (default: none)");
+        options.addOption(reportDir);
+
+        Option reportInterval = new Option("reportinterval", "reportinterval", true,
+                "Interval IN SECONDS between two histograms of the latency log (default: 10)");
+        options.addOption(reportInterval);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         formatter.setLongOptSeparator("\n");
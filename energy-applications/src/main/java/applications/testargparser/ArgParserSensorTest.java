@@ -63,6 +63,42 @@ public class ArgParserSensorTest {
         Option commitTimeout = new Option("committimeout", "committimeout", true, "Timeout in SECONS to wait for commit transaction");
         options.addOption(commitTimeout);
 
+        Option loadEngine = new Option("loadengine", "loadengine", true,
+                "How the sensors are run: 'wheel' (timers over a small thread pool, default) or 'virtual' (one virtual thread each, needs JDK 21)");
+        options.addOption(loadEngine);
+
+        Option loadWorkers = new Option("loadworkers", "loadworkers", true,
+                "Threads running the steps of the sensors in 'wheel' mode (default: 2 x number of processors)");
+        options.addOption(loadWorkers);
+
+        Option arrivals = new Option("arrivals", "arrivals", true,
+                "When each sensor sends: 'closed' (an interval after its previous transaction completed, default), 'constant' or 'poisson' (on a fixed or exponential schedule of that mean interval, whatever the latency, which is measured from the scheduled time)");
+        options.addOption(arrivals);
+
+        Option inFlight = new Option("inflight", "inflight", true,
+                "SmartData each sensor keeps waiting for their commit: over 1, the next one is published once the previous one is ordered and fewer are waiting (default: 1)");
+        options.addOption(inFlight);
+
+        Option batchSize = new Option("batchsize", "batchsize", true,
+                "SmartData each sensor publishes per transaction: over 1, they go in one 'publishSensorDataBatch' call (default: 1)");
+        options.addOption(batchSize);
+
+        Option batchAge = new Option("batchage", "batchage", true,
+                "Milliseconds a SmartData waits at most for its batch to fill up before it is published (default: 2000)");
+        options.addOption(batchAge);
+
+        Option ledgerThreads = new Option("ledgerthreads", "ledgerthreads", true,
+                "Threads endorsing and ordering the transactions, commits are awaited without holding one (default: 16)");
+        options.addOption(ledgerThreads);
+
+        Option reportDir = new Option("reportdir", "reportdir", true,
+                "Test report dir where the latency histograms are written, as an HdrHistogram interval log and a summary (default: none)");
+        options.addOption(reportDir);
+
+        Option reportInterval = new Option("reportinterval", "reportinterval", true,
+                "Interval IN SECONDS between two histograms of the latency log (default: 10)");
+        options.addOption(reportInterval);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         formatter.setLongOptSeparator("\n");
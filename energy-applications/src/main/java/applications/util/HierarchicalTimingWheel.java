@@ -0,0 +1,126 @@
+package applications.util;
+
+import java.util.Arrays;
+
+import applications.util.LongPairHashSet.LongPairConsumer;
+
+/**
+ * Timers identified by (long, long) pairs, kept in a hierarchy of wheels of 64
+ * slots. The first wheel has one slot per tick, each wheel above has slots 64
+ * times wider. Scheduling is O(1) and a timer is moved down at most once per
+ * level, so millions of timers cost a few primitive arrays and no object per
+ * timer.
+ *
+ * Timers cannot be cancelled: the owner checks when one fires whether it still
+ * matters, and schedules a new one to postpone it. Not thread safe.
+ */
+public class HierarchicalTimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+
+    private final long tickMillis;
+    private final int levels;
+    private long currentTick;
+
+    // entries are (k1, k2, deadline tick) triples
+    private final long[][] slotEntries;
+    private final int[] slotSizes;
+    private int size;
+
+    public HierarchicalTimingWheel(long tickMillis, int levels, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.levels = levels;
+        this.currentTick = startMillis / tickMillis;
+        this.slotEntries = new long[levels * SLOTS][];
+        this.slotSizes = new int[levels * SLOTS];
+    }
+
+    /**
+     * The timer fires on the first tick at or after 'deadlineMillis', never
+     * before it.
+     */
+    public void schedule(long k1, long k2, long deadlineMillis) {
+        long deadlineTick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        insert(k1, k2, Math.max(deadlineTick, currentTick + 1));
+        size++;
+    }
+
+    private void insert(long k1, long k2, long deadlineTick) {
+        long delta = deadlineTick - currentTick;
+        int level = 0;
+        while (level < levels - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+            level++;
+        // beyond the last wheel the timer waits in its farthest slot and is
+        // placed again when it comes down
+        long placedTick = Math.min(deadlineTick, currentTick + (1L << (SLOT_BITS * levels)) - 1);
+        int slot = level * SLOTS + ((int) (placedTick >>> (SLOT_BITS * level)) & MASK);
+
+        long[] entries = slotEntries[slot];
+        int used = slotSizes[slot];
+        if (entries == null) {
+            entries = new long[3 * 4];
+            slotEntries[slot] = entries;
+        } else if (3 * used == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+            slotEntries[slot] = entries;
+        }
+        entries[3 * used] = k1;
+        entries[3 * used + 1] = k2;
+        entries[3 * used + 2] = deadlineTick;
+        slotSizes[slot] = used + 1;
+    }
+
+    /**
+     * Moves the wheel up to 'nowMillis' and calls 'expired' for every timer
+     * whose deadline has passed.
+     */
+    public void advance(long nowMillis, LongPairConsumer expired) {
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            // when a wheel completes a turn, the next slot of the wheel above is
+            // spread over the wheels below
+            for (int level = 1; level < levels; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+                    break;
+                redistribute(level * SLOTS + ((int) (currentTick >>> (SLOT_BITS * level)) & MASK));
+            }
+
+            int slot = (int) currentTick & MASK;
+            long[] entries = slotEntries[slot];
+            int used = slotSizes[slot];
+            if (used == 0)
+                continue;
+            slotEntries[slot] = null;
+            slotSizes[slot] = 0;
+            for (int i = 0; i < used; i++) {
+                long deadlineTick = entries[3 * i + 2];
+                if (deadlineTick > currentTick) {
+                    insert(entries[3 * i], entries[3 * i + 1], deadlineTick);
+                } else {
+                    size--;
+                    expired.accept(entries[3 * i], entries[3 * i + 1]);
+                }
+            }
+        }
+    }
+
+    private void redistribute(int slot) {
+        long[] entries = slotEntries[slot];
+        int used = slotSizes[slot];
+        if (used == 0)
+            return;
+        slotEntries[slot] = null;
+        slotSizes[slot] = 0;
+        for (int i = 0; i < used; i++) {
+            insert(entries[3 * i], entries[3 * i + 1], Math.max(entries[3 * i + 2], currentTick));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,128 @@
+package applications.util;
+
+/**
+ * Open-addressing (linear probing) set of (long, long) pairs kept in one flat
+ * array, without boxing or one object per entry. Not thread safe.
+ */
+public class LongPairHashSet {
+
+    private static final float MAX_LOAD = 0.6f;
+
+    // pairs are interleaved: slot i holds keys[2 * i] and keys[2 * i + 1]
+    private long[] keys;
+    private boolean[] used;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongPairHashSet() {
+        this(16);
+    }
+
+    public LongPairHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 2];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * MAX_LOAD);
+    }
+
+    public static long mix(long k1, long k2) {
+        long h = k1 * 0x9E3779B97F4A7C15L ^ k2;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // slot holding the pair, or the free slot where it would go
+    private int find(long k1, long k2) {
+        int slot = (int) mix(k1, k2) & mask;
+        while (used[slot] && (keys[2 * slot] != k1 || keys[2 * slot + 1] != k2)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public boolean contains(long k1, long k2) {
+        return used[find(k1, k2)];
+    }
+
+    /**
+     * Returns false if the pair was already in the set.
+     */
+    public boolean add(long k1, long k2) {
+        int slot = find(k1, k2);
+        if (used[slot])
+            return false;
+        used[slot] = true;
+        keys[2 * slot] = k1;
+        keys[2 * slot + 1] = k2;
+        if (++size > resizeAt)
+            rehash();
+        return true;
+    }
+
+    public boolean remove(long k1, long k2) {
+        int slot = find(k1, k2);
+        if (!used[slot])
+            return false;
+        used[slot] = false;
+        size--;
+
+        // shift back the entries of the probe chain that follows the hole
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (used[next]) {
+            int home = (int) mix(keys[2 * next], keys[2 * next + 1]) & mask;
+            // move 'next' to the hole unless its home slot lies in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[2 * hole] = keys[2 * next];
+                keys[2 * hole + 1] = keys[2 * next + 1];
+                used[hole] = true;
+                used[next] = false;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Calls 'consumer' for every pair, in no particular order.
+     */
+    public void forEach(LongPairConsumer consumer) {
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot])
+                consumer.accept(keys[2 * slot], keys[2 * slot + 1]);
+        }
+    }
+
+    public interface LongPairConsumer {
+        void accept(long k1, long k2);
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        allocate(oldUsed.length * 2);
+        for (int slot = 0; slot < oldUsed.length; slot++) {
+            if (oldUsed[slot]) {
+                int newSlot = find(oldKeys[2 * slot], oldKeys[2 * slot + 1]);
+                used[newSlot] = true;
+                keys[2 * newSlot] = oldKeys[2 * slot];
+                keys[2 * newSlot + 1] = oldKeys[2 * slot + 1];
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package applications.util;
+
+/**
+ * Open-addressing (linear probing) map from (long, long) pairs to long values,
+ * laid out like {@link LongPairHashSet}. Not thread safe.
+ */
+public class LongPairLongHashMap {
+
+    private static final float MAX_LOAD = 0.6f;
+
+    // keys are interleaved: slot i holds keys[2 * i] and keys[2 * i + 1]
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongPairLongHashMap() {
+        this(16);
+    }
+
+    public LongPairLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 2];
+        values = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * MAX_LOAD);
+    }
+
+    // slot holding the key, or the free slot where it would go
+    private int find(long k1, long k2) {
+        int slot = (int) LongPairHashSet.mix(k1, k2) & mask;
+        while (used[slot] && (keys[2 * slot] != k1 || keys[2 * slot + 1] != k2)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public boolean containsKey(long k1, long k2) {
+        return used[find(k1, k2)];
+    }
+
+    public long get(long k1, long k2, long defaultValue) {
+        int slot = find(k1, k2);
+        return used[slot] ? values[slot] : defaultValue;
+    }
+
+    /**
+     * Returns false if the key was already in the map, in which case only its
+     * value is replaced.
+     */
+    public boolean put(long k1, long k2, long value) {
+        int slot = find(k1, k2);
+        values[slot] = value;
+        if (used[slot])
+            return false;
+        used[slot] = true;
+        keys[2 * slot] = k1;
+        keys[2 * slot + 1] = k2;
+        if (++size > resizeAt)
+            rehash();
+        return true;
+    }
+
+    public boolean remove(long k1, long k2) {
+        int slot = find(k1, k2);
+        if (!used[slot])
+            return false;
+        used[slot] = false;
+        size--;
+
+        // shift back the entries of the probe chain that follows the hole
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (used[next]) {
+            int home = (int) LongPairHashSet.mix(keys[2 * next], keys[2 * next + 1]) & mask;
+            // move 'next' to the hole unless its home slot lies in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[2 * hole] = keys[2 * next];
+                keys[2 * hole + 1] = keys[2 * next + 1];
+                values[hole] = values[next];
+                used[hole] = true;
+                used[next] = false;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(oldUsed.length * 2);
+        for (int slot = 0; slot < oldUsed.length; slot++) {
+            if (oldUsed[slot]) {
+                int newSlot = find(oldKeys[2 * slot], oldKeys[2 * slot + 1]);
+                used[newSlot] = true;
+                keys[2 * newSlot] = oldKeys[2 * slot];
+                keys[2 * newSlot + 1] = oldKeys[2 * slot + 1];
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package applications.utility;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVWrite;
+import org.hyperledger.fabric.protos.msp.Identities.SerializedIdemixIdentity;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo.NsRwsetInfo;
+
+import applications.ledger.TransactionView;
+
+/**
+ * The BuyBids naming this utility, by the ID of their 'registerBuyBid'
+ * transaction, with the idemix identity of the buyer who created them. The
+ * index is fed by the block events, so a discount request is checked without
+ * asking a peer for the transaction.
+ *
+ * Only BuyBids committed while the utility was listening are found here; the
+ * caller falls back to querying the transaction for the others. Beyond
+ * 'capacity' entries the oldest ones are dropped.
+ */
+public class BuyBidIndex {
+
+    private static final String CHAINCODE_NAME = "energy";
+    // composite key "BuyBid[false, mspPaymentCompany, token]" prefix
+    private static final String BUYBID_PREFIX = "\u0000BuyBid\u0000false\u0000";
+
+    // BuyBid protobuf fields, see 'structs.proto' in the chaincode
+    private static final int UTILITY_FIELD = 3;
+
+    public static class IndexedBuyBid {
+        private final String paymentCompany;
+        private final String token;
+        private final SerializedIdemixIdentity creator;
+
+        private IndexedBuyBid(String paymentCompany, String token, SerializedIdemixIdentity creator) {
+            this.paymentCompany = paymentCompany;
+            this.token = token;
+            this.creator = creator;
+        }
+
+        public String getPaymentCompany() {
+            return paymentCompany;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * Pseudonym and OU (issuer public key hash) of the buyer who
+         * registered the BuyBid.
+         */
+        public SerializedIdemixIdentity getCreator() {
+            return creator;
+        }
+    }
+
+    private final String utilityName;
+    private final int capacity;
+    private final Map<String, IndexedBuyBid> buyBids = new ConcurrentHashMap<String, IndexedBuyBid>();
+    private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<String>();
+
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public BuyBidIndex(String utilityName, int capacity) {
+        this.utilityName = utilityName;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the BuyBid registered by transaction 'txID', or null if it is
+     * not indexed.
+     */
+    public IndexedBuyBid get(String txID) {
+        IndexedBuyBid buyBid = buyBids.get(txID);
+        if (buyBid == null)
+            misses.increment();
+        else
+            hits.increment();
+        return buyBid;
+    }
+
+    /**
+     * Indexes the BuyBids for this utility found in the valid transactions of
+     * every committed block.
+     */
+    public Consumer<BlockEvent> blockListener() {
+        return blockEvent -> {
+            try {
+                // txID -> BuyBid key, the creator is read from the envelope afterwards
+                Map<String, String> buyBidKeys = null;
+                for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+                    if (!transactionEvent.isValid())
+                        continue;
+                    String key = buyBidKeyForUtility(transactionEvent);
+                    if (key != null) {
+                        if (buyBidKeys == null)
+                            buyBidKeys = new HashMap<String, String>();
+                        buyBidKeys.put(transactionEvent.getTransactionID(), key);
+                    }
+                }
+                if (buyBidKeys != null)
+                    indexCreators(blockEvent, buyBidKeys);
+            } catch (Exception e) {
+                System.out.println("Could not index the BuyBids of block " + blockEvent.getBlockNumber());
+                e.printStackTrace();
+            }
+        };
+    }
+
+    // 'registerBuyBid' writes exactly one key, the new BuyBid
+    private String buyBidKeyForUtility(BlockEvent.TransactionEvent transactionEvent) throws IOException {
+        for (TransactionActionInfo actionInfo : transactionEvent.getTransactionActionInfos()) {
+            TxReadWriteSetInfo readWriteSet = actionInfo.getTxReadWriteSet();
+            if (readWriteSet == null)
+                continue;
+            for (NsRwsetInfo nsRwsetInfo : readWriteSet.getNsRwsetInfos()) {
+                if (!CHAINCODE_NAME.equals(nsRwsetInfo.getNamespace()))
+                    continue;
+                if (nsRwsetInfo.getRwset().getWritesCount() != 1)
+                    return null;
+                KVWrite kv = nsRwsetInfo.getRwset().getWrites(0);
+                if (!kv.getIsDelete() && kv.getKey().startsWith(BUYBID_PREFIX)
+                        && utilityName.equals(buyBidUtility(kv.getValue())))
+                    return kv.getKey();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void indexCreators(BlockEvent blockEvent, Map<String, String> buyBidKeys) throws IOException {
+        for (ByteString envelopeBytes : blockEvent.getBlock().getData().getDataList()) {
+            TransactionView transactionView = TransactionView.fromEnvelopeBytes(envelopeBytes);
+            String txID = transactionView.getTxID();
+            String key = buyBidKeys.remove(txID);
+            if (key == null)
+                continue;
+
+            String[] attributes = splitBuyBidKey(key);
+            put(txID, new IndexedBuyBid(attributes[0], attributes[1],
+                    transactionView.getCreatorIdemixIdentity()));
+
+            if (buyBidKeys.isEmpty())
+                return;
+        }
+    }
+
+    private void put(String txID, IndexedBuyBid buyBid) {
+        if (buyBids.put(txID, buyBid) != null)
+            return;
+        insertionOrder.add(txID);
+        indexed.increment();
+        while (buyBids.size() > capacity) {
+            String oldest = insertionOrder.poll();
+            if (oldest == null)
+                break;
+            buyBids.remove(oldest);
+        }
+    }
+
+    /**
+     * Splits a "BuyBid[false, mspPaymentCompany, token]" composite key into
+     * payment company and token.
+     */
+    public static String[] splitBuyBidKey(String key) {
+        int separator = key.indexOf('\u0000', BUYBID_PREFIX.length());
+        return new String[] { key.substring(BUYBID_PREFIX.length(), separator),
+                key.substring(separator + 1, key.length() - 1) };
+    }
+
+    // reads the utility MSP ID off the protobuf encoded BuyBid
+    private static String buyBidUtility(ByteString value) throws IOException {
+        CodedInputStream input = value.newCodedInput();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == UTILITY_FIELD)
+                return input.readStringRequireUtf8();
+            input.skipField(tag);
+        }
+        return null;
+    }
+
+    public int size() {
+        return buyBids.size();
+    }
+
+    public long getIndexed() {
+        return indexed.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,193 @@
+package applications.utility;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import applications.util.HierarchicalTimingWheel;
+import applications.util.LongPairHashSet;
+import applications.util.LongPairLongHashMap;
+
+/**
+ * Challenge nonces for the discount requests. A client may hold several
+ * nonces at once, one per BuyBid it is proving; each one is accepted once,
+ * then forgotten, and expires 'ttlMillis' after being issued if not used.
+ *
+ * Nonces are drawn from a per-thread DRBG and kept as (hash of the client
+ * name, nonce) pairs in striped primitive maps, with their expiry time. Each
+ * stripe tracks the expiry of its nonces in its own
+ * {@link HierarchicalTimingWheel}, guarded by the stripe lock and advanced by
+ * a single thread, so issuing threads only meet when they hit the same
+ * stripe. At most 'maxOutstanding' timers are kept: past that, no nonce is
+ * issued until some expire, so memory stays bounded whatever the request
+ * rate.
+ */
+public class NonceService {
+
+    private static final int STRIPES = 64;
+    private static final long TICK_MILLIS = 100;
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(() -> {
+        try {
+            // one unshared generator per thread; the default NativePRNG serializes
+            // every thread on a global lock
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            try {
+                return SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e1) {
+                return new SecureRandom();
+            }
+        }
+    });
+
+    private final long ttlMillis;
+    private final int maxOutstanding;
+
+    // (client hash, nonce) -> expiry time in millis, and the timers of the
+    // stripe; both guarded by the map
+    private final LongPairLongHashMap[] outstanding = new LongPairLongHashMap[STRIPES];
+    private final HierarchicalTimingWheel[] expiryWheels = new HierarchicalTimingWheel[STRIPES];
+    private final ScheduledExecutorService ticker;
+
+    // timers in all the wheels, consumed nonces keep theirs until the deadline
+    private final AtomicInteger timers = new AtomicInteger();
+    private final AtomicInteger outstandingCount = new AtomicInteger();
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder consumed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    public NonceService(long ttlMillis, int maxOutstanding) {
+        this.ttlMillis = ttlMillis;
+        this.maxOutstanding = maxOutstanding;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < STRIPES; i++) {
+            outstanding[i] = new LongPairLongHashMap();
+            expiryWheels[i] = new HierarchicalTimingWheel(TICK_MILLIS, 4, now);
+        }
+
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "nonce-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::expire, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Issues a new nonce for 'clientName'. Returns null when 'maxOutstanding'
+     * nonces are waiting to expire.
+     */
+    public Integer issue(String clientName) {
+        long client = clientHash(clientName);
+        long deadline = System.currentTimeMillis() + ttlMillis;
+        SecureRandom random = RANDOM.get();
+
+        // the timers bound memory: a slot is taken before the nonce exists
+        if (timers.incrementAndGet() > maxOutstanding) {
+            timers.decrementAndGet();
+            rejected.increment();
+            return null;
+        }
+        while (true) {
+            int nonce = random.nextInt();
+            int stripe = stripe(client, nonce);
+            LongPairLongHashMap stripeMap = outstanding[stripe];
+            synchronized (stripeMap) {
+                // a nonce still outstanding for the same client is drawn again
+                if (!stripeMap.put(client, nonce, deadline))
+                    continue;
+                expiryWheels[stripe].schedule(client, nonce, deadline);
+            }
+            outstandingCount.incrementAndGet();
+            issued.increment();
+            return nonce;
+        }
+    }
+
+    /**
+     * Returns true if 'nonce' was issued to 'clientName' and has not expired
+     * nor been used yet. Either way it cannot be used again.
+     */
+    public boolean consume(String clientName, int nonce) {
+        long client = clientHash(clientName);
+        long now = System.currentTimeMillis();
+        LongPairLongHashMap stripe = outstanding[stripe(client, nonce)];
+        long deadline;
+        synchronized (stripe) {
+            deadline = stripe.get(client, nonce, Long.MIN_VALUE);
+            if (deadline == Long.MIN_VALUE)
+                return false;
+            stripe.remove(client, nonce);
+        }
+        outstandingCount.decrementAndGet();
+        if (deadline <= now) {
+            expired.increment();
+            return false;
+        }
+        consumed.increment();
+        return true;
+    }
+
+    private static int stripe(long client, long nonce) {
+        return (int) LongPairHashSet.mix(client, nonce) & (STRIPES - 1);
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+
+        // timers of consumed nonces find nothing left in the map
+        for (int i = 0; i < STRIPES; i++) {
+            LongPairLongHashMap stripe = outstanding[i];
+            synchronized (stripe) {
+                expiryWheels[i].advance(now, (client, nonce) -> {
+                    timers.decrementAndGet();
+                    if (stripe.get(client, nonce, Long.MAX_VALUE) > now)
+                        return;
+                    stripe.remove(client, nonce);
+                    outstandingCount.decrementAndGet();
+                    expired.increment();
+                });
+            }
+        }
+    }
+
+    // 64-bit FNV-1a of the client name
+    private static long clientHash(String clientName) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < clientName.length(); i++) {
+            hash ^= clientName.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    public int getOutstandingCount() {
+        return outstandingCount.get();
+    }
+
+    public long getIssued() {
+        return issued.sum();
+    }
+
+    public long getConsumed() {
+        return consumed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+    }
+}
@@ -0,0 +1,225 @@
+package applications.utility;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVRWSet;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVWrite;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo.NsRwsetInfo;
+
+/**
+ * The energy bought with each payment token from this utility, summed over
+ * its EnergyTransactions as they are written by the auctions. The aggregate is
+ * fed by the block events, so a discount request reads the bought kWh of a
+ * token without querying the peer.
+ *
+ * The quantity of each EnergyTransaction is kept by its seller bid, so a write
+ * seen twice (an EnergyTransaction rewritten by a later auction, or one also
+ * loaded by {@link #load}) replaces the former quantity instead of adding to
+ * it. Tokens seen before the utility was listening are unknown until loaded.
+ * Beyond 'capacity' tokens the oldest ones are dropped.
+ */
+public class TokenEnergyAggregate {
+
+    private static final String CHAINCODE_NAME = "energy";
+    // composite key "EnergyTransaction[mspPaymentCompany, token, mspSeller, sellerID, sellerBidNumber]" prefix
+    private static final String ENERGY_TRANSACTION_PREFIX = "\u0000EnergyTransaction\u0000";
+
+    // EnergyTransaction protobuf fields, see 'structs.proto' in the chaincode
+    private static final int UTILITY_FIELD = 6;
+    private static final int ENERGY_QUANTITY_FIELD = 7;
+
+    private static final class TokenEnergy {
+        // "mspSeller\0sellerID\0sellerBidNumber" -> kWh
+        private final Map<String, Double> bySellBid = new HashMap<String, Double>(4);
+        private double boughtKwh;
+
+        private synchronized void put(String sellBid, double kwh) {
+            Double former = bySellBid.put(sellBid, kwh);
+            boughtKwh += kwh - (former == null ? 0 : former);
+        }
+
+        private synchronized void putIfAbsent(String sellBid, double kwh) {
+            if (!bySellBid.containsKey(sellBid))
+                put(sellBid, kwh);
+        }
+
+        private synchronized void remove(String sellBid) {
+            Double former = bySellBid.remove(sellBid);
+            if (former != null)
+                boughtKwh -= former;
+        }
+
+        private synchronized double getBoughtKwh() {
+            return boughtKwh;
+        }
+    }
+
+    private final String utilityName;
+    private final int capacity;
+    private final Map<String, TokenEnergy> tokens = new ConcurrentHashMap<String, TokenEnergy>();
+    private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<String>();
+
+    private final LongAdder energyTransactions = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public TokenEnergyAggregate(String utilityName, int capacity) {
+        this.utilityName = utilityName;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the kWh bought from this utility with 'token', or null if no
+     * EnergyTransaction of the token was seen.
+     */
+    public Double getBoughtKwh(String paymentCompany, String token) {
+        TokenEnergy tokenEnergy = tokens.get(tokenKey(paymentCompany, token));
+        if (tokenEnergy == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return tokenEnergy.getBoughtKwh();
+    }
+
+    /**
+     * Adds the EnergyTransactions of 'token' read from the peer, keyed by
+     * "mspSeller\0sellerID\0sellerBidNumber". Quantities already seen in the
+     * block events are newer and kept.
+     */
+    public void load(String paymentCompany, String token, Map<String, Double> kwhBySellBid) {
+        TokenEnergy tokenEnergy = tokenEnergy(tokenKey(paymentCompany, token));
+        for (Map.Entry<String, Double> entry : kwhBySellBid.entrySet()) {
+            tokenEnergy.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Applies the EnergyTransaction writes for this utility found in the valid
+     * transactions of every committed block.
+     */
+    public Consumer<BlockEvent> blockListener() {
+        return blockEvent -> {
+            try {
+                for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+                    if (transactionEvent.isValid())
+                        applyWrites(transactionEvent);
+                }
+            } catch (Exception e) {
+                System.out.println("Could not aggregate the EnergyTransactions of block " + blockEvent.getBlockNumber());
+                e.printStackTrace();
+            }
+        };
+    }
+
+    // an auction writes its EnergyTransactions among the bids it updates
+    private void applyWrites(BlockEvent.TransactionEvent transactionEvent) throws IOException {
+        for (TransactionActionInfo actionInfo : transactionEvent.getTransactionActionInfos()) {
+            TxReadWriteSetInfo readWriteSet = actionInfo.getTxReadWriteSet();
+            if (readWriteSet == null)
+                continue;
+            for (NsRwsetInfo nsRwsetInfo : readWriteSet.getNsRwsetInfos()) {
+                if (!CHAINCODE_NAME.equals(nsRwsetInfo.getNamespace()))
+                    continue;
+                KVRWSet rwset = nsRwsetInfo.getRwset();
+                for (int i = 0; i < rwset.getWritesCount(); i++) {
+                    KVWrite kv = rwset.getWrites(i);
+                    if (kv.getKey().startsWith(ENERGY_TRANSACTION_PREFIX))
+                        apply(kv);
+                }
+            }
+        }
+    }
+
+    private void apply(KVWrite kv) throws IOException {
+        String key = kv.getKey();
+        int tokenEnd = key.indexOf('\u0000', key.indexOf('\u0000', ENERGY_TRANSACTION_PREFIX.length()) + 1);
+        String tokenKey = key.substring(ENERGY_TRANSACTION_PREFIX.length(), tokenEnd);
+        String sellBid = key.substring(tokenEnd + 1, key.length() - 1);
+
+        if (kv.getIsDelete()) {
+            TokenEnergy tokenEnergy = tokens.get(tokenKey);
+            if (tokenEnergy != null)
+                tokenEnergy.remove(sellBid);
+            return;
+        }
+
+        // reads the utility MSP ID and the quantity off the protobuf encoded EnergyTransaction
+        String utility = null;
+        double kwh = 0;
+        CodedInputStream input = kv.getValue().newCodedInput();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == UTILITY_FIELD)
+                utility = input.readStringRequireUtf8();
+            else if (field == ENERGY_QUANTITY_FIELD)
+                kwh = input.readDouble();
+            else
+                input.skipField(tag);
+        }
+        if (!utilityName.equals(utility))
+            return;
+
+        tokenEnergy(tokenKey).put(sellBid, kwh);
+        energyTransactions.increment();
+    }
+
+    private TokenEnergy tokenEnergy(String tokenKey) {
+        TokenEnergy tokenEnergy = tokens.get(tokenKey);
+        if (tokenEnergy != null)
+            return tokenEnergy;
+        TokenEnergy created = new TokenEnergy();
+        tokenEnergy = tokens.putIfAbsent(tokenKey, created);
+        if (tokenEnergy != null)
+            return tokenEnergy;
+
+        insertionOrder.add(tokenKey);
+        while (tokens.size() > capacity) {
+            String oldest = insertionOrder.poll();
+            if (oldest == null)
+                break;
+            tokens.remove(oldest);
+        }
+        return created;
+    }
+
+    // same separator as the composite key, which no MSP ID nor token holds
+    private static String tokenKey(String paymentCompany, String token) {
+        return paymentCompany + '\u0000' + token;
+    }
+
+    public static String sellBidKey(String mspSeller, String sellerID, String sellerBidNumber) {
+        return mspSeller + '\u0000' + sellerID + '\u0000' + sellerBidNumber;
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    public long getEnergyTransactions() {
+        return energyTransactions.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
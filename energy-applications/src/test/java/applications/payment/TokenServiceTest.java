@@ -0,0 +1,70 @@
+package applications.payment;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import applications.payment.state.PaymentState;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TokenServiceTest {
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final long SNAPSHOT_INTERVAL = 3600;
+    private static final long UNUSED_TTL = 200;
+    private static final long SETTLED_TTL = 200;
+
+    @Test
+    void openBuyBidKeepsItsReservationAcrossRestarts(@TempDir Path directory)
+            throws IOException, InterruptedException {
+        PaymentState state = PaymentState.open(directory, SEGMENT_SIZE, SNAPSHOT_INTERVAL);
+        state.deposit("buyer", 1000);
+        TokenService tokens = new TokenService(state, UNUSED_TTL, SETTLED_TTL);
+        String open = tokens.issue("buyer", 300);
+        String unused = tokens.issue("buyer", 300);
+        tokens.buyBidOpened(open);
+        tokens.stop();
+        state.close();
+
+        PaymentState recovered = PaymentState.open(directory, SEGMENT_SIZE, SNAPSHOT_INTERVAL);
+        TokenService recoveredTokens = new TokenService(recovered, UNUSED_TTL, SETTLED_TTL);
+        Thread.sleep(4 * UNUSED_TTL);
+        AccountLedger ledger = recovered.getLedger();
+        assertNotNull(ledger.getReservation(open));
+        assertNull(ledger.getReservation(unused));
+        assertEquals(700, ledger.getAccount("buyer").getBalance());
+
+        // once the BuyBid is closed, the sellers have the settled TTL to claim
+        recoveredTokens.buyBidClosed(open);
+        assertNotNull(ledger.getReservation(open));
+        Thread.sleep(4 * SETTLED_TTL);
+        assertNull(ledger.getReservation(open));
+        assertEquals(1000, ledger.getAccount("buyer").getBalance());
+        recoveredTokens.stop();
+        recovered.close();
+    }
+
+    @Test
+    void openBuyBidSurvivesSnapshots(@TempDir Path directory) throws IOException, InterruptedException {
+        PaymentState state = PaymentState.open(directory, SEGMENT_SIZE, SNAPSHOT_INTERVAL);
+        state.deposit("buyer", 1000);
+        TokenService tokens = new TokenService(state, UNUSED_TTL, SETTLED_TTL);
+        String open = tokens.issue("buyer", 300);
+        tokens.buyBidOpened(open);
+        state.snapshot();
+        tokens.stop();
+        state.close();
+
+        PaymentState recovered = PaymentState.open(directory, SEGMENT_SIZE, SNAPSHOT_INTERVAL);
+        TokenService recoveredTokens = new TokenService(recovered, UNUSED_TTL, SETTLED_TTL);
+        Thread.sleep(4 * UNUSED_TTL);
+        assertNotNull(recovered.getLedger().getReservation(open));
+        recoveredTokens.stop();
+        recovered.close();
+    }
+}
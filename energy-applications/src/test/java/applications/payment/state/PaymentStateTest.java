@@ -0,0 +1,77 @@
+package applications.payment.state;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import applications.payment.AccountLedger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PaymentStateTest {
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    // no periodic snapshot during a test
+    private static final long SNAPSHOT_INTERVAL = 3600;
+
+    @Test
+    void recoversFromSnapshotAndLog(@TempDir Path directory) throws IOException {
+        PaymentState state = PaymentState.open(directory, SEGMENT_SIZE, SNAPSHOT_INTERVAL);
+        state.deposit("buyer", 1000);
+        assertNotNull(state.reserve("buyer", "token-1", 400));
+        assertEquals(100, state.pay("seller", "token-1", 1, 100));
+        state.snapshot();
+
+        // after the snapshot, only in the log
+        state.deposit("other-buyer", 50);
+        assertNotNull(state.reserve("buyer", "token-2", 200));
+        assertEquals(150, state.pay("seller", "token-1", 2, 150));
+        assertEquals(200, state.release("token-2"));
+        state.close();
+
+        PaymentState recovered = PaymentState.open(directory, SEGMENT_SIZE, SNAPSHOT_INTERVAL);
+        AccountLedger ledger = recovered.getLedger();
+        assertEquals(600, ledger.getAccount("buyer").getBalance());
+        assertEquals(50, ledger.getAccount("other-buyer").getBalance());
+        assertEquals(250, ledger.getAccount("seller").getBalance());
+        assertEquals(150, ledger.getReservation("token-1").getRemaining());
+        assertNull(ledger.getReservation("token-2"));
+        assertTrue(recovered.getPaidBidIndex().isPaid("seller", "token-1", 1));
+        assertTrue(recovered.getPaidBidIndex().isPaid("seller", "token-1", 2));
+
+        // a bid paid before the restart is not paid twice
+        assertEquals(0, recovered.pay("seller", "token-1", 2, 150));
+        assertEquals(150, recovered.release("token-1"));
+        recovered.close();
+
+        PaymentState again = PaymentState.open(directory, SEGMENT_SIZE, SNAPSHOT_INTERVAL);
+        assertEquals(750, again.getLedger().getAccount("buyer").getBalance());
+        assertNull(again.getLedger().getReservation("token-1"));
+        again.close();
+    }
+
+    @Test
+    void failedPaymentLeavesTheBidUnpaid(@TempDir Path directory) throws IOException {
+        PaymentState state = PaymentState.open(directory, SEGMENT_SIZE, SNAPSHOT_INTERVAL);
+        state.deposit("buyer", 100);
+        assertNotNull(state.reserve("buyer", "token", 100));
+        assertEquals(100, state.pay("seller", "token", 1, 100));
+
+        // the reservation is exhausted: nothing is settled and the bid can be paid later
+        assertEquals(0, state.pay("seller", "token", 2, 10));
+        assertFalse(state.getPaidBidIndex().isPaid("seller", "token", 2));
+        state.close();
+
+        PaymentState recovered = PaymentState.open(directory, SEGMENT_SIZE, SNAPSHOT_INTERVAL);
+        assertTrue(recovered.getPaidBidIndex().isPaid("seller", "token", 1));
+        assertFalse(recovered.getPaidBidIndex().isPaid("seller", "token", 2));
+        assertEquals(100, recovered.getLedger().getAccount("seller").getBalance());
+        recovered.close();
+    }
+}
@@ -0,0 +1,88 @@
+package applications.payment.state;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WriteAheadLogTest {
+
+    private static ByteBuffer record(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> replayAll(Path directory) throws IOException {
+        List<String> records = new ArrayList<String>();
+        WriteAheadLog.replay(directory, 0, payload -> {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            records.add(new String(bytes, StandardCharsets.UTF_8));
+        });
+        return records;
+    }
+
+    @Test
+    void replayReadsRecordsAcrossSegments(@TempDir Path directory) throws IOException {
+        // 3 records of 8 + 10 bytes per segment
+        WriteAheadLog wal = new WriteAheadLog(directory, 64, 0);
+        List<String> written = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            String text = String.format("record-%03d", i);
+            wal.sync(wal.append(record(text)));
+            written.add(text);
+        }
+        wal.close();
+
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), WriteAheadLog.listSegments(directory));
+        assertEquals(written, replayAll(directory));
+    }
+
+    @Test
+    void replayStopsAtTruncatedRecord(@TempDir Path directory) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(directory, 4096, 0);
+        wal.append(record("first"));
+        wal.append(record("second"));
+        long end = wal.append(record("third"));
+        wal.sync(end);
+        wal.close();
+
+        // a crash in the middle of the last write left the end of its payload unwritten
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("wal-%016d.log", 0)),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(2), end - 2);
+        }
+        assertEquals(Arrays.asList("first", "second"), replayAll(directory));
+
+        // the recovered segment is left as it is, the log goes on in the next one
+        long last = WriteAheadLog.replay(directory, 0, payload -> {
+        });
+        assertEquals(0, last);
+        wal = new WriteAheadLog(directory, 4096, last + 1);
+        wal.sync(wal.append(record("fourth")));
+        wal.close();
+        assertEquals(Arrays.asList("first", "second", "fourth"), replayAll(directory));
+    }
+
+    @Test
+    void replaySkipsSegmentsBeforeTheSnapshot(@TempDir Path directory) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(directory, 4096, 0);
+        wal.append(record("before"));
+        long next = wal.roll();
+        wal.sync(wal.append(record("after")));
+        wal.close();
+
+        List<String> records = new ArrayList<String>();
+        WriteAheadLog.replay(directory, next, payload -> records.add(StandardCharsets.UTF_8.decode(payload).toString()));
+        assertEquals(Arrays.asList("after"), records);
+    }
+}
@@ -0,0 +1,98 @@
+package applications.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HierarchicalTimingWheelTest {
+
+    private static final long TICK = 100;
+
+    @Test
+    void firesOnTheFirstTickAtOrAfterTheDeadline() {
+        HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(TICK, 4, 0);
+        wheel.schedule(1, 2, 250);
+        assertEquals(1, wheel.size());
+
+        long[] fired = new long[1];
+        wheel.advance(299, (k1, k2) -> fired[0]++);
+        assertEquals(0, fired[0]);
+        wheel.advance(300, (k1, k2) -> {
+            assertEquals(1, k1);
+            assertEquals(2, k2);
+            fired[0]++;
+        });
+        assertEquals(1, fired[0]);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cascadesDownEveryLevel() {
+        // not aligned on any wheel turn
+        long startTick = 12345;
+        HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(TICK, 4, startTick * TICK);
+        long[] delays = { 1, 63, 64, 65, 4095, 4096, 4097, 262143, 262144, 262145, 1000000 };
+        for (int i = 0; i < delays.length; i++) {
+            wheel.schedule(i, 0, (startTick + delays[i]) * TICK);
+        }
+
+        Map<Long, Long> firedAt = new HashMap<Long, Long>();
+        for (long tick = startTick + 1; tick <= startTick + 1000000; tick++) {
+            long now = tick;
+            wheel.advance(tick * TICK, (k1, k2) -> firedAt.put(k1, now));
+        }
+        assertEquals(delays.length, firedAt.size());
+        for (int i = 0; i < delays.length; i++) {
+            assertEquals(startTick + delays[i], firedAt.get((long) i).longValue(), "delay " + delays[i]);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void waitsForDeadlinesPastTheWheelSpan() {
+        // two levels span 4096 ticks
+        HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(TICK, 2, 7 * TICK);
+        wheel.schedule(1, 1, (7 + 10000) * TICK);
+        wheel.schedule(2, 2, (7 + 4096 * 5 + 3) * TICK);
+
+        Map<Long, Long> firedAt = new HashMap<Long, Long>();
+        for (long tick = 8; tick <= 7 + 4096 * 6; tick++) {
+            long now = tick;
+            wheel.advance(tick * TICK, (k1, k2) -> firedAt.put(k1, now));
+        }
+        assertEquals(7 + 10000, firedAt.get(1L).longValue());
+        assertEquals(7 + 4096 * 5 + 3, firedAt.get(2L).longValue());
+    }
+
+    @Test
+    void firesEachTimerInTheAdvanceThatReachesItsDeadline() {
+        Random random = new Random(42);
+        HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(TICK, 3, 0);
+        Map<Long, Long> deadlines = new HashMap<Long, Long>();
+        long now = 0;
+        for (long key = 0; key < 20000; key++) {
+            long deadline = now + random.nextInt(400000) * TICK / 10;
+            wheel.schedule(key, 0, deadline);
+            deadlines.put(key, deadline);
+            if (key % 100 == 0) {
+                long previous = now;
+                now += random.nextInt(5000) * TICK / 10;
+                long reached = now;
+                wheel.advance(now, (k1, k2) -> {
+                    long deadlineTick = (deadlines.remove(k1) + TICK - 1) / TICK;
+                    assertTrue(deadlineTick <= reached / TICK, "fired early");
+                    assertFalse(deadlineTick <= previous / TICK, "fired late");
+                });
+            }
+        }
+        wheel.advance(now + 40000 * TICK, (k1, k2) -> deadlines.remove(k1));
+        assertTrue(deadlines.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+}
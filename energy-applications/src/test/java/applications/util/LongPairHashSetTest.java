@@ -0,0 +1,121 @@
+package applications.util;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongPairHashSetTest {
+
+    // capacity of a set built with the default expected size, before any rehash
+    private static final int CAPACITY = 32;
+
+    // first k1 >= 'from' whose pair (k1, 0) hashes to 'slot'
+    private static long keyWithHome(int slot, long from) {
+        long k1 = from;
+        while (((int) LongPairHashSet.mix(k1, 0) & (CAPACITY - 1)) != slot)
+            k1++;
+        return k1;
+    }
+
+    @Test
+    void addContainsRemove() {
+        LongPairHashSet set = new LongPairHashSet();
+        assertTrue(set.add(1, 2));
+        assertFalse(set.add(1, 2));
+        assertTrue(set.contains(1, 2));
+        assertFalse(set.contains(2, 1));
+        assertEquals(1, set.size());
+
+        assertTrue(set.remove(1, 2));
+        assertFalse(set.remove(1, 2));
+        assertFalse(set.contains(1, 2));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    void removeShiftsBackAcrossWraparound() {
+        LongPairHashSet set = new LongPairHashSet();
+        // the probe chain starts in the last slot and goes on in the first ones
+        long a = keyWithHome(CAPACITY - 1, 0);
+        long b = keyWithHome(CAPACITY - 1, a + 1);
+        long c = keyWithHome(0, 0);
+        long d = keyWithHome(1, 0);
+        set.add(a, 0);
+        set.add(b, 0);
+        set.add(c, 0);
+        set.add(d, 0);
+
+        assertTrue(set.remove(a, 0));
+        assertFalse(set.contains(a, 0));
+        assertTrue(set.contains(b, 0));
+        assertTrue(set.contains(c, 0));
+        assertTrue(set.contains(d, 0));
+
+        assertTrue(set.remove(c, 0));
+        assertTrue(set.contains(b, 0));
+        assertTrue(set.contains(d, 0));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    void removeKeepsEntriesWhoseHomeIsPastTheWraparound() {
+        LongPairHashSet set = new LongPairHashSet();
+        // the hole is left in the last slot, the entries after it belong to the first
+        long a = keyWithHome(CAPACITY - 1, 0);
+        long c = keyWithHome(0, 0);
+        long e = keyWithHome(0, c + 1);
+        set.add(a, 0);
+        set.add(c, 0);
+        set.add(e, 0);
+
+        assertTrue(set.remove(a, 0));
+        assertTrue(set.contains(c, 0));
+        assertTrue(set.contains(e, 0));
+        assertTrue(set.remove(e, 0));
+        assertTrue(set.contains(c, 0));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    void rehashKeepsEveryPair() {
+        LongPairHashSet set = new LongPairHashSet();
+        for (long i = 0; i < 10000; i++) {
+            assertTrue(set.add(i, -i));
+        }
+        assertEquals(10000, set.size());
+        for (long i = 0; i < 10000; i++) {
+            assertTrue(set.contains(i, -i));
+        }
+        long[] count = new long[1];
+        set.forEach((k1, k2) -> {
+            assertEquals(-k1, k2);
+            count[0]++;
+        });
+        assertEquals(10000, count[0]);
+    }
+
+    @Test
+    void matchesHashSetUnderRandomAddsAndRemoves() {
+        LongPairHashSet set = new LongPairHashSet();
+        Set<Long> expected = new HashSet<Long>();
+        Random random = new Random(42);
+        // few distinct keys so the table stays small and crowded
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(24);
+            if (random.nextBoolean())
+                assertEquals(expected.add(key), set.add(key, key * 31));
+            else
+                assertEquals(expected.remove(key), set.remove(key, key * 31));
+        }
+        assertEquals(expected.size(), set.size());
+        for (long key = 0; key < 24; key++) {
+            assertEquals(expected.contains(key), set.contains(key, key * 31));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package applications.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongPairLongHashMapTest {
+
+    // capacity of a map built with the default expected size, before any rehash
+    private static final int CAPACITY = 32;
+
+    // first k1 >= 'from' whose key (k1, 0) hashes to 'slot'
+    private static long keyWithHome(int slot, long from) {
+        long k1 = from;
+        while (((int) LongPairHashSet.mix(k1, 0) & (CAPACITY - 1)) != slot)
+            k1++;
+        return k1;
+    }
+
+    @Test
+    void putReplacesTheValue() {
+        LongPairLongHashMap map = new LongPairLongHashMap();
+        assertTrue(map.put(1, 2, 10));
+        assertFalse(map.put(1, 2, 20));
+        assertEquals(20, map.get(1, 2, -1));
+        assertEquals(-1, map.get(2, 1, -1));
+        assertEquals(1, map.size());
+
+        assertTrue(map.remove(1, 2));
+        assertFalse(map.remove(1, 2));
+        assertFalse(map.containsKey(1, 2));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    void removeMovesValuesAcrossWraparound() {
+        LongPairLongHashMap map = new LongPairLongHashMap();
+        long a = keyWithHome(CAPACITY - 1, 0);
+        long b = keyWithHome(CAPACITY - 1, a + 1);
+        long c = keyWithHome(0, 0);
+        long e = keyWithHome(0, c + 1);
+        map.put(a, 0, 1);
+        map.put(b, 0, 2);
+        map.put(c, 0, 3);
+        map.put(e, 0, 4);
+
+        assertTrue(map.remove(a, 0));
+        assertEquals(2, map.get(b, 0, -1));
+        assertEquals(3, map.get(c, 0, -1));
+        assertEquals(4, map.get(e, 0, -1));
+
+        assertTrue(map.remove(b, 0));
+        assertEquals(3, map.get(c, 0, -1));
+        assertEquals(4, map.get(e, 0, -1));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    void rehashKeepsEveryValue() {
+        LongPairLongHashMap map = new LongPairLongHashMap();
+        for (long i = 0; i < 10000; i++) {
+            assertTrue(map.put(i, i + 1, i * 7));
+        }
+        assertEquals(10000, map.size());
+        for (long i = 0; i < 10000; i++) {
+            assertEquals(i * 7, map.get(i, i + 1, -1));
+        }
+    }
+
+    @Test
+    void matchesHashMapUnderRandomPutsAndRemoves() {
+        LongPairLongHashMap map = new LongPairLongHashMap();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(42);
+        // few distinct keys so the table stays small and crowded
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(24);
+            if (random.nextBoolean()) {
+                long value = random.nextLong();
+                assertEquals(expected.put(key, value) == null, map.put(key, -key, value));
+            } else {
+                assertEquals(expected.remove(key) != null, map.remove(key, -key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 24; key++) {
+            assertEquals(expected.getOrDefault(key, Long.MIN_VALUE).longValue(), map.get(key, -key, Long.MIN_VALUE));
+        }
+    }
+}
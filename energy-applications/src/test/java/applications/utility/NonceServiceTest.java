@@ -0,0 +1,91 @@
+package applications.utility;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NonceServiceTest {
+
+    @Test
+    void nonceIsUsedOnceByItsClient() {
+        NonceService service = new NonceService(60000, 100);
+        Integer nonce = service.issue("buyer1");
+        assertNotNull(nonce);
+        assertFalse(service.consume("buyer2", nonce));
+        assertTrue(service.consume("buyer1", nonce));
+        assertFalse(service.consume("buyer1", nonce));
+        assertEquals(0, service.getOutstandingCount());
+        service.stop();
+    }
+
+    @Test
+    void expiredNonceIsRefused() throws InterruptedException {
+        NonceService service = new NonceService(100, 100);
+        Integer nonce = service.issue("buyer1");
+        Thread.sleep(500);
+        assertFalse(service.consume("buyer1", nonce));
+        assertEquals(1, service.getExpired());
+        service.stop();
+    }
+
+    @Test
+    void outstandingTimersAreBounded() throws InterruptedException {
+        NonceService service = new NonceService(200, 3);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(service.issue("buyer1"));
+        }
+        assertNull(service.issue("buyer1"));
+        assertEquals(1, service.getRejected());
+
+        // timers are freed when they fire, used or not
+        Thread.sleep(800);
+        assertEquals(0, service.getOutstandingCount());
+        assertNotNull(service.issue("buyer1"));
+        service.stop();
+    }
+
+    @Test
+    void concurrentIssuesAreAllDistinct() throws InterruptedException {
+        NonceService service = new NonceService(60000, 100000);
+        int threads = 8;
+        int perThread = 5000;
+        List<Set<Integer>> issued = new ArrayList<Set<Integer>>();
+        List<Thread> issuers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            Set<Integer> nonces = new HashSet<Integer>();
+            issued.add(nonces);
+            issuers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    nonces.add(service.issue("buyer1"));
+                }
+            }));
+        }
+        for (Thread issuer : issuers) {
+            issuer.start();
+        }
+        for (Thread issuer : issuers) {
+            issuer.join();
+        }
+
+        Set<Integer> all = new HashSet<Integer>();
+        for (Set<Integer> nonces : issued) {
+            all.addAll(nonces);
+        }
+        assertEquals(threads * perThread, all.size());
+        assertEquals(threads * perThread, service.getOutstandingCount());
+        for (Integer nonce : all) {
+            assertTrue(service.consume("buyer1", nonce));
+        }
+        assertEquals(threads * perThread, service.getConsumed());
+        service.stop();
+    }
+}